@@ -21,6 +21,7 @@ import java.net.MalformedURLException;
 import edu.cmu.sphinx.frontend.frequencywarp.MelFrequencyFilterBank2;
 import edu.cmu.sphinx.frontend.util.StreamDataSource;
 import edu.cmu.sphinx.linguist.acoustic.tiedstate.Loader;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SharedAcousticModel;
 import edu.cmu.sphinx.util.TimeFrame;
 import edu.cmu.sphinx.util.Utilities;
 import edu.cmu.sphinx.util.props.Configurable;
@@ -55,10 +56,55 @@ public class Context {
      */
     public Context(String path, Configuration config)
         throws IOException, MalformedURLException
+    {
+        this(path, config, null);
+    }
+
+    /**
+     * Constructs builder that uses default XML configuration and an acoustic
+     * model shared with other contexts. The acoustic model path of the
+     * configuration, if any, is only used to locate the filler dictionary.
+     *
+     * @param config configuration
+     * @param acousticModel the loaded acoustic model
+     * @throws IOException if failed to load configuration file
+     */
+    public Context(Configuration config, SharedAcousticModel acousticModel)
+        throws IOException
+    {
+        this("resource:/edu/cmu/sphinx/api/default.config.xml", config,
+             acousticModel);
+    }
+
+    /**
+     * Constructs builder using user-supplied XML configuration and an
+     * acoustic model shared with other contexts.
+     *
+     * The component "acousticModelLoader" of the configuration is replaced by
+     * a loader of the shared model.
+     *
+     * @param  path path to XML-resource with configuration
+     * @param  config configuration
+     * @param  acousticModel the loaded acoustic model, or null to load the
+     *         model of the configuration
+     * @throws IOException if failed to load configuration file
+     */
+    public Context(String path, Configuration config,
+                   SharedAcousticModel acousticModel)
+        throws IOException
     {
         configurationManager = new ConfigurationManager(resourceToURL(path));
 
-        setAcousticModel(config.getAcousticModelPath());
+        if (null != acousticModel) {
+            setAcousticModel(null != config.getAcousticModelPath()
+                             ? config.getAcousticModelPath()
+                             : acousticModel.getLocation());
+            configurationManager.removeConfigurable("acousticModelLoader");
+            configurationManager.addConfigurable(acousticModel.createLoader(),
+                                                 "acousticModelLoader");
+        } else {
+            setAcousticModel(config.getAcousticModelPath());
+        }
         setDictionary(config.getDictionaryPath());
 
         if (null != config.getGrammarPath() && config.getUseGrammar())
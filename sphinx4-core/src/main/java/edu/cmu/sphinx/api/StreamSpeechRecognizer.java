@@ -14,6 +14,7 @@ package edu.cmu.sphinx.api;
 import java.io.IOException;
 import java.io.InputStream;
 
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SharedAcousticModel;
 import edu.cmu.sphinx.util.TimeFrame;
 
 /**
@@ -35,6 +36,21 @@ public class StreamSpeechRecognizer extends AbstractSpeechRecognizer {
         super(configuration);
     }
 
+    /**
+     * Constructs new stream recognizer on an acoustic model shared with
+     * other recognizers, which can decode concurrently.
+     *
+     * @param configuration configuration
+     * @param acousticModel the loaded acoustic model
+     * @throws IOException error occured during configuration load
+     */
+    public StreamSpeechRecognizer(Configuration configuration,
+                                  SharedAcousticModel acousticModel)
+        throws IOException
+    {
+        super(new Context(configuration, acousticModel));
+    }
+
     public void startRecognition(InputStream stream) {
         startRecognition(stream, TimeFrame.INFINITE);
     }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.scorer;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.cmu.sphinx.frontend.BaseDataProcessor;
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+import edu.cmu.sphinx.util.props.S4Boolean;
+import edu.cmu.sphinx.util.props.S4Integer;
+
+/**
+ * An acoustic scorer that scores on a work-stealing {@link ForkJoinPool}.
+ * <p>
+ * The scoreable list is split recursively in halves until the parts are
+ * small enough, idle workers steal the remaining halves and the best
+ * scoreable is reduced along the way back up. The tasks form a fixed tree
+ * that is reused for every frame, so no task objects are created while
+ * scoring. By default all scorers in the JVM share one pool with a worker
+ * per CPU, which keeps many concurrent recognizers from oversubscribing the
+ * cores.
+ * <p>
+ * All scores are maintained in LogMath log base
+ */
+public class ForkJoinAcousticScorer extends SimpleAcousticScorer {
+
+    /**
+     * The property that controls the number of workers of a private pool. If
+     * zero, one worker per available CPU is used. Ignored if the shared pool
+     * is used.
+     */
+    @S4Integer(defaultValue = 0)
+    public final static String PROP_NUM_THREADS = "numThreads";
+
+    /**
+     * The property that controls the minimum number of scoreables scored by a
+     * single task. Lists are not split below twice this size.
+     */
+    @S4Integer(defaultValue = 10)
+    public final static String PROP_MIN_SCOREABLES_PER_TASK = "minScoreablesPerTask";
+
+    /**
+     * The property that controls whether the scorer uses the pool shared by
+     * all scorers in the JVM instead of a private one.
+     */
+    @S4Boolean(defaultValue = true)
+    public final static String PROP_SHARE_POOL = "sharePool";
+
+    private static ForkJoinPool sharedPool;
+
+    private int numThreads;
+    private int minScoreablesPerTask;
+    private boolean sharePool;
+
+    private ForkJoinPool pool;
+    private ScoringTask rootTask;
+
+    // state of the frame being scored, published to the workers by invoke
+    private List<? extends Scoreable> scoreables;
+    private Data data;
+
+    /**
+     * @param frontEnd
+     *            the frontend to retrieve features from for scoring
+     * @param scoreNormalizer
+     *            optional post-processor for computed scores that will
+     *            normalize scores. If not set, no normalization will applied
+     *            and the token scores will be returned unchanged.
+     * @param minScoreablesPerTask
+     *            the minimum number of scoreables scored by a single task
+     * @param numThreads
+     *            the number of workers of a private pool, zero for one per
+     *            CPU
+     * @param sharePool
+     *            whether to use the pool shared by all scorers in the JVM
+     */
+    public ForkJoinAcousticScorer(BaseDataProcessor frontEnd, ScoreNormalizer scoreNormalizer,
+            int minScoreablesPerTask, int numThreads, boolean sharePool) {
+        super(frontEnd, scoreNormalizer);
+        init(minScoreablesPerTask, numThreads, sharePool);
+    }
+
+    public ForkJoinAcousticScorer() {
+    }
+
+    @Override
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        super.newProperties(ps);
+        init(ps.getInt(PROP_MIN_SCOREABLES_PER_TASK), ps.getInt(PROP_NUM_THREADS), ps.getBoolean(PROP_SHARE_POOL));
+    }
+
+    private void init(int minScoreablesPerTask, int numThreads, boolean sharePool) {
+        this.minScoreablesPerTask = Math.max(1, minScoreablesPerTask);
+        this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+        this.sharePool = sharePool;
+    }
+
+    /**
+     * Returns the pool shared by all scorers of this JVM, creating it on first
+     * use with one worker per available CPU.
+     *
+     * @return the shared pool
+     */
+    public static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null)
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return sharedPool;
+    }
+
+    @Override
+    public void allocate() {
+        super.allocate();
+        if (pool == null) {
+            pool = sharePool ? getSharedPool() : new ForkJoinPool(numThreads);
+            logger.fine("# of scoring workers: " + pool.getParallelism());
+            // about four leaves per worker leave room for stealing
+            int depth = 2;
+            for (int n = 1; n < pool.getParallelism(); n <<= 1)
+                depth++;
+            rootTask = new ScoringTask(depth);
+        }
+    }
+
+    @Override
+    public void deallocate() {
+        super.deallocate();
+        if (pool != null) {
+            if (pool != sharedPool)
+                pool.shutdown();
+            pool = null;
+            rootTask = null;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T extends Scoreable> T doScoring(List<T> scoreableList, Data data) {
+        int size = scoreableList.size();
+        if (pool == null || pool.getParallelism() < 2 || size < 2 * minScoreablesPerTask)
+            return super.doScoring(scoreableList, data);
+
+        this.scoreables = scoreableList;
+        this.data = data;
+        rootTask.reinitialize();
+        rootTask.setRange(0, size);
+        try {
+            pool.invoke(rootTask);
+            return (T) rootTask.best;
+        } finally {
+            this.scoreables = null;
+            this.data = null;
+        }
+    }
+
+    /** Scores a range of the scoreable list, splitting it among the children. */
+    @SuppressWarnings("serial")
+    private class ScoringTask extends RecursiveAction {
+
+        private final ScoringTask left;
+        private final ScoringTask right;
+        private int from;
+        private int to;
+        private Scoreable best;
+
+        ScoringTask(int depth) {
+            left = depth > 0 ? new ScoringTask(depth - 1) : null;
+            right = depth > 0 ? new ScoringTask(depth - 1) : null;
+        }
+
+        void setRange(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (left == null || to - from < 2 * minScoreablesPerTask) {
+                best = null;
+                float bestScore = -Float.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    Scoreable item = scoreables.get(i);
+                    item.calculateScore(data);
+                    if (item.getScore() > bestScore) {
+                        bestScore = item.getScore();
+                        best = item;
+                    }
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            left.reinitialize();
+            left.setRange(from, middle);
+            right.reinitialize();
+            right.setRange(middle, to);
+            invokeAll(left, right);
+
+            if (right.best != null && (left.best == null || right.best.getScore() > left.best.getScore()))
+                best = right.best;
+            else
+                best = left.best;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.scorer;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import edu.cmu.sphinx.decoder.search.Token;
+import edu.cmu.sphinx.frontend.BaseDataProcessor;
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.DoubleData;
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.frontend.util.DataUtil;
+import edu.cmu.sphinx.linguist.HMMSearchState;
+import edu.cmu.sphinx.linguist.SearchState;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Loader;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.PackedGaussianMixtures;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Senone;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneHMMState;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneScoreTable;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+import edu.cmu.sphinx.util.props.S4Component;
+import edu.cmu.sphinx.util.props.S4Integer;
+
+/**
+ * An acoustic scorer which evaluates the senones of a frame in one batch over
+ * a {@link PackedGaussianMixtures packed} copy of the acoustic model. If the
+ * model was loaded from a mapped model file, the packed parameters are read
+ * from the mapping.
+ * <p>
+ * For every frame the distinct senones referenced by the scoreables are
+ * collected into a {@link SenoneScoreTable}, scored in a single cache-friendly
+ * pass and the tokens then read their scores from the table. Scoreables which
+ * are not backed by a senone of the model are scored in the usual way. If the
+ * model can not be packed, for example because it uses tied mixtures, the
+ * senones are still scored through the table, one by one.
+ * <p>
+ * For offline decoding the scorer can read several frames ahead and score
+ * each senone over the whole window at once, see
+ * {@link #PROP_FRAME_BATCH_SIZE}.
+ * <p>
+ * All scores are maintained in LogMath log base.
+ */
+public class PackedAcousticScorer extends SimpleAcousticScorer implements SenoneCountingScorer {
+
+    /** The property that defines the loader of the acoustic model to pack */
+    @S4Component(type = Loader.class)
+    public final static String PROP_LOADER = "loader";
+    private Loader loader;
+
+    /**
+     * The property that defines the number of frames scored together. With a
+     * value above one the scorer reads that many frames ahead from the
+     * frontend and scores every senone over the whole window in one pass.
+     * This improves throughput in batch decoding but adds latency, so it
+     * should not be used for live recognition.
+     */
+    @S4Integer(defaultValue = 1)
+    public final static String PROP_FRAME_BATCH_SIZE = "frameBatchSize";
+    private int frameBatchSize;
+
+    private PackedGaussianMixtures mixtures;
+    private SenoneScoreTable senoneScores;
+    private int loaderUpdateCount;
+
+    private int[] senoneIds = new int[0];
+    private LinkedList<Data> lookahead = new LinkedList<Data>();
+    private Data[] window;
+
+    /**
+     * @param frontEnd
+     *            the frontend to retrieve features from for scoring
+     * @param scoreNormalizer
+     *            optional post-processor for computed scores that will
+     *            normalize scores. If not set, no normalization will applied
+     *            and the token scores will be returned unchanged.
+     * @param loader
+     *            the loader of the acoustic model to pack
+     * @param frameBatchSize
+     *            the number of frames scored together
+     */
+    public PackedAcousticScorer(BaseDataProcessor frontEnd, ScoreNormalizer scoreNormalizer, Loader loader,
+            int frameBatchSize) {
+        super(frontEnd, scoreNormalizer);
+        this.loader = loader;
+        this.frameBatchSize = frameBatchSize;
+    }
+
+    public PackedAcousticScorer() {
+    }
+
+    @Override
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        super.newProperties(ps);
+        loader = (Loader) ps.getComponent(PROP_LOADER);
+        frameBatchSize = ps.getInt(PROP_FRAME_BATCH_SIZE);
+    }
+
+    @Override
+    public void allocate() {
+        super.allocate();
+        if (senoneScores != null)
+            return;
+        try {
+            loader.load();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            loaderUpdateCount = loader.getUpdateCount();
+            mixtures = new PackedGaussianMixtures(loader.getSenonePool(), loader.getMappedModelFile());
+            mixtures.logInfo(logger);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Can't pack acoustic model, scoring senones one by one: " + e.getMessage());
+        }
+        senoneScores = new SenoneScoreTable(loader.getSenonePool(), mixtures, frameBatchSize);
+        window = new Data[frameBatchSize];
+    }
+
+    @Override
+    public void deallocate() {
+        super.deallocate();
+        mixtures = null;
+        senoneScores = null;
+        window = null;
+    }
+
+    /**
+     * Starts recognition. If the model was adapted since it was packed, the
+     * adapted parameters are packed first.
+     */
+    @Override
+    public void startRecognition() {
+        super.startRecognition();
+        lookahead.clear();
+        if (mixtures != null && loader.getUpdateCount() != loaderUpdateCount) {
+            loaderUpdateCount = loader.getUpdateCount();
+            mixtures.update();
+        }
+    }
+
+    /**
+     * Reads the next frame, filling the lookahead window if frames are scored
+     * in batches. Reading ahead stops at the first signal, so no data beyond
+     * the end of the current segment is consumed.
+     */
+    @Override
+    protected Data getNextData() {
+        if (frameBatchSize <= 1)
+            return super.getNextData();
+        if (lookahead.isEmpty()) {
+            Data data;
+            do {
+                data = super.getNextData();
+                // convert now so the frames keep their identity in the window
+                if (data instanceof DoubleData)
+                    data = DataUtil.DoubleData2FloatData((DoubleData) data);
+                lookahead.add(data);
+            } while (data instanceof FloatData && lookahead.size() < frameBatchSize);
+        }
+        return lookahead.poll();
+    }
+
+    @Override
+    protected <T extends Scoreable> T doScoring(List<T> scoreableList, Data data) {
+        int size = scoreableList.size();
+        if (senoneIds.length < size)
+            senoneIds = new int[size];
+
+        if (frameBatchSize <= 1) {
+            senoneScores.setFeature(data);
+        } else if (!senoneScores.advanceTo(data)) {
+            // start a new window with the frames read ahead
+            int length = 0;
+            window[length++] = data;
+            for (Data next : lookahead) {
+                if (length == frameBatchSize || !(next instanceof FloatData))
+                    break;
+                window[length++] = next;
+            }
+            senoneScores.setFeatures(window, length);
+        }
+
+        // score the senones needed by this frame in one batch
+        int count = 0;
+        for (T item : scoreableList) {
+            int id = getSenoneId(item);
+            if (id >= 0)
+                senoneIds[count++] = id;
+        }
+        senoneScores.calculateScores(senoneIds, count);
+
+        T best = null;
+        float bestScore = -Float.MAX_VALUE;
+        for (T item : scoreableList) {
+            if (item instanceof Token)
+                ((Token) item).calculateScore(senoneScores);
+            else
+                item.calculateScore(data);
+            if (item.getScore() > bestScore) {
+                bestScore = item.getScore();
+                best = item;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the score table of the frame scored last.
+     *
+     * @return the senone scores, or <code>null</code> if the scorer is not
+     *         allocated
+     */
+    public SenoneScoreTable getSenoneScores() {
+        return senoneScores;
+    }
+
+    public long getSenonesScored() {
+        return senoneScores != null ? senoneScores.getNumScored() : 0;
+    }
+
+    /**
+     * Finds the senone behind a scoreable.
+     *
+     * @param item the scoreable
+     * @return the senone id, or -1 if the scoreable is not backed by a senone
+     *         of the score table
+     */
+    private int getSenoneId(Scoreable item) {
+        if (!(item instanceof Token))
+            return -1;
+        SearchState state = ((Token) item).getSearchState();
+        if (!(state instanceof HMMSearchState))
+            return -1;
+        HMMState hmmState = ((HMMSearchState) state).getHMMState();
+        if (!(hmmState instanceof SenoneHMMState))
+            return -1;
+        Senone senone = ((SenoneHMMState) hmmState).getSenone();
+        if (!senoneScores.contains(senone))
+            return -1;
+        return (int) senone.getID();
+    }
+}
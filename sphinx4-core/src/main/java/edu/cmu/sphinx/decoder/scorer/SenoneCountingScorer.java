@@ -0,0 +1,24 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.scorer;
+
+/** An acoustic scorer which counts the senones it scores. */
+public interface SenoneCountingScorer extends AcousticScorer {
+
+    /**
+     * Returns the number of senones scored since the scorer was allocated. A
+     * senone scored over a window of frames is counted once, in the frame it
+     * is first needed in.
+     *
+     * @return the number of senones scored
+     */
+    long getSenonesScored();
+}
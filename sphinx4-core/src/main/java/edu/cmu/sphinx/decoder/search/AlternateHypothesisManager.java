@@ -83,5 +83,17 @@ public class AlternateHypothesisManager {
 	public boolean hasAlternatePredecessors(Token token) {
 		return viterbiLoserMap.containsKey(token);
 	}
-}
 
+	/**
+	 * Marks the tokens with alternate predecessors and the predecessors
+	 * alive.
+	 *
+	 * @param pool the pool to mark the tokens in
+	 */
+	void mark(TokenPool pool) {
+		for (Map.Entry<Token, List<Token>> entry : viterbiLoserMap.entrySet()) {
+			pool.mark(entry.getKey());
+			pool.mark(entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.search;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the search of a single frame, reported to a
+ * {@link FrameStatisticsSink}. The search manager reuses the same object for
+ * every frame, so sinks must copy the values they want to keep.
+ * <p>
+ * Counts which are not known to the search manager, for example the number
+ * of scored senones with a scorer that does not report it, are -1.
+ */
+public class FrameStatistics {
+
+    int utterance;
+    int frame;
+    long collectTime;
+    int tokensScored;
+    int tokensCreated;
+    int senonesScored;
+    int languageModelHits;
+    int languageModelMisses;
+    long scoreNanos;
+    long pruneNanos;
+    long growNanos;
+    int[] activeListSizes = new int[0];
+
+
+    /** Prepares the statistics for the next frame. */
+    void startFrame(int numStateOrder) {
+        if (activeListSizes.length != numStateOrder) {
+            activeListSizes = new int[numStateOrder];
+        } else {
+            Arrays.fill(activeListSizes, 0);
+        }
+        tokensScored = 0;
+        tokensCreated = 0;
+        senonesScored = -1;
+        languageModelHits = -1;
+        languageModelMisses = -1;
+        scoreNanos = 0;
+        pruneNanos = 0;
+        growNanos = 0;
+    }
+
+
+    /** @return the number of the utterance, counted from zero */
+    public int getUtterance() {
+        return utterance;
+    }
+
+
+    /** @return the number of the frame within the utterance */
+    public int getFrame() {
+        return frame;
+    }
+
+
+    /** @return the collect time of the frame in milliseconds */
+    public long getCollectTime() {
+        return collectTime;
+    }
+
+
+    /** @return the number of tokens scored */
+    public int getTokensScored() {
+        return tokensScored;
+    }
+
+
+    /** @return the number of tokens created while growing */
+    public int getTokensCreated() {
+        return tokensCreated;
+    }
+
+
+    /**
+     * Returns the number of senones scored for the frame. If frames are
+     * scored in batches, a senone is counted in the frame it is first needed
+     * in, although it is scored for the rest of the window as well.
+     *
+     * @return the number of senones scored, or -1 if unknown
+     */
+    public int getSenonesScored() {
+        return senonesScored;
+    }
+
+
+    /** @return the number of language model cache hits, or -1 if unknown */
+    public int getLanguageModelHits() {
+        return languageModelHits;
+    }
+
+
+    /** @return the number of language model cache misses, or -1 if unknown */
+    public int getLanguageModelMisses() {
+        return languageModelMisses;
+    }
+
+
+    /** @return the time spent scoring in nanoseconds */
+    public long getScoreNanos() {
+        return scoreNanos;
+    }
+
+
+    /** @return the time spent pruning in nanoseconds */
+    public long getPruneNanos() {
+        return pruneNanos;
+    }
+
+
+    /** @return the time spent growing in nanoseconds, zero if growing was skipped */
+    public long getGrowNanos() {
+        return growNanos;
+    }
+
+
+    /** @return the number of state orders of the search graph */
+    public int getNumStateOrder() {
+        return activeListSizes.length;
+    }
+
+
+    /**
+     * Returns the number of tokens added to the active list of the given state
+     * order while growing, before pruning.
+     *
+     * @param order the state order
+     * @return the number of tokens
+     */
+    public int getActiveListSize(int order) {
+        return activeListSizes[order];
+    }
+
+
+    @Override
+    public String toString() {
+        return "utterance " + utterance + " frame " + frame + " time " + collectTime + " scored " + tokensScored
+                + " created " + tokensCreated + " senones " + senonesScored + " lmHits " + languageModelHits
+                + " lmMisses " + languageModelMisses + " scoreNs " + scoreNanos + " pruneNs " + pruneNanos
+                + " growNs " + growNanos + " active " + Arrays.toString(activeListSizes);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.search;
+
+import edu.cmu.sphinx.util.props.Configurable;
+
+/**
+ * Receives the statistics of every frame searched by a search manager, for
+ * example to pass them on to a metrics system. The sink is called on the
+ * decoding thread, so it should return quickly.
+ */
+public interface FrameStatisticsSink extends Configurable {
+
+    /**
+     * Called after a frame was searched.
+     *
+     * @param statistics the statistics of the frame, only valid during the
+     *            call
+     */
+    void frameSearched(FrameStatistics statistics);
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+package edu.cmu.sphinx.decoder.search;
+
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+import edu.cmu.sphinx.util.props.S4Integer;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/** A factory for HistogramActiveLists */
+public class HistogramActiveListFactory extends ActiveListFactory {
+
+    /**
+     * The property that defines the number of bins of the score histogram.
+     * More bins bring the number of tokens kept closer to the absolute beam
+     * width.
+     */
+    @S4Integer(defaultValue = 256)
+    public final static String PROP_NUM_BINS = "numBins";
+
+    private int numBins;
+
+    /**
+     *
+     * @param absoluteBeamWidth beam for absolute pruning
+     * @param relativeBeamWidth beam for relative pruning
+     * @param numBins number of bins of the score histogram
+     */
+    public HistogramActiveListFactory(int absoluteBeamWidth, double relativeBeamWidth, int numBins) {
+        super(absoluteBeamWidth, relativeBeamWidth);
+        this.numBins = Math.max(1, numBins);
+    }
+
+    public HistogramActiveListFactory() {
+
+    }
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.util.props.Configurable#newProperties(edu.cmu.sphinx.util.props.PropertySheet)
+    */
+    @Override
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        super.newProperties(ps);
+        numBins = Math.max(1, ps.getInt(PROP_NUM_BINS));
+    }
+
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.decoder.search.ActiveListFactory#newInstance()
+    */
+    @Override
+    public ActiveList newInstance() {
+        return new HistogramActiveList(absoluteBeamWidth, logRelativeBeamWidth, numBins);
+    }
+
+
+    /**
+     * An active list that does absolute beam pruning with a histogram of the
+     * token scores, as the histogram pruning of Sphinx3. The scores within
+     * the relative beam are counted in equally wide bins, and the best bins
+     * holding no more than the absolute beam width tokens in total are kept.
+     * As only whole bins are kept, the list usually keeps slightly fewer
+     * tokens than the absolute beam width allows. If the best bin alone
+     * exceeds the beam width, it is kept entirely. Tokens outside of the
+     * relative beam are pruned in the same pass.
+     * <p>
+     * Pruning takes time linear in the number of tokens and only compacts the
+     * token array, it neither sorts nor swaps tokens.
+     * <p>
+     * This class is not thread safe and should only be used by a single thread.
+     * <p>
+     * Note that all scores are maintained in the LogMath log base.
+     */
+    class HistogramActiveList implements ActiveList {
+
+        private int size;
+        private final int absoluteBeamWidth;
+        private final float logRelativeBeamWidth;
+        private Token bestToken;
+        private Token[] tokenList;
+        private final int[] histogram;
+
+
+        /** Creates an empty active list
+         * @param absoluteBeamWidth beam for absolute pruning
+         * @param logRelativeBeamWidth beam for relative pruning
+         * @param numBins number of bins of the score histogram
+         */
+        public HistogramActiveList(int absoluteBeamWidth, float logRelativeBeamWidth, int numBins) {
+            this.absoluteBeamWidth = absoluteBeamWidth;
+            this.logRelativeBeamWidth = logRelativeBeamWidth;
+            int listSize = 2000;
+            if (absoluteBeamWidth > 0) {
+                listSize = absoluteBeamWidth / 3;
+            }
+            this.tokenList = new Token[Math.max(listSize, 1)];
+            this.histogram = new int[numBins];
+        }
+
+
+        /**
+         * Adds the given token to the list
+         *
+         * @param token the token to add
+         */
+        public void add(Token token) {
+            if (size == tokenList.length) {
+                tokenList = Arrays.copyOf(tokenList, tokenList.length * 2);
+            }
+            tokenList[size++] = token;
+            if (bestToken == null || token.getScore() > bestToken.getScore()) {
+                bestToken = token;
+            }
+        }
+
+
+        /**
+         * Purges excess members. Removes all tokens outside of the relative
+         * beam and the worst tokens exceeding the absolute beam width.
+         *
+         * @return this active list
+         */
+        public ActiveList purge() {
+            if (size == 0) {
+                return this;
+            }
+
+            float bestScore = -Float.MAX_VALUE;
+            float worstScore = Float.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                float score = tokenList[i].getScore();
+                if (score > bestScore) {
+                    bestScore = score;
+                }
+                if (score < worstScore) {
+                    worstScore = score;
+                }
+            }
+
+            float threshold = Math.max(worstScore, bestScore + logRelativeBeamWidth);
+            float binWidth = (bestScore - threshold) / histogram.length;
+
+            if (absoluteBeamWidth > 0 && size > absoluteBeamWidth && binWidth > 0) {
+                Arrays.fill(histogram, 0);
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    float score = tokenList[i].getScore();
+                    if (score >= threshold) {
+                        histogram[getBin(bestScore - score, binWidth)]++;
+                        count++;
+                    }
+                }
+                if (count > absoluteBeamWidth) {
+                    // keep the best bins holding no more than the beam width
+                    int bins = 1;
+                    int kept = histogram[0];
+                    while (bins < histogram.length && kept + histogram[bins] <= absoluteBeamWidth) {
+                        kept += histogram[bins++];
+                    }
+                    if (bins < histogram.length) {
+                        int newSize = 0;
+                        for (int i = 0; i < size; i++) {
+                            Token token = tokenList[i];
+                            float score = token.getScore();
+                            if (score >= threshold && getBin(bestScore - score, binWidth) < bins) {
+                                tokenList[newSize++] = token;
+                            }
+                        }
+                        clear(newSize);
+                        return this;
+                    }
+                }
+            }
+
+            int newSize = 0;
+            for (int i = 0; i < size; i++) {
+                Token token = tokenList[i];
+                if (token.getScore() >= threshold) {
+                    tokenList[newSize++] = token;
+                }
+            }
+            clear(newSize);
+            return this;
+        }
+
+
+        private int getBin(float distance, float binWidth) {
+            int bin = (int) (distance / binWidth);
+            return bin < histogram.length ? bin : histogram.length - 1;
+        }
+
+
+        /** Drops the references to the tokens behind the new size. */
+        private void clear(int newSize) {
+            Arrays.fill(tokenList, newSize, size, null);
+            size = newSize;
+        }
+
+
+        /**
+         * gets the beam threshold best upon the best scoring token
+         *
+         * @return the beam threshold
+         */
+        public float getBeamThreshold() {
+            return getBestScore() + logRelativeBeamWidth;
+        }
+
+
+        /**
+         * gets the best score in the list
+         *
+         * @return the best score
+         */
+        public float getBestScore() {
+            float bestScore = -Float.MAX_VALUE;
+            if (bestToken != null) {
+                bestScore = bestToken.getScore();
+            }
+            return bestScore;
+        }
+
+
+        /**
+         * Sets the best scoring token for this active list
+         *
+         * @param token the best scoring token
+         */
+        public void setBestToken(Token token) {
+            bestToken = token;
+        }
+
+
+        /**
+         * Gets the best scoring token for this active list
+         *
+         * @return the best scoring token
+         */
+        public Token getBestToken() {
+            return bestToken;
+        }
+
+
+        /**
+         * Retrieves the iterator for this tree.
+         *
+         * @return the iterator for this token list
+         */
+        public Iterator<Token> iterator() {
+            return (new TokenArrayIterator(tokenList, size));
+        }
+
+
+        /**
+         * Gets the list of all tokens
+         *
+         * @return the list of tokens
+         */
+        public List<Token> getTokens() {
+            return Arrays.asList(tokenList).subList(0, size);
+        }
+
+
+        /**
+         * Returns the number of tokens on this active list
+         *
+         * @return the size of the active list
+         */
+        public final int size() {
+            return size;
+        }
+
+
+        /* (non-Javadoc)
+        * @see edu.cmu.sphinx.decoder.search.ActiveList#createNew()
+        */
+        public ActiveList newInstance() {
+            return HistogramActiveListFactory.this.newInstance();
+        }
+    }
+}
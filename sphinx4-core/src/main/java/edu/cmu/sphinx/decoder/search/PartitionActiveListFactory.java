@@ -18,7 +18,6 @@ import edu.cmu.sphinx.util.props.PropertySheet;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
 
 /** A factory for PartitionActiveLists */
 public class PartitionActiveListFactory extends ActiveListFactory {
@@ -233,38 +232,3 @@ public class PartitionActiveListFactory extends ActiveListFactory {
         }
     }
 }
-
-class TokenArrayIterator implements Iterator<Token> {
-
-    private final Token[] tokenArray;
-    private final int size;
-    private int pos;
-
-
-    TokenArrayIterator(Token[] tokenArray, int size) {
-        this.tokenArray = tokenArray;
-        this.pos = 0;
-        this.size = size;
-    }
-
-
-    /** Returns true if the iteration has more tokens. */
-    public boolean hasNext() {
-        return pos < size;
-    }
-
-
-    /** Returns the next token in the iteration. */
-    public Token next() throws NoSuchElementException {
-        if (pos >= tokenArray.length) {
-            throw new NoSuchElementException();
-        }
-        return tokenArray[pos++];
-    }
-
-
-    /** Unimplemented, throws an Error if called. */
-    public void remove() {
-        throw new Error("TokenArrayIterator.remove() unimplemented");
-    }
-}
@@ -20,7 +20,10 @@ import edu.cmu.sphinx.linguist.HMMSearchState;
 import edu.cmu.sphinx.linguist.SearchState;
 import edu.cmu.sphinx.linguist.UnitSearchState;
 import edu.cmu.sphinx.linguist.WordSearchState;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
 import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneHMMState;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneScoreTable;
 import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
 import edu.cmu.sphinx.linguist.dictionary.Word;
 
@@ -52,6 +55,9 @@ public class Token implements Scoreable {
     private long collectTime;
     private Data data;
 
+    // generation in which a TokenPool found this token alive
+    int mark;
+
     /**
      * Internal constructor for a token. Used by classes Token, CombineToken, ParallelToken
      *
@@ -167,8 +173,40 @@ public class Token implements Scoreable {
      * @return the score for the feature
      */
     public float calculateScore(Data feature) {
-        
-        logAcousticScore = ((ScoreProvider) searchState).getScore(feature);
+        return applyScore(((ScoreProvider) searchState).getScore(feature), feature);
+    }
+
+
+    /**
+     * Calculates a score against the feature of the given frame score table.
+     * States backed by a senone read their score from the table, all other
+     * states are scored as in {@link #calculateScore(Data)}.
+     *
+     * @param scores the senone scores of the current frame
+     * @return the score for the feature
+     */
+    public float calculateScore(SenoneScoreTable scores) {
+        if (searchState instanceof HMMSearchState) {
+            HMMState hmmState = ((HMMSearchState) searchState).getHMMState();
+            if (hmmState instanceof SenoneHMMState)
+                return applyScore(((SenoneHMMState) hmmState).getScore(scores), scores.getFeature());
+        }
+        return calculateScore(scores.getFeature());
+    }
+
+
+    /**
+     * Applies an acoustic score which was computed outside of this token, for
+     * example by a scorer that evaluates all senones of a frame at once. The
+     * effect is the same as that of {@link #calculateScore(Data)}.
+     *
+     * @param logAcousticScore the acoustic score for the feature
+     * @param feature the scored feature
+     * @return the score for the feature
+     */
+    public float applyScore(float logAcousticScore, Data feature) {
+
+        this.logAcousticScore = logAcousticScore;
 
         logTotalScore += logAcousticScore;
 
@@ -474,4 +512,17 @@ public class Token implements Scoreable {
         this.logLanguageScore = languageProbability;
         this.collectTime = collectTime;
     }
+
+
+    /**
+     * Reinitializes a token recycled by a {@link TokenPool} as if it was
+     * created with the given values.
+     */
+    void reset(Token predecessor, SearchState state, float logTotalScore,
+            float logInsertionScore, float logLanguageScore, long collectTime) {
+        update(predecessor, state, logTotalScore, logInsertionScore,
+                logLanguageScore, collectTime);
+        this.logAcousticScore = 0.0f;
+        this.data = null;
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.search;
+
+import java.util.Arrays;
+
+import edu.cmu.sphinx.linguist.SearchState;
+
+/**
+ * A pool of tokens which recycles the tokens no longer referenced by the
+ * search, so a search in its steady state creates almost no tokens.
+ * <p>
+ * The pool reclaims tokens by marking and sweeping. The search manager marks
+ * the tokens it still refers to, usually the active lists after pruning and
+ * the result list, together with all their predecessors. {@link #sweep()}
+ * then returns every token of the pool which was not marked to the free
+ * list. Tokens not created by the pool may be marked too, they are just
+ * never recycled.
+ * <p>
+ * The pool only knows about the references of the search. A
+ * {@link edu.cmu.sphinx.result.Result} must thus not be used after the
+ * search went on past the next sweep. Tokens in use when an utterance ends
+ * are given up by {@link #reset()}, so the final result of an utterance
+ * stays valid.
+ * <p>
+ * This class is not thread safe and should only be used by a single thread.
+ */
+public class TokenPool {
+
+    private Token[] tokens = new Token[1024];
+    private int size;
+    private Token[] free = new Token[1024];
+    private int freeCount;
+    private int generation = 1;
+
+
+    /**
+     * Gets a token from the pool, creating a new one if there are no free
+     * tokens.
+     *
+     * @param predecessor       the predecessor for the token
+     * @param state             the search state of the token
+     * @param logTotalScore     the total entry score (in LogMath log base)
+     * @param logInsertionScore the insertion score (in LogMath log base)
+     * @param logLanguageScore  the language score (in LogMath log base)
+     * @param collectTime       the frame collection time
+     * @return the token
+     */
+    public Token get(Token predecessor, SearchState state, float logTotalScore, float logInsertionScore,
+            float logLanguageScore, long collectTime) {
+        if (freeCount > 0) {
+            Token token = free[--freeCount];
+            free[freeCount] = null;
+            token.reset(predecessor, state, logTotalScore, logInsertionScore, logLanguageScore, collectTime);
+            return token;
+        }
+        Token token = new Token(predecessor, state, logTotalScore, logInsertionScore, logLanguageScore,
+                collectTime);
+        if (size == tokens.length)
+            tokens = Arrays.copyOf(tokens, size * 2);
+        tokens[size++] = token;
+        return token;
+    }
+
+
+    /**
+     * Marks the given token and all its predecessors alive until the next
+     * sweep.
+     *
+     * @param token the token to mark, may be <code>null</code>
+     */
+    public void mark(Token token) {
+        // a marked token has its predecessors marked already
+        while (token != null && token.mark != generation) {
+            token.mark = generation;
+            token = token.getPredecessor();
+        }
+    }
+
+
+    /**
+     * Marks the given tokens and all their predecessors alive until the next
+     * sweep.
+     *
+     * @param tokens the tokens to mark
+     */
+    public void mark(Iterable<Token> tokens) {
+        for (Token token : tokens)
+            mark(token);
+    }
+
+
+    /**
+     * Returns all tokens of the pool which were not marked since the last
+     * sweep to the free list.
+     */
+    public void sweep() {
+        if (free.length < size)
+            free = new Token[tokens.length];
+        freeCount = 0;
+        for (int i = 0; i < size; i++) {
+            Token token = tokens[i];
+            if (token.mark != generation)
+                free[freeCount++] = token;
+        }
+        generation++;
+    }
+
+
+    /**
+     * Gives up the tokens in use, they are left to the garbage collector. Free
+     * tokens are kept for reuse.
+     */
+    public void reset() {
+        System.arraycopy(free, 0, tokens, 0, freeCount);
+        Arrays.fill(tokens, freeCount, size, null);
+        size = freeCount;
+        generation++;
+    }
+
+
+    /**
+     * Returns the number of tokens owned by the pool
+     *
+     * @return the number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the number of free tokens
+     *
+     * @return the number of free tokens
+     */
+    public int getFreeCount() {
+        return freeCount;
+    }
+}
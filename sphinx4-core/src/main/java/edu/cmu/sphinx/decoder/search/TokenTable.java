@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.search;
+
+import java.util.Arrays;
+
+import edu.cmu.sphinx.linguist.IndexedSearchState;
+import edu.cmu.sphinx.linguist.SearchState;
+
+/**
+ * Maps search states to the best token of the current frame. The table is
+ * made for a search manager which fills it while growing a frame and empties
+ * it before the next one.
+ * <p>
+ * States with an {@link IndexedSearchState#getIndex() index} are kept in an
+ * array indexed by it, all other states in an open addressing hash table with
+ * linear probing. Every slot carries the generation in which it was written,
+ * so {@link #clear()} only starts a new generation and the table is reused for
+ * all frames without creating any objects.
+ * <p>
+ * This class is not thread safe and should only be used by a single thread.
+ */
+public class TokenTable {
+
+    private Token[] indexedTokens = new Token[0];
+    private int[] indexedGenerations = new int[0];
+
+    private SearchState[] keys;
+    private Token[] tokens;
+    private int[] generations;
+    private int mask;
+    private int size;
+
+    private int generation = 1;
+
+
+    /**
+     * Creates an empty table.
+     *
+     * @param expectedSize the expected number of hashed states
+     */
+    public TokenTable(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize && capacity < 1 << 30) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+
+    private void allocate(int capacity) {
+        keys = new SearchState[capacity];
+        tokens = new Token[capacity];
+        generations = new int[capacity];
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * Gets the best token for the given state
+     *
+     * @param state the state of interest
+     * @return the token, or <code>null</code> if there is none in this
+     *         generation
+     */
+    public Token get(SearchState state) {
+        int index = getIndex(state);
+        if (index >= 0) {
+            if (index < indexedTokens.length && indexedGenerations[index] == generation)
+                return indexedTokens[index];
+            return null;
+        }
+
+        for (int slot = hash(state) & mask; generations[slot] == generation; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(state))
+                return tokens[slot];
+        }
+        return null;
+    }
+
+
+    /**
+     * Sets the best token for the given state
+     *
+     * @param state the state
+     * @param token the best token
+     */
+    public void put(SearchState state, Token token) {
+        int index = getIndex(state);
+        if (index >= 0) {
+            if (index >= indexedTokens.length) {
+                int length = Math.max(index + 1, 2 * indexedTokens.length);
+                indexedTokens = Arrays.copyOf(indexedTokens, length);
+                indexedGenerations = Arrays.copyOf(indexedGenerations, length);
+            }
+            indexedTokens[index] = token;
+            indexedGenerations[index] = generation;
+            return;
+        }
+
+        int slot = hash(state) & mask;
+        for (; generations[slot] == generation; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(state)) {
+                tokens[slot] = token;
+                return;
+            }
+        }
+        keys[slot] = state;
+        tokens[slot] = token;
+        generations[slot] = generation;
+        if (++size > keys.length >> 1)
+            rehash();
+    }
+
+
+    /**
+     * Removes all entries. The references to states and tokens are kept until
+     * their slots are used again.
+     */
+    public void clear() {
+        size = 0;
+        if (++generation == 0) {
+            // the generations wrapped around, stale slots could look valid
+            Arrays.fill(generations, 0);
+            Arrays.fill(indexedGenerations, 0);
+            generation = 1;
+        }
+    }
+
+
+    /**
+     * Returns the number of hashed states of the current generation
+     *
+     * @return the number of states without an index
+     */
+    public int size() {
+        return size;
+    }
+
+
+    private void rehash() {
+        SearchState[] oldKeys = keys;
+        Token[] oldTokens = tokens;
+        int[] oldGenerations = generations;
+        allocate(keys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldGenerations[i] != generation)
+                continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (generations[slot] == generation)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            tokens[slot] = oldTokens[i];
+            generations[slot] = generation;
+        }
+    }
+
+
+    private static int getIndex(SearchState state) {
+        if (state instanceof IndexedSearchState)
+            return ((IndexedSearchState) state).getIndex();
+        return -1;
+    }
+
+
+    private static int hash(SearchState state) {
+        // spread the bits, many states combine hash codes linearly
+        int h = state.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -449,7 +449,7 @@ public class WordPruningBreadthFirstLookaheadSearchManager extends WordPruningBr
             Token bestToken = getBestToken(nextState);
 
             if (bestToken == null) {
-                Token newBestToken = new Token(predecessor, nextState, logEntryScore, arc.getInsertionProbability(),
+                Token newBestToken = createToken(predecessor, nextState, logEntryScore, arc.getInsertionProbability(),
                         arc.getLanguageProbability(), currentCollectTime);
                 tokensCreated.value++;
                 setBestToken(newBestToken, nextState);
@@ -16,8 +16,12 @@ package edu.cmu.sphinx.decoder.search;
 
 import edu.cmu.sphinx.decoder.pruner.Pruner;
 import edu.cmu.sphinx.decoder.scorer.AcousticScorer;
+import edu.cmu.sphinx.decoder.scorer.SenoneCountingScorer;
 import edu.cmu.sphinx.frontend.Data;
 import edu.cmu.sphinx.linguist.*;
+import edu.cmu.sphinx.linguist.language.ngram.CachingLanguageModel;
+import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
+import edu.cmu.sphinx.linguist.lextree.LexTreeLinguist;
 import edu.cmu.sphinx.result.Result;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.StatisticsVariable;
@@ -107,6 +111,29 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     // TODO: this should be a more meaningful default e.g. the common 1E-80
     public final static String PROP_RELATIVE_BEAM_WIDTH = "relativeBeamWidth";
 
+    /**
+     * The property that controls whether tokens are recycled by a
+     * {@link TokenPool} instead of being left to the garbage collector. With
+     * pooling, a result is only valid until the next call to
+     * <code>recognize</code>, except for the final result of an utterance.
+     */
+    @S4Boolean(defaultValue = false)
+    public final static String PROP_POOL_TOKENS = "poolTokens";
+
+    /**
+     * The property that defines the number of frames between two
+     * reclamations of unused tokens if tokens are pooled.
+     */
+    @S4Integer(defaultValue = 10)
+    public final static String PROP_TOKEN_RECLAIM_INTERVAL = "tokenReclaimInterval";
+
+    /**
+     * The property that defines the sink which receives the statistics of
+     * every searched frame. If not set, no statistics are collected.
+     */
+    @S4Component(type = FrameStatisticsSink.class, mandatory = false)
+    public final static String PROP_FRAME_STATISTICS_SINK = "frameStatisticsSink";
+
     // -----------------------------------
     // Configured Subcomponents
     // -----------------------------------
@@ -126,6 +153,7 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     protected float relativeBeamWidth;
     protected float acousticLookaheadFrames;
     private int maxLatticeEdges = 100;
+    private int tokenReclaimInterval = 10;
 
     // -----------------------------------
     // Instrumentation
@@ -138,6 +166,11 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     protected StatisticsVariable tokensCreated;
     private long tokenSum;
     private int tokenCount;
+    protected FrameStatisticsSink frameStatisticsSink;
+    private FrameStatistics frameStatistics;
+    private CachingLanguageModel cachingLanguageModel;
+    private SenoneCountingScorer senoneCountingScorer;
+    private int utteranceCount;
 
     // -----------------------------------
     // Working data
@@ -146,8 +179,9 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     protected long currentCollectTime; // the current frame number
     protected ActiveList activeList; // the list of active tokens
     protected List<Token> resultList; // the current set of results
-    protected Map<SearchState, Token> bestTokenMap;
+    protected TokenTable bestTokenMap;
     protected AlternateHypothesisManager loserManager;
+    protected TokenPool tokenPool; // null unless tokens are pooled
     private int numStateOrder;
     // private TokenTracker tokenTracker;
     // private TokenTypeTracker tokenTypeTracker;
@@ -220,6 +254,35 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
         acousticLookaheadFrames = ps.getFloat(PROP_ACOUSTIC_LOOKAHEAD_FRAMES);
 
         relativeBeamWidth = logMath.linearToLog(ps.getDouble(PROP_RELATIVE_BEAM_WIDTH));
+        setTokenPooling(ps.getBoolean(PROP_POOL_TOKENS), ps.getInt(PROP_TOKEN_RECLAIM_INTERVAL));
+        setFrameStatisticsSink((FrameStatisticsSink) ps.getComponent(PROP_FRAME_STATISTICS_SINK));
+    }
+
+    /**
+     * Sets the sink which receives the statistics of every searched frame.
+     * Must not be called during recognition.
+     * 
+     * @param frameStatisticsSink
+     *            the sink, or <code>null</code> to collect no statistics
+     */
+    public void setFrameStatisticsSink(FrameStatisticsSink frameStatisticsSink) {
+        this.frameStatisticsSink = frameStatisticsSink;
+        this.frameStatistics = frameStatisticsSink != null ? new FrameStatistics() : null;
+    }
+
+    /**
+     * Enables or disables the recycling of tokens. Must not be called during
+     * recognition.
+     * 
+     * @param poolTokens
+     *            whether to recycle tokens with a {@link TokenPool}
+     * @param tokenReclaimInterval
+     *            the number of frames between two reclamations of unused
+     *            tokens
+     */
+    public void setTokenPooling(boolean poolTokens, int tokenReclaimInterval) {
+        this.tokenPool = poolTokens ? new TokenPool() : null;
+        this.tokenReclaimInterval = Math.max(1, tokenReclaimInterval);
     }
 
     /*
@@ -246,6 +309,18 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
         } catch (IOException e) {
             throw new RuntimeException("Allocation of search manager resources failed", e);
         }
+
+        cachingLanguageModel = null;
+        if (linguist instanceof LexTreeLinguist) {
+            LanguageModel languageModel = ((LexTreeLinguist) linguist).getLanguageModel();
+            if (languageModel instanceof CachingLanguageModel) {
+                cachingLanguageModel = (CachingLanguageModel) languageModel;
+            }
+        }
+        senoneCountingScorer = null;
+        if (scorer instanceof SenoneCountingScorer) {
+            senoneCountingScorer = (SenoneCountingScorer) scorer;
+        }
     }
 
     /*
@@ -303,22 +378,105 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     }
 
     protected boolean recognize() {
+        if (frameStatistics != null) {
+            return recognizeWithStatistics();
+        }
+
+        activeList = activeListManager.getEmittingList();
+        boolean more = scoreTokens();
+
+        if (more) {
+            pruneBranches();
+            currentFrameNumber++;
+            if (growSkipInterval == 0 || (currentFrameNumber % growSkipInterval) != 0) {
+                grow();
+            }
+        }
+        return !more;
+    }
+
+    /**
+     * Grows the branches of the pruned emitting list into the next frame.
+     */
+    private void grow() {
+        if (tokenPool != null && (currentFrameNumber % tokenReclaimInterval) == 0) {
+            reclaimTokens();
+        }
+        clearCollectors();
+        growEmittingBranches();
+        growNonEmittingBranches();
+    }
+
+    /**
+     * Performs the recognition of a frame like {@link #recognize()} and
+     * reports its statistics to the frame statistics sink.
+     * 
+     * @return <code>true</code> if recognition is completed
+     */
+    private boolean recognizeWithStatistics() {
+        FrameStatistics statistics = frameStatistics;
+        statistics.startFrame(numStateOrder);
+        long senones = 0;
+        int lmHits = 0;
+        int lmMisses = 0;
+        if (senoneCountingScorer != null) {
+            senones = senoneCountingScorer.getSenonesScored();
+        }
+        if (cachingLanguageModel != null) {
+            lmHits = cachingLanguageModel.getNGramHits();
+            lmMisses = cachingLanguageModel.getNGramMisses();
+        }
 
         activeList = activeListManager.getEmittingList();
+        statistics.tokensScored = activeList.size();
+        long start = System.nanoTime();
         boolean more = scoreTokens();
+        long end = System.nanoTime();
+        statistics.scoreNanos = end - start;
+        if (senoneCountingScorer != null) {
+            statistics.senonesScored = (int) (senoneCountingScorer.getSenonesScored() - senones);
+        }
 
         if (more) {
+            start = end;
             pruneBranches();
+            end = System.nanoTime();
+            statistics.pruneNanos = end - start;
             currentFrameNumber++;
             if (growSkipInterval == 0 || (currentFrameNumber % growSkipInterval) != 0) {
-                clearCollectors();
-                growEmittingBranches();
-                growNonEmittingBranches();
+                double created = tokensCreated.value;
+                start = end;
+                grow();
+                statistics.growNanos = System.nanoTime() - start;
+                statistics.tokensCreated = (int) (tokensCreated.value - created);
             }
         }
+
+        if (cachingLanguageModel != null) {
+            statistics.languageModelHits = cachingLanguageModel.getNGramHits() - lmHits;
+            statistics.languageModelMisses = cachingLanguageModel.getNGramMisses() - lmMisses;
+        }
+        statistics.utterance = utteranceCount;
+        statistics.frame = currentFrameNumber;
+        statistics.collectTime = currentCollectTime;
+        frameStatisticsSink.frameSearched(statistics);
         return !more;
     }
 
+    /**
+     * Returns the tokens the search no longer refers to to the token pool.
+     * Called after pruning, when the emitting list holds the only tokens
+     * which are expanded further.
+     */
+    protected void reclaimTokens() {
+        tokenPool.mark(activeList);
+        tokenPool.mark(resultList);
+        if (loserManager != null) {
+            loserManager.mark(tokenPool);
+        }
+        tokenPool.sweep();
+    }
+
     /**
      * Clears lists and maps before next expansion stage
      */
@@ -329,14 +487,18 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     }
 
     /**
-     * creates a new best token map with the best size
+     * Empties the best token map, creating it on first use with the best size
      */
     protected void createBestTokenMap() {
+        if (bestTokenMap != null) {
+            bestTokenMap.clear();
+            return;
+        }
         int mapSize = activeList.size() * 10;
         if (mapSize == 0) {
             mapSize = 1;
         }
-        bestTokenMap = new HashMap<SearchState, Token>(mapSize, 0.3F);
+        bestTokenMap = new TokenTable(mapSize);
     }
 
     /** Terminates a recognition */
@@ -360,6 +522,14 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
         if (buildWordLattice) {
             loserManager = new AlternateHypothesisManager(maxLatticeEdges);
         }
+        if (tokenPool != null) {
+            // the result of the last utterance keeps its tokens
+            tokenPool.reset();
+        }
+        if (frameStatistics != null) {
+            // sized for the growth from the initial state, which is not reported
+            frameStatistics.startFrame(numStateOrder);
+        }
 
         SearchState state = searchGraph.getInitialState();
 
@@ -376,6 +546,7 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
 
     /** Local cleanup for this search manager */
     protected void localStop() {
+        utteranceCount++;
         // tokenTracker.stopUtterance();
     }
 
@@ -641,7 +812,7 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
             Token bestToken = getBestToken(nextState);
 
             if (bestToken == null) {
-                Token newBestToken = new Token(predecessor, nextState, logEntryScore, arc.getInsertionProbability(),
+                Token newBestToken = createToken(predecessor, nextState, logEntryScore, arc.getInsertionProbability(),
                         arc.getLanguageProbability(), currentCollectTime);
                 tokensCreated.value++;
                 setBestToken(newBestToken, nextState);
@@ -663,6 +834,31 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
         }
     }
 
+    /**
+     * Creates a token, taking it from the token pool if tokens are pooled.
+     * 
+     * @param predecessor
+     *            the predecessor for the token
+     * @param state
+     *            the search state of the token
+     * @param logTotalScore
+     *            the total entry score (in LogMath log base)
+     * @param logInsertionScore
+     *            the insertion score (in LogMath log base)
+     * @param logLanguageScore
+     *            the language score (in LogMath log base)
+     * @param collectTime
+     *            the frame collection time
+     * @return the token
+     */
+    protected Token createToken(Token predecessor, SearchState state, float logTotalScore, float logInsertionScore,
+            float logLanguageScore, long collectTime) {
+        if (tokenPool != null) {
+            return tokenPool.get(predecessor, state, logTotalScore, logInsertionScore, logLanguageScore, collectTime);
+        }
+        return new Token(predecessor, state, logTotalScore, logInsertionScore, logLanguageScore, collectTime);
+    }
+
     /**
      * Determines whether or not we've visited the state associated with this
      * token since the previous frame.
@@ -686,6 +882,9 @@ public class WordPruningBreadthFirstSearchManager extends TokenSearchManager {
     }
 
     protected void activeListAdd(Token token) {
+        if (frameStatistics != null) {
+            frameStatistics.activeListSizes[token.getSearchState().getOrder()]++;
+        }
         activeListManager.add(token);
     }
 
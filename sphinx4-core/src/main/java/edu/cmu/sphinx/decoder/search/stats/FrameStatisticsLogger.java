@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.decoder.search.stats;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.decoder.search.FrameStatistics;
+import edu.cmu.sphinx.decoder.search.FrameStatisticsSink;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+
+/** Logs the statistics of every searched frame on a single line. */
+public class FrameStatisticsLogger implements FrameStatisticsSink {
+
+    private Logger logger;
+
+    public FrameStatisticsLogger() {
+        logger = Logger.getLogger(getClass().getName());
+    }
+
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        logger = ps.getLogger();
+    }
+
+    public void frameSearched(FrameStatistics statistics) {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(statistics.toString());
+        }
+    }
+}
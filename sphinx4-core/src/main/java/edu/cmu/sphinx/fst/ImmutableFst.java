@@ -1,64 +1,181 @@
 /**
- * 
+ *
  */
 package edu.cmu.sphinx.fst;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
+import edu.cmu.sphinx.fst.operations.ArcSort;
+import edu.cmu.sphinx.fst.operations.ILabelCompare;
 import edu.cmu.sphinx.fst.semiring.Semiring;
 
 /**
  * An immutable finite state transducer implementation.
- * 
- * Holds a fixed size array of {@link edu.cmu.sphinx.fst.ImmutableState} objects
- * not allowing additions/deletions
- * 
+ *
+ * Holds the states and arcs in parallel primitive arrays not allowing
+ * additions/deletions. The arcs of all states are stored consecutively, the
+ * arcs of a state are found by the offset of its first arc. The
+ * {@link edu.cmu.sphinx.fst.ImmutableState} and {@link edu.cmu.sphinx.fst.Arc}
+ * objects returned are views on the arrays created on request, changes made
+ * through them are written to the arrays.
+ *
+ * Every state holds an additional arc, initially null, used by
+ * {@link edu.cmu.sphinx.fst.operations.Compose#augment(int, Fst, Semiring)}.
+ * The input labels are augmented by {@link #augmentIlabels(Semiring)} without
+ * writing the arcs.
+ *
+ * An ImmutableFst is either loaded from a model or copied from an Fst. The
+ * models written by {@link #saveMappedModel(String)} are memory mapped by
+ * {@link #loadModel(File)}, the java serialized models written by
+ * {@link edu.cmu.sphinx.fst.Fst#saveModel(String)} are read as well.
+ *
  * @author John Salatas
  */
 public class ImmutableFst extends Fst {
 
-    // fst states
-    private ImmutableState[] states = null;
+    // "S4FS"
+    private static final int MAGIC = 0x53344653;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     // number of states
     private int numStates;
 
+    // number of arcs, not counting the additional ones
+    private int numArcs;
+
+    // the offset of the first arc of every state followed by numArcs
+    private IntBuffer stateArcs;
+    private FloatBuffer finalWeights;
+
+    // arcs' properties
+    private IntBuffer ilabels;
+    private IntBuffer olabels;
+    private FloatBuffer weights;
+    private IntBuffer nextStates;
+
+    // the additional arcs of the states, allocated on their first use, a
+    // negative next state denotes a missing arc
+    private int[] extraIlabels;
+    private int[] extraOlabels;
+    private float[] extraWeights;
+    private int[] extraNextStates;
+
+    // the input label read for the stored epsilon input labels, not 0 once
+    // the input labels are augmented
+    private int epsilonIlabel;
+
     /**
-     * Default private constructor.
-     * 
-     * An ImmutableFst cannot be created directly. It needs to be deserialized.
-     * 
-     * @see edu.cmu.sphinx.fst.ImmutableFst#loadModel(String)
+     * Private constructor specifying the fst's arrays
+     *
+     * @param semiring the semiring
+     * @param isyms the input symbols
+     * @param osyms the output symbols
+     * @param startId the id of the initial state
+     * @param stateArcs the offset of the first arc of every state followed by
+     *            the number of arcs
+     * @param finalWeights the final weight of every state
+     * @param ilabels the input label of every arc
+     * @param olabels the output label of every arc
+     * @param weights the weight of every arc
+     * @param nextStates the id of the next state of every arc
      */
-    private ImmutableFst() {
-
+    private ImmutableFst(Semiring semiring, String[] isyms, String[] osyms,
+            int startId, IntBuffer stateArcs, FloatBuffer finalWeights,
+            IntBuffer ilabels, IntBuffer olabels, FloatBuffer weights,
+            IntBuffer nextStates) {
+        super(0);
+        this.semiring = semiring;
+        this.isyms = isyms;
+        this.osyms = osyms;
+        this.numStates = finalWeights.capacity();
+        this.numArcs = ilabels.capacity();
+        this.stateArcs = stateArcs;
+        this.finalWeights = finalWeights;
+        this.ilabels = ilabels;
+        this.olabels = olabels;
+        this.weights = weights;
+        this.nextStates = nextStates;
+        this.start = getState(startId);
     }
 
     /**
-     * Private Constructor specifying the capacity of the states array
-     * 
-     * An ImmutableFst cannot be created directly. It needs to be deserialized.
-     * 
-     * @see edu.cmu.sphinx.fst.ImmutableFst#loadModel(String)
-     * 
-     * @param numStates
-     *            the number of fst's states
+     * Creates an ImmutableFst holding a copy of an fst.
+     *
+     * The ids of the fst's states have to be their indices, as they are
+     * after {@link edu.cmu.sphinx.fst.Fst#remapStateIds()}.
+     *
+     * @param fst
+     *            the fst to copy
+     * @return the copy
      */
-    private ImmutableFst(int numStates) {
-        super(0);
-        this.numStates = numStates;
-        this.states = new ImmutableState[numStates];
+    public static ImmutableFst copyOf(Fst fst) {
+        int numStates = fst.getNumStates();
+        int[] stateArcs = new int[numStates + 1];
+        float[] finalWeights = new float[numStates];
+        int numArcs = 0;
+        for (int i = 0; i < numStates; i++) {
+            State s = fst.getState(i);
+            if (s.getId() != i)
+                throw new IllegalArgumentException("State " + s
+                        + " is not at index " + i);
+            stateArcs[i] = numArcs;
+            finalWeights[i] = s.getFinalWeight();
+            for (int j = 0; j < s.getNumArcs(); j++) {
+                if (s.getArc(j) != null)
+                    numArcs++;
+            }
+        }
+        stateArcs[numStates] = numArcs;
+
+        int[] ilabels = new int[numArcs];
+        int[] olabels = new int[numArcs];
+        float[] weights = new float[numArcs];
+        int[] nextStates = new int[numArcs];
+        int k = 0;
+        for (int i = 0; i < numStates; i++) {
+            State s = fst.getState(i);
+            for (int j = 0; j < s.getNumArcs(); j++) {
+                Arc a = s.getArc(j);
+                if (a == null)
+                    continue;
+                ilabels[k] = a.getIlabel();
+                olabels[k] = a.getOlabel();
+                weights[k] = a.getWeight();
+                nextStates[k] = a.getNextState().getId();
+                k++;
+            }
+        }
+
+        return new ImmutableFst(fst.getSemiring(), fst.getIsyms(),
+                fst.getOsyms(), fst.getStart().getId(),
+                IntBuffer.wrap(stateArcs), FloatBuffer.wrap(finalWeights),
+                IntBuffer.wrap(ilabels), IntBuffer.wrap(olabels),
+                FloatBuffer.wrap(weights), IntBuffer.wrap(nextStates));
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#getNumStates()
      */
     @Override
@@ -68,17 +185,17 @@ public class ImmutableFst extends Fst {
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#getState(int)
      */
     @Override
     public ImmutableState getState(int index) {
-        return states[index];
+        return new ImmutableState(this, index);
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#addState(edu.cmu.sphinx.fst.State)
      */
     @Override
@@ -86,9 +203,151 @@ public class ImmutableFst extends Fst {
         throw new IllegalArgumentException("You cannot modify an ImmutableFst.");
     }
 
+    /**
+     * Get the number of arcs of a state, not counting the additional one
+     *
+     * @param state the state's id
+     * @return the number of arcs
+     */
+    int getNumArcs(int state) {
+        return stateArcs.get(state + 1) - stateArcs.get(state);
+    }
+
+    /**
+     * Get the index of an arc in the arcs' arrays. The index of the
+     * additional arc of a state follows the indices of all other arcs.
+     *
+     * @param state the state's id
+     * @param arc the index of the arc in the state
+     * @return the arc's index
+     */
+    int getArcIndex(int state, int arc) {
+        int numStateArcs = getNumArcs(state);
+        if (arc < 0 || arc > numStateArcs)
+            throw new IndexOutOfBoundsException("Arc " + arc + " of state "
+                    + state + " with " + numStateArcs + " arcs");
+        return arc < numStateArcs ? stateArcs.get(state) + arc : numArcs
+                + state;
+    }
+
+    boolean hasArc(int index) {
+        return index < numArcs || extraNextStates != null
+                && extraNextStates[index - numArcs] >= 0;
+    }
+
+    float getFinalWeight(int state) {
+        return finalWeights.get(state);
+    }
+
+    void setFinalWeight(int state, float weight) {
+        finalWeights = writable(finalWeights);
+        finalWeights.put(state, weight);
+    }
+
+    int getIlabel(int index) {
+        if (index >= numArcs)
+            return extraIlabels[index - numArcs];
+        int ilabel = ilabels.get(index);
+        return ilabel == 0 ? epsilonIlabel : ilabel;
+    }
+
+    int getOlabel(int index) {
+        return index < numArcs ? olabels.get(index) : extraOlabels[index
+                - numArcs];
+    }
+
+    float getWeight(int index) {
+        return index < numArcs ? weights.get(index) : extraWeights[index
+                - numArcs];
+    }
+
+    int getNextState(int index) {
+        return index < numArcs ? nextStates.get(index)
+                : extraNextStates[index - numArcs];
+    }
+
+    void setIlabel(int index, int ilabel) {
+        if (index < numArcs)
+            (ilabels = writable(ilabels)).put(index, ilabel);
+        else
+            extraIlabels[index - numArcs] = ilabel;
+    }
+
+    void setOlabel(int index, int olabel) {
+        if (index < numArcs)
+            (olabels = writable(olabels)).put(index, olabel);
+        else
+            extraOlabels[index - numArcs] = olabel;
+    }
+
+    void setWeight(int index, float weight) {
+        if (index < numArcs)
+            (weights = writable(weights)).put(index, weight);
+        else
+            extraWeights[index - numArcs] = weight;
+    }
+
+    void setNextState(int index, int nextState) {
+        if (index < numArcs)
+            (nextStates = writable(nextStates)).put(index, nextState);
+        else
+            extraNextStates[index - numArcs] = nextState;
+    }
+
+    /**
+     * Copies a read only buffer to memory
+     *
+     * @param buffer the buffer
+     * @return the buffer if it is writable, a copy otherwise
+     */
+    private static IntBuffer writable(IntBuffer buffer) {
+        if (!buffer.isReadOnly())
+            return buffer;
+        int[] array = new int[buffer.capacity()];
+        buffer.duplicate().get(array);
+        return IntBuffer.wrap(array);
+    }
+
+    private static FloatBuffer writable(FloatBuffer buffer) {
+        if (!buffer.isReadOnly())
+            return buffer;
+        float[] array = new float[buffer.capacity()];
+        buffer.duplicate().get(array);
+        return FloatBuffer.wrap(array);
+    }
+
+    /**
+     * Set an arc. Only the additional arc of a state may be set to null.
+     *
+     * @param index the arc's index
+     * @param arc the arc's values
+     */
+    void setArc(int index, Arc arc) {
+        if (index >= numArcs && extraNextStates == null) {
+            if (arc == null)
+                return;
+            extraIlabels = new int[numStates];
+            extraOlabels = new int[numStates];
+            extraWeights = new float[numStates];
+            extraNextStates = new int[numStates];
+            Arrays.fill(extraNextStates, -1);
+        }
+        if (arc == null) {
+            if (index < numArcs)
+                throw new IllegalArgumentException(
+                        "You cannot delete an arc of an ImmutableFst.");
+            extraNextStates[index - numArcs] = -1;
+            return;
+        }
+        setIlabel(index, arc.getIlabel());
+        setOlabel(index, arc.getOlabel());
+        setWeight(index, arc.getWeight());
+        setNextState(index, arc.getNextState().getId());
+    }
+
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#saveModel(java.lang.String)
      */
     @Override
@@ -97,9 +356,141 @@ public class ImmutableFst extends Fst {
                 "You cannot serialize an ImmutableFst.");
     }
 
+    /**
+     * Writes the current ImmutableFst to disk in a binary format which is
+     * memory mapped by {@link #loadModel(File)}.
+     *
+     * The fst is saved as it was before its input labels were augmented, the
+     * additional arcs are not saved.
+     *
+     * @param filename
+     *            the binary model filename
+     * @throws IOException if IO went wrong
+     */
+    public void saveMappedModel(String filename) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(filename)));
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(VERSION);
+            writeString(headerOut, semiring.getClass().getName());
+            writeStringMap(headerOut, isyms);
+            writeStringMap(headerOut, osyms);
+            // align the arrays
+            while (headerOut.size() % 4 != 0)
+                headerOut.writeByte(0);
+            header.writeTo(out);
+
+            out.writeInt(start.getId());
+            out.writeInt(numStates);
+            out.writeInt(numArcs);
+            for (int i = 0; i <= numStates; i++)
+                out.writeInt(stateArcs.get(i));
+            for (int i = 0; i < numStates; i++)
+                out.writeFloat(finalWeights.get(i));
+            for (int i = 0; i < numArcs; i++) {
+                int ilabel = ilabels.get(i);
+                out.writeInt(epsilonIlabel != 0 && ilabel == epsilonIlabel ? 0
+                        : ilabel);
+            }
+            for (int i = 0; i < numArcs; i++)
+                out.writeInt(olabels.get(i));
+            for (int i = 0; i < numArcs; i++)
+                out.writeFloat(weights.get(i));
+            for (int i = 0; i < numArcs; i++)
+                out.writeInt(nextStates.get(i));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStringMap(DataOutputStream out, String[] map)
+            throws IOException {
+        out.writeInt(map.length);
+        for (String sym : map)
+            writeString(out, sym);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String[] readStringMap(ByteBuffer in) {
+        String[] map = new String[in.getInt()];
+        for (int i = 0; i < map.length; i++)
+            map[i] = readString(in);
+        return map;
+    }
+
+    private static IntBuffer readInts(ByteBuffer in, int size) {
+        ByteBuffer slice = in.slice();
+        slice.limit(size * 4);
+        in.position(in.position() + size * 4);
+        return slice.asIntBuffer();
+    }
+
+    private static FloatBuffer readFloats(ByteBuffer in, int size) {
+        ByteBuffer slice = in.slice();
+        slice.limit(size * 4);
+        in.position(in.position() + size * 4);
+        return slice.asFloatBuffer();
+    }
+
+    /**
+     * Reads an ImmutableFst written by {@link #saveMappedModel(String)}. The arrays
+     * are views on the buffer.
+     *
+     * @param in
+     *            the buffer, positioned at the start of the model
+     * @return Created FST
+     * @throws IOException if the buffer doesn't hold a model
+     */
+    private static ImmutableFst readImmutableFst(ByteBuffer in)
+            throws IOException {
+        if (in.getInt() != MAGIC)
+            throw new IOException("Not an fst model");
+        int version = in.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported fst model version " + version);
+        Semiring semiring;
+        String semiringClass = readString(in);
+        try {
+            semiring = (Semiring) Class.forName(semiringClass).newInstance();
+        } catch (Exception e) {
+            throw new IOException("Cannot create semiring " + semiringClass, e);
+        }
+        String[] is = readStringMap(in);
+        String[] os = readStringMap(in);
+        while (in.position() % 4 != 0)
+            in.get();
+
+        int startid = in.getInt();
+        int numStates = in.getInt();
+        int numArcs = in.getInt();
+        IntBuffer stateArcs = readInts(in, numStates + 1);
+        FloatBuffer finalWeights = readFloats(in, numStates);
+        IntBuffer ilabels = readInts(in, numArcs);
+        IntBuffer olabels = readInts(in, numArcs);
+        FloatBuffer weights = readFloats(in, numArcs);
+        IntBuffer nextStates = readInts(in, numArcs);
+        return new ImmutableFst(semiring, is, os, startid, stateArcs,
+                finalWeights, ilabels, olabels, weights, nextStates);
+    }
+
     /**
      * Deserializes an ImmutableFst from an ObjectInputStream
-     * 
+     *
      * @param in
      *            the ObjectInputStream. It should be already be initialized by
      *            the caller.
@@ -114,44 +505,48 @@ public class ImmutableFst extends Fst {
         int startid = in.readInt();
         Semiring semiring = (Semiring) in.readObject();
         int numStates = in.readInt();
-        ImmutableFst res = new ImmutableFst(numStates);
-        res.isyms = is;
-        res.osyms = os;
-        res.semiring = semiring;
+        int[] stateArcs = new int[numStates + 1];
+        float[] finalWeights = new float[numStates];
         for (int i = 0; i < numStates; i++) {
             int numArcs = in.readInt();
-            ImmutableState s = new ImmutableState(numArcs + 1);
             float f = in.readFloat();
-            if (f == res.semiring.zero()) {
-                f = res.semiring.zero();
-            } else if (f == res.semiring.one()) {
-                f = res.semiring.one();
+            if (f == semiring.zero()) {
+                f = semiring.zero();
+            } else if (f == semiring.one()) {
+                f = semiring.one();
             }
-            s.setFinalWeight(f);
-            s.id = in.readInt();
-            res.states[s.getId()] = s;
+            int id = in.readInt();
+            stateArcs[id + 1] = numArcs;
+            finalWeights[id] = f;
         }
-        res.setStart(res.states[startid]);
+        for (int i = 0; i < numStates; i++)
+            stateArcs[i + 1] += stateArcs[i];
 
-        numStates = res.states.length;
-        for (int i = 0; i < numStates; i++) {
-            ImmutableState s1 = res.states[i];
-            for (int j = 0; j < s1.initialNumArcs - 1; j++) {
-                Arc a = new Arc();
-                a.setIlabel(in.readInt());
-                a.setOlabel(in.readInt());
-                a.setWeight(in.readFloat());
-                a.setNextState(res.states[in.readInt()]);
-                s1.setArc(j, a);
-            }
+        int numArcs = stateArcs[numStates];
+        int[] ilabels = new int[numArcs];
+        int[] olabels = new int[numArcs];
+        float[] weights = new float[numArcs];
+        int[] nextStates = new int[numArcs];
+        for (int i = 0; i < numArcs; i++) {
+            ilabels[i] = in.readInt();
+            olabels[i] = in.readInt();
+            weights[i] = in.readFloat();
+            nextStates[i] = in.readInt();
         }
 
-        return res;
+        return new ImmutableFst(semiring, is, os, startid,
+                IntBuffer.wrap(stateArcs), FloatBuffer.wrap(finalWeights),
+                IntBuffer.wrap(ilabels), IntBuffer.wrap(olabels),
+                FloatBuffer.wrap(weights), IntBuffer.wrap(nextStates));
     }
 
     /**
      * Deserializes an ImmutableFst from an InputStream
-     * 
+     *
+     * Models written by {@link #saveMappedModel(String)} are read in one block,
+     * models written by {@link edu.cmu.sphinx.fst.Fst#saveModel(String)} are
+     * deserialized.
+     *
      * @param inputStream
      *            the InputStream. It should be already be initialized by the
      *            caller.
@@ -161,23 +556,61 @@ public class ImmutableFst extends Fst {
      */
     public static ImmutableFst loadModel(InputStream inputStream)
             throws IOException, ClassNotFoundException {
-        ImmutableFst obj;
+        BufferedInputStream bis = new BufferedInputStream(inputStream);
+        try {
+            DataInputStream dis = new DataInputStream(bis);
+            bis.mark(4);
+            int magic = dis.readInt();
+            bis.reset();
+            if (magic != MAGIC)
+                return readImmutableFst(new ObjectInputStream(bis));
 
-        BufferedInputStream bis = null;
-        ObjectInputStream ois = null;
-        bis = new BufferedInputStream(inputStream);
-        ois = new ObjectInputStream(bis);
-        obj = readImmutableFst(ois);
-        ois.close();
-        bis.close();
-        inputStream.close();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = bis.read(buffer)) >= 0)
+                bytes.write(buffer, 0, n);
+            return readImmutableFst(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            bis.close();
+        }
+    }
 
-        return obj;
+    /**
+     * Loads an ImmutableFst from disk
+     *
+     * Models written by {@link #saveMappedModel(String)} are memory mapped read
+     * only. An array is copied to memory when the fst is changed, changes are
+     * never written to the file.
+     * Models written by {@link edu.cmu.sphinx.fst.Fst#saveModel(String)} are
+     * deserialized.
+     *
+     * @param file
+     *            the binary model file
+     * @return loaded FST
+     * @throws IOException IO went wrong
+     * @throws ClassNotFoundException serialization had issues
+     */
+    public static ImmutableFst loadModel(File file) throws IOException,
+            ClassNotFoundException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 4 || raf.readInt() != MAGIC)
+                return loadModel(new FileInputStream(file));
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            return readImmutableFst(buffer);
+        } finally {
+            raf.close();
+        }
     }
 
     /**
-     * Deserializes an ImmutableFst from disk
-     * 
+     * Loads an ImmutableFst from disk
+     *
+     * @see #loadModel(File)
+     *
      * @param filename
      *            the binary model filename
      * @return loaded FST
@@ -186,16 +619,7 @@ public class ImmutableFst extends Fst {
         ImmutableFst obj;
 
         try {
-            FileInputStream fis = null;
-            BufferedInputStream bis = null;
-            ObjectInputStream ois = null;
-            fis = new FileInputStream(filename);
-            bis = new BufferedInputStream(fis);
-            ois = new ObjectInputStream(bis);
-            obj = readImmutableFst(ois);
-            ois.close();
-            bis.close();
-            fis.close();
+            obj = loadModel(new File(filename));
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return null;
@@ -210,9 +634,36 @@ public class ImmutableFst extends Fst {
         return obj;
     }
 
+    /**
+     * Augments the input labels in order to use the fst for composition like
+     * {@link edu.cmu.sphinx.fst.operations.Compose#augment(int, Fst, Semiring)}
+     * does. The stored epsilon input labels are not overwritten but read as
+     * the augmented label, so a mapped model is not copied to memory.
+     *
+     * @param semiring the semiring of the additional arcs
+     */
+    public void augmentIlabels(Semiring semiring) {
+        epsilonIlabel = isyms.length;
+        for (int i = 0; i < numStates; i++)
+            setArc(numArcs + i, new Arc(isyms.length + 1, 0, semiring.one(),
+                    getState(i)));
+    }
+
+    /**
+     * Tells if the fst is still read from the model file
+     *
+     * @return true if the model is memory mapped and no array was copied to
+     *         memory since
+     */
+    public boolean isMapped() {
+        return stateArcs.isReadOnly() && finalWeights.isReadOnly()
+                && ilabels.isReadOnly() && olabels.isReadOnly()
+                && weights.isReadOnly() && nextStates.isReadOnly();
+    }
+
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#deleteState(edu.cmu.sphinx.fst.State)
      */
     @Override
@@ -222,7 +673,7 @@ public class ImmutableFst extends Fst {
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.Fst#toString()
      */
     @Override
@@ -230,14 +681,14 @@ public class ImmutableFst extends Fst {
         StringBuilder sb = new StringBuilder();
         sb.append("Fst(start=" + start + ", isyms=" + Arrays.toString(isyms) + ", osyms="
                 + Arrays.toString(osyms) + ", semiring=" + semiring + ")\n");
-        int numStates = states.length;
         for (int i = 0; i < numStates; i++) {
-            State s = states[i];
+            State s = getState(i);
             sb.append("  " + s + "\n");
             int numArcs = s.getNumArcs();
             for (int j = 0; j < numArcs; j++) {
                 Arc a = s.getArc(j);
-                sb.append("    " + a + "\n");
+                if (a != null)
+                    sb.append("    " + a + "\n");
             }
         }
 
@@ -246,26 +697,64 @@ public class ImmutableFst extends Fst {
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see java.lang.Object#equals(java.lang.Object)
      */
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
-        if (getClass() != obj.getClass())
+        if (obj == null || getClass() != obj.getClass())
             return false;
         ImmutableFst other = (ImmutableFst) obj;
-        if (!Arrays.equals(states, other.states))
-            return false;
-        if (!super.equals(obj))
-            return false;
-        return true;
+        return Arrays.equals(isyms, other.isyms)
+                && Arrays.equals(osyms, other.osyms)
+                && semiring.equals(other.semiring)
+                && start.getId() == other.start.getId()
+                && stateArcs.equals(other.stateArcs)
+                && finalWeights.equals(other.finalWeights)
+                && ilabels.equals(other.ilabels)
+                && olabels.equals(other.olabels)
+                && weights.equals(other.weights)
+                && nextStates.equals(other.nextStates)
+                && epsilonIlabel == other.epsilonIlabel
+                && Arrays.equals(extraIlabels, other.extraIlabels)
+                && Arrays.equals(extraOlabels, other.extraOlabels)
+                && Arrays.equals(extraWeights, other.extraWeights)
+                && Arrays.equals(extraNextStates, other.extraNextStates);
     }
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(states) + super.hashCode();
+        return 31 * (Arrays.hashCode(isyms) +
+               31 * (Arrays.hashCode(osyms) +
+               31 * (start.getId() +
+               31 * (stateArcs.hashCode() +
+               31 * ilabels.hashCode()))));
     }
 
+    /**
+     * Converts a java binary fst model to the format written by
+     * {@link #saveMappedModel(String)}. The first argument is the input model
+     * filename, the second the output model filename.
+     *
+     * The arcs are stored in the order they are sorted to by their input
+     * labels after augmenting them, as done for the g2p models, so such
+     * models are used without copying them to memory.
+     *
+     * @param args arguments
+     * @throws IOException IO went wrong
+     * @throws ClassNotFoundException serialization had issues
+     */
+    public static void main(String[] args) throws IOException,
+            ClassNotFoundException {
+        if (args.length < 2) {
+            System.err.println("Input and output files not provided");
+            System.exit(1);
+        }
+        ImmutableFst fst = loadModel(new File(args[0]));
+        fst.augmentIlabels(fst.getSemiring());
+        ArcSort.apply(fst, new ILabelCompare());
+        fst.saveMappedModel(args[1]);
+    }
 }
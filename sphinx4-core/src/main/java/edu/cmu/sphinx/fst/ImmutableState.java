@@ -1,60 +1,97 @@
 /**
- * 
+ *
  */
 package edu.cmu.sphinx.fst;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * The fst's immutable state implementation.
- * 
- * holds its outgoing {@link edu.cmu.sphinx.fst.Arc} objects in a fixed size
- * array not allowing additions/deletions.
- * 
+ *
+ * A view on a state of an {@link edu.cmu.sphinx.fst.ImmutableFst}. Its
+ * outgoing {@link edu.cmu.sphinx.fst.Arc} objects are views on the fst's arcs,
+ * additions/deletions are not allowed. The number of arcs includes the
+ * additional arc of the state, which is null until it is set.
+ *
  * @author John Salatas
  */
 public class ImmutableState extends State {
 
-    // Outgoing arcs
-    private Arc[] arcs = null;
+    // the fst holding the state
+    private final ImmutableFst fst;
 
     /**
-     * Default protected constructor.
-     * 
-     * An ImmutableState cannot be created directly. It needs to be deserialized
-     * as part of an ImmutableFst.
-     * 
-     * @see edu.cmu.sphinx.fst.ImmutableFst#loadModel(String)
-     * 
+     * Constructor specifying the fst and the id of the state.
+     *
+     * An ImmutableState cannot be created directly. It is obtained from an
+     * ImmutableFst.
+     *
+     * @see edu.cmu.sphinx.fst.ImmutableFst#getState(int)
+     *
+     * @param fst the fst holding the state
+     * @param id the state's id
      */
-    protected ImmutableState() {
-    }
-
-    /**
-     * Constructor specifying the capacity of the arcs array.
-     * 
-     * @param numArcs number of arcs
-     */
-    protected ImmutableState(int numArcs) {
+    ImmutableState(ImmutableFst fst, int id) {
         super(0);
-        this.initialNumArcs = numArcs;
-        arcs = new Arc[numArcs];
+        this.fst = fst;
+        this.id = id;
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.State#arcSort(java.util.Comparator)
      */
     @Override
     public void arcSort(Comparator<Arc> cmp) {
-        Arrays.sort(arcs, cmp);
+        int numArcs = getNumArcs();
+        List<Arc> arcs = new ArrayList<Arc>(numArcs);
+        boolean sorted = true;
+        for (int i = 0; i < numArcs; i++) {
+            Arc a = getArc(i);
+            if (a == null)
+                continue;
+            // copy the arc, its view changes when the arcs are written
+            a = new Arc(a.getIlabel(), a.getOlabel(), a.getWeight(),
+                    a.getNextState());
+            if (!arcs.isEmpty() && cmp.compare(arcs.get(arcs.size() - 1), a) > 0)
+                sorted = false;
+            arcs.add(a);
+        }
+        // writing a mapped fst copies it, avoid it when possible
+        if (sorted)
+            return;
+        Collections.sort(arcs, cmp);
+        for (int i = 0; i < numArcs; i++)
+            setArc(i, i < arcs.size() ? arcs.get(i) : null);
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
+     * @see edu.cmu.sphinx.fst.State#getFinalWeight()
+     */
+    @Override
+    public float getFinalWeight() {
+        return fst.getFinalWeight(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see edu.cmu.sphinx.fst.State#setFinalWeight(float)
+     */
+    @Override
+    public void setFinalWeight(float fnlfloat) {
+        fst.setFinalWeight(id, fnlfloat);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
      * @see edu.cmu.sphinx.fst.State#addArc(edu.cmu.sphinx.fst.Arc)
      */
     @Override
@@ -65,18 +102,18 @@ public class ImmutableState extends State {
 
     /**
      * Set an arc at the specified position in the arcs' array.
-     * 
+     *
      * @param index the position to the arcs' array
      * @param arc the arc value to set
      */
     @Override
     public void setArc(int index, Arc arc) {
-        arcs[index] = arc;
+        fst.setArc(fst.getArcIndex(id, index), arc);
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.State#deleteArc(int)
      */
     @Override
@@ -87,36 +124,52 @@ public class ImmutableState extends State {
 
     /**
      * Set the state's arcs array
-     * 
-     * @param arcs the arcs array to set
+     *
+     * @param arcs the arcs array to set, of the same length as the state's
+     *            arcs
      */
     public void setArcs(Arc[] arcs) {
-        this.arcs = arcs;
+        if (arcs.length != getNumArcs())
+            throw new IllegalArgumentException(
+                    "You cannot modify the number of arcs of an ImmutableState.");
+        for (int i = 0; i < arcs.length; i++)
+            setArc(i, arcs[i]);
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.State#getNumArcs()
      */
     @Override
     public int getNumArcs() {
-        return initialNumArcs;
+        return fst.getNumArcs(id) + 1;
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see edu.cmu.sphinx.fst.State#getArc(int)
      */
     @Override
     public Arc getArc(int index) {
-        return this.arcs[index];
+        int arc = fst.getArcIndex(id, index);
+        return fst.hasArc(arc) ? new ImmutableArc(fst, arc) : null;
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
+     * @see edu.cmu.sphinx.fst.State#toString()
+     */
+    @Override
+    public String toString() {
+        return "(" + id + ", " + getFinalWeight() + ")";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
      * @see java.lang.Object#hashCode()
      */
     @Override
@@ -129,20 +182,98 @@ public class ImmutableState extends State {
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see java.lang.Object#equals(java.lang.Object)
      */
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
-        if (getClass() != obj.getClass())
+        if (obj == null || getClass() != obj.getClass())
             return false;
         ImmutableState other = (ImmutableState) obj;
-        if (!Arrays.equals(arcs, other.arcs))
-            return false;
-        if (!super.equals(obj))
-            return false;
-        return true;
+        return fst == other.fst && id == other.id;
+    }
+
+    /**
+     * A view on an arc of an ImmutableFst
+     */
+    private static class ImmutableArc extends Arc {
+
+        private final ImmutableFst fst;
+        private final int index;
+
+        ImmutableArc(ImmutableFst fst, int index) {
+            this.fst = fst;
+            this.index = index;
+        }
+
+        @Override
+        public float getWeight() {
+            return fst.getWeight(index);
+        }
+
+        @Override
+        public void setWeight(float weight) {
+            fst.setWeight(index, weight);
+        }
+
+        @Override
+        public int getIlabel() {
+            return fst.getIlabel(index);
+        }
+
+        @Override
+        public void setIlabel(int iLabel) {
+            fst.setIlabel(index, iLabel);
+        }
+
+        @Override
+        public int getOlabel() {
+            return fst.getOlabel(index);
+        }
+
+        @Override
+        public void setOlabel(int oLabel) {
+            fst.setOlabel(index, oLabel);
+        }
+
+        @Override
+        public State getNextState() {
+            return fst.getState(fst.getNextState(index));
+        }
+
+        @Override
+        public void setNextState(State nextState) {
+            fst.setNextState(index, nextState.getId());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            ImmutableArc other = (ImmutableArc) obj;
+            return getIlabel() == other.getIlabel()
+                    && getOlabel() == other.getOlabel()
+                    && fst.getNextState(index) == other.fst.getNextState(other.index)
+                    && Float.floatToIntBits(getWeight()) == Float
+                            .floatToIntBits(other.getWeight());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (getIlabel() +
+                   (31 * (getOlabel() +
+                   (31 * fst.getNextState(index)
+                          + Float.floatToIntBits(getWeight())))));
+        }
+
+        @Override
+        public String toString() {
+            return "(" + getIlabel() + ", " + getOlabel() + ", " + getWeight()
+                    + ", " + getNextState() + ")";
+        }
     }
 }
@@ -214,7 +214,8 @@ public class Compose {
      * 
      * Augment can be applied to both {@link edu.cmu.sphinx.fst.Fst} and
      * {@link edu.cmu.sphinx.fst.ImmutableFst}, as immutable fsts hold an
-     * additional null arc for that operation
+     * additional null arc for that operation. The input labels of immutable
+     * fsts are augmented by {@link ImmutableFst#augmentIlabels(Semiring)}
      * 
      * @param label constant denoting if the augment should take place on input
      *            or output labels For value equal to 0 augment will take place
@@ -227,6 +228,11 @@ public class Compose {
         // label: 0->augment on ilabel
         // 1->augment on olabel
 
+        if (label == 0 && fst instanceof ImmutableFst) {
+            ((ImmutableFst) fst).augmentIlabels(semiring);
+            return;
+        }
+
         String[] isyms = fst.getIsyms();
         String[] osyms = fst.getOsyms();
 
@@ -251,12 +257,7 @@ public class Compose {
                 }
             }
             if (label == 0) {
-                if (fst instanceof ImmutableFst) {
-                    s.setArc(numArcs, new Arc(e2inputIndex, 0, semiring.one(),
-                            s));
-                } else {
-                    s.addArc(new Arc(e2inputIndex, 0, semiring.one(), s));
-                }
+                s.addArc(new Arc(e2inputIndex, 0, semiring.one(), s));
             } else if (label == 1) {
                 if (fst instanceof ImmutableFst) {
                     s.setArc(numArcs, new Arc(0, e1outputIndex, semiring.one(),
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist;
+
+/**
+ * Represents a search state of a static search graph whose states are
+ * numbered densely from zero. Search managers use the index to keep
+ * information about states in arrays instead of hash maps. Equal states must
+ * have the same index.
+ */
+public interface IndexedSearchState extends SearchState {
+
+    /**
+     * Gets the index of this state in its search graph
+     *
+     * @return the index, or -1 if the state is not numbered
+     */
+    int getIndex();
+}
@@ -96,6 +96,30 @@ public class CompositeSenone extends ScoreCachingSenone {
     }
 
 
+    /**
+     * Calculates the composite senone score from the frame scores of the constituent senones.
+     *
+     * @param scores the score table of the current frame
+     * @return the score for the frame in LogMath
+     */
+    float calculateScore(SenoneScoreTable scores) {
+        float logScore;
+        if (wantMaxScore) {
+            logScore = -Float.MAX_VALUE;
+            for (Senone senone : senones) {
+                logScore = Math.max(logScore, scores.getScore(senone));
+            }
+        } else { // average score
+            logScore = 0.0f;
+            for (Senone senone : senones) {
+                logScore += scores.getScore(senone);
+            }
+            logScore = logScore / senones.length;
+        }
+        return logScore + weight;
+    }
+
+
     /**
      * Calculate scores for each component in the senone's distribution. Not yet implemented.
      *
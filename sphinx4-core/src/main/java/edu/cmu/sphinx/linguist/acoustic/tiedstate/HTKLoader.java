@@ -938,4 +938,12 @@ public class HTKLoader implements Loader {
     public void update(Transform transform, ClusteredDensityFileData clusters) {
         // TODO not implemented yet
     }
+
+    public int getUpdateCount() {
+        return 0;
+    }
+
+    public MappedModelFile getMappedModelFile() {
+        return null;
+    }
 }
@@ -143,4 +143,21 @@ public interface Loader extends Configurable {
      * @param clusters transform clusters
      */
     public void update(Transform transform, ClusteredDensityFileData clusters);
+
+    /**
+     * Returns how often the model was updated, so that copies of its
+     * parameters can tell when they are out of date.
+     *
+     * @return the number of transforms applied with {@link #update}
+     */
+    public int getUpdateCount();
+
+    /**
+     * Returns the mapped model file the parameters were loaded from, so that
+     * they can be read from the mapping instead of being copied.
+     *
+     * @return the file, or <code>null</code> if the parameters were read
+     *         from other files or were updated since
+     */
+    public MappedModelFile getMappedModelFile();
 }
@@ -0,0 +1,397 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate;
+
+import static edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool.Feature.NUM_GAUSSIANS_PER_STATE;
+import static edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool.Feature.NUM_SENONES;
+import static edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool.Feature.NUM_STREAMS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.cmu.sphinx.util.LogMath;
+
+/**
+ * Binary file holding the parameters of a Sphinx3 model ready for use: the
+ * means, the floored variances, the normalized and floored mixture weights
+ * and the transition matrices, the latter two in LogMath log base. The file
+ * is memory mapped, so loading a model is a bulk copy from the page cache
+ * instead of parsing the Sphinx3 files float by float, and several processes
+ * loading the same model share the pages.
+ * <p>
+ * The file starts with a header of integers: the magic number, a byte order
+ * marker, the format version, the number of states, streams and Gaussians
+ * per state, the vector length of every stream, the number of senones with
+ * mixture weights, the number and size of the transition matrices and the
+ * number of packed Gaussians. The log base and the floors the model was
+ * prepared with follow as floats and then the float arrays of the
+ * parameters. All values are stored in the native byte order of the machine
+ * which wrote the file, the marker tells readers to swap them if necessary.
+ * <p>
+ * For continuous models in a single feature space the means and the mixture
+ * weights are already laid out like {@link PackedGaussianMixtures} keeps
+ * them. The file then ends with the precisions and the Gaussian factors of
+ * every Gaussian, so that the packed mixtures score straight from the
+ * mapping.
+ * <p>
+ * The file is created from a loaded model with {@link #write} and is picked
+ * up by {@link Sphinx3Loader} if it is found next to the model files. The
+ * model definition, the feature parameters and the feature transform are
+ * still read from the Sphinx3 files.
+ */
+public class MappedModelFile {
+
+    /** The name of the file in the model directory */
+    public final static String FILE_NAME = "model.mapped";
+
+    /** The version of the format */
+    public final static int VERSION = 2;
+
+    private final static int MAGIC = 0x5334414d; // S4AM
+    private final static int BYTE_ORDER_MAGIC = 0x11223344;
+
+    private final ByteBuffer buffer;
+    private final int numStates;
+    private final int numStreams;
+    private final int numGaussiansPerState;
+    private final int[] vectorLength;
+    private final int numSenones;
+    private final int numMatrices;
+    private final int matrixSize;
+    private final int numPackedGaussians;
+    private final float logBase;
+    private final float varianceFloor;
+    private final float mixtureWeightFloor;
+    private final int dataOffset;
+
+    private MappedModelFile(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not a mapped model file");
+        int byteOrder = buffer.getInt();
+        if (byteOrder != BYTE_ORDER_MAGIC) {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (Integer.reverseBytes(byteOrder) != BYTE_ORDER_MAGIC)
+                throw new IOException("Corrupt byte order marker in mapped model file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported version of mapped model file: " + version);
+
+        this.buffer = buffer;
+        numStates = buffer.getInt();
+        numStreams = buffer.getInt();
+        numGaussiansPerState = buffer.getInt();
+        vectorLength = new int[numStreams];
+        for (int i = 0; i < numStreams; i++)
+            vectorLength[i] = buffer.getInt();
+        numSenones = buffer.getInt();
+        numMatrices = buffer.getInt();
+        matrixSize = buffer.getInt();
+        numPackedGaussians = buffer.getInt();
+        logBase = buffer.getFloat();
+        varianceFloor = buffer.getFloat();
+        mixtureWeightFloor = buffer.getFloat();
+        dataOffset = buffer.position();
+    }
+
+    /**
+     * Opens the mapped model file at the given location. Files are memory
+     * mapped, other resources are read into memory.
+     *
+     * @param url the location of the file
+     * @return the file, or <code>null</code> if there is no file at the
+     *         location
+     * @throws IOException if the file can not be read or is not a valid
+     *             mapped model file
+     */
+    public static MappedModelFile open(URL url) throws IOException {
+        if (url.getProtocol().equals("file")) {
+            File file = toFile(url);
+            if (!file.isFile())
+                return null;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return new MappedModelFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();
+            }
+        }
+
+        InputStream stream;
+        try {
+            stream = url.openStream();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] block = new byte[1 << 16];
+            int length;
+            while ((length = stream.read(block)) > 0)
+                bytes.write(block, 0, length);
+            return new MappedModelFile(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            // relative file URL
+            return new File(url.getPath());
+        }
+    }
+
+    /**
+     * Writes the parameters of a loaded model to a mapped model file.
+     *
+     * @param loader the loader of the model, with a continuous or tied
+     *            mixture model in a single feature space
+     * @param file the file to write
+     * @throws IOException if the file can not be written
+     */
+    public static void write(Sphinx3Loader loader, File file) throws IOException {
+        int numStates = loader.getNumStates();
+        int numStreams = loader.getNumStreams();
+        int numGaussians = loader.getNumGaussiansPerState();
+        int[] vectorLength = loader.getVectorLength();
+        int numSenones = loader.getMixtureWeights().getStatesNum();
+        Pool<float[][]> matrices = loader.getTransitionMatrixPool();
+        int matrixSize = matrices.get(0).length;
+        PackedGaussianMixtures packed = pack(loader);
+        int numPackedGaussians = packed == null ? 0 : packed.getNumSenones() * packed.getNumComponents();
+
+        int blockSize = 0;
+        for (int length : vectorLength)
+            blockSize += length;
+        long size = 4 * (13L + numStreams) + 4L * 2 * numStates * numGaussians * blockSize + 4L * numSenones
+                * numStreams * numGaussians + 4L * matrices.size() * matrixSize * matrixSize + 4L
+                * numPackedGaussians * (blockSize + 1);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(BYTE_ORDER_MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(numStates);
+            buffer.putInt(numStreams);
+            buffer.putInt(numGaussians);
+            for (int length : vectorLength)
+                buffer.putInt(length);
+            buffer.putInt(numSenones);
+            buffer.putInt(matrices.size());
+            buffer.putInt(matrixSize);
+            buffer.putInt(numPackedGaussians);
+            buffer.putFloat(LogMath.getLogMath().getLogBase());
+            buffer.putFloat(loader.varianceFloor);
+            buffer.putFloat(loader.mixtureWeightFloor);
+
+            FloatBuffer floats = buffer.asFloatBuffer();
+            Pool<float[]> means = loader.getMeansPool();
+            for (int i = 0; i < means.size(); i++)
+                floats.put(means.get(i));
+            Pool<float[]> variances = loader.getVariancePool();
+            for (int i = 0; i < variances.size(); i++)
+                floats.put(variances.get(i));
+            GaussianWeights weights = loader.getMixtureWeights();
+            for (int i = 0; i < numSenones; i++)
+                for (int j = 0; j < numStreams; j++)
+                    for (int k = 0; k < numGaussians; k++)
+                        floats.put(weights.get(i, j, k));
+            for (int i = 0; i < matrices.size(); i++)
+                for (float[] row : matrices.get(i))
+                    floats.put(row);
+            if (packed != null)
+                packed.writePrecomputed(floats);
+            assert !floats.hasRemaining();
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Packs the senones of the loader if the means and the mixture weights
+     * of the model are laid out like the packed ones, that is if the model is
+     * continuous, has a single stream and uses the means untransformed.
+     */
+    private static PackedGaussianMixtures pack(Sphinx3Loader loader) {
+        Pool<Senone> senonePool = loader.getSenonePool();
+        if (senonePool == null || loader.getNumStreams() != 1 || loader.getMeansTransformationMatrixPool() != null
+                || loader.getMeansTransformationVectorPool() != null
+                || senonePool.size() != loader.getMixtureWeights().getStatesNum()
+                || senonePool.size() * loader.getNumGaussiansPerState() != loader.getMeansPool().size())
+            return null;
+        try {
+            return new PackedGaussianMixtures(senonePool);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Verifies that the model was prepared like the given loader would
+     * prepare it.
+     *
+     * @param varianceFloor the variance floor of the loader
+     * @param mixtureWeightFloor the mixture weight floor of the loader
+     * @throws IOException if the log base or the floors differ
+     */
+    public void checkCompatible(float varianceFloor, float mixtureWeightFloor) throws IOException {
+        if (logBase != LogMath.getLogMath().getLogBase())
+            throw new IOException("Mapped model file uses log base " + logBase);
+        if (this.varianceFloor != varianceFloor || this.mixtureWeightFloor != mixtureWeightFloor)
+            throw new IOException("Mapped model file uses different floors, convert the model again");
+    }
+
+    public int getNumStates() {
+        return numStates;
+    }
+
+    public int getNumStreams() {
+        return numStreams;
+    }
+
+    public int getNumGaussiansPerState() {
+        return numGaussiansPerState;
+    }
+
+    public int[] getVectorLength() {
+        return vectorLength.clone();
+    }
+
+    /** @return the number of Gaussians with packed parameters, 0 if the file has none */
+    public int getNumPackedGaussians() {
+        return numPackedGaussians;
+    }
+
+    /** @return a copy of the means */
+    public Pool<float[]> getMeans() {
+        return getDensities("means", 0);
+    }
+
+    /** @return a copy of the floored variances */
+    public Pool<float[]> getVariances() {
+        return getDensities("variances", getDensitySize());
+    }
+
+    private int getDensitySize() {
+        int blockSize = 0;
+        for (int length : vectorLength)
+            blockSize += length;
+        return numStates * numGaussiansPerState * blockSize;
+    }
+
+    private Pool<float[]> getDensities(String name, int offset) {
+        FloatBuffer floats = getFloats(offset);
+        Pool<float[]> pool = new Pool<float[]>(name);
+        pool.setFeature(NUM_SENONES, numStates);
+        pool.setFeature(NUM_STREAMS, numStreams);
+        pool.setFeature(NUM_GAUSSIANS_PER_STATE, numGaussiansPerState);
+        int id = 0;
+        for (int i = 0; i < numStates; i++) {
+            for (int j = 0; j < numStreams; j++) {
+                for (int k = 0; k < numGaussiansPerState; k++) {
+                    float[] density = new float[vectorLength[j]];
+                    floats.get(density);
+                    pool.put(id++, density);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /** @return a copy of the mixture weights in LogMath log base */
+    public GaussianWeights getMixtureWeights() {
+        FloatBuffer floats = getFloats(2 * getDensitySize());
+        GaussianWeights weights = new GaussianWeights("mixture_weights", numSenones, numGaussiansPerState,
+                numStreams);
+        float[] stateWeights = new float[numGaussiansPerState];
+        for (int i = 0; i < numSenones; i++) {
+            for (int j = 0; j < numStreams; j++) {
+                floats.get(stateWeights);
+                weights.put(i, j, stateWeights);
+            }
+        }
+        return weights;
+    }
+
+    /** @return a copy of the transition matrices in LogMath log base */
+    public Pool<float[][]> getTransitionMatrices() {
+        FloatBuffer floats = getFloats(2 * getDensitySize() + numSenones * numStreams * numGaussiansPerState);
+        Pool<float[][]> pool = new Pool<float[][]>("transition_matrices");
+        for (int i = 0; i < numMatrices; i++) {
+            float[][] tmat = new float[matrixSize][matrixSize];
+            for (float[] row : tmat)
+                floats.get(row);
+            pool.put(i, tmat);
+        }
+        return pool;
+    }
+
+    /** @return a view of the means, laid out like the packed ones */
+    FloatBuffer getPackedMeans() {
+        return getPackedFloats(0, getDensitySize());
+    }
+
+    /** @return a view of the precisions of the packed Gaussians */
+    FloatBuffer getPackedPrecisions() {
+        return getPackedFloats(getPrecomputedOffset(), getDensitySize());
+    }
+
+    /** @return a view of the Gaussian factors of the packed Gaussians */
+    FloatBuffer getPackedGaussianFactors() {
+        return getPackedFloats(getPrecomputedOffset() + getDensitySize(), numPackedGaussians);
+    }
+
+    /** @return a view of the mixture weights, laid out like the packed ones */
+    FloatBuffer getPackedMixtureWeights() {
+        return getPackedFloats(2 * getDensitySize(), numPackedGaussians);
+    }
+
+    private int getPrecomputedOffset() {
+        return 2 * getDensitySize() + numSenones * numStreams * numGaussiansPerState + numMatrices * matrixSize
+                * matrixSize;
+    }
+
+    private FloatBuffer getPackedFloats(int offset, int length) {
+        assert numPackedGaussians > 0;
+        FloatBuffer floats = getFloats(offset);
+        floats.limit(length);
+        return floats.slice().asReadOnlyBuffer();
+    }
+
+    private FloatBuffer getFloats(int offset) {
+        ByteBuffer data = buffer.duplicate().order(buffer.order());
+        data.position(dataOffset + 4 * offset);
+        return data.slice().order(buffer.order()).asFloatBuffer();
+    }
+}
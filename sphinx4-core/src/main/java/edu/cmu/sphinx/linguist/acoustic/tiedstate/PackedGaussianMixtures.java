@@ -0,0 +1,283 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate;
+
+import java.nio.FloatBuffer;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.util.LogMath;
+
+/**
+ * Structure-of-arrays copy of the Gaussian mixtures of a continuous acoustic
+ * model. Means, precisions, precomputed Gaussian factors and mixture weights
+ * of all senones are packed into contiguous float arrays indexed by senone
+ * and component, so that a batch of senones can be scored in a tight loop
+ * without walking {@link MixtureComponent} objects spread over the heap.
+ * <p>
+ * Scores are computed exactly like {@link GaussianMixture#calculateScore} does
+ * and are maintained in LogMath log base. If the model was loaded from a
+ * {@link MappedModelFile} which holds the packed parameters, the arrays are
+ * views of the mapping and are not copied to the heap.
+ * <p>
+ * The packed data is a snapshot of the senone pool; call {@link #update}
+ * after the means have been adapted. The parameters are then copied to the
+ * heap, since the mapping is read only.
+ * {@link edu.cmu.sphinx.decoder.scorer.PackedAcousticScorer} does so when
+ * recognition starts, if the {@link Loader#getUpdateCount() loader} applied a
+ * transform since the model was packed.
+ */
+public class PackedGaussianMixtures {
+
+    private final Senone[] senones;
+    private final int numSenones;
+    private final int numComponents;
+    private final int dimension;
+
+    /** Means, laid out as [senone][component][dimension] */
+    private FloatBuffer means;
+    /** Precisions (-0.5 / variance), laid out like the means */
+    private FloatBuffer precisions;
+    /** Precomputed Gaussian factors, laid out as [senone][component] */
+    private FloatBuffer gaussianFactors;
+    /** Log mixture weights, laid out as [senone][component] */
+    private FloatBuffer logMixtureWeights;
+    private final float distFloor;
+
+    private final LogMath logMath;
+
+    /**
+     * Packs the given senone pool.
+     *
+     * @param senonePool pool of {@link GaussianMixture} senones sharing the
+     *            same number of components and feature dimension
+     * @throws IllegalArgumentException if the pool contains other senones or
+     *             mixtures of different shapes
+     */
+    public PackedGaussianMixtures(Pool<Senone> senonePool) {
+        this(senonePool, null);
+    }
+
+    /**
+     * Packs the given senone pool, reading the parameters from the mapped
+     * model file the pool was created from if it holds them.
+     *
+     * @param senonePool pool of {@link GaussianMixture} senones sharing the
+     *            same number of components and feature dimension
+     * @param file the mapped model file the senones were loaded from, or
+     *            <code>null</code> to copy the parameters of the senones
+     * @throws IllegalArgumentException if the pool contains other senones or
+     *             mixtures of different shapes
+     */
+    public PackedGaussianMixtures(Pool<Senone> senonePool, MappedModelFile file) {
+        logMath = LogMath.getLogMath();
+        numSenones = senonePool.size();
+        senones = new Senone[numSenones];
+
+        if (numSenones == 0)
+            throw new IllegalArgumentException("Empty senone pool");
+        GaussianMixture first = toGaussianMixture(senonePool.get(0));
+        numComponents = first.numComponents();
+        dimension = first.dimension();
+        distFloor = first.getMixtureComponents()[0].distFloor;
+
+        for (int i = 0; i < numSenones; i++) {
+            GaussianMixture senone = toGaussianMixture(senonePool.get(i));
+            if (senone.numComponents() != numComponents || senone.dimension() != dimension)
+                throw new IllegalArgumentException("Senone " + i + " has a different shape");
+            if (senone.getID() != i)
+                throw new IllegalArgumentException("Senone " + i + " has id " + senone.getID());
+            senones[i] = senone;
+        }
+
+        if (file != null && file.getNumPackedGaussians() == numSenones * numComponents
+                && file.getVectorLength()[0] == dimension) {
+            means = file.getPackedMeans();
+            precisions = file.getPackedPrecisions();
+            gaussianFactors = file.getPackedGaussianFactors();
+            logMixtureWeights = file.getPackedMixtureWeights();
+        } else {
+            update();
+        }
+    }
+
+    private static GaussianMixture toGaussianMixture(Senone senone) {
+        // subclasses such as tied mixtures score differently
+        if (senone.getClass() != GaussianMixture.class)
+            throw new IllegalArgumentException("Unsupported senone type: " + senone.getClass().getName());
+        return (GaussianMixture) senone;
+    }
+
+    /**
+     * Copies the current, possibly adapted, parameters of the senones into the
+     * packed arrays. Parameters read from a mapped model file are replaced by
+     * arrays on the heap.
+     */
+    public void update() {
+        if (means == null || isMapped()) {
+            means = FloatBuffer.allocate(numSenones * numComponents * dimension);
+            precisions = FloatBuffer.allocate(numSenones * numComponents * dimension);
+            gaussianFactors = FloatBuffer.allocate(numSenones * numComponents);
+            logMixtureWeights = FloatBuffer.allocate(numSenones * numComponents);
+        }
+        means.clear();
+        precisions.clear();
+        gaussianFactors.clear();
+        logMixtureWeights.clear();
+        for (int i = 0; i < numSenones; i++) {
+            MixtureComponent[] components = senones[i].getMixtureComponents();
+            float[] weights = senones[i].getLogMixtureWeights();
+            for (int j = 0; j < numComponents; j++) {
+                MixtureComponent component = components[j];
+                means.put(component.meanTransformed, 0, dimension);
+                precisions.put(component.precisionTransformed, 0, dimension);
+                gaussianFactors.put(component.logPreComputedGaussianFactor);
+                logMixtureWeights.put(weights[j]);
+            }
+        }
+    }
+
+    /**
+     * Writes the precisions and the Gaussian factors, the parameters a mapped
+     * model file doesn't hold already.
+     *
+     * @param floats the buffer to write to
+     */
+    void writePrecomputed(FloatBuffer floats) {
+        floats.put((FloatBuffer) precisions.duplicate().clear());
+        floats.put((FloatBuffer) gaussianFactors.duplicate().clear());
+    }
+
+    /** @return true if the parameters are read from a mapped model file */
+    public boolean isMapped() {
+        return means.isReadOnly();
+    }
+
+    /**
+     * Returns the senone with the given id, as it was packed.
+     *
+     * @param id the senone id
+     * @return the senone
+     */
+    public Senone getSenone(int id) {
+        return senones[id];
+    }
+
+    /**
+     * Determines if the given senone is scored by this structure.
+     *
+     * @param senone the senone to check
+     * @return true if the senone was packed here
+     */
+    public boolean contains(Senone senone) {
+        long id = senone.getID();
+        return id >= 0 && id < numSenones && senones[(int) id] == senone;
+    }
+
+    /** @return the number of senones */
+    public int getNumSenones() {
+        return numSenones;
+    }
+
+    /** @return the number of components per senone */
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    /** @return the dimension of the modeled feature space */
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Calculates the score of a single senone.
+     *
+     * @param senoneId the senone to score
+     * @param feature the feature vector
+     * @return the score in LogMath log base
+     */
+    public float calculateScore(int senoneId, float[] feature) {
+        float logTotal = LogMath.LOG_ZERO;
+        int gaussian = senoneId * numComponents;
+        int offset = gaussian * dimension;
+        for (int j = 0; j < numComponents; j++, gaussian++) {
+            float logDval = gaussianFactors.get(gaussian);
+            for (int i = 0; i < dimension; i++, offset++) {
+                float logDiff = feature[i] - means.get(offset);
+                logDval += logDiff * logDiff * precisions.get(offset);
+            }
+            logDval = logMath.lnToLog(logDval);
+            if (Float.isNaN(logDval))
+                logDval = LogMath.LOG_ZERO;
+            if (logDval < distFloor)
+                logDval = distFloor;
+            logTotal = logMath.addAsLinear(logTotal, logDval + logMixtureWeights.get(gaussian));
+        }
+        return logTotal;
+    }
+
+    /**
+     * Calculates the scores of a batch of senones against one feature vector.
+     *
+     * @param senoneIds the ids of the senones to score
+     * @param count the number of ids to use from <code>senoneIds</code>
+     * @param feature the feature vector
+     * @param scores receives the score of <code>senoneIds[i]</code> at index
+     *            <code>i</code>
+     */
+    public void calculateScores(int[] senoneIds, int count, float[] feature, float[] scores) {
+        for (int i = 0; i < count; i++)
+            scores[i] = calculateScore(senoneIds[i], feature);
+    }
+
+    /**
+     * Calculates the scores of one senone over several frames. The components
+     * are the outer loop, so the parameters of the senone stay in cache while
+     * all frames are scored. The results are identical to calling
+     * {@link #calculateScore} for each frame.
+     *
+     * @param senoneId the senone to score
+     * @param features the feature vectors of the frames
+     * @param from index of the first frame to score
+     * @param to index after the last frame to score
+     * @param scores receives the score of frame <code>i</code> at index
+     *            <code>offset + i</code>
+     * @param offset the offset of frame 0 in <code>scores</code>
+     */
+    public void calculateScores(int senoneId, float[][] features, int from, int to, float[] scores, int offset) {
+        for (int t = from; t < to; t++)
+            scores[offset + t] = LogMath.LOG_ZERO;
+        int gaussian = senoneId * numComponents;
+        for (int j = 0; j < numComponents; j++, gaussian++) {
+            int base = gaussian * dimension;
+            float factor = gaussianFactors.get(gaussian);
+            float logWeight = logMixtureWeights.get(gaussian);
+            for (int t = from; t < to; t++) {
+                float[] feature = features[t];
+                float logDval = factor;
+                for (int i = 0; i < dimension; i++) {
+                    float logDiff = feature[i] - means.get(base + i);
+                    logDval += logDiff * logDiff * precisions.get(base + i);
+                }
+                logDval = logMath.lnToLog(logDval);
+                if (Float.isNaN(logDval))
+                    logDval = LogMath.LOG_ZERO;
+                if (logDval < distFloor)
+                    logDval = distFloor;
+                scores[offset + t] = logMath.addAsLinear(scores[offset + t], logDval + logWeight);
+            }
+        }
+    }
+
+    public void logInfo(Logger logger) {
+        logger.info("Packed Gaussian mixtures. Senones: " + numSenones + ", components: " + numComponents
+                + ", dimension: " + dimension + (isMapped() ? ", mapped" : ""));
+    }
+}
@@ -85,6 +85,17 @@ public class SenoneHMMState implements HMMState {
     }
 
 
+    /**
+     * Gets the score for this HMM state from the score table of the current frame
+     *
+     * @param scores the senone scores of the frame being scored
+     * @return the acoustic score for this state.
+     */
+    public float getScore(SenoneScoreTable scores) {
+        return scores.getScore(senone);
+    }
+
+
     /**
      * Gets the scores for each mixture component in this HMM state
      *
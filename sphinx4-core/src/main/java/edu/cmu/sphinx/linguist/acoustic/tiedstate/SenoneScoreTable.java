@@ -0,0 +1,264 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.FloatData;
+
+/**
+ * Dense table of the senone scores of the current frame. The table is owned
+ * by an acoustic scorer and replaces the per-senone {@link ScoreCachingSenone}
+ * cache: scores are kept in a <code>float</code> array indexed by senone id
+ * next to a bit set of the senones already computed for the frame, so scoring
+ * a frame allocates nothing.
+ * <p>
+ * The scorer first {@link #calculateScores requests} the senones the active
+ * list needs, which are then scored in one batch, and tokens read the scores
+ * through {@link SenoneHMMState#getScore(SenoneScoreTable)}. Senones missing
+ * from the table are scored lazily on first access.
+ * <p>
+ * The table can also hold a window of several frames. A senone requested in
+ * any frame of the window is then scored over that and all following frames
+ * of the window in one pass, so its parameters are read only once per
+ * window. Senones which become active partway through the window are scored
+ * from the frame they are first needed in.
+ * <p>
+ * The table is not thread-safe, each scorer needs its own instance.
+ */
+public class SenoneScoreTable {
+
+    private final Senone[] senones;
+    private final PackedGaussianMixtures mixtures;
+    private final int windowSize;
+    /** Scores, laid out as [senone][frame in window] */
+    private final float[] scores;
+    /** Senones computed from their first request up to the end of the window */
+    private final BitSet computed;
+
+    private final Data[] window;
+    private final float[][] featureVectors;
+    private int windowLength;
+    private int frame;
+    private long numScored;
+
+    private int[] pending = new int[0];
+    private float[] pendingScores = new float[0];
+
+    /**
+     * Creates a score table for the given senones holding a single frame.
+     *
+     * @param senonePool the senones of the acoustic model, indexed by id
+     * @param mixtures optional packed copy of the senone pool used for batch
+     *            scoring, may be <code>null</code>
+     */
+    public SenoneScoreTable(Pool<Senone> senonePool, PackedGaussianMixtures mixtures) {
+        this(senonePool, mixtures, 1);
+    }
+
+    /**
+     * Creates a score table for the given senones holding a window of frames.
+     *
+     * @param senonePool the senones of the acoustic model, indexed by id
+     * @param mixtures optional packed copy of the senone pool used for batch
+     *            scoring, may be <code>null</code>
+     * @param windowSize the maximum number of frames scored together
+     */
+    public SenoneScoreTable(Pool<Senone> senonePool, PackedGaussianMixtures mixtures, int windowSize) {
+        assert windowSize > 0;
+        senones = new Senone[senonePool.size()];
+        for (int i = 0; i < senones.length; i++)
+            senones[i] = senonePool.get(i);
+        this.mixtures = mixtures;
+        this.windowSize = windowSize;
+        scores = new float[senones.length * windowSize];
+        computed = new BitSet(senones.length);
+        window = new Data[windowSize];
+        featureVectors = new float[windowSize][];
+    }
+
+    /**
+     * Starts a new frame. All scores of the previous frames are discarded.
+     *
+     * @param feature the feature of the new frame
+     */
+    public void setFeature(Data feature) {
+        window[0] = feature;
+        resetWindow(1);
+    }
+
+    /**
+     * Starts a new window of frames, the first of which becomes the current
+     * frame. All scores of the previous window are discarded.
+     *
+     * @param features the features of the window
+     * @param count the number of frames to use from <code>features</code>, at
+     *            most the window size of this table
+     */
+    public void setFeatures(Data[] features, int count) {
+        assert count > 0 && count <= windowSize;
+        System.arraycopy(features, 0, window, 0, count);
+        resetWindow(count);
+    }
+
+    private void resetWindow(int count) {
+        Arrays.fill(window, count, windowSize, null);
+        Arrays.fill(featureVectors, null);
+        windowLength = count;
+        frame = 0;
+        computed.clear();
+    }
+
+    /**
+     * Makes the given feature the current frame if it is part of the window
+     * and follows the current frame.
+     *
+     * @param feature the feature to score next
+     * @return true if the feature was found in the window
+     */
+    public boolean advanceTo(Data feature) {
+        for (int i = frame; i < windowLength; i++) {
+            if (window[i] == feature) {
+                frame = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the feature of the current frame */
+    public Data getFeature() {
+        return window[frame];
+    }
+
+    /** @return the maximum number of frames in a window */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /** @return the number of senones in the table */
+    public int size() {
+        return senones.length;
+    }
+
+    /** @return the number of senones scored in the current window */
+    public int getNumComputed() {
+        return computed.cardinality();
+    }
+
+    /**
+     * Returns the number of senones scored since the table was created. A
+     * senone scored over the window is counted once.
+     *
+     * @return the number of senones scored
+     */
+    public long getNumScored() {
+        return numScored;
+    }
+
+    /**
+     * Determines if a senone has a slot in this table.
+     *
+     * @param senone the senone to check
+     * @return true if the senone belongs to the model of this table
+     */
+    public boolean contains(Senone senone) {
+        long id = senone.getID();
+        return id >= 0 && id < senones.length && senones[(int) id] == senone;
+    }
+
+    /**
+     * Scores the given senones in one batch, skipping those already computed
+     * for the current frame.
+     *
+     * @param senoneIds ids of the senones, duplicates are allowed
+     * @param count the number of ids to use from <code>senoneIds</code>
+     */
+    public void calculateScores(int[] senoneIds, int count) {
+        if (pending.length < count) {
+            pending = new int[count];
+            pendingScores = new float[count];
+        }
+        int numPending = 0;
+        for (int i = 0; i < count; i++) {
+            int id = senoneIds[i];
+            if (!computed.get(id)) {
+                computed.set(id);
+                pending[numPending++] = id;
+            }
+        }
+        numScored += numPending;
+        if (windowLength - frame > 1) {
+            for (int i = 0; i < numPending; i++)
+                calculateWindowScores(pending[i]);
+        } else if (mixtures != null) {
+            mixtures.calculateScores(pending, numPending, getFeatureVector(frame), pendingScores);
+            for (int i = 0; i < numPending; i++)
+                scores[pending[i] * windowSize + frame] = pendingScores[i];
+        } else {
+            for (int i = 0; i < numPending; i++)
+                scores[pending[i] * windowSize + frame] = calculateScore(senones[pending[i]], window[frame]);
+        }
+    }
+
+    /**
+     * Returns the score of a senone for the current frame, computing it if
+     * necessary. Senones which don't belong to the table are scored directly.
+     *
+     * @param senone the senone
+     * @return the score in LogMath log base
+     */
+    public float getScore(Senone senone) {
+        if (contains(senone)) {
+            int id = (int) senone.getID();
+            if (!computed.get(id)) {
+                calculateWindowScores(id);
+                computed.set(id);
+                numScored++;
+            }
+            return scores[id * windowSize + frame];
+        }
+        if (senone instanceof CompositeSenone)
+            return ((CompositeSenone) senone).calculateScore(this);
+        return senone.getScore(getFeature());
+    }
+
+    /**
+     * Scores a senone from the current frame to the end of the window.
+     *
+     * @param id the senone id
+     */
+    private void calculateWindowScores(int id) {
+        int offset = id * windowSize;
+        if (mixtures != null) {
+            for (int t = frame; t < windowLength; t++)
+                getFeatureVector(t);
+            mixtures.calculateScores(id, featureVectors, frame, windowLength, scores, offset);
+        } else {
+            for (int t = frame; t < windowLength; t++)
+                scores[offset + t] = calculateScore(senones[id], window[t]);
+        }
+    }
+
+    private float calculateScore(Senone senone, Data feature) {
+        if (senone instanceof ScoreCachingSenone)
+            return ((ScoreCachingSenone) senone).calculateScore(feature);
+        return senone.getScore(feature);
+    }
+
+    private float[] getFeatureVector(int t) {
+        if (featureVectors[t] == null)
+            featureVectors[t] = FloatData.toFloatData(window[t]).getValues();
+        return featureVectors[t];
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import edu.cmu.sphinx.decoder.adaptation.ClusteredDensityFileData;
+import edu.cmu.sphinx.decoder.adaptation.Transform;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+
+/**
+ * Handle on an acoustic model which is loaded once and shared by several
+ * recognizers, for example by many
+ * {@link edu.cmu.sphinx.api.StreamSpeechRecognizer}s decoding concurrently.
+ * <p>
+ * The handle itself is immutable. Every recognizer gets its own
+ * {@link #createLoader() loader} on top of the shared means, variances,
+ * mixture weights and transition matrices, which make up nearly all of the
+ * memory of a model. The mutable state is private to each loader: it has its
+ * own senones, and thus its own score caches, and its own HMM manager, which
+ * acoustic models extend with composite HMMs while decoding. The mixture
+ * components of continuous models are shared as well, while those of models
+ * with tied mixtures keep the scores of the current frame and are created for
+ * every loader. Adapting a loader with MLLR first copies the means, so the
+ * adaptation of one recognizer does not affect the others.
+ */
+public class SharedAcousticModel {
+
+    private final Sphinx3Loader model;
+    private final String location;
+
+    /**
+     * Loads the model at the given location with the default floors.
+     *
+     * @param location the location of the model
+     * @throws IOException if the model can not be loaded
+     */
+    public SharedAcousticModel(String location) throws IOException {
+        this(createLoader(location), location);
+    }
+
+    /**
+     * Loads the model of the given loader. The loader must not be used for
+     * decoding itself afterwards.
+     *
+     * @param loader loader of the model to share
+     * @throws IOException if the model can not be loaded
+     */
+    public SharedAcousticModel(Sphinx3Loader loader) throws IOException {
+        this(loader, loader.getLocation());
+    }
+
+    private SharedAcousticModel(Sphinx3Loader loader, String location) throws IOException {
+        loader.load();
+        model = loader;
+        this.location = location;
+    }
+
+    private static Sphinx3Loader createLoader(String location) throws IOException {
+        try {
+            return new Sphinx3Loader(location, new UnitManager(), MixtureComponent.DEFAULT_DIST_FLOOR, 1e-7f,
+                    MixtureComponent.DEFAULT_VAR_FLOOR, 4, true);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** @return the location of the model */
+    public String getLocation() {
+        return location;
+    }
+
+    /** @return the number of senones of the model */
+    public int getNumSenones() {
+        return model.getSenonePool().size();
+    }
+
+    /**
+     * Creates a loader for one recognizer. The loader is already loaded and
+     * shares the pools of this model.
+     *
+     * @return the loader
+     */
+    public Sphinx3Loader createLoader() {
+        return new SharedModelLoader(model);
+    }
+
+    /** Loader of a shared model with private senones and HMMs */
+    private static class SharedModelLoader extends Sphinx3Loader {
+
+        private final Pool<float[]> sharedVariances;
+        private boolean adapted;
+
+        SharedModelLoader(Sphinx3Loader model) {
+            super(model);
+            sharedVariances = variancePool;
+
+            if (hasTiedMixtures()) {
+                senonePool = createTiedSenonePool(distFloor, varianceFloor);
+            } else {
+                // light-weight senones on top of the shared components
+                Pool<Senone> senones = new Pool<Senone>(senonePool.getName());
+                for (int i = 0; i < senonePool.size(); i++) {
+                    GaussianMixture senone = (GaussianMixture) senonePool.get(i);
+                    senones.put(i, new GaussianMixture(mixtureWeights, senone.getMixtureComponents().clone(), i));
+                }
+                senonePool = senones;
+            }
+
+            Map<SenoneSequence, SenoneSequence> sequences = new IdentityHashMap<SenoneSequence, SenoneSequence>();
+            HMMManager hmms = new HMMManager();
+            for (HMM hmm : hmmManager) {
+                SenoneHMM senoneHMM = (SenoneHMM) hmm;
+                SenoneSequence sequence = sequences.get(senoneHMM.getSenoneSequence());
+                if (sequence == null) {
+                    Senone[] senones = senoneHMM.getSenoneSequence().getSenones().clone();
+                    for (int i = 0; i < senones.length; i++)
+                        senones[i] = senonePool.get((int) senones[i].getID());
+                    sequence = new SenoneSequence(senones);
+                    sequences.put(senoneHMM.getSenoneSequence(), sequence);
+                }
+                hmms.put(new SenoneHMM(hmm.getUnit(), sequence, senoneHMM.getTransitionMatrix(), hmm.getPosition()));
+            }
+            hmmManager = hmms;
+        }
+
+        @Override
+        public void load() {
+        }
+
+        /** Returns a private copy, the adaptation statistics modify it */
+        @Override
+        public Pool<float[]> getVariancePool() {
+            if (variancePool == sharedVariances)
+                variancePool = copy(sharedVariances);
+            return variancePool;
+        }
+
+        @Override
+        public void update(Transform transform, ClusteredDensityFileData clusters) {
+            if (!adapted) {
+                copyMeans();
+                adapted = true;
+            }
+            super.update(transform, clusters);
+        }
+
+        /**
+         * Moves the senones to private copies of the means, which the
+         * adaptation then modifies in place.
+         */
+        private void copyMeans() {
+            Map<float[], float[]> means = new IdentityHashMap<float[], float[]>();
+            Pool<float[]> meansCopy = new Pool<float[]>(meansPool.getName());
+            for (int i = 0; i < meansPool.size(); i++) {
+                meansCopy.put(i, meansPool.get(i).clone());
+                means.put(meansPool.get(i), meansCopy.get(i));
+            }
+            meansPool = meansCopy;
+
+            if (hasTiedMixtures()) {
+                // the components are private already
+                for (int i = 0; i < senonePool.size(); i++) {
+                    for (MixtureComponent component : ((GaussianMixture) senonePool.get(i)).getMixtureComponents()) {
+                        float[] mean = means.get(component.meanTransformed);
+                        if (mean != null)
+                            component.meanTransformed = mean;
+                    }
+                }
+            } else {
+                // create private components on the copied means and original variances
+                Pool<float[]> variances = variancePool;
+                variancePool = sharedVariances;
+                Pool<Senone> senones = createSenonePool(distFloor, varianceFloor);
+                variancePool = variances;
+                for (int i = 0; i < senonePool.size(); i++) {
+                    MixtureComponent[] components = ((GaussianMixture) senonePool.get(i)).getMixtureComponents();
+                    MixtureComponent[] copies = ((GaussianMixture) senones.get(i)).getMixtureComponents();
+                    System.arraycopy(copies, 0, components, 0, components.length);
+                }
+            }
+        }
+
+        private static Pool<float[]> copy(Pool<float[]> pool) {
+            Pool<float[]> copy = new Pool<float[]>(pool.getName());
+            for (int i = 0; i < pool.size(); i++)
+                copy.put(i, pool.get(i).clone());
+            return copy;
+        }
+    }
+}
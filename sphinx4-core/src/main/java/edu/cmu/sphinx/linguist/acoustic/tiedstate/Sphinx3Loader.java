@@ -94,6 +94,13 @@ public class Sphinx3Loader implements Loader {
     @S4Integer(defaultValue = 4)
     public final static String PROP_TOPN = "topGaussiansNum";
 
+    /**
+     * Whether to load the model parameters from a {@link MappedModelFile} if
+     * one is found next to the model files
+     */
+    @S4Boolean(defaultValue = true)
+    public final static String PROP_USE_MAPPED_MODEL = "useMappedModel";
+
     protected final static String FILLER = "filler";
     protected final static String SILENCE_CIPHONE = "SIL";
     protected final static int BYTE_ORDER_MAGIC = 0x11223344;
@@ -126,7 +133,7 @@ public class Sphinx3Loader implements Loader {
     protected Pool<Senone> senonePool;
 
     private Map<String, Unit> contextIndependentUnits;
-    private HMMManager hmmManager;
+    protected HMMManager hmmManager;
     protected LogMath logMath;
     private UnitManager unitManager;
     private boolean swap;
@@ -145,7 +152,10 @@ public class Sphinx3Loader implements Loader {
     protected float varianceFloor;
     private int topGauNum;
     protected boolean useCDUnits;
+    protected boolean useMappedModel = true;
     private boolean loaded;
+    private int updateCount;
+    private MappedModelFile mappedModelFile;
 
     public Sphinx3Loader(URL location,
             UnitManager unitManager, float distFloor, float mixtureWeightFloor,
@@ -185,6 +195,46 @@ public class Sphinx3Loader implements Loader {
 
     }
 
+    /**
+     * Creates a loader for a model already loaded by another loader. The
+     * pools are shared with <code>model</code>, while the HMM manager is
+     * copied, since acoustic models add composite HMMs to it while decoding.
+     *
+     * @param model the loaded model to share
+     */
+    protected Sphinx3Loader(Sphinx3Loader model) {
+        assert model.loaded;
+        init(model.location, model.unitManager, model.distFloor, model.mixtureWeightFloor, model.varianceFloor,
+                model.topGauNum, model.useCDUnits, model.logger);
+        modelProps = model.modelProps;
+        meansPool = model.meansPool;
+        variancePool = model.variancePool;
+        transitionsPool = model.transitionsPool;
+        mixtureWeights = model.mixtureWeights;
+        numStates = model.numStates;
+        numStreams = model.numStreams;
+        numBase = model.numBase;
+        numGaussiansPerState = model.numGaussiansPerState;
+        vectorLength = model.vectorLength;
+        senone2ci = model.senone2ci;
+        meanTransformationMatrixPool = model.meanTransformationMatrixPool;
+        meanTransformationVectorPool = model.meanTransformationVectorPool;
+        varianceTransformationMatrixPool = model.varianceTransformationMatrixPool;
+        varianceTransformationVectorPool = model.varianceTransformationVectorPool;
+        transformMatrix = model.transformMatrix;
+        phoneticTiedMixtures = model.phoneticTiedMixtures;
+        senonePool = model.senonePool;
+        contextIndependentUnits = model.contextIndependentUnits;
+        swap = model.swap;
+        useMappedModel = model.useMappedModel;
+        mappedModelFile = model.getMappedModelFile();
+
+        hmmManager = new HMMManager();
+        for (HMM hmm : model.hmmManager)
+            hmmManager.put(hmm);
+        loaded = true;
+    }
+
     public int getNumStates() {
         return numStates;
     }
@@ -222,6 +272,7 @@ public class Sphinx3Loader implements Loader {
                 ps.getFloat(PROP_VARIANCE_FLOOR),
                 ps.getInt(PROP_TOPN),
                 ps.getBoolean(PROP_USE_CD_UNITS), ps.getLogger());
+        useMappedModel = ps.getBoolean(PROP_USE_MAPPED_MODEL);
     }
 
     // This function is a bit different from the
@@ -295,11 +346,13 @@ public class Sphinx3Loader implements Loader {
     protected void loadModelFiles() throws IOException,
             URISyntaxException {
         
-        meansPool = loadDensityFile("means", -Float.MAX_VALUE);
-        variancePool = loadDensityFile("variances",
-                varianceFloor);
-        mixtureWeights = loadMixtureWeights("mixture_weights", mixtureWeightFloor);
-        transitionsPool = loadTransitionMatrices("transition_matrices");
+        if (!useMappedModel || !loadMappedModelFile()) {
+            meansPool = loadDensityFile("means", -Float.MAX_VALUE);
+            variancePool = loadDensityFile("variances",
+                    varianceFloor);
+            mixtureWeights = loadMixtureWeights("mixture_weights", mixtureWeightFloor);
+            transitionsPool = loadTransitionMatrices("transition_matrices");
+        }
         transformMatrix = loadTransformMatrix("feature_transform");
         modelProps = loadModelProps("feat.params");
         
@@ -321,6 +374,41 @@ public class Sphinx3Loader implements Loader {
         loadHMMPool(useCDUnits, modelStream);
     }
 
+    /**
+     * Loads the means, variances, mixture weights and transition matrices
+     * from the mapped model file of the model, if there is one and it was
+     * prepared with the floors and the log base of this loader.
+     *
+     * @return true if the mapped model file was loaded, false if the Sphinx3
+     *         files have to be loaded
+     * @throws IOException if the file is invalid
+     */
+    protected boolean loadMappedModelFile() throws IOException {
+        URL url = new URL(Utilities.pathJoin(location.toString(), MappedModelFile.FILE_NAME));
+        MappedModelFile file = MappedModelFile.open(url);
+        if (file == null)
+            return false;
+        logger.fine("Loading mapped model from: " + url);
+        try {
+            file.checkCompatible(varianceFloor, mixtureWeightFloor);
+        } catch (IOException e) {
+            logger.warning(e.getMessage() + ", loading the model files from " + location);
+            return false;
+        }
+
+        meansPool = file.getMeans();
+        variancePool = file.getVariances();
+        mixtureWeights = file.getMixtureWeights();
+        transitionsPool = file.getTransitionMatrices();
+
+        numStates = file.getNumStates();
+        numStreams = file.getNumStreams();
+        numGaussiansPerState = file.getNumGaussiansPerState();
+        vectorLength = file.getVectorLength();
+        mappedModelFile = file;
+        return true;
+    }
+
     public Map<String, Unit> getContextIndependentUnits() {
         return contextIndependentUnits;
     }
@@ -449,7 +537,7 @@ public class Sphinx3Loader implements Loader {
      *            the lowest allowed variance
      * @return the senone pool
      */
-    private Pool<Senone> createTiedSenonePool(float distFloor, float varianceFloor) {
+    protected Pool<Senone> createTiedSenonePool(float distFloor, float varianceFloor) {
         Pool<Senone> pool = new Pool<Senone>("senones");
 
         int numMeans = meansPool.size();
@@ -1247,7 +1335,7 @@ public class Sphinx3Loader implements Loader {
             float[] tmean = new float[getVectorLength()[0]];
             float[] mean = meansPool.get(index);
             
-            for (int i = 0; i < numStreams; i++) {
+            for (int i = 0; i < getNumStreams(); i++) {
                 for (int l = 0; l < getVectorLength()[i]; l++) {
                     tmean[l] = 0;
                     for (int m = 0; m < getVectorLength()[i]; m++) {
@@ -1259,5 +1347,15 @@ public class Sphinx3Loader implements Loader {
                 System.arraycopy(tmean, 0, mean, 0, tmean.length);
             }
         }
+        updateCount++;
+    }
+
+    public int getUpdateCount() {
+        return updateCount;
+    }
+
+    public MappedModelFile getMappedModelFile() {
+        // the mapping holds the parameters as they were before the update
+        return updateCount == 0 ? mappedModelFile : null;
     }
 }
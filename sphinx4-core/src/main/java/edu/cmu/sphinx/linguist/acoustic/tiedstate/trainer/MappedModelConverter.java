@@ -0,0 +1,70 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate.trainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MappedModelFile;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Sphinx3Loader;
+import edu.cmu.sphinx.util.props.ConfigurationManager;
+
+/**
+ * Provides a command line utility to convert a Sphinx3 acoustic model to a
+ * {@link MappedModelFile}. The file is written into the model directory,
+ * where {@link Sphinx3Loader} picks it up.
+ */
+public class MappedModelConverter {
+
+    private MappedModelConverter() {
+    }
+
+    /**
+     * Converts the model in the given directory. The model is loaded with the
+     * default floors of {@link Sphinx3Loader}. Loaders configured with other
+     * floors ignore the file and load the Sphinx3 files instead, with a
+     * warning.
+     *
+     * @param location the model directory
+     * @param output the file to write
+     * @throws IOException if the model can not be read or the file not be
+     *             written
+     */
+    public static void convert(String location, File output) throws IOException {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Sphinx3Loader.PROP_LOCATION, location);
+        props.put(Sphinx3Loader.PROP_USE_MAPPED_MODEL, false);
+        Sphinx3Loader loader = ConfigurationManager.getInstance(Sphinx3Loader.class, props);
+        loader.load();
+        MappedModelFile.write(loader, output);
+    }
+
+    /**
+     * Converts a model. The first argument is the model directory, the
+     * optional second argument the file to write, which defaults to
+     * {@link MappedModelFile#FILE_NAME} in the model directory.
+     *
+     * @param args arguments
+     * @throws IOException if the conversion failed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: MappedModelConverter <model directory> [<output file>]");
+            System.exit(1);
+        }
+
+        File output = args.length > 1 ? new File(args[1]) : new File(args[0], MappedModelFile.FILE_NAME);
+        System.out.println("Writing mapped model to " + output);
+        convert(args[0], output);
+    }
+}
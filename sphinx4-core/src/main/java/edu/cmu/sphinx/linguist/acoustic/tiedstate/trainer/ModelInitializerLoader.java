@@ -629,4 +629,12 @@ public class ModelInitializerLoader implements Loader {
     public void update(Transform transform, ClusteredDensityFileData clusters) {
         // TODO Not implemented yet   
     }
+
+    public int getUpdateCount() {
+        return 0;
+    }
+
+    public MappedModelFile getMappedModelFile() {
+        return null;
+    }
 }
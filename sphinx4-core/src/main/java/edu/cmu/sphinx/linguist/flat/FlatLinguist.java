@@ -393,7 +393,9 @@ public class FlatLinguist implements Linguist, Configurable {
         }
         nodeStateMap = null;
         arcPool = null;
-        return SentenceHMMState.collectStates(initialState);
+        Set<SentenceHMMState> states = SentenceHMMState.collectStates(initialState);
+        SentenceHMMState.indexStates(states);
+        return states;
     }
 
 
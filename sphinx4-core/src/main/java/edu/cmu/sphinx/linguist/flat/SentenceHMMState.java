@@ -13,6 +13,7 @@
 package edu.cmu.sphinx.linguist.flat;
 
 
+import edu.cmu.sphinx.linguist.IndexedSearchState;
 import edu.cmu.sphinx.linguist.SearchState;
 import edu.cmu.sphinx.linguist.SearchStateArc;
 import edu.cmu.sphinx.linguist.WordSequence;
@@ -24,7 +25,7 @@ import java.util.*;
 
 /** Represents a single state in an SentenceHMM */
 @SuppressWarnings("serial")
-public abstract class SentenceHMMState implements Serializable, SearchState {
+public abstract class SentenceHMMState implements Serializable, IndexedSearchState {
 
     private final static int MASK_IS_FINAL = 0x1;
     private final static int MASK_COLOR_RED = 0x2;
@@ -41,6 +42,7 @@ public abstract class SentenceHMMState implements Serializable, SearchState {
     private static int globalStateNumber = -1000;
 
     private int stateNumber;
+    private int index = -1;
 
     // a number of separate variables are maintained in 'fields'
     // inorder to reduce the size of the SentenceHMM
@@ -608,6 +610,29 @@ public abstract class SentenceHMMState implements Serializable, SearchState {
     }
 
 
+    /**
+     * Gets the index of this state in its search graph
+     *
+     * @return the index, or -1 if the states of the graph are not numbered
+     */
+    public int getIndex() {
+        return index;
+    }
+
+
+    /**
+     * Numbers the states of a search graph densely from zero.
+     *
+     * @param states all states of the search graph
+     */
+    public static void indexStates(Collection<SentenceHMMState> states) {
+        int index = 0;
+        for (SentenceHMMState state : states) {
+            state.index = index++;
+        }
+    }
+
+
     /**
      * Collect all states starting from the given start state
      *
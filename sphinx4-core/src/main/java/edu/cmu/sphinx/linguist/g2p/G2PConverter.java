@@ -13,7 +13,9 @@
 
 package edu.cmu.sphinx.linguist.g2p;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -75,7 +77,8 @@ public class G2PConverter {
     Fst epsilonFilter;
 
     /**
-     * Create a decoder by loading the serialized model from a specified URL
+     * Create a decoder by loading the serialized model from a specified URL.
+     * Models in local files are memory mapped.
      * 
      * @param g2pModelUrl
      *            the URL of the serialized model
@@ -83,9 +86,14 @@ public class G2PConverter {
      */
     public G2PConverter(URL g2pModelUrl) throws IOException {
         try {
-            g2pmodel = ImmutableFst.loadModel(g2pModelUrl.openStream());
+            if ("file".equals(g2pModelUrl.getProtocol()))
+                g2pmodel = ImmutableFst.loadModel(new File(g2pModelUrl.toURI()));
+            else
+                g2pmodel = ImmutableFst.loadModel(g2pModelUrl.openStream());
         } catch (ClassNotFoundException e) {
             throw new IOException("Failed to load the model from " + g2pModelUrl, e);
+        } catch (URISyntaxException e) {
+            throw new IOException("Failed to load the model from " + g2pModelUrl, e);
         }
         init();
     }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a command line utility to merge language models in ARPA format
+ * into a single static model, so that {@link InterpolatedLanguageModel}
+ * needs to query only one model instead of all of them, see
+ * {@link InterpolatedLanguageModel#PROP_MERGED_LANGUAGE_MODEL}. The merged
+ * model can be converted into a trie with the NgramTrieConverter.
+ * <p>
+ * The merged model holds the union of the ngrams of the models. The
+ * probability of each ngram is the weighted sum of the probabilities the
+ * models give it, the backoff weights are computed again so that the
+ * probabilities following each history sum up as before. The probabilities
+ * of the ngrams in the union are exact, the ones of backed off ngrams are
+ * approximated, as usual for static interpolation. All models are kept in
+ * memory.
+ */
+public class ArpaInterpolator {
+
+    private ArpaInterpolator() {
+    }
+
+    /**
+     * Merges language models.
+     *
+     * @param models the locations of the models in ARPA format
+     * @param weights the weights of the models, summing up to one
+     * @param output the file to write the merged model to
+     * @throws IOException if a model can not be read or the file not be
+     *             written
+     */
+    public static void interpolate(List<URL> models, float[] weights, File output) throws IOException {
+        if (models.size() != weights.length)
+            throw new IllegalArgumentException("Number of weights not equal to number of language models");
+        List<ArpaModel> arpaModels = new ArrayList<ArpaModel>(models.size());
+        for (URL model : models)
+            arpaModels.add(ArpaModel.read(model));
+        merge(arpaModels, weights).write(output);
+    }
+
+    /**
+     * Merges language models
+     */
+    static ArpaModel merge(List<ArpaModel> models, float[] weights) {
+        int order = 0;
+        for (ArpaModel model : models)
+            order = Math.max(order, model.getOrder());
+        ArpaModel merged = new ArpaModel(order);
+
+        // probabilities of the union of the ngrams
+        for (int n = 1; n <= order; n++) {
+            Map<String, float[]> ngrams = merged.ngrams.get(n - 1);
+            for (ArpaModel model : models) {
+                if (n > model.getOrder())
+                    continue;
+                for (String ngram : model.ngrams.get(n - 1).keySet()) {
+                    if (ngrams.containsKey(ngram))
+                        continue;
+                    String[] words = ngram.split(" ");
+                    double linear = 0.0;
+                    for (int i = 0; i < models.size(); i++)
+                        linear += weights[i] * Math.pow(10.0, models.get(i).getProbability(words));
+                    ngrams.put(ngram, new float[] {(float) Math.log10(linear), 0.0f});
+                }
+            }
+        }
+
+        // backoffs of the histories from the shortest up, the ones of lower
+        // orders are needed for the probabilities of the shorter histories
+        for (int n = 2; n <= order; n++) {
+            Map<String, double[]> masses = new HashMap<String, double[]>();
+            for (Map.Entry<String, float[]> entry : merged.ngrams.get(n - 1).entrySet()) {
+                String[] words = entry.getKey().split(" ");
+                String history = entry.getKey().substring(0, entry.getKey().lastIndexOf(' '));
+                double[] mass = masses.get(history);
+                if (mass == null)
+                    masses.put(history, mass = new double[2]);
+                mass[0] += Math.pow(10.0, entry.getValue()[0]);
+                mass[1] += Math.pow(10.0, merged.getProbability(words, 1));
+            }
+            for (Map.Entry<String, double[]> entry : masses.entrySet()) {
+                float[] history = merged.ngrams.get(n - 2).get(entry.getKey());
+                if (history == null)
+                    continue;
+                double numerator = 1.0 - entry.getValue()[0];
+                double denominator = 1.0 - entry.getValue()[1];
+                history[1] = numerator > 0.0 && denominator > 0.0 ? (float) Math.log10(numerator / denominator) : 0.0f;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges language models. The first argument is the file to write, it
+     * is followed by pairs of weight and model location.
+     *
+     * @param args arguments
+     * @throws IOException if the merging failed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length % 2 == 0) {
+            System.err.println("Usage: ArpaInterpolator <output file> <weight> <ARPA file> [<weight> <ARPA file> ...]");
+            System.exit(1);
+        }
+
+        List<URL> models = new ArrayList<URL>();
+        float[] weights = new float[args.length / 2];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Float.parseFloat(args[1 + 2 * i]);
+            models.add(new File(args[2 + 2 * i]).toURI().toURL());
+        }
+        System.out.println("Writing interpolated language model to " + args[0]);
+        interpolate(models, weights, new File(args[0]));
+    }
+
+    /**
+     * A backoff language model in ARPA format which keeps probabilities and
+     * backoffs in log10 by the ngrams
+     */
+    static class ArpaModel {
+
+        private final List<Map<String, float[]>> ngrams;
+
+        ArpaModel(int order) {
+            ngrams = new ArrayList<Map<String, float[]>>(order);
+            for (int n = 1; n <= order; n++)
+                ngrams.add(new LinkedHashMap<String, float[]>());
+        }
+
+        int getOrder() {
+            return ngrams.size();
+        }
+
+        /**
+         * Gets the probability of the last word following the others
+         *
+         * @param words the words, oldest first
+         * @return the probability in log10, negative infinity for unknown
+         *         words
+         */
+        float getProbability(String... words) {
+            return getProbability(words, 0);
+        }
+
+        private float getProbability(String[] words, int from) {
+            if (words.length - from > getOrder())
+                from = words.length - getOrder();
+            float[] ngram = ngrams.get(words.length - from - 1).get(join(words, from, words.length));
+            if (ngram != null)
+                return ngram[0];
+            if (words.length - from == 1)
+                return Float.NEGATIVE_INFINITY;
+            float[] history = ngrams.get(words.length - from - 2).get(join(words, from, words.length - 1));
+            return (history != null ? history[1] : 0.0f) + getProbability(words, from + 1);
+        }
+
+        private static String join(String[] words, int from, int to) {
+            StringBuilder builder = new StringBuilder(words[from]);
+            for (int i = from + 1; i < to; i++)
+                builder.append(' ').append(words[i]);
+            return builder.toString();
+        }
+
+        static ArpaModel read(URL location) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(location.openStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null && !line.trim().equals("\\data\\"))
+                    ;
+                int order = 0;
+                while ((line = reader.readLine()) != null && !(line = line.trim()).startsWith("\\"))
+                    if (line.startsWith("ngram "))
+                        order++;
+                if (order == 0)
+                    throw new IOException("No ngram counts in " + location);
+
+                ArpaModel model = new ArpaModel(order);
+                while (line != null && !line.equals("\\end\\")) {
+                    if (!line.endsWith("-grams:"))
+                        throw new IOException("Unexpected line in " + location + ": " + line);
+                    int n = Integer.parseInt(line.substring(1, line.indexOf('-')));
+                    while ((line = reader.readLine()) != null && !(line = line.trim()).startsWith("\\")) {
+                        if (line.isEmpty())
+                            continue;
+                        String[] fields = line.split("\\s+");
+                        if (fields.length != n + 1 && fields.length != n + 2)
+                            throw new IOException("Bad " + n + "-gram in " + location + ": " + line);
+                        float backoff = fields.length == n + 2 ? Float.parseFloat(fields[n + 1]) : 0.0f;
+                        model.ngrams.get(n - 1).put(join(fields, 1, n + 1),
+                                new float[] {Float.parseFloat(fields[0]), backoff});
+                    }
+                }
+                return model;
+            } finally {
+                reader.close();
+            }
+        }
+
+        void write(File output) throws IOException {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+            try {
+                writer.println("\\data\\");
+                for (int n = 1; n <= getOrder(); n++)
+                    writer.println("ngram " + n + "=" + ngrams.get(n - 1).size());
+                for (int n = 1; n <= getOrder(); n++) {
+                    writer.println();
+                    writer.println("\\" + n + "-grams:");
+                    for (Map.Entry<String, float[]> entry : ngrams.get(n - 1).entrySet()) {
+                        writer.print(entry.getValue()[0]);
+                        writer.print('\t');
+                        writer.print(entry.getKey());
+                        if (n < getOrder()) {
+                            writer.print('\t');
+                            writer.print(entry.getValue()[1]);
+                        }
+                        writer.println();
+                    }
+                }
+                writer.println();
+                writer.println("\\end\\");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.language.ngram;
+
+/** A language model which caches the probabilities of the n-grams it was queried for. */
+public interface CachingLanguageModel extends LanguageModel {
+
+    /**
+     * Returns the number of queries answered from the cache.
+     *
+     * @return the number of n-gram cache hits
+     */
+    int getNGramHits();
+
+
+    /**
+     * Returns the number of queries not answered from the cache.
+     *
+     * @return the number of n-gram cache misses
+     */
+    int getNGramMisses();
+}
@@ -15,6 +15,11 @@ import edu.cmu.sphinx.util.props.*;
 
 /**
  * Simple interpolated LM implementation.
+ * <p>
+ * Querying every model is costly, so static models can be merged offline with
+ * {@link ArpaInterpolator} into a single model, see
+ * {@link #PROP_MERGED_LANGUAGE_MODEL}. It is then interpolated at runtime only
+ * with the dynamic models, such as the {@link DynamicTrigramModel}.
  *
  * @author Tanel Alumae
  */
@@ -33,23 +38,57 @@ public class InterpolatedLanguageModel implements LanguageModel {
     public final static String PROP_LANGUAGE_MODEL_WEIGHTS =
         "languageModelWeights";
 
+    /**
+     * The property that defines a model merged from static language models,
+     * see {@link ArpaInterpolator}. The static models are not listed in
+     * {@link #PROP_LANGUAGE_MODELS} then, only the dynamic ones are.
+     */
+    @S4Component(type = LanguageModel.class, mandatory = false)
+    public final static String PROP_MERGED_LANGUAGE_MODEL = "mergedLanguageModel";
+
+    /**
+     * The property that defines the weight of the merged language model,
+     * which is the sum of the weights of the static models it was merged
+     * from. Together with the weights of the other models it sums to 1.0.
+     */
+    @S4Double(defaultValue = 1.0)
+    public final static String PROP_MERGED_LANGUAGE_MODEL_WEIGHT = "mergedLanguageModelWeight";
+
     private LogMath logMath;
     private boolean allocated = false;
 
     private List<LanguageModel> languageModels;
     private float weights[];
     private int numberOfLanguageModels;
+    private LanguageModel mergedLanguageModel;
+    private float mergedWeight;
     private Set<String> vocabulary;
 
     private static final double EPSILON = 0.001;
 
     public InterpolatedLanguageModel(List<LanguageModel> languageModels, float [] floats ) {
+        this(languageModels, floats, null, 0.0f);
+    }
+
+    /**
+     * Creates an interpolated model of a merged model and dynamic models
+     *
+     * @param languageModels the dynamic language models
+     * @param floats the weights of the dynamic language models
+     * @param mergedLanguageModel the model merged from the static language
+     *            models, or null
+     * @param mergedWeight the weight of the merged model
+     */
+    public InterpolatedLanguageModel(List<LanguageModel> languageModels, float[] floats,
+            LanguageModel mergedLanguageModel, float mergedWeight) {
         logMath = LogMath.getLogMath();
         this.languageModels = languageModels;
         this.numberOfLanguageModels = languageModels.size();
+        this.mergedLanguageModel = mergedLanguageModel;
+        this.mergedWeight = logMath.linearToLog(mergedWeight);
 
         this.weights = new float[floats.length];
-        float weightSum = 0;
+        float weightSum = mergedLanguageModel != null ? mergedWeight : 0;
         for (int i = 0; i < floats.length; i++) {
             weightSum += floats[i];
             this.weights[i] = logMath.linearToLog(floats[i]);
@@ -70,9 +109,13 @@ public class InterpolatedLanguageModel implements LanguageModel {
         if (allocated) {
             throw new RuntimeException("Can't change properties after allocation");
         }
+        logMath = LogMath.getLogMath();
         languageModels =
             ps.getComponentList(PROP_LANGUAGE_MODELS, LanguageModel.class);
         numberOfLanguageModels = languageModels.size();
+        mergedLanguageModel = (LanguageModel) ps.getComponent(PROP_MERGED_LANGUAGE_MODEL);
+        float mergedLinearWeight = ps.getFloat(PROP_MERGED_LANGUAGE_MODEL_WEIGHT);
+        mergedWeight = logMath.linearToLog(mergedLinearWeight);
 
         // read weights as a String List.
         List<String> items = ps.getStringList(PROP_LANGUAGE_MODEL_WEIGHTS);
@@ -83,7 +126,7 @@ public class InterpolatedLanguageModel implements LanguageModel {
         // convert Strings to floats and assign weights.
         float[] floats = new float[items.size()];
         weights = new float[floats.length];
-        float weightSum = 0;
+        float weightSum = mergedLanguageModel != null ? mergedLinearWeight : 0;
         for (int i = 0; i < items.size(); i++) {
             try {
                 floats[i] = Float.parseFloat(items.get(i));
@@ -109,6 +152,10 @@ public class InterpolatedLanguageModel implements LanguageModel {
         if (!allocated) {
             allocated = true;
             vocabulary = new HashSet<String>();
+            if (mergedLanguageModel != null) {
+                mergedLanguageModel.allocate();
+                vocabulary.addAll(mergedLanguageModel.getVocabulary());
+            }
             for (LanguageModel model : languageModels) {
                 model.allocate();
                 vocabulary.addAll(model.getVocabulary());
@@ -118,23 +165,33 @@ public class InterpolatedLanguageModel implements LanguageModel {
 
     public void deallocate() throws IOException {
         allocated = false;
+        if (mergedLanguageModel != null)
+            mergedLanguageModel.deallocate();
         for (LanguageModel model : languageModels) {
             model.deallocate();
         }
     }
 
     /**
-     * Calculates probability p = w[1]*p[1] + w[2]*p[2] + ... (in log domain)
+     * Calculates probability p = w[1]*p[1] + w[2]*p[2] + ... (in log domain).
+     * Without dynamic models the probability of the merged model is returned
+     * as is.
      *
      * @see edu.cmu.sphinx.linguist.language.ngram.LanguageModel#getProbability(edu.cmu.sphinx.linguist.WordSequence)
      */
     public float getProbability(WordSequence wordSequence) {
         float prob = 0;
+        if (mergedLanguageModel != null) {
+            prob = mergedLanguageModel.getProbability(wordSequence);
+            if (numberOfLanguageModels == 0)
+                return prob;
+            prob += mergedWeight;
+        }
         for (int i = 0; i < numberOfLanguageModels; i++) {
             float p =
                 weights[i] +
                         (languageModels.get(i)).getProbability(wordSequence);
-            if (i == 0) {
+            if (i == 0 && mergedLanguageModel == null) {
                 prob = p;
             } else {
                 prob = logMath.addAsLinear(prob, p);
@@ -168,7 +225,7 @@ public class InterpolatedLanguageModel implements LanguageModel {
      * @see edu.cmu.sphinx.linguist.language.ngram.LanguageModel#getMaxDepth()
      */
     public int getMaxDepth() {
-        int maxDepth = 0;
+        int maxDepth = mergedLanguageModel != null ? mergedLanguageModel.getMaxDepth() : 0;
         for (LanguageModel languageModel : languageModels) {
             int d = languageModel.getMaxDepth();
             if (d > maxDepth) {
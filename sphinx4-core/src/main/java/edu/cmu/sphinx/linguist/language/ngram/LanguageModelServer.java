@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.CustomThreadFactory;
+import edu.cmu.sphinx.util.LogMath;
+import edu.cmu.sphinx.util.props.ConfigurationManager;
+
+/**
+ * Serves a language model over the protocol of the SRILM probability server,
+ * which {@link NetworkLanguageModel} speaks. The server greets with
+ * "probserver ready" and answers every line of words with the log10
+ * probability of the last word following the others, or "-inf" if the word is
+ * not in the vocabulary. Words in the history which are not in the vocabulary
+ * cut it. Clients may send further lines before they read the answers.
+ * <p>
+ * One worker thread per connection reads the lines and answers them, and all
+ * workers query the same language model instance. A model which keeps
+ * per-query state, such as a lookup cache that isn't synchronized, has to be
+ * wrapped or given one server per client.
+ */
+public class LanguageModelServer {
+
+    private final static String className = LanguageModelServer.class.getSimpleName();
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final LanguageModel languageModel;
+    private final int port;
+    private final LogMath logMath = LogMath.getLogMath();
+    private final float logToLog10 = (float) (1.0 / Math.log(10.0));
+
+    private Set<String> vocabulary;
+    private ServerSocket serverSocket;
+    private ExecutorService executorService;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    /**
+     * Creates a server for an allocated language model
+     *
+     * @param languageModel the language model
+     * @param port the port to listen on, 0 to pick a free one
+     */
+    public LanguageModelServer(LanguageModel languageModel, int port) {
+        this.languageModel = languageModel;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening for connections.
+     *
+     * @throws IOException if the port can't be opened
+     */
+    public void start() throws IOException {
+        vocabulary = languageModel.getVocabulary();
+        serverSocket = new ServerSocket(port);
+        executorService = Executors.newCachedThreadPool(
+                new CustomThreadFactory(className, false, Thread.NORM_PRIORITY));
+        executorService.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+        logger.info("Serving language model on port " + getPort());
+    }
+
+    /**
+     * Closes all connections and stops listening.
+     *
+     * @throws IOException if the port can't be closed
+     */
+    public void stop() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets)
+                socket.close();
+            sockets.clear();
+        }
+        executorService.shutdown();
+    }
+
+    /**
+     * Gets the port the server listens on
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                executorService.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed())
+                logger.warning("Failed to accept connection: " + e);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write("probserver ready\n");
+            writer.flush();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.write(getAnswer(line));
+                writer.write('\n');
+                // answer the pipelined queries together
+                if (!reader.ready())
+                    writer.flush();
+            }
+        } catch (SocketException e) {
+            // closed by the client or by stop()
+        } catch (IOException e) {
+            logger.warning("Connection failed: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (sockets) {
+                sockets.remove(socket);
+            }
+        }
+    }
+
+    private String getAnswer(String line) {
+        String[] spellings = line.trim().split("\\s+");
+        int last = spellings.length - 1;
+        if (spellings[last].isEmpty() || !vocabulary.contains(spellings[last]))
+            return "-inf";
+
+        int from = Math.max(0, spellings.length - languageModel.getMaxDepth());
+        for (int i = from; i < last; i++)
+            if (!vocabulary.contains(spellings[i]))
+                from = i + 1;
+        Word[] words = new Word[spellings.length - from];
+        for (int i = 0; i < words.length; i++)
+            words[i] = new Word(spellings[from + i], null, false);
+
+        float probability = languageModel.getProbability(new WordSequence(words));
+        if (probability == LogMath.LOG_ZERO)
+            return "-inf";
+        return Float.toString(logMath.logToLn(probability) * logToLog10);
+    }
+
+    /**
+     * Serves a language model. The arguments are the configuration file, the
+     * name of the language model component in it and the port, which
+     * defaults to 2525.
+     *
+     * @param args arguments
+     * @throws IOException if the language model can't be loaded or the port
+     *             not be opened
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: LanguageModelServer <config file> <language model> [<port>]");
+            System.exit(1);
+        }
+
+        ConfigurationManager cm = new ConfigurationManager(args[0]);
+        LanguageModel languageModel = cm.lookup(args[1]);
+        languageModel.allocate();
+        new LanguageModelServer(languageModel, args.length > 2 ? Integer.parseInt(args[2]) : 2525).start();
+    }
+}
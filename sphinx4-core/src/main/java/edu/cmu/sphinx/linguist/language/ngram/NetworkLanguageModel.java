@@ -3,12 +3,18 @@ package edu.cmu.sphinx.linguist.language.ngram;
 import java.io.*;
 import java.net.Socket;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.cmu.sphinx.linguist.WordSequence;
 import edu.cmu.sphinx.linguist.dictionary.Word;
-import edu.cmu.sphinx.linguist.util.LRUCache;
+import edu.cmu.sphinx.linguist.util.NGramProbabilityCache;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.props.*;
 
@@ -16,8 +22,14 @@ import edu.cmu.sphinx.util.props.*;
 /*
  * The client of the SRILM language model server. It needs to read the
  * vocabulary from a vocabulary file though.
+ *
+ * The client keeps a pool of connections to the server. The probabilities of
+ * several words following the same history are sent in one batch, which is
+ * pipelined: further queries are sent before the answers to the previous ones
+ * are read. The probabilities are cached by the ids the client gives the words
+ * when it first sees them.
  */
-public class NetworkLanguageModel implements LanguageModel {
+public class NetworkLanguageModel implements WordIdLanguageModel {
 
     /** The property specifying the host of the language model server. */
     @S4String(defaultValue = "localhost")
@@ -27,17 +39,36 @@ public class NetworkLanguageModel implements LanguageModel {
     @S4Integer(defaultValue = 2525)
     public final static String PROP_PORT = "port";
 
+    /** The property specifying the number of connections to the server. */
+    @S4Integer(defaultValue = 2)
+    public final static String PROP_NUM_CONNECTIONS = "numConnections";
+
+    /**
+     * The property specifying how many queries may be sent over a connection
+     * before their answers are read.
+     */
+    @S4Integer(defaultValue = 256)
+    public final static String PROP_PIPELINE_DEPTH = "pipelineDepth";
+
+    /** The property specifying the number of probabilities to cache. */
+    @S4Integer(defaultValue = 100000)
+    public final static String PROP_NGRAM_CACHE_SIZE = "ngramCacheSize";
+
     LogMath logMath;
 
     private String host;
     private int port;
     private URL location;
     int maxDepth;
+    private int numConnections;
+    private int pipelineDepth;
+    private int ngramCacheSize;
 
-    Socket socket;
-    private BufferedReader inReader;
-    private PrintWriter outWriter;
-    LRUCache<WordSequence, Float> cache;
+    private BlockingQueue<Connection> connections;
+    private final Map<String, Integer> wordIds = new ConcurrentHashMap<String, Integer>();
+    private final List<String> words = new ArrayList<String>();
+    NGramProbabilityCache cache;
+    private int cacheKeyBits;
 
     private boolean allocated;
 
@@ -52,10 +83,32 @@ public class NetworkLanguageModel implements LanguageModel {
      */
     public NetworkLanguageModel(String host, int port, URL location,
             int maxDepth) {
+        this(host, port, location, maxDepth, 2, 256, 100000);
+    }
+
+    /**
+     * Creates network language model client
+     *
+     * @param host server host
+     * @param port server port
+     * @param location URL of the file with vocabulary (only needed for 1-stage
+     *        model)
+     * @param maxDepth depth of the model
+     * @param numConnections number of connections to the server
+     * @param pipelineDepth number of queries sent before their answers are
+     *        read
+     * @param ngramCacheSize number of probabilities to cache
+     */
+    public NetworkLanguageModel(String host, int port, URL location,
+            int maxDepth, int numConnections, int pipelineDepth,
+            int ngramCacheSize) {
         this.host = host;
         this.port = port;
         this.maxDepth = maxDepth;
         this.location = location;
+        this.numConnections = numConnections;
+        this.pipelineDepth = pipelineDepth;
+        this.ngramCacheSize = ngramCacheSize;
         logMath = LogMath.getLogMath();
     }
 
@@ -73,6 +126,7 @@ public class NetworkLanguageModel implements LanguageModel {
         if (allocated) {
             throw new RuntimeException("Can't change properties after allocation");
         }
+        logMath = LogMath.getLogMath();
         host = ps.getString(PROP_HOST);
         port = ps.getInt(PROP_PORT);
         location = ConfigurationManagerUtils.getResource(PROP_LOCATION, ps);
@@ -80,29 +134,31 @@ public class NetworkLanguageModel implements LanguageModel {
         maxDepth = ps.getInt(PROP_MAX_DEPTH);
         if (maxDepth == -1)
             maxDepth = 3;
+        numConnections = ps.getInt(PROP_NUM_CONNECTIONS);
+        pipelineDepth = ps.getInt(PROP_PIPELINE_DEPTH);
+        ngramCacheSize = ps.getInt(PROP_NGRAM_CACHE_SIZE);
     }
 
     public void allocate() throws IOException {
         allocated = true;
 
-        socket = new Socket(host, port);
-        inReader =
-            new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        outWriter = new PrintWriter(socket.getOutputStream(), true);
-        String greeting = inReader.readLine();
-        if (!greeting.equals("probserver ready")) {
-            throw new IOException("Incorrect input");
+        connections = new ArrayBlockingQueue<Connection>(Math.max(1, numConnections));
+        for (int i = 0; i < Math.max(1, numConnections); i++) {
+            Connection connection = new Connection();
+            connection.open();
+            connections.add(connection);
         }
-        cache = new LRUCache<WordSequence, Float>(1000);
+        cache = new NGramProbabilityCache(ngramCacheSize);
+        // ids are shifted by one in the keys, so that histories of
+        // different length get different keys
+        cacheKeyBits = Math.min(31, NGramProbabilityCache.KEY_BITS / maxDepth);
     }
 
     public void deallocate() {
         allocated = false;
-        try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        for (Connection connection : connections)
+            connection.close();
+        connections.clear();
     }
 
     public int getMaxDepth() {
@@ -110,37 +166,138 @@ public class NetworkLanguageModel implements LanguageModel {
     }
 
     public float getProbability(WordSequence wordSequence) {
+        if (wordSequence.size() == 0)
+            return 0.0f;
+        int[] history = new int[wordSequence.size() - 1];
+        for (int i = 0; i < history.length; i++)
+            history[i] = findWordId(wordSequence.getWord(i));
+        return getProbability(history, findWordId(wordSequence.getWord(history.length)));
+    }
 
-        Float probability = cache.get(wordSequence);
-
-        if (probability != null) {
-            return probability.floatValue();
+    /**
+     * Gives the word an id, the ids are handed out when the words are first
+     * seen. The server decides which words are known.
+     *
+     * @param word the word
+     * @return the id of the word
+     */
+    public int findWordId(Word word) {
+        String spelling = word.getSpelling();
+        Integer wordId = wordIds.get(spelling);
+        if (wordId == null) {
+            synchronized (words) {
+                wordId = wordIds.get(spelling);
+                if (wordId == null) {
+                    wordId = words.size();
+                    words.add(spelling);
+                    wordIds.put(spelling, wordId);
+                }
+            }
         }
+        return wordId;
+    }
+
+    public float getProbability(int[] history, int wordId) {
+        float[] probabilities = new float[1];
+        getProbabilities(history, new int[] {wordId}, 1, probabilities);
+        return probabilities[0];
+    }
 
+    public void getProbabilities(int[] history, int[] wordIds, int count, float[] probabilities) {
+        int from = Math.max(0, history.length - (maxDepth - 1));
+        for (int i = from; i < history.length; i++)
+            if (history[i] == UNKNOWN_WORD_ID)
+                from = i + 1;
+
+        boolean cached = true;
+        long historyHigh = 0;
+        long historyLow = 0;
         StringBuilder builder = new StringBuilder();
-        if (wordSequence.size() == 0)
-            return 0.0f;
-        for (Word w : wordSequence.getWords()) {
-            builder.append(w.toString());
-            builder.append(' ');
+        for (int i = from; i < history.length; i++) {
+            cached &= fitsCacheKey(history[i]);
+            historyHigh = (historyHigh << cacheKeyBits) | (historyLow >>> (64 - cacheKeyBits));
+            historyLow = (historyLow << cacheKeyBits) | (history[i] + 1);
+            builder.append(getSpelling(history[i])).append(' ');
         }
-        outWriter.println(builder.toString());
-        String result = "0";
-        try {
-            result = inReader.readLine();
-            if (result.charAt(0) == 0)
-                result = result.substring(1);
-        } catch (IOException e) {
-            e.printStackTrace();
+        int prefixLength = builder.length();
+
+        String[] queries = new String[count];
+        int[] queryIndices = new int[count];
+        int queryCount = 0;
+        for (int i = 0; i < count; i++) {
+            int wordId = wordIds[i];
+            if (cached && fitsCacheKey(wordId)) {
+                long keyHigh = (historyHigh << cacheKeyBits) | (historyLow >>> (64 - cacheKeyBits));
+                long keyLow = (historyLow << cacheKeyBits) | (wordId + 1);
+                probabilities[i] = cache.get(keyHigh, keyLow);
+                if (!Float.isNaN(probabilities[i]))
+                    continue;
+            }
+            builder.setLength(prefixLength);
+            queries[queryCount] = builder.append(getSpelling(wordId)).append(' ').toString();
+            queryIndices[queryCount++] = i;
+        }
+        if (queryCount == 0)
+            return;
+
+        float[] results = query(queries, queryCount);
+        for (int i = 0; i < queryCount; i++) {
+            int wordId = wordIds[queryIndices[i]];
+            probabilities[queryIndices[i]] = results[i];
+            if (cached && fitsCacheKey(wordId)) {
+                long keyHigh = (historyHigh << cacheKeyBits) | (historyLow >>> (64 - cacheKeyBits));
+                long keyLow = (historyLow << cacheKeyBits) | (wordId + 1);
+                cache.put(keyHigh, keyLow, results[i]);
+            }
         }
+    }
+
+    /**
+     * Does nothing, the server is queried when the probabilities are needed.
+     *
+     * @param history the ids of the preceding words, oldest first
+     */
+    public void prefetch(int[] history) {
+    }
 
-        if (!result.equals("-inf"))
-            probability = logMath.log10ToLog(Float.parseFloat(result));
-        else
-            probability = LogMath.LOG_ZERO;
+    private boolean fitsCacheKey(int wordId) {
+        return (wordId + 1) >>> cacheKeyBits == 0;
+    }
 
-        cache.put(wordSequence, probability);
-        return probability.floatValue();
+    private String getSpelling(int wordId) {
+        synchronized (words) {
+            return words.get(wordId);
+        }
+    }
+
+    /**
+     * Sends queries over one of the connections. A connection which failed
+     * is opened again and the queries are sent once more.
+     */
+    private float[] query(String[] queries, int count) {
+        Connection connection;
+        try {
+            connection = connections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            float[] results = new float[count];
+            try {
+                connection.query(queries, count, results);
+            } catch (IOException e) {
+                connection.close();
+                connection.open();
+                connection.query(queries, count, results);
+            }
+            return results;
+        } catch (IOException e) {
+            connection.close();
+            throw new RuntimeException("Language model server at " + host + ':' + port + " failed", e);
+        } finally {
+            connections.add(connection);
+        }
     }
 
     public float getSmear(WordSequence wordSequence) {
@@ -173,4 +330,69 @@ public class NetworkLanguageModel implements LanguageModel {
         //TODO not implemented
     }
 
+    /**
+     * A connection to the server, it is used by one thread at a time.
+     */
+    private class Connection {
+        private Socket socket;
+        private BufferedReader inReader;
+        private Writer outWriter;
+
+        void open() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            inReader =
+                new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            outWriter =
+                new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            String greeting = inReader.readLine();
+            if (!"probserver ready".equals(greeting)) {
+                throw new IOException("Incorrect input");
+            }
+        }
+
+        void close() {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            socket = null;
+        }
+
+        /**
+         * Sends the queries and reads the answers. At most pipelineDepth
+         * queries are on their way, so that neither side blocks on full
+         * buffers. Once half of the window has been answered, more queries
+         * are sent to fill it again.
+         */
+        void query(String[] queries, int count, float[] results) throws IOException {
+            if (socket == null)
+                throw new IOException("Connection is closed");
+            int window = Math.max(1, pipelineDepth);
+            int sent = 0;
+            for (int received = 0; received < count; received++) {
+                if (sent < count && sent - received <= window / 2) {
+                    while (sent < count && sent - received < window) {
+                        outWriter.write(queries[sent++]);
+                        outWriter.write('\n');
+                    }
+                    outWriter.flush();
+                }
+                results[received] = parse(inReader.readLine());
+            }
+        }
+
+        private float parse(String result) throws IOException {
+            if (result == null)
+                throw new IOException("Connection closed by server");
+            if (result.length() > 0 && result.charAt(0) == 0)
+                result = result.substring(1);
+            if (result.equals("-inf"))
+                return LogMath.LOG_ZERO;
+            return logMath.log10ToLog(Float.parseFloat(result));
+        }
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+
+/**
+ * A language model which can be queried with the ids of the words instead of
+ * word sequences. Callers look up the ids once and keep them with their
+ * histories, the query itself creates no objects.
+ */
+public interface WordIdLanguageModel extends LanguageModel {
+
+    /** The id of words which are not in the language model */
+    int UNKNOWN_WORD_ID = -1;
+
+
+    /**
+     * Finds the id of a word
+     *
+     * @param word the word
+     * @return the id of the word, or {@link #UNKNOWN_WORD_ID} if the word is
+     *         not in the language model
+     */
+    int findWordId(Word word);
+
+
+    /**
+     * Gets the probability of a word following a history. This is the
+     * probability {@link #getProbability(WordSequence)} returns for the
+     * history followed by the word. Unknown words in the history cut it, only
+     * the words following the newest unknown word are used.
+     *
+     * @param history the ids of the preceding words, oldest first, at most
+     *            {@link #getMaxDepth()} - 1 of them
+     * @param wordId the id of the word, must not be unknown
+     * @return the probability in LogMath log base
+     */
+    float getProbability(int[] history, int wordId);
+
+
+    /**
+     * Gets the probabilities of several words following the same history, as
+     * {@link #getProbability(int[], int)} returns them. Models may share the
+     * work on the history between the words.
+     *
+     * @param history the ids of the preceding words, oldest first, at most
+     *            {@link #getMaxDepth()} - 1 of them
+     * @param wordIds the ids of the words, none of them unknown
+     * @param count the number of words
+     * @param probabilities receives the probabilities in LogMath log base
+     */
+    void getProbabilities(int[] history, int[] wordIds, int count, float[] probabilities);
+
+
+    /**
+     * Hints that probabilities of words following the history are going to
+     * be queried soon. Models which load their data on demand may start
+     * loading it in the background.
+     *
+     * @param history the ids of the preceding words, oldest first, at most
+     *            {@link #getMaxDepth()} - 1 of them. It may be kept by the
+     *            model and must not be changed.
+     */
+    void prefetch(int[] history);
+}
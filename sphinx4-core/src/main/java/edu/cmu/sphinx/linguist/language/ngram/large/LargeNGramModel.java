@@ -18,14 +18,20 @@ package edu.cmu.sphinx.linguist.language.ngram.large;
 import java.io.*;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import edu.cmu.sphinx.linguist.WordSequence;
 import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.CachingLanguageModel;
 import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
-import edu.cmu.sphinx.linguist.util.LRUCache;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
+import edu.cmu.sphinx.linguist.util.NGramProbabilityCache;
+import edu.cmu.sphinx.util.CustomThreadFactory;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.TimerPool;
 import edu.cmu.sphinx.util.props.*;
@@ -35,7 +41,7 @@ import edu.cmu.sphinx.util.props.*;
  * generated by the SphinxBase sphinx_lm_convert.
  */
 
-public class LargeNGramModel implements LanguageModel {
+public class LargeNGramModel implements CachingLanguageModel, WordIdLanguageModel {
 
     /**
      * The property for the name of the file that logs all the queried N-grams.
@@ -75,6 +81,22 @@ public class LargeNGramModel implements LanguageModel {
     @S4Boolean(defaultValue = false)
     public final static String PROP_FULL_SMEAR = "fullSmear";
 
+    /**
+     * The property that defines how many kilobytes of n-gram buffers are kept
+     * loaded. Buffers then stay loaded across utterances, the least
+     * frequently used ones are dropped when the budget is exceeded. If it is
+     * 0, all buffers are dropped after every utterance.
+     */
+    @S4Integer(defaultValue = 0)
+    public final static String PROP_BUFFER_MEMORY_BUDGET = "bufferMemoryBudget";
+
+    /**
+     * The property that controls whether the n-gram buffers of the histories
+     * the search announces are loaded in the background
+     */
+    @S4Boolean(defaultValue = false)
+    public final static String PROP_PREFETCH_BUFFERS = "prefetchBuffers";
+
     /**
      * The number of bytes per N-gram in the LM file generated by the
      * CMU-Cambridge Statistical Language Modeling Toolkit.
@@ -84,6 +106,12 @@ public class LargeNGramModel implements LanguageModel {
 
     private final static int SMEAR_MAGIC = 0xC0CAC01A; // things go better
 
+    /** The number of prefetch requests waiting, older ones are dropped */
+    private final static int PREFETCH_QUEUE_SIZE = 64;
+
+    /** The number of times the clock may age a buffer before giving up */
+    private final static int MAX_AGING_PASSES = 9;
+
     // ------------------------------
     // Configuration data
     // ------------------------------
@@ -96,6 +124,8 @@ public class LargeNGramModel implements LanguageModel {
     protected boolean clearCacheAfterUtterance;
 
     protected boolean fullSmear;
+    protected long bufferMemoryBudget;
+    protected boolean prefetchBuffers;
 
     protected Dictionary dictionary;
     protected String format;
@@ -110,6 +140,8 @@ public class LargeNGramModel implements LanguageModel {
     private int ngramMisses;
     private int ngramHits;
     private int smearTermCount;
+    private int bufferLoads;
+    private int bufferEvictions;
     protected String ngramLogFile;
 
     // -------------------------------
@@ -117,16 +149,22 @@ public class LargeNGramModel implements LanguageModel {
     // --------------------------------
     private BinaryLoader loader;
     private PrintWriter logFile;
+    private ThreadPoolExecutor prefetcher;
 
     // -------------------------------
     // Working data
     // --------------------------------
     private Map<Word, UnigramProbability> unigramIDMap;
-    private Map<WordSequence, NGramBuffer>[] loadedNGramBuffers;
-    private LRUCache<WordSequence, Float> ngramProbCache;
+    private NGramProbabilityCache ngramProbCache;
+    private int cacheKeyBits;
     private Map<Long, Float> bigramSmearMap;
 
+    // the buffer chain and the loader are shared with the prefetcher
+    private final Object bufferLock = new Object();
     private NGramBuffer[] loadedBigramBuffers;
+    private List<NGramBuffer> loadedBuffers;
+    private long loadedBufferBytes;
+    private int clockHand;
     private UnigramProbability[] unigrams;
     private int[][] ngramSegmentTable;
     private float[][] ngramProbTable;
@@ -138,6 +176,30 @@ public class LargeNGramModel implements LanguageModel {
             int maxDepth, Dictionary dictionary,
             boolean applyLanguageWeightAndWip, float languageWeight,
             double wip, float unigramWeight, boolean fullSmear) {
+        this(format, location, ngramLogFile, maxNGramCacheSize,
+                clearCacheAfterUtterance, maxDepth, dictionary,
+                applyLanguageWeightAndWip, languageWeight, wip, unigramWeight,
+                fullSmear, 0, false);
+    }
+
+    /**
+     * Creates a model which keeps n-gram buffers loaded under a memory
+     * budget. Unlike the {@link #PROP_BUFFER_MEMORY_BUDGET} property, which
+     * is given in kilobytes, the budget is given in bytes here.
+     *
+     * @param bufferMemoryBudget
+     *            the number of bytes of n-gram buffers kept loaded, 0 to drop
+     *            all buffers after every utterance
+     * @param prefetchBuffers
+     *            if true, the buffers of announced histories are loaded in
+     *            the background
+     */
+    public LargeNGramModel(String format, URL location, String ngramLogFile,
+            int maxNGramCacheSize, boolean clearCacheAfterUtterance,
+            int maxDepth, Dictionary dictionary,
+            boolean applyLanguageWeightAndWip, float languageWeight,
+            double wip, float unigramWeight, boolean fullSmear,
+            long bufferMemoryBudget, boolean prefetchBuffers) {
         logger = Logger.getLogger(getClass().getName());
         this.format = format;
         this.location = location;
@@ -152,6 +214,8 @@ public class LargeNGramModel implements LanguageModel {
         this.wip = wip;
         this.unigramWeight = unigramWeight;
         this.fullSmear = fullSmear;
+        this.bufferMemoryBudget = bufferMemoryBudget;
+        this.prefetchBuffers = prefetchBuffers;
     }
 
     public LargeNGramModel() {
@@ -179,6 +243,8 @@ public class LargeNGramModel implements LanguageModel {
         wip = ps.getDouble(PROP_WORD_INSERTION_PROBABILITY);
         unigramWeight = ps.getFloat(PROP_UNIGRAM_WEIGHT);
         fullSmear = ps.getBoolean(PROP_FULL_SMEAR);
+        bufferMemoryBudget = ps.getInt(PROP_BUFFER_MEMORY_BUDGET) * 1024L;
+        prefetchBuffers = ps.getBoolean(PROP_PREFETCH_BUFFERS);
     }
 
     /*
@@ -186,7 +252,6 @@ public class LargeNGramModel implements LanguageModel {
      * 
      * @see edu.cmu.sphinx.linguist.language.ngram.LanguageModel#allocate()
      */
-    @SuppressWarnings("unchecked")
     public void allocate() throws IOException {
         TimerPool.getTimer(this, "Load LM").start();
 
@@ -215,14 +280,11 @@ public class LargeNGramModel implements LanguageModel {
 
         unigramIDMap = new HashMap<Word, UnigramProbability>();
         unigrams = loader.getUnigrams();
-        loadedNGramBuffers = new Map[loader.getMaxDepth()];
         ngramProbTable = new float[loader.getMaxDepth()][];
         ngramBackoffTable = new float[loader.getMaxDepth()][];
         ngramSegmentTable = new int[loader.getMaxDepth()][];
 
         for (int i = 1; i <= loader.getMaxDepth(); i++) {
-            loadedNGramBuffers[i - 1] = new HashMap<WordSequence, NGramBuffer>();
-
             if (i >= 2)
                 ngramProbTable[i - 1] = loader.getNGramProbabilities(i);
 
@@ -232,16 +294,25 @@ public class LargeNGramModel implements LanguageModel {
             }
         }
 
-        ngramProbCache = new LRUCache<WordSequence, Float>(ngramCacheSize);
         if (dictionary != null)
             buildUnigramIDMap(dictionary);
         else
             buildUnigramIDMap();
         loadedBigramBuffers = new NGramBuffer[unigrams.length];
+        loadedBuffers = new ArrayList<NGramBuffer>();
+        loadedBufferBytes = 0;
+        clockHand = 0;
 
         if (maxDepth <= 0 || maxDepth > loader.getMaxDepth())
             maxDepth = loader.getMaxDepth();
 
+        ngramProbCache = new NGramProbabilityCache(ngramCacheSize);
+        cacheKeyBits = NGramProbabilityCache.getBitsPerWord(unigrams.length);
+        if (maxDepth * cacheKeyBits > NGramProbabilityCache.KEY_BITS) {
+            logger.warning("Word ids of " + maxDepth + "-grams do not fit into a cache key, disabling the cache");
+            cacheKeyBits = 0;
+        }
+
         for (int i = 1; i <= loader.getMaxDepth(); i++)
             logger.info(Integer.toString(i) + "-grams: "
                     + loader.getNumberNGrams(i));
@@ -262,6 +333,13 @@ public class LargeNGramModel implements LanguageModel {
             }
         }
 
+        if (prefetchBuffers)
+            prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE),
+                    new CustomThreadFactory("LMPrefetch", true,
+                            Thread.MIN_PRIORITY),
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+
         TimerPool.getTimer(this, "Load LM").stop();
     }
 
@@ -271,7 +349,13 @@ public class LargeNGramModel implements LanguageModel {
      * @see edu.cmu.sphinx.linguist.language.ngram.LanguageModel#deallocate()
      */
     public void deallocate() throws IOException {
-        loader.deallocate();
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+            prefetcher = null;
+        }
+        synchronized (bufferLock) {
+            loader.deallocate();
+        }
     }
 
     /**
@@ -322,27 +406,24 @@ public class LargeNGramModel implements LanguageModel {
         }
     }
 
-    /** Clears the various N-gram caches. */
+    /**
+     * Clears the various N-gram caches. The loaded buffers are only dropped if
+     * there is no memory budget to keep them in.
+     */
     private void clearCache() {
-        for (int i = 0; i < loadedBigramBuffers.length; i++) {
-            NGramBuffer buffer = loadedBigramBuffers[i];
-
-            if (buffer != null) {
-                if (!buffer.getUsed())
-                    loadedBigramBuffers[i] = null; // free the BigramBuffer
-                else
-                    buffer.setUsed(false);
-            }
+        synchronized (bufferLock) {
+            if (bufferMemoryBudget <= 0)
+                loadedBigramBuffers = new NGramBuffer[unigrams.length];
+            else
+                logger.info("LM Buffers: " + (loadedBufferBytes >> 10)
+                        + " kB Loads: " + bufferLoads + " Evictions: "
+                        + bufferEvictions);
         }
 
-        loadedBigramBuffers = new NGramBuffer[unigrams.length];
-        for (int i = 2; i <= loader.getMaxDepth(); i++) {
-            loadedNGramBuffers[i - 1] = new HashMap<WordSequence, NGramBuffer>();
-        }
         logger.info("LM Cache Size: " + ngramProbCache.size() + " Hits: "
                 + ngramHits + " Misses: " + ngramMisses);
         if (clearCacheAfterUtterance) {
-            ngramProbCache = new LRUCache<WordSequence, Float>(ngramCacheSize);
+            ngramProbCache = new NGramProbabilityCache(ngramCacheSize);
         }
     }
 
@@ -357,96 +438,377 @@ public class LargeNGramModel implements LanguageModel {
      */
     public float getProbability(WordSequence wordSequence) {
         int numberWords = wordSequence.size();
-        Float probability;
 
         if (numberWords > maxDepth) {
             throw new Error("Unsupported NGram: " + wordSequence.size());
         }
 
-        if (numberWords == maxDepth) {
-            probability = ngramProbCache.get(wordSequence);
+        Word word = wordSequence.getWord(numberWords - 1);
+        int wordId = findWordId(word);
+
+        if (wordId == UNKNOWN_WORD_ID)
+            throw new Error("Unigram not in LM: " + word);
+
+        int[] history = new int[numberWords - 1];
+        for (int i = 0; i < history.length; i++)
+            history[i] = findWordId(wordSequence.getWord(i));
+
+        return getProbability(history, wordId);
+    }
 
-            if (probability != null) {
+    /**
+     * Gets the probability of a word following a history
+     * 
+     * @param history
+     *            the ids of the history words, oldest first
+     * @param wordId
+     *            the id of the word
+     * @return the probability of the word following the history. Probability
+     *         is in logMath log base
+     */
+    public float getProbability(int[] history, int wordId) {
+        if (history.length >= maxDepth) {
+            throw new Error("Unsupported NGram: " + (history.length + 1));
+        }
+
+        if (wordId < 0 || wordId >= unigrams.length)
+            throw new Error("Unigram not in LM: " + wordId);
+
+        // full length n-grams are cached by their word ids
+        boolean cached = history.length + 1 == maxDepth && cacheKeyBits > 0;
+        long keyHigh = 0;
+        long keyLow = 0;
+        for (int i = 0; cached && i <= history.length; i++) {
+            int id = i < history.length ? history[i] : wordId;
+            if (id == UNKNOWN_WORD_ID) {
+                cached = false;
+            } else {
+                keyHigh = (keyHigh << cacheKeyBits) | (keyLow >>> (64 - cacheKeyBits));
+                keyLow = (keyLow << cacheKeyBits) | id;
+            }
+        }
+
+        if (cached) {
+            float probability = ngramProbCache.get(keyHigh, keyLow);
+
+            if (!Float.isNaN(probability)) {
                 ngramHits++;
                 return probability;
             }
             ngramMisses++;
         }
 
-        probability = getNGramProbability(wordSequence);
+        float probability;
+        synchronized (bufferLock) {
+            probability = getNGramProbability(history, 0, wordId);
+        }
 
-        if (numberWords == maxDepth)
-            ngramProbCache.put(wordSequence, probability);
+        if (cached)
+            ngramProbCache.put(keyHigh, keyLow, probability);
 
-        if (logFile != null && probability != null)
-            logFile.println(wordSequence.toString().replace("][", " ") + " : "
+        if (logFile != null) {
+            StringBuilder ngram = new StringBuilder();
+            for (int i = 0; i < history.length; i++)
+                ngram.append('[').append(history[i] != UNKNOWN_WORD_ID ? loader.getWords()[history[i]] : "<unk>")
+                        .append(']');
+            ngram.append('[').append(loader.getWords()[wordId]).append(']');
+            logFile.println(ngram.toString().replace("][", " ") + " : "
                     + Float.toString(probability));
+        }
 
         return probability;
     }
 
-    private Float getNGramProbability(WordSequence wordSequence) {
-        int numberWords = wordSequence.size();
-        Word firstWord = wordSequence.getWord(0);
+    /**
+     * Gets the probabilities of several words following the same history. The
+     * followers of the history stay loaded in the buffer chain, so the words
+     * are simply scored one after the other.
+     * 
+     * @param history
+     *            the ids of the history words, oldest first
+     * @param wordIds
+     *            the ids of the words
+     * @param count
+     *            the number of words
+     * @param probabilities
+     *            receives the probabilities in logMath log base
+     */
+    public void getProbabilities(int[] history, int[] wordIds, int count,
+            float[] probabilities) {
+        for (int i = 0; i < count; i++)
+            probabilities[i] = getProbability(history, wordIds[i]);
+    }
 
-        if (loader.getNumberNGrams(numberWords) == 0 || !hasUnigram(firstWord))
-            return getNGramProbability(wordSequence.getNewest());
+    /**
+     * Loads the buffers of the followers of the history and of its backoff
+     * histories in the background, if prefetching is enabled. Requests which
+     * wait too long are dropped.
+     * 
+     * @param history
+     *            the ids of the history words, oldest first
+     */
+    public void prefetch(final int[] history) {
+        if (prefetcher == null || history.length == 0
+                || history.length >= maxDepth)
+            return;
+
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                int from = 0;
+                for (int i = 0; i < history.length; i++)
+                    if (history[i] == UNKNOWN_WORD_ID)
+                        from = i + 1;
+
+                // one buffer per lock, the decoder only waits for one read
+                for (; from < history.length; from++) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    synchronized (bufferLock) {
+                        getNGramBuffer(history, from, history.length);
+                    }
+                }
+            }
+        });
+    }
 
-        if (numberWords < 2) {
-            return getUnigramProbability(wordSequence);
+    /**
+     * Finds the ID of the given word.
+     * 
+     * @param word
+     *            the word to find the ID
+     * @return the ID of the word, or UNKNOWN_WORD_ID if the word is not in
+     *         the language model
+     */
+    public int findWordId(Word word) {
+        UnigramProbability probability = getUnigram(word);
+        return probability != null ? probability.getWordID() : UNKNOWN_WORD_ID;
+    }
+
+    /**
+     * Computes the probability of a word following the history, backing off
+     * to shorter histories where the n-gram is not in the model.
+     * 
+     * @param history
+     *            the ids of the history words, oldest first
+     * @param from
+     *            the index of the oldest history word to use
+     * @param wordId
+     *            the id of the word
+     * @return the probability in logMath log base
+     */
+    private float getNGramProbability(int[] history, int from, int wordId) {
+        int numberWords = history.length - from + 1;
+
+        if (numberWords == 1)
+            return unigrams[wordId].getLogProbability();
+
+        if (loader.getNumberNGrams(numberWords) == 0
+                || history[from] == UNKNOWN_WORD_ID)
+            return getNGramProbability(history, from + 1, wordId);
+
+        if (numberWords == 2) {
+            NGramBuffer bigrams = getBigramBuffer(history[from]);
+            int probabilityID = bigrams == null ? -1 : bigrams
+                    .findProbabilityID(wordId);
+
+            if (probabilityID >= 0)
+                return ngramProbTable[1][probabilityID];
+
+            return unigrams[history[from]].getLogBackoff()
+                    + unigrams[wordId].getLogProbability();
         }
 
-        NGramProbability nGProbability = findNGram(wordSequence);
+        // the history is an N-1Gram which is a follower of its own history
+        int last = history.length - 1;
+        NGramBuffer historyBuffer = getNGramBuffer(history, from, last);
+        int historyIndex = historyBuffer == null ? -1 : historyBuffer
+                .findFollower(history[last]);
+
+        if (historyIndex >= 0) {
+            NGramBuffer nGramBuffer = getFollowerBuffer(historyBuffer,
+                    historyIndex);
+            int probabilityID = nGramBuffer == null ? -1 : nGramBuffer
+                    .findProbabilityID(wordId);
 
-        if (nGProbability != null) {
-            return ngramProbTable[numberWords - 1][nGProbability
-                    .getProbabilityID()];
+            if (probabilityID >= 0)
+                return ngramProbTable[numberWords - 1][probabilityID];
+
+            return ngramBackoffTable[numberWords - 1][historyBuffer
+                    .getBackoffID(historyIndex)]
+                    + getNGramProbability(history, from + 1, wordId);
         }
 
-        if (numberWords == 2) {
-            UnigramProbability unigramProb = getUnigram(firstWord);
-            UnigramProbability unigramProb1 = getUnigram(wordSequence
-                    .getWord(1));
-            return unigramProb.getLogBackoff()
-                    + unigramProb1.getLogProbability();
+        return getNGramProbability(history, from + 1, wordId);
+    }
+
+    /**
+     * Returns the buffer of the NGram followers of the given words, loading
+     * the buffers on the way if needed.
+     * 
+     * @param history
+     *            the ids of the words
+     * @param from
+     *            the index of the first word
+     * @param to
+     *            the index after the last word
+     * @return the NGramBuffer of the followers, or null if there are none
+     */
+    private NGramBuffer getNGramBuffer(int[] history, int from, int to) {
+        NGramBuffer nGramBuffer = getBigramBuffer(history[from]);
+
+        for (int i = from + 1; nGramBuffer != null && i < to; i++) {
+            int index = nGramBuffer.findFollower(history[i]);
+            nGramBuffer = index < 0 ? null : getFollowerBuffer(nGramBuffer,
+                    index);
         }
 
-        NGramProbability nMinus1Gram = findNGram(wordSequence.getOldest());
+        return nGramBuffer;
+    }
+
+    /**
+     * Returns the bigram followers of a word, loading them if needed.
+     * 
+     * @param firstWordID
+     *            the ID of the word
+     * @return the bigram buffer, or null if the word has no followers
+     */
+    private NGramBuffer getBigramBuffer(int firstWordID) {
+        NGramBuffer bigrams = loadedBigramBuffers[firstWordID];
+
+        if (bigrams == null) {
+            bigrams = loadBigramBuffer(firstWordID);
 
-        if (nMinus1Gram != null) {
-            return ngramBackoffTable[numberWords - 1][nMinus1Gram
-                    .getBackoffID()] + getProbability(wordSequence.getNewest());
+            if (bigrams != null) {
+                loadedBigramBuffers[firstWordID] = bigrams;
+                addLoadedBuffer(bigrams, null, firstWordID);
+            }
         }
 
-        return getProbability(wordSequence.getNewest());
+        if (bigrams != null)
+            bigrams.markUsed();
+        return bigrams;
     }
 
     /**
-     * Finds or loads the NGram probability of the given NGram.
+     * Returns the NGram followers of a follower of the given buffer, loading
+     * them if needed.
      * 
-     * @param wordSequence
-     *            the NGram to load
-     * @return a NGramProbability of the given NGram
+     * @param nMinus1Buffer
+     *            the buffer of the N-1Gram
+     * @param index
+     *            the index of the N-1Gram in the buffer
+     * @return the NGramBuffer, or null if the N-1Gram has no followers
      */
-    private NGramProbability findNGram(WordSequence wordSequence) {
-        int numberWords = wordSequence.size();
-        NGramProbability nGram = null;
+    private NGramBuffer getFollowerBuffer(NGramBuffer nMinus1Buffer, int index) {
+        NGramBuffer nGramBuffer = nMinus1Buffer.getFollowerBuffer(index);
 
-        WordSequence oldest = wordSequence.getOldest();
-        NGramBuffer nGramBuffer = loadedNGramBuffers[numberWords - 1]
-                .get(oldest);
         if (nGramBuffer == null) {
-            nGramBuffer = getNGramBuffer(oldest);
-            if (nGramBuffer != null)
-                loadedNGramBuffers[numberWords - 1].put(oldest, nGramBuffer);
+            nGramBuffer = loadNGramBuffer(nMinus1Buffer, index);
+
+            if (nGramBuffer != null) {
+                nMinus1Buffer.setFollowerBuffer(index, nGramBuffer);
+                addLoadedBuffer(nGramBuffer, nMinus1Buffer, index);
+            }
         }
 
-        if (nGramBuffer != null) {
-            int nthWordID = getWordID(wordSequence.getWord(numberWords - 1));
-            nGram = nGramBuffer.findNGram(nthWordID);
+        if (nGramBuffer != null)
+            nGramBuffer.markUsed();
+        return nGramBuffer;
+    }
+
+    /**
+     * Records a newly loaded buffer, and drops the least frequently used
+     * buffers if the memory budget is exceeded. The new buffer and the
+     * buffers leading to it are kept.
+     * 
+     * @param buffer
+     *            the loaded buffer
+     * @param parent
+     *            the buffer it is a follower buffer of, or null for a bigram
+     *            buffer
+     * @param index
+     *            the index in the parent buffer, or the word ID of a bigram
+     *            buffer
+     */
+    private void addLoadedBuffer(NGramBuffer buffer, NGramBuffer parent,
+            int index) {
+        buffer.setParent(parent, index);
+        bufferLoads++;
+
+        if (bufferMemoryBudget <= 0)
+            return;
+
+        loadedBuffers.add(buffer);
+        loadedBufferBytes += buffer.getSize();
+
+        int scanned = 0;
+        while (loadedBufferBytes > bufferMemoryBudget
+                && scanned++ < MAX_AGING_PASSES * loadedBuffers.size()) {
+            if (clockHand >= loadedBuffers.size())
+                clockHand = 0;
+            NGramBuffer candidate = loadedBuffers.get(clockHand);
+
+            if (candidate.isEvicted()) {
+                removeLoadedBuffer(clockHand);
+            } else if (!isOnPath(candidate, buffer) && candidate.age()) {
+                if (candidate.getParent() == null)
+                    loadedBigramBuffers[candidate.getParentIndex()] = null;
+                else
+                    candidate.getParent().setFollowerBuffer(
+                            candidate.getParentIndex(), null);
+                evictBuffer(candidate);
+                removeLoadedBuffer(clockHand);
+                scanned = 0;
+            } else {
+                clockHand++;
+            }
+        }
+    }
+
+    /**
+     * Tells if a buffer is the given buffer or one of the buffers leading to
+     * it.
+     */
+    private boolean isOnPath(NGramBuffer candidate, NGramBuffer buffer) {
+        for (; buffer != null; buffer = buffer.getParent())
+            if (buffer == candidate)
+                return true;
+        return false;
+    }
+
+    /**
+     * Marks a buffer and its loaded follower buffers as evicted. They leave
+     * the list of loaded buffers when the clock reaches them.
+     */
+    private void evictBuffer(NGramBuffer buffer) {
+        buffer.setEvicted();
+        loadedBufferBytes -= buffer.getSize();
+        bufferEvictions++;
+
+        for (int i = 0; i < buffer.getNumberFollowers(); i++) {
+            NGramBuffer follower = buffer.getFollowerBuffer(i);
+            if (follower != null)
+                evictBuffer(follower);
         }
+    }
 
-        return nGram;
+    /** Removes a buffer from the loaded buffers, the order does not matter. */
+    private void removeLoadedBuffer(int index) {
+        int last = loadedBuffers.size() - 1;
+        loadedBuffers.set(index, loadedBuffers.get(last));
+        loadedBuffers.remove(last);
+    }
+
+    /**
+     * Returns the number of bytes of the loaded buffers. It is only tracked
+     * with a memory budget.
+     * 
+     * @return the number of bytes
+     */
+    public long getLoadedBufferBytes() {
+        synchronized (bufferLock) {
+            return loadedBufferBytes;
+        }
     }
 
     /**
@@ -461,78 +823,92 @@ public class LargeNGramModel implements LanguageModel {
     }
 
     /**
-     * Loads into a buffer all the NGram followers of the given N-1Gram.
+     * Loads into a buffer all the bigram followers of the given word.
      * 
-     * @param ws
-     *            the N-1Gram to find followers
+     * @param firstWordID
+     *            the ID of the word to find followers
      * 
-     * @return a NGramBuffer of all the NGram followers of the given sequence
+     * @return a NGramBuffer of all the bigram followers of the word
      */
-    private NGramBuffer loadNGramBuffer(WordSequence ws) {
-        int firstWordID = getWordID(ws.getWord(0));
-        int firstCurrentNGramEntry = 0;
-        int numberNGrams = 0;
-        int size = 0;
-        long position = 0;
-        int orderBuffer = ws.size() + 1;
-        NGramBuffer currentBuffer = null;
-        NGramBuffer nMinus1Buffer = null;
-
-        firstCurrentNGramEntry = unigrams[firstWordID].getFirstBigramEntry();
-        numberNGrams = getNumberBigramFollowers(firstWordID) + 1;
+    private NGramBuffer loadBigramBuffer(int firstWordID) {
+        int firstCurrentNGramEntry = unigrams[firstWordID].getFirstBigramEntry();
+        int numberNGrams = getNumberBigramFollowers(firstWordID) + 1;
 
         if (numberNGrams == 1) // 1 means that there is no bigram starting with
                                // firstWordID
             return null;
 
-        if (orderBuffer == 2) {
-            size = numberNGrams
-                    * ((loader.getMaxDepth() == orderBuffer) ? BYTES_PER_NMAXGRAM
-                            : BYTES_PER_NGRAM) * loader.getBytesPerField();
-            position = (loader.getNGramOffset(orderBuffer) + (firstCurrentNGramEntry
-                    * ((loader.getMaxDepth() == orderBuffer) ? BYTES_PER_NMAXGRAM
-                            : BYTES_PER_NGRAM) * loader.getBytesPerField()));
-        } else { // only for ws.size() >= 2
-            int lastWordId = getWordID(ws.getWord(ws.size() - 1));
-            nMinus1Buffer = getNGramBuffer(ws.getOldest());
-            int index = nMinus1Buffer.findNGramIndex(lastWordId);
-
-            if (index == -1)
-                return null;
-
-            int firstNMinus1GramEntry = nMinus1Buffer.getFirstNGramEntry();
-            firstCurrentNGramEntry = getFirstNGramEntry(
-                    nMinus1Buffer.getNGramProbability(index),
-                    firstNMinus1GramEntry, orderBuffer);
-            int firstNextNGramEntry = getFirstNGramEntry(
-                    nMinus1Buffer.getNGramProbability(index + 1),
-                    firstNMinus1GramEntry, orderBuffer);
-            numberNGrams = firstNextNGramEntry - firstCurrentNGramEntry;
-
-            if (numberNGrams == 0)
-                return null;
-
-            if (loader.getMaxDepth() != orderBuffer)
-                numberNGrams++;
-
-            size = numberNGrams
-                    * ((loader.getMaxDepth() == orderBuffer) ? BYTES_PER_NMAXGRAM
-                            : BYTES_PER_NGRAM) * loader.getBytesPerField();
-            position = loader.getNGramOffset(orderBuffer)
-                    + (long) firstCurrentNGramEntry
-                    * (long) ((loader.getMaxDepth() == orderBuffer) ? BYTES_PER_NMAXGRAM
-                            : BYTES_PER_NGRAM) * loader.getBytesPerField();
-        }
+        int bytesPerNGram = ((loader.getMaxDepth() == 2) ? BYTES_PER_NMAXGRAM
+                : BYTES_PER_NGRAM) * loader.getBytesPerField();
+        long position = loader.getNGramOffset(2)
+                + (long) firstCurrentNGramEntry * bytesPerNGram;
+
+        return readNGramBuffer(position, numberNGrams * bytesPerNGram,
+                numberNGrams, 2, firstCurrentNGramEntry);
+    }
+
+    /**
+     * Loads into a buffer all the NGram followers of an N-1Gram.
+     * 
+     * @param nMinus1Buffer
+     *            the buffer the N-1Gram is in
+     * @param index
+     *            the index of the N-1Gram in the buffer
+     * 
+     * @return a NGramBuffer of all the NGram followers of the N-1Gram
+     */
+    private NGramBuffer loadNGramBuffer(NGramBuffer nMinus1Buffer, int index) {
+        int orderBuffer = nMinus1Buffer.getN() + 1;
+        int firstNMinus1GramEntry = nMinus1Buffer.getFirstNGramEntry();
+        int firstCurrentNGramEntry = getFirstNGramEntry(
+                nMinus1Buffer.getNGramProbability(index),
+                firstNMinus1GramEntry, orderBuffer);
+        int firstNextNGramEntry = getFirstNGramEntry(
+                nMinus1Buffer.getNGramProbability(index + 1),
+                firstNMinus1GramEntry, orderBuffer);
+        int numberNGrams = firstNextNGramEntry - firstCurrentNGramEntry;
+
+        if (numberNGrams == 0)
+            return null;
 
+        if (loader.getMaxDepth() != orderBuffer)
+            numberNGrams++;
+
+        int bytesPerNGram = ((loader.getMaxDepth() == orderBuffer) ? BYTES_PER_NMAXGRAM
+                : BYTES_PER_NGRAM) * loader.getBytesPerField();
+        long position = loader.getNGramOffset(orderBuffer)
+                + (long) firstCurrentNGramEntry * bytesPerNGram;
+
+        return readNGramBuffer(position, numberNGrams * bytesPerNGram,
+                numberNGrams, orderBuffer, firstCurrentNGramEntry);
+    }
+
+    /**
+     * Reads a buffer of NGrams from the language model file.
+     * 
+     * @param position
+     *            the position of the NGrams in the file
+     * @param size
+     *            the size of the NGrams in bytes
+     * @param numberNGrams
+     *            the number of NGrams
+     * @param orderBuffer
+     *            the order of the NGrams
+     * @param firstCurrentNGramEntry
+     *            the index of the first NGram
+     * @return the NGramBuffer
+     */
+    private NGramBuffer readNGramBuffer(long position, int size,
+            int numberNGrams, int orderBuffer, int firstCurrentNGramEntry) {
         try {
             byte[] buffer = loader.loadBuffer(position, size);
 
             if (loader.getMaxDepth() == orderBuffer) {
-                currentBuffer = new NMaxGramBuffer(buffer, numberNGrams,
+                return new NMaxGramBuffer(buffer, numberNGrams,
                         loader.getBigEndian(), is32bits(), orderBuffer,
                         firstCurrentNGramEntry);
             } else {
-                currentBuffer = new NGramBuffer(buffer, numberNGrams,
+                return new NGramBuffer(buffer, numberNGrams,
                         loader.getBigEndian(), is32bits(), orderBuffer,
                         firstCurrentNGramEntry);
             }
@@ -540,40 +916,6 @@ public class LargeNGramModel implements LanguageModel {
             ioe.printStackTrace();
             throw new Error("Error loading " + orderBuffer + "-Grams.");
         }
-
-        return currentBuffer;
-    }
-
-    /**
-     * Returns the NGrams of the given word sequence
-     * 
-     * @param wordSequence
-     *            the word sequence from which to get the buffer
-     * @return the NGramBuffer of the word sequence
-     */
-    private NGramBuffer getNGramBuffer(WordSequence wordSequence) {
-        NGramBuffer nGramBuffer = null;
-        int order = wordSequence.size();
-
-        if (order > 1)
-            nGramBuffer = loadedNGramBuffers[order - 1].get(wordSequence); // better
-                                                                           // when
-                                                                           // using
-                                                                           // containsKey
-
-        if (nGramBuffer == null) {
-            nGramBuffer = loadNGramBuffer(wordSequence);
-
-            if (nGramBuffer != null)
-                loadedNGramBuffers[order - 1].put(wordSequence, nGramBuffer); // optimizable
-                                                                              // by
-                                                                              // adding
-                                                                              // an
-                                                                              // 'empty'
-                                                                              // nGramBuffer
-        }
-
-        return nGramBuffer;
     }
 
     /**
@@ -597,23 +939,6 @@ public class LargeNGramModel implements LanguageModel {
         return firstNGramEntry;
     }
 
-    /**
-     * Returns the unigram probability of the given unigram.
-     * 
-     * @param wordSequence
-     *            the unigram word sequence
-     * @return the unigram probability
-     */
-    private float getUnigramProbability(WordSequence wordSequence) {
-        Word unigram = wordSequence.getWord(0);
-        UnigramProbability unigramProb = getUnigram(unigram);
-
-        if (unigramProb == null)
-            throw new Error("Unigram not in LM: " + unigram);
-
-        return unigramProb.getLogProbability();
-    }
-
     /**
      * Returns its UnigramProbability if this language model has the given
      * unigram.
@@ -627,17 +952,6 @@ public class LargeNGramModel implements LanguageModel {
         return unigramIDMap.get(unigram);
     }
 
-    /**
-     * Returns true if this language model has the given unigram.
-     * 
-     * @param unigram
-     *            the unigram to find
-     * @return true if this LM has this unigram, false otherwise
-     */
-    private boolean hasUnigram(Word unigram) {
-        return (unigramIDMap.get(unigram) != null);
-    }
-
     /**
      * Returns the ID of the given word.
      * 
@@ -781,22 +1095,6 @@ public class LargeNGramModel implements LanguageModel {
         return ngramHits;
     }
 
-    /**
-     * Returns the bigrams of the given word
-     * 
-     * @param firstWordID
-     *            the ID of the word
-     * 
-     * @return the bigrams of the word
-     */
-    private NGramBuffer getBigramBuffer(int firstWordID) {
-        Word[] wd = new Word[1];
-        wd[0] = dictionary.getWord(loader.getWords()[firstWordID]);
-        WordSequence ws = new WordSequence(wd);
-
-        return loadNGramBuffer(ws);
-    }
-
     /**
      * Loads into a buffer all the trigram followers of the given bigram.
      * 
@@ -809,12 +1107,10 @@ public class LargeNGramModel implements LanguageModel {
      *         words
      */
     private NGramBuffer loadTrigramBuffer(int firstWordID, int secondWordID) {
-        Word[] wd = new Word[2];
-        wd[0] = dictionary.getWord(loader.getWords()[firstWordID]);
-        wd[1] = dictionary.getWord(loader.getWords()[secondWordID]);
-        WordSequence ws = new WordSequence(wd);
+        NGramBuffer bigrams = loadBigramBuffer(firstWordID);
+        int index = bigrams == null ? -1 : bigrams.findFollower(secondWordID);
 
-        return loadNGramBuffer(ws);
+        return index < 0 ? null : loadNGramBuffer(bigrams, index);
     }
 
     private void buildSmearInfo() throws IOException {
@@ -839,7 +1135,7 @@ public class LargeNGramModel implements LanguageModel {
         System.out.println("R0 S0 " + R0 + ' ' + S0);
 
         for (int i = 0; i < loadedBigramBuffers.length; i++) {
-            NGramBuffer bigram = getBigramBuffer(i);
+            NGramBuffer bigram = loadBigramBuffer(i);
 
             if (bigram == null) {
                 unigramSmearTerm[i] = LogMath.LOG_ONE;
@@ -892,7 +1188,7 @@ public class LargeNGramModel implements LanguageModel {
         for (int i = 0; i < loadedBigramBuffers.length; i++) {
             System.out.println("Processed " + i + " of "
                     + loadedBigramBuffers.length);
-            NGramBuffer bigram = getBigramBuffer(i);
+            NGramBuffer bigram = loadBigramBuffer(i);
 
             if (bigram == null)
                 continue;
@@ -984,7 +1280,7 @@ public class LargeNGramModel implements LanguageModel {
 
         for (int i = 0; i < unigrams.length; i++) {
             System.out.println("Writing " + i + " of " + unigrams.length);
-            NGramBuffer bigram = getBigramBuffer(i);
+            NGramBuffer bigram = loadBigramBuffer(i);
 
             if (bigram == null) {
                 out.writeInt(0);
@@ -1036,7 +1332,7 @@ public class LargeNGramModel implements LanguageModel {
             System.out.println("Processed " + i + " of "
                     + loadedBigramBuffers.length);
             int numBigrams = in.readInt();
-            NGramBuffer bigram = getBigramBuffer(i);
+            NGramBuffer bigram = loadBigramBuffer(i);
 
             if (bigram.getNumberNGrams() != numBigrams) {
                 in.close();
@@ -1092,7 +1388,7 @@ public class LargeNGramModel implements LanguageModel {
      * @return the log probability
      */
     private float getBigramProb(int word1, int word2) {
-        NGramBuffer bigram = getBigramBuffer(word1);
+        NGramBuffer bigram = loadBigramBuffer(word1);
         NGramProbability bigramProbability = bigram.findNGram(word2);
         return ngramProbTable[1][bigramProbability.getProbabilityID()];
     }
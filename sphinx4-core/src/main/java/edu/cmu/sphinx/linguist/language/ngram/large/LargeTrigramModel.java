@@ -90,5 +90,7 @@ public class LargeTrigramModel extends LargeNGramModel {
         wip = ps.getDouble(PROP_WORD_INSERTION_PROBABILITY);
         unigramWeight = ps.getFloat(PROP_UNIGRAM_WEIGHT);
         fullSmear = ps.getBoolean(PROP_FULL_SMEAR);
+        bufferMemoryBudget = ps.getInt(PROP_BUFFER_MEMORY_BUDGET) * 1024L;
+        prefetchBuffers = ps.getBoolean(PROP_PREFETCH_BUFFERS);
     }
 }
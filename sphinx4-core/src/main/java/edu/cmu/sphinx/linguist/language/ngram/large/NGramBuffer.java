@@ -29,8 +29,15 @@ class NGramBuffer {
     private final boolean bigEndian;
     private final boolean is32bits;
     private final int n;
-    private boolean used;
+    private int useCount;
     private int firstNGramEntry;
+    private NGramBuffer[] followerBuffers;
+    private NGramBuffer parent;
+    private int parentIndex;
+    private boolean evicted;
+
+    /** The use count saturates here so that aging brings it down quickly */
+    private static final int MAX_USE_COUNT = 255;
 
     /**
      * Constructs a NGramBuffer object with the given byte[].
@@ -195,35 +202,97 @@ class NGramBuffer {
 
 
     /**
-     * Returns true if this buffer was used in the last utterance.
+     * Counts a use of this buffer.
+     */
+    public void markUsed() {
+        if (useCount < MAX_USE_COUNT)
+            useCount++;
+    }
+
+
+    /**
+     * Halves the use count of this buffer, so that old uses count less than
+     * recent ones.
      *
-     * @return true if this buffer was used in the last utterance
+     * @return true if the buffer was not used since it was last aged
      */
-    public boolean getUsed() {
-        return used;
+    public boolean age() {
+        boolean unused = useCount == 0;
+        useCount >>= 1;
+        return unused;
     }
 
 
     /**
-     * Sets whether this buffer was used in the last utterance
+     * Returns the buffer this buffer is a follower buffer of.
      *
-     * @param used true if this buffer was used in the last utterance, false otherwise
+     * @return the parent buffer, or null if this is a bigram buffer
      */
-    public void setUsed(boolean used) {
-        this.used = used;
+    public NGramBuffer getParent() {
+        return parent;
     }
-    
-    
+
+
     /**
-     * Finds the NGram probability ID for the given nth word in a NGram.
+     * Returns the index of the follower this buffer belongs to in its parent
+     * buffer, or the word ID of a bigram buffer.
      *
-     * @param nthWordID the ID of the nth word
-     * @return the NGram Probability ID of the given nth word
+     * @return the index in the parent buffer
      */
-    public int findProbabilityID(int nthWordID) {
-        int mid, start = 0, end = getNumberNGrams();
+    public int getParentIndex() {
+        return parentIndex;
+    }
+
+
+    /**
+     * Sets where this buffer is kept.
+     *
+     * @param parent the parent buffer, or null for a bigram buffer
+     * @param parentIndex the index in the parent buffer, or the word ID of a bigram buffer
+     */
+    public void setParent(NGramBuffer parent, int parentIndex) {
+        this.parent = parent;
+        this.parentIndex = parentIndex;
+    }
+
+
+    /**
+     * Returns true if this buffer was dropped from the loaded buffers.
+     *
+     * @return true if this buffer was evicted
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+
+    /**
+     * Marks this buffer as dropped from the loaded buffers.
+     */
+    public void setEvicted() {
+        evicted = true;
+    }
 
-        int nGram = -1;
+
+    /**
+     * Returns the number of followers which can be searched. The last entry of
+     * the buffer only tells where the followers of the next entry start.
+     *
+     * @return the number of followers
+     */
+    protected int getNumberFollowers() {
+        return numberNGrams - 1;
+    }
+
+
+    /**
+     * Finds the index of the given nth word in a NGram.
+     *
+     * @param nthWordID the ID of the nth word
+     * @return the index of the given nth word, or -1 if it is not a follower
+     */
+    public int findFollower(int nthWordID) {
+        int mid, start = 0, end = getNumberFollowers();
 
         while ((end - start) > 0) {
             mid = (start + end) / 2;
@@ -233,11 +302,22 @@ class NGramBuffer {
             } else if (midWordID > nthWordID) {
                 end = mid;
             } else {
-                nGram = getProbabilityID(mid);
-                break;
+                return mid;
             }
         }
-        return nGram;
+        return -1;
+    }
+
+
+    /**
+     * Finds the NGram probability ID for the given nth word in a NGram.
+     *
+     * @param nthWordID the ID of the nth word
+     * @return the NGram Probability ID of the given nth word, or -1 if it is not a follower
+     */
+    public int findProbabilityID(int nthWordID) {
+        int nthFollower = findFollower(nthWordID);
+        return nthFollower < 0 ? -1 : getProbabilityID(nthFollower);
     }
 
 
@@ -257,6 +337,19 @@ class NGramBuffer {
     }
     
     
+    /**
+     * Returns the backoff ID of the nth follower.
+     *
+     * @param nthFollower which follower
+     * @return the backoff ID of the nth follower
+     */
+    public int getBackoffID(int nthFollower) {
+        int fieldSize = (is32bits) ? 4 : 2;
+        setPosition(nthFollower * LargeNGramModel.BYTES_PER_NGRAM * fieldSize + 2 * fieldSize); // to skip the word and probability IDs
+        return readBytesAsInt();
+    }
+
+
     /**
      * Finds the NGram probabilities for the given nth word in a NGram.
      *
@@ -264,49 +357,32 @@ class NGramBuffer {
      * @return the NGramProbability of the given nth word
      */
     public NGramProbability findNGram(int nthWordID) {
+        int nthFollower = findFollower(nthWordID);
+        return nthFollower < 0 ? null : getNGramProbability(nthFollower);
+    }
 
-        int mid, start = 0, end = getNumberNGrams() - 1;
-        NGramProbability ngram = null;
-
-        while ((end - start) > 0) {
-            mid = (start + end) / 2;
-            int midWordID = getWordID(mid);
-            if (midWordID < nthWordID) {
-                start = mid + 1;
-            } else if (midWordID > nthWordID) {
-                end = mid;
-            } else {
-                ngram = getNGramProbability(mid);
-                break;
-            }
-        }
 
-        return ngram;
-    }
-    
     /**
-     * Finds the NGram index for the given nth word in a NGram
-     * 
-     * @param nthWordID the ID of the nth word
-     * @return the NGramIndex of the given nth word
+     * Returns the loaded buffer of the (N+1)-gram followers of the nth follower.
+     *
+     * @param nthFollower which follower
+     * @return the buffer, or null if it was not loaded
      */
-    public int findNGramIndex(int nthWordID) {
+    public NGramBuffer getFollowerBuffer(int nthFollower) {
+        return followerBuffers != null ? followerBuffers[nthFollower] : null;
+    }
 
-        int mid = -1, start = 0, end = getNumberNGrams() - 1;
 
-        while ((end - start) > 0) {
-            mid = (start + end) / 2;
-            int midWordID = getWordID(mid);
-            if (midWordID < nthWordID) {
-                start = mid + 1;
-            } else if (midWordID > nthWordID) {
-                end = mid;
-            } else {
-                break;
-            }
-        }
-
-        return mid;
+    /**
+     * Keeps the loaded buffer of the (N+1)-gram followers of the nth follower.
+     *
+     * @param nthFollower which follower
+     * @param buffer the buffer
+     */
+    public void setFollowerBuffer(int nthFollower, NGramBuffer buffer) {
+        if (followerBuffers == null)
+            followerBuffers = new NGramBuffer[getNumberFollowers()];
+        followerBuffers[nthFollower] = buffer;
     }
     
 
@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 
 import edu.cmu.sphinx.linguist.language.ngram.trie.NgramTrieModel.TrieUnigram;
 import edu.cmu.sphinx.util.Utilities;
@@ -22,19 +23,21 @@ import edu.cmu.sphinx.util.Utilities;
  *     <li>readCounts</li>
  *     <li>readQuant</li>
  *     <li>readUnigrams</li>
- *     <li>readTrieByteArr</li>
+ *     <li>readTrieByteArr or mapTrie</li>
  *     <li>readWords</li>
  * </ul>
  */
 
 public class BinaryLoader {
 
-    private static final String TRIE_HEADER = "Trie Language Model";
+    static final String TRIE_HEADER = "Trie Language Model";
 
     private DataInputStream inStream;
+    private FileInputStream fileStream;
 
     public BinaryLoader(File location) throws IOException {
-        inStream = new DataInputStream(new FileInputStream(location));
+        fileStream = new FileInputStream(location);
+        inStream = new DataInputStream(fileStream);
     }
 
     private void loadModelData(InputStream stream) throws IOException {
@@ -127,6 +130,31 @@ public class BinaryLoader {
         inStream.read(arr);
     }
 
+    /**
+     * Checks if the trie can be mapped with {@link #mapTrie(long)},
+     * which is possible if the model is loaded from a file
+     * @return true if the trie can be mapped
+     */
+    public boolean canMapTrie() {
+        return fileStream != null;
+    }
+
+    /**
+     * Maps trie from the file instead of reading it and skips it in the stream.
+     * Size of trie is computed from previously read language model specifications,
+     * see {@link NgramTrie#getMemLen(int[], int, int)}
+     * @param memLen - size of trie in bytes
+     * @return bit array that reads trie from the file
+     * @throws IOException if mapping failed
+     */
+    public NgramTrieBitReader mapTrie(long memLen) throws IOException {
+        FileChannel channel = fileStream.getChannel();
+        long position = channel.position();
+        NgramTrieBitReader bitArr = new MappedNgramTrieBitarr(channel, position, memLen);
+        channel.position(position + memLen);
+        return bitArr;
+    }
+
     /**
      * Reads vocabulary of language model. Ordinal number of word stays for wordId.
      * @param unigramNum - amount of unigrams
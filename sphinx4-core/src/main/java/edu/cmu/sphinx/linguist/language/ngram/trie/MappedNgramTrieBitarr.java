@@ -0,0 +1,69 @@
+package edu.cmu.sphinx.linguist.language.ngram.trie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ngram trie that is read straight from the memory mapped language model
+ * file instead of being copied into a byte array. The trie is mapped in
+ * chunks, so it can exceed the 2 GB limit of a single buffer. The chunks
+ * overlap by a few bytes, so every value can be read from a single chunk.
+ * <p>
+ * The mapping stays valid after the file is closed. Reading is thread safe.
+ */
+public class MappedNgramTrieBitarr implements NgramTrieBitReader {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+    // reads take up to 8 bytes, trie layers are padded with 8
+    private static final int CHUNK_OVERLAP = 8;
+
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Maps the trie from the given file channel
+     * @param channel - channel of the language model file
+     * @param position - position of the trie in the file
+     * @param memLen - size of the trie in bytes
+     * @throws IOException if mapping failed
+     */
+    public MappedNgramTrieBitarr(FileChannel channel, long position, long memLen) throws IOException {
+        int chunksNum = (int) ((memLen + CHUNK_MASK) >> CHUNK_BITS);
+        chunks = new ByteBuffer[chunksNum];
+        for (int i = 0; i < chunksNum; i++) {
+            long start = (long) i << CHUNK_BITS;
+            long size = Math.min(memLen - start, (1L << CHUNK_BITS) + CHUNK_OVERLAP);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, size)
+                               .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public int readInt(long memPtr, long bitOffset, int mask) {
+        long idx = memPtr + (bitOffset >> 3);
+        int value = chunks[(int) (idx >> CHUNK_BITS)].getInt((int) (idx & CHUNK_MASK));
+        value >>= (int) (bitOffset & 7);
+        value &= mask;
+        return value;
+    }
+
+    public float readNegativeFloat(long memPtr, long bitOffset) {
+        // the sign bit is not stored
+        return Float.intBitsToFloat(readBits(memPtr, bitOffset) | 0x80000000);
+    }
+
+    public float readFloat(long memPtr, long bitOffset) {
+        return Float.intBitsToFloat(readBits(memPtr, bitOffset));
+    }
+
+    /**
+     * Reads 32 bits at any bit offset, the padding of the layers covers the
+     * 8 bytes read
+     */
+    private int readBits(long memPtr, long bitOffset) {
+        long idx = memPtr + (bitOffset >> 3);
+        long value = chunks[(int) (idx >> CHUNK_BITS)].getLong((int) (idx & CHUNK_MASK));
+        return (int) (value >>> (bitOffset & 7));
+    }
+}
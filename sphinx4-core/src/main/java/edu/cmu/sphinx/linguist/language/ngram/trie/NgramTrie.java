@@ -11,14 +11,73 @@ public class NgramTrie {
 
     private MiddleNgramSet[] middles;
     private LongestNgramSet longest;
-    private NgramTrieBitarr bitArr;
+    private NgramTrieBitReader bitArr;
+    private NgramTrieBitarr mem;
     private int ordersNum;
     private int quantProbBoLen;
     private int quantProbLen;
 
+    /**
+     * Creates a trie in a byte array, which can be filled with
+     * {@link #getMem()} or the write methods.
+     * @param counts - ngram counts, where ordinal number is ngram order
+     * @param quantProbBoLen - bits of quantized probability and backoff
+     * @param quantProbLen - bits of quantized probability
+     */
     public NgramTrie(int[] counts, int quantProbBoLen, int quantProbLen) {
-        int memLen = 0;
-        int[] ngramMemSize = new int[counts.length - 1];
+        this(counts, quantProbBoLen, quantProbLen,
+             new NgramTrieBitarr(toArrayLength(getMemLen(counts, quantProbBoLen, quantProbLen))));
+    }
+
+    private NgramTrie(int[] counts, int quantProbBoLen, int quantProbLen, NgramTrieBitarr mem) {
+        this(counts, quantProbBoLen, quantProbLen, (NgramTrieBitReader) mem);
+        this.mem = mem;
+    }
+
+    /**
+     * Creates a read only trie on the given bits, which must hold
+     * {@link #getMemLen(int[], int, int)} bytes.
+     * @param counts - ngram counts, where ordinal number is ngram order
+     * @param quantProbBoLen - bits of quantized probability and backoff
+     * @param quantProbLen - bits of quantized probability
+     * @param bitArr - bits that keep the trie
+     */
+    public NgramTrie(int[] counts, int quantProbBoLen, int quantProbLen, NgramTrieBitReader bitArr) {
+        long[] ngramMemSize = getNgramMemSizes(counts, quantProbBoLen, quantProbLen);
+        this.bitArr = bitArr;
+        this.quantProbLen = quantProbLen;
+        this.quantProbBoLen = quantProbBoLen;
+        middles = new MiddleNgramSet[counts.length - 2];
+        long[] startPtrs = new long[counts.length - 2];
+        long startPtr = 0;
+        for (int i = 0; i < counts.length - 2; i++) {
+            startPtrs[i] = startPtr;
+            startPtr += ngramMemSize[i];
+        }
+        // Crazy backwards thing so we initialize using pointers to ones that have already been initialized
+        for (int i = counts.length - 1; i >= 2; --i) {
+            middles[i - 2] = new MiddleNgramSet(startPtrs[i - 2], quantProbBoLen, counts[i-1], counts[0], counts[i]);
+        }
+        longest = new LongestNgramSet(startPtr, quantProbLen, counts[0]);
+        ordersNum = middles.length + 1;
+    }
+
+    /**
+     * Calculates the size of the trie
+     * @param counts - ngram counts, where ordinal number is ngram order
+     * @param quantProbBoLen - bits of quantized probability and backoff
+     * @param quantProbLen - bits of quantized probability
+     * @return size of trie in bytes
+     */
+    public static long getMemLen(int[] counts, int quantProbBoLen, int quantProbLen) {
+        long memLen = 0;
+        for (long ngramMemSize : getNgramMemSizes(counts, quantProbBoLen, quantProbLen))
+            memLen += ngramMemSize;
+        return memLen;
+    }
+
+    private static long[] getNgramMemSizes(int[] counts, int quantProbBoLen, int quantProbLen) {
+        long[] ngramMemSize = new long[counts.length - 1];
         for (int i = 1; i <= counts.length - 1; i++) {
             int entryLen = requiredBits(counts[0]);
             if (i == counts.length - 1) {
@@ -33,34 +92,23 @@ public class NgramTrie {
             // +7 then / 8 to round up bits and convert to bytes
             // +8 (or +sizeof(uint64))so that reading bit array doesn't exceed bounds 
             // Note that this waste is O(order), not O(number of ngrams).
-            int tmpLen = ((1 + counts[i]) * entryLen + 7) / 8 + 8; 
-            ngramMemSize[i - 1] = tmpLen;
-            memLen += tmpLen;
+            ngramMemSize[i - 1] = ((1L + counts[i]) * entryLen + 7) / 8 + 8;
         }
-        bitArr = new NgramTrieBitarr(memLen);
-        this.quantProbLen = quantProbLen;
-        this.quantProbBoLen = quantProbBoLen;
-        middles = new MiddleNgramSet[counts.length - 2];
-        int[] startPtrs = new int[counts.length - 2];
-        int startPtr = 0;
-        for (int i = 0; i < counts.length - 2; i++) {
-            startPtrs[i] = startPtr;
-            startPtr += ngramMemSize[i];
-        }
-        // Crazy backwards thing so we initialize using pointers to ones that have already been initialized
-        for (int i = counts.length - 1; i >= 2; --i) {
-            middles[i - 2] = new MiddleNgramSet(startPtrs[i - 2], quantProbBoLen, counts[i-1], counts[0], counts[i]);
-        }
-        longest = new LongestNgramSet(startPtr, quantProbLen, counts[0]);
-        ordersNum = middles.length + 1;
+        return ngramMemSize;
+    }
+
+    private static int toArrayLength(long memLen) {
+        if (memLen > Integer.MAX_VALUE - 8)
+            throw new Error("Trie of " + memLen + " bytes does not fit into an array, map it instead");
+        return (int) memLen;
     }
 
     /**
      * Getter for allocated byte array to which trie is mapped
-     * @return byte[] with ngram trie 
+     * @return byte[] with ngram trie, null if the trie is read only
      */
     public byte[] getMem() {
-        return bitArr.getArr();
+        return mem != null ? mem.getArr() : null;
     }
 
     /**
@@ -121,6 +169,45 @@ public class NgramTrie {
         return quant.readProb(bitArr, ngram.memPtr, ngram.getNgramWeightsOffset(ptr), orderMinusTwo);
     }
 
+    /**
+     * Writes ngram of certain order into the trie. Ngrams of each order
+     * are written in order of their reversed word ids, so that successors of
+     * each ngram follow the successors of the previous one. Only tries
+     * kept in a byte array can be written.
+     * @param orderMinusTwo - order of ngram minus two
+     * @param ngramIdx - index of ngram among ngrams of its order
+     * @param wordId - id of the oldest word of ngram
+     * @param prob - probability of ngram
+     * @param backoff - backoff of ngram, ignored for ngrams of maximum order
+     * @param next - index of the first successor of ngram, ignored for ngrams of maximum order
+     * @param quant - quantation object to encode weights
+     */
+    public void writeNgram(int orderMinusTwo, int ngramIdx, int wordId, float prob, float backoff, int next,
+            NgramTrieQuant quant) {
+        NgramSet ngram = getNgram(orderMinusTwo);
+        mem.writeInt(ngram.memPtr, (long) ngramIdx * ngram.totalBits, wordId);
+        long offset = ngram.getNgramWeightsOffset(ngramIdx);
+        quant.writeProb(mem, ngram.memPtr, offset, orderMinusTwo, prob);
+        if (ngram instanceof MiddleNgramSet) {
+            quant.writeBackoff(mem, ngram.memPtr, offset, orderMinusTwo, backoff);
+            writeNext(orderMinusTwo, ngramIdx, next);
+        }
+    }
+
+    /**
+     * Writes index of the first successor of ngram. Besides ngrams written by
+     * {@link #writeNgram(int, int, int, float, float, int, NgramTrieQuant) writeNgram}
+     * it has to be written for the extra entry that follows the last ngram
+     * of each order except maximum one, where it is count of successors.
+     * @param orderMinusTwo - order of ngram minus two
+     * @param ngramIdx - index of ngram among ngrams of its order
+     * @param next - index of the first successor of ngram
+     */
+    public void writeNext(int orderMinusTwo, int ngramIdx, int next) {
+        MiddleNgramSet ngram = middles[orderMinusTwo];
+        mem.writeInt(ngram.memPtr, ngram.getNgramWeightsOffset(ngramIdx) + ngram.getQuantBits(), next);
+    }
+
     /**
      * Calculates pivot for binary search
      */
@@ -132,16 +219,17 @@ public class NgramTrie {
      * Searches ngram index for given wordId in provided range 
      */
     private int uniformFind(NgramSet ngram, TrieRange range, int wordId) {
-    	TrieRange vocabRange = new TrieRange(0, ngram.maxVocab);
+        int vocabBegin = 0;
+        int vocabEnd = ngram.maxVocab;
         while (range.getWidth() > 1) {
-            int pivot = range.begin + 1 + calculatePivot(wordId - vocabRange.begin, vocabRange.getWidth(), range.getWidth() - 1);
+            int pivot = range.begin + 1 + calculatePivot(wordId - vocabBegin, vocabEnd - vocabBegin, range.getWidth() - 1);
             int mid = ngram.readNgramWord(pivot);
             if (mid < wordId) {
                 range.begin = pivot;
-                vocabRange.begin = mid;
+                vocabBegin = mid;
             } else if (mid > wordId){
                 range.end = pivot;
-                vocabRange.end = mid;
+                vocabEnd = mid;
             } else {
                 return pivot;
             }
@@ -161,7 +249,7 @@ public class NgramTrie {
     /**
      * Calculates minimum amount of bits to store provided int
      */
-    private int requiredBits(int maxValue) {
+    private static int requiredBits(int maxValue) {
         if (maxValue == 0) return 0;
         int res = 1;
         while ((maxValue >>= 1) != 0) res++;
@@ -172,13 +260,13 @@ public class NgramTrie {
      * Gives access to set of ngram of certain order (trie layer)
      */
     abstract class NgramSet {
-        int memPtr;
+        long memPtr;
         int wordBits;
         int wordMask;
         int totalBits;
         int insertIdx;
         int maxVocab;
-        NgramSet(int memPtr, int maxVocab, int remainingBits) {
+        NgramSet(long memPtr, int maxVocab, int remainingBits) {
             this.maxVocab = maxVocab;
             this.memPtr = memPtr;
             wordBits = requiredBits(maxVocab);
@@ -190,12 +278,12 @@ public class NgramTrie {
         }
 
         int readNgramWord(int ngramIdx) {
-            int offset = ngramIdx * totalBits;
+            long offset = (long) ngramIdx * totalBits;
             return bitArr.readInt(memPtr, offset, wordMask);
         }
 
-        int getNgramWeightsOffset(int ngramIdx) {
-            return ngramIdx * totalBits + wordBits;
+        long getNgramWeightsOffset(int ngramIdx) {
+            return (long) ngramIdx * totalBits + wordBits;
         }
 
         abstract int getQuantBits();
@@ -208,7 +296,7 @@ public class NgramTrie {
     class MiddleNgramSet extends NgramSet {
         int nextMask;
         int nextOrderMemPtr;
-        MiddleNgramSet(int memPtr, int quantBits, int entries, int maxVocab, int maxNext) {
+        MiddleNgramSet(long memPtr, int quantBits, int entries, int maxVocab, int maxNext) {
             super(memPtr, maxVocab, quantBits + requiredBits(maxNext));
             nextMask = (1 << requiredBits(maxNext)) - 1;
             if (entries + 1 >= (1 << 25) || (maxNext >= (1 << 25)))
@@ -216,7 +304,7 @@ public class NgramTrie {
         }
 
         void readNextRange(int ngramIdx, TrieRange range) {
-            int offset = ngramIdx * totalBits;
+            long offset = (long) ngramIdx * totalBits;
             offset += wordBits;
             offset += getQuantBits();
             range.begin = bitArr.readInt(memPtr, offset, nextMask);
@@ -234,7 +322,7 @@ public class NgramTrie {
      * Implementation of NgramSet for ngrams of maximum order
      */
     class LongestNgramSet extends NgramSet {
-        LongestNgramSet(int memPtr, int quantBits, int maxVocab) {
+        LongestNgramSet(long memPtr, int quantBits, int maxVocab) {
             super(memPtr, maxVocab, quantBits);
         }
 
@@ -0,0 +1,41 @@
+package edu.cmu.sphinx.linguist.language.ngram.trie;
+
+/**
+ * Read access to the bits of ngram trie, whether they are kept in
+ * a byte array or read from the language model file
+ */
+
+public interface NgramTrieBitReader {
+
+    /**
+     * Reads integer for specified memory pointer,
+     * offset from this pointer and mask of value that is read.
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr that is calculated
+     *                    according to ngram index and type of value that is read.
+     * @param mask - bit mask of value that is read
+     * @return requested integer
+     */
+    public int readInt(long memPtr, long bitOffset, int mask);
+
+    /**
+     * Reads negative float for specified memory pointer
+     * and offset from this pointer. Used to read uncompressed float, i.e.
+     * in case quantation was not applied
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr
+     * @return float that was read from specified position
+     */
+    public float readNegativeFloat(long memPtr, long bitOffset);
+
+    /**
+     * Reads float for specified memory pointer
+     * and offset from this pointer. Used to read uncompressed float, i.e.
+     * in case quantation was not applied
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr
+     * @return float that was read from specified position
+     */
+    public float readFloat(long memPtr, long bitOffset);
+
+}
@@ -4,7 +4,7 @@ package edu.cmu.sphinx.linguist.language.ngram.trie;
  * Byte array that keeps ngram trie
  */
 
-public class NgramTrieBitarr {
+public class NgramTrieBitarr implements NgramTrieBitReader {
 
     private byte[] mem;
     
@@ -29,17 +29,35 @@ public class NgramTrieBitarr {
      * @param mask - bit mask of value that is read
      * @return requested integer
      */
-    public int readInt(int memPtr, int bitOffset, int mask) {
-        int idx = memPtr + (bitOffset >> 3);
+    public int readInt(long memPtr, long bitOffset, int mask) {
+        int idx = (int) (memPtr + (bitOffset >> 3));
         int value = mem[idx++] & 0xFF;
         value |= (mem[idx++] << 8) & 0xFFFF;
         value |= (mem[idx++] << 16) & 0xFFFFFF;
         value |= (mem[idx++] << 24) & 0xFFFFFFFF;
-        value >>= (bitOffset & 7);
+        value >>= (int) (bitOffset & 7);
         value &= mask;
         return value;
     }
 
+    /**
+     * Writes integer into byte array for specified memory pointer and offset
+     * from this pointer. The bits are or'ed into the array, so every value
+     * can be written only once.
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr that is calculated
+     *                    according to ngram index and type of value that is written.
+     * @param value - non-negative integer that fits into 25 bits
+     */
+    public void writeInt(long memPtr, long bitOffset, int value) {
+        int idx = (int) (memPtr + (bitOffset >> 3));
+        value <<= (int) (bitOffset & 7);
+        mem[idx++] |= (byte) value;
+        mem[idx++] |= (byte) (value >>> 8);
+        mem[idx++] |= (byte) (value >>> 16);
+        mem[idx] |= (byte) (value >>> 24);
+    }
+
     /**
      * Reads negative float from byte array for specified memory pointer
      * and offset from this pointer. Used to read uncompressed float, i.e.
@@ -48,7 +66,7 @@ public class NgramTrieBitarr {
      * @param bitOffset - offset from memPtr
      * @return float that was read from specified position
      */
-    public float readNegativeFloat(int memPtr, int bitOffset) {
+    public float readNegativeFloat(long memPtr, long bitOffset) {
         //TODO cap
         return 0.0f;
     }
@@ -61,7 +79,7 @@ public class NgramTrieBitarr {
      * @param bitOffset - offset from memPtr
      * @return float that was read from specified position
      */
-    public float readFloat(int memPtr, int bitOffset) {
+    public float readFloat(long memPtr, long bitOffset) {
         //TODO cap
         return 0.0f;
     }
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.language.ngram.trie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.linguist.language.ngram.trie.NgramTrieModel.TrieRange;
+import edu.cmu.sphinx.linguist.language.ngram.trie.NgramTrieQuant.QuantType;
+import edu.cmu.sphinx.util.LogMath;
+
+/**
+ * Provides a command line utility to convert a language model in ARPA format
+ * into the binary trie format, which {@link NgramTrieModel} loads.
+ * <p>
+ * The ARPA file is read once. The ngrams of each order are sorted by their
+ * reversed word ids in chunks of bounded size, which are kept in temporary
+ * files and merged. Ngrams whose suffix is missing in the ARPA file get the
+ * suffix added with its backed off probability, as the trie needs it to reach
+ * them. Weights are quantized to 16 bits with tables trained on a sample of
+ * at most 2^20 weights of each order.
+ * <p>
+ * Every order above the unigrams fills its own chunk, which is kept until the
+ * trie is built. Besides the trie itself, the unigrams, up to (order - 1)
+ * chunks and the weight samples of the (2 * order - 3) quantization tables
+ * are kept in memory.
+ */
+public class NgramTrieConverter {
+
+    /** The default number of ngrams that are sorted in memory */
+    public final static int DEFAULT_CHUNK_SIZE = 1 << 19;
+
+    /** The maximum number of weights a quantation table is trained on */
+    private final static int MAX_SAMPLE_SIZE = 1 << 20;
+
+    private final static Comparator<Ngram> NGRAM_ORDER = new Comparator<Ngram>() {
+        public int compare(Ngram ngram1, Ngram ngram2) {
+            return compareIds(ngram1.ids, ngram2.ids, ngram1.ids.length);
+        }
+    };
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final LogMath logMath = LogMath.getLogMath();
+    private final int chunkSize;
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    private int order;
+    private int[] counts;
+    private String[] words;
+    private Map<String, Integer> wordIds;
+    private float[] unigramProbs;
+    private float[] unigramBackoffs;
+    private int[] unigramNext;
+
+    // indexed by order
+    private NgramSorter[] sorters;
+    private File[] layers;
+    private int[] blanks;
+    private WeightSampler[] probSamplers;
+    private WeightSampler[] backoffSamplers;
+
+    private NgramTrieQuant quant;
+    private NgramTrie trie;
+
+    private NgramTrieConverter(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Converts a language model with the default chunk size.
+     *
+     * @param arpa the file of the model in ARPA format
+     * @param output the file to write
+     * @throws IOException if the model can not be read or the file not be
+     *             written
+     */
+    public static void convert(File arpa, File output) throws IOException {
+        InputStream stream = new FileInputStream(arpa);
+        try {
+            convert(stream, output, DEFAULT_CHUNK_SIZE);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Converts a language model.
+     *
+     * @param arpa the stream of the model in ARPA format
+     * @param output the file to write
+     * @param chunkSize the number of ngrams that are sorted in memory
+     * @throws IOException if the model can not be read or the file not be
+     *             written
+     */
+    public static void convert(InputStream arpa, File output, int chunkSize) throws IOException {
+        NgramTrieConverter converter = new NgramTrieConverter(chunkSize);
+        try {
+            converter.readArpa(new BufferedReader(new InputStreamReader(arpa, "UTF-8")));
+            converter.buildLayers();
+            converter.buildTrie();
+            converter.write(output);
+        } finally {
+            converter.deleteTempFiles();
+        }
+    }
+
+    /**
+     * Reads header, ngram counts and ngrams of all orders from ARPA file
+     */
+    private void readArpa(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null && !line.trim().equals("\\data\\"))
+            ;
+        if (line == null)
+            throw new IOException("No \\data\\ section in ARPA file");
+
+        List<Integer> arpaCounts = new ArrayList<Integer>();
+        while ((line = reader.readLine()) != null && !(line = line.trim()).startsWith("\\")) {
+            if (!line.startsWith("ngram "))
+                continue;
+            int separator = line.indexOf('=');
+            if (separator < 0 || Integer.parseInt(line.substring(6, separator).trim()) != arpaCounts.size() + 1)
+                throw new IOException("Bad ngram count: " + line);
+            arpaCounts.add(Integer.parseInt(line.substring(separator + 1).trim()));
+        }
+        order = arpaCounts.size();
+        if (order == 0)
+            throw new IOException("No ngram counts in ARPA file");
+
+        counts = new int[order];
+        words = new String[arpaCounts.get(0)];
+        wordIds = new HashMap<String, Integer>();
+        unigramProbs = new float[words.length];
+        unigramBackoffs = new float[words.length];
+        sorters = new NgramSorter[order + 1];
+        layers = new File[order + 1];
+        blanks = new int[order + 1];
+        probSamplers = new WeightSampler[order + 1];
+        backoffSamplers = new WeightSampler[order + 1];
+        for (int n = 2; n <= order; n++) {
+            sorters[n] = new NgramSorter(n);
+            probSamplers[n] = new WeightSampler(1 << 16);
+            if (n < order)
+                backoffSamplers[n] = new WeightSampler(1 << 16);
+        }
+
+        for (int n = 1; n <= order; n++) {
+            if (line == null || !line.equals("\\" + n + "-grams:"))
+                throw new IOException("Expected \\" + n + "-grams: but found " + line);
+            line = readNgrams(reader, n, arpaCounts.get(n - 1));
+        }
+        if (line == null || !line.equals("\\end\\"))
+            throw new IOException("Expected \\end\\ but found " + line);
+    }
+
+    /**
+     * Reads ngrams of certain order
+     * @return the line that ends the ngrams
+     */
+    private String readNgrams(BufferedReader reader, int n, int count) throws IOException {
+        int[] ids = new int[n];
+        int read = 0;
+        String line;
+        while ((line = reader.readLine()) != null && !(line = line.trim()).startsWith("\\")) {
+            if (line.isEmpty())
+                continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != n + 1 && fields.length != n + 2)
+                throw new IOException("Bad " + n + "-gram: " + line);
+            float prob = logMath.log10ToLog(Float.parseFloat(fields[0]));
+            float backoff = fields.length == n + 2 ? logMath.log10ToLog(Float.parseFloat(fields[n + 1])) : 0.0f;
+
+            if (n == 1) {
+                if (read == count)
+                    throw new IOException("More than " + count + " 1-grams");
+                if (wordIds.put(fields[1], read) != null)
+                    throw new IOException("Duplicate 1-gram: " + line);
+                words[read] = fields[1];
+                unigramProbs[read] = prob;
+                unigramBackoffs[read] = backoff;
+            } else {
+                // reversed, the newest word first
+                for (int i = 0; i < n; i++) {
+                    Integer wordId = wordIds.get(fields[n - i]);
+                    if (wordId == null)
+                        throw new IOException("Unknown word in " + n + "-gram: " + line);
+                    ids[i] = wordId;
+                }
+                sorters[n].add(ids, prob, backoff);
+                probSamplers[n].add(prob);
+                if (n < order)
+                    backoffSamplers[n].add(backoff);
+            }
+            read++;
+        }
+        if (read != count)
+            throw new IOException("Expected " + count + " " + n + "-grams but found " + read);
+        return line;
+    }
+
+    /**
+     * Builds the layers of the trie from the longest ngrams down. Each layer
+     * holds the sorted ngrams of its order and the number of their
+     * successors, missing ngrams which have successors are added as blanks.
+     */
+    private void buildLayers() throws IOException {
+        counts[0] = words.length;
+        for (int n = order; n >= 2; n--) {
+            NgramInput ngrams = sorters[n].sort();
+            NgramInput successors = n < order ? new NgramReader(layers[n + 1], n + 1, counts[n]) : null;
+            layers[n] = createTempFile();
+            NgramWriter writer = new NgramWriter(layers[n]);
+
+            Ngram ngram = ngrams.read();
+            Ngram successor = successors != null ? successors.read() : null;
+            int count = 0;
+            while (ngram != null || successor != null) {
+                Ngram entry;
+                if (successor == null || ngram != null && compareIds(ngram.ids, successor.ids, n) <= 0) {
+                    entry = ngram;
+                    // duplicates keep the first ngram
+                    do {
+                        ngram = ngrams.read();
+                    } while (ngram != null && compareIds(ngram.ids, entry.ids, n) == 0);
+                } else {
+                    entry = new Ngram(Arrays.copyOf(successor.ids, n));
+                    entry.blank = true;
+                    blanks[n]++;
+                    backoffSamplers[n].add(0.0f);
+                }
+                while (successor != null && compareIds(successor.ids, entry.ids, n) == 0) {
+                    entry.children++;
+                    successor = successors.read();
+                }
+                writer.write(entry);
+                count++;
+            }
+            writer.close();
+            ngrams.close();
+            if (successors != null)
+                successors.close();
+            counts[n - 1] = count;
+            logger.info(n + "-grams: " + count + ", added missing: " + blanks[n]);
+        }
+
+        unigramNext = new int[words.length + 1];
+        if (order > 1) {
+            NgramReader bigrams = new NgramReader(layers[2], 2, counts[1]);
+            for (Ngram bigram = bigrams.read(); bigram != null; bigram = bigrams.read())
+                unigramNext[bigram.ids[0] + 1]++;
+            bigrams.close();
+            for (int i = 0; i < words.length; i++)
+                unigramNext[i + 1] += unigramNext[i];
+        }
+    }
+
+    /**
+     * Writes the layers into the trie from the shortest ngrams up, so
+     * probabilities of blanks can be looked up in the lower orders.
+     */
+    private void buildTrie() throws IOException {
+        if (order < 2)
+            return;
+        quant = new NgramTrieQuant(order, QuantType.QUANT_16);
+        trie = new NgramTrie(counts, quant.getProbBoSize(), quant.getProbSize());
+        for (int n = 2; n <= order; n++) {
+            if (blanks[n] > 0) {
+                NgramReader layer = new NgramReader(layers[n], n, counts[n - 1]);
+                for (Ngram entry = layer.read(); entry != null; entry = layer.read())
+                    if (entry.blank)
+                        probSamplers[n].add(getBackoffProbability(entry.ids));
+                layer.close();
+            }
+            probSamplers[n].train(quant, n, true);
+            if (n < order)
+                backoffSamplers[n].train(quant, n, false);
+
+            NgramReader layer = new NgramReader(layers[n], n, counts[n - 1]);
+            int index = 0;
+            int next = 0;
+            for (Ngram entry = layer.read(); entry != null; entry = layer.read(), index++) {
+                float prob = entry.blank ? getBackoffProbability(entry.ids) : entry.prob;
+                trie.writeNgram(n - 2, index, entry.ids[n - 1], prob, entry.backoff, next, quant);
+                next += entry.children;
+            }
+            layer.close();
+            if (n < order)
+                trie.writeNext(n - 2, index, next);
+        }
+    }
+
+    /**
+     * Computes probability of ngram from the lower orders of the trie
+     * @param ids - reversed word ids of ngram
+     * @return probability of ngram
+     */
+    private float getBackoffProbability(int[] ids) {
+        int wordId = ids[0];
+        TrieRange range = new TrieRange(unigramNext[wordId], unigramNext[wordId + 1]);
+        float prob = unigramProbs[wordId];
+        int depth = 1;
+        for (int i = 1; i < ids.length - 1 && range.isSearchable(); i++) {
+            float updatedProb = trie.readNgramProb(ids[i], i - 1, range, quant);
+            if (!range.getFound())
+                break;
+            prob = updatedProb;
+            depth++;
+        }
+
+        // add backoffs of the contexts longer than the found ngram
+        int contextId = ids[1];
+        if (depth == 1)
+            prob += unigramBackoffs[contextId];
+        range.set(unigramNext[contextId], unigramNext[contextId + 1]);
+        for (int i = 2; i < ids.length && range.isSearchable(); i++) {
+            float backoff = trie.readNgramBackoff(ids[i], i - 2, range, quant);
+            if (!range.getFound())
+                break;
+            if (i >= depth)
+                prob += backoff;
+        }
+        return prob;
+    }
+
+    /**
+     * Writes the model in format of {@link BinaryLoader}
+     */
+    private void write(File output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            out.writeBytes(BinaryLoader.TRIE_HEADER);
+            out.writeByte(order);
+            for (int count : counts)
+                writeInt(out, count);
+            if (order > 1) {
+                writeInt(out, QuantType.QUANT_16.ordinal());
+                for (int n = 2; n <= order; n++) {
+                    writeFloats(out, quant.getTable(n, true));
+                    if (n < order)
+                        writeFloats(out, quant.getTable(n, false));
+                }
+            }
+            for (int i = 0; i <= words.length; i++) {
+                writeFloat(out, i < words.length ? unigramProbs[i] : 0.0f);
+                writeFloat(out, i < words.length ? unigramBackoffs[i] : 0.0f);
+                writeInt(out, unigramNext[i]);
+            }
+            if (order > 1)
+                out.write(trie.getMem());
+
+            ByteArrayOutputStream vocabulary = new ByteArrayOutputStream();
+            for (String word : words) {
+                vocabulary.write(word.getBytes("UTF-8"));
+                vocabulary.write(0);
+            }
+            writeInt(out, vocabulary.size());
+            vocabulary.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeFloat(DataOutputStream out, float value) throws IOException {
+        writeInt(out, Float.floatToIntBits(value));
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        for (float value : values)
+            writeFloat(out, value);
+    }
+
+    private static int compareIds(int[] ids1, int[] ids2, int length) {
+        for (int i = 0; i < length; i++)
+            if (ids1[i] != ids2[i])
+                return ids1[i] < ids2[i] ? -1 : 1;
+        return 0;
+    }
+
+    private File createTempFile() throws IOException {
+        File file = File.createTempFile("ngrams", ".tmp");
+        tempFiles.add(file);
+        return file;
+    }
+
+    private void deleteTempFiles() {
+        for (File file : tempFiles)
+            if (!file.delete())
+                file.deleteOnExit();
+    }
+
+    /**
+     * Converts a language model. The first argument is the ARPA file, the
+     * second argument the file to write.
+     *
+     * @param args arguments
+     * @throws IOException if the conversion failed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: NgramTrieConverter <ARPA file> <output file>");
+            System.exit(1);
+        }
+
+        System.out.println("Writing trie language model to " + args[1]);
+        convert(new File(args[0]), new File(args[1]));
+    }
+
+    /**
+     * Ngram with reversed word ids, as it is sorted and kept in the layers
+     */
+    private static class Ngram {
+        final int[] ids;
+        float prob;
+        float backoff;
+        boolean blank;
+        int children;
+
+        Ngram(int[] ids) {
+            this.ids = ids;
+        }
+    }
+
+    private interface NgramInput {
+        /** @return the next ngram or null at the end */
+        Ngram read() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static class NgramWriter {
+        private final DataOutputStream out;
+
+        NgramWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(Ngram ngram) throws IOException {
+            for (int id : ngram.ids)
+                out.writeInt(id);
+            out.writeFloat(ngram.prob);
+            out.writeFloat(ngram.backoff);
+            out.writeBoolean(ngram.blank);
+            out.writeInt(ngram.children);
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class NgramReader implements NgramInput {
+        private final DataInputStream in;
+        private final int n;
+        private int remaining;
+
+        NgramReader(File file, int n, int count) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.n = n;
+            remaining = count;
+        }
+
+        public Ngram read() throws IOException {
+            if (remaining == 0)
+                return null;
+            remaining--;
+            Ngram ngram = new Ngram(new int[n]);
+            for (int i = 0; i < n; i++)
+                ngram.ids[i] = in.readInt();
+            ngram.prob = in.readFloat();
+            ngram.backoff = in.readFloat();
+            ngram.blank = in.readBoolean();
+            ngram.children = in.readInt();
+            return ngram;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Merges sorted chunks, ngrams with equal ids are returned in order of
+     * their chunks
+     */
+    private static class MergedInput implements NgramInput {
+        private final PriorityQueue<Head> heads;
+
+        MergedInput(List<NgramReader> chunks) throws IOException {
+            heads = new PriorityQueue<Head>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                Head head = new Head(chunks.get(i), i);
+                if (head.ngram != null)
+                    heads.add(head);
+                else
+                    head.chunk.close();
+            }
+        }
+
+        public Ngram read() throws IOException {
+            Head head = heads.poll();
+            if (head == null)
+                return null;
+            Ngram ngram = head.ngram;
+            head.ngram = head.chunk.read();
+            if (head.ngram != null)
+                heads.add(head);
+            else
+                head.chunk.close();
+            return ngram;
+        }
+
+        public void close() throws IOException {
+            for (Head head : heads)
+                head.chunk.close();
+            heads.clear();
+        }
+
+        private static class Head implements Comparable<Head> {
+            final NgramReader chunk;
+            final int index;
+            Ngram ngram;
+
+            Head(NgramReader chunk, int index) throws IOException {
+                this.chunk = chunk;
+                this.index = index;
+                ngram = chunk.read();
+            }
+
+            public int compareTo(Head other) {
+                int result = NGRAM_ORDER.compare(ngram, other.ngram);
+                return result != 0 ? result : index - other.index;
+            }
+        }
+    }
+
+    /**
+     * Sorts ngrams of certain order in chunks that are written to temporary
+     * files
+     */
+    private class NgramSorter {
+        private final int n;
+        private final List<File> chunks = new ArrayList<File>();
+        private final List<Integer> chunkSizes = new ArrayList<Integer>();
+        private Ngram[] chunk = new Ngram[0];
+        private int size;
+
+        NgramSorter(int n) {
+            this.n = n;
+        }
+
+        void add(int[] ids, float prob, float backoff) throws IOException {
+            if (size == chunkSize)
+                flush();
+            if (size == chunk.length)
+                chunk = Arrays.copyOf(chunk, Math.min(chunkSize, Math.max(16, size * 2)));
+            Ngram ngram = new Ngram(Arrays.copyOf(ids, n));
+            ngram.prob = prob;
+            ngram.backoff = backoff;
+            chunk[size++] = ngram;
+        }
+
+        private void flush() throws IOException {
+            // stable, so duplicates stay in order of the file
+            Arrays.sort(chunk, 0, size, NGRAM_ORDER);
+            File file = createTempFile();
+            NgramWriter writer = new NgramWriter(file);
+            for (int i = 0; i < size; i++)
+                writer.write(chunk[i]);
+            writer.close();
+            chunks.add(file);
+            chunkSizes.add(size);
+            Arrays.fill(chunk, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Sorts the added ngrams
+         * @return sorted ngrams
+         */
+        NgramInput sort() throws IOException {
+            flush();
+            chunk = null;
+            List<NgramReader> readers = new ArrayList<NgramReader>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++)
+                readers.add(new NgramReader(chunks.get(i), n, chunkSizes.get(i)));
+            if (readers.size() == 1)
+                return readers.get(0);
+            return new MergedInput(readers);
+        }
+    }
+
+    /**
+     * Collects the weights a quantation table is trained on. As long as there
+     * are not more distinct weights than entries in the table, they are kept
+     * so that the table holds them exactly. Otherwise a uniform sample of the
+     * weights is used.
+     */
+    private static class WeightSampler {
+        private final int tableLen;
+        private final Random random = new Random(1);
+        private Set<Float> distinct = new HashSet<Float>();
+        private float[] sample = new float[16];
+        private long count;
+
+        WeightSampler(int tableLen) {
+            this.tableLen = tableLen;
+        }
+
+        void add(float weight) {
+            if (distinct != null) {
+                distinct.add(weight);
+                if (distinct.size() > tableLen)
+                    distinct = null;
+            }
+            if (count < MAX_SAMPLE_SIZE) {
+                if (count == sample.length)
+                    sample = Arrays.copyOf(sample, sample.length * 2);
+                sample[(int) count] = weight;
+            } else {
+                long index = (long) (random.nextDouble() * (count + 1));
+                if (index < MAX_SAMPLE_SIZE)
+                    sample[(int) index] = weight;
+            }
+            count++;
+        }
+
+        void train(NgramTrieQuant quant, int order, boolean isProb) {
+            if (distinct != null) {
+                float[] weights = new float[distinct.size()];
+                int i = 0;
+                for (float weight : distinct)
+                    weights[i++] = weight;
+                quant.train(weights, weights.length, order, isProb);
+            } else {
+                quant.train(sample, (int) Math.min(count, MAX_SAMPLE_SIZE), order, isProb);
+            }
+        }
+    }
+}
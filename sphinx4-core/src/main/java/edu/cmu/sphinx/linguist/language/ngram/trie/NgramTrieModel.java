@@ -17,8 +17,10 @@ import java.util.logging.Logger;
 import edu.cmu.sphinx.linguist.WordSequence;
 import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.CachingLanguageModel;
 import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
-import edu.cmu.sphinx.linguist.util.LRUCache;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
+import edu.cmu.sphinx.linguist.util.NGramProbabilityCache;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.TimerPool;
 import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
@@ -34,7 +36,7 @@ import edu.cmu.sphinx.util.props.S4String;
  * generated by the SphinxBase sphinx_lm_convert.
  */
 
-public class NgramTrieModel implements LanguageModel {
+public class NgramTrieModel implements CachingLanguageModel, WordIdLanguageModel {
 
     /**
      * The property for the name of the file that logs all the queried N-grams.
@@ -70,6 +72,14 @@ public class NgramTrieModel implements LanguageModel {
     @S4Double(defaultValue = 1.0f)
     public final static String PROP_WORD_INSERTION_PROBABILITY = "wordInsertionProbability";
 
+    /**
+     * The property that controls whether the trie is memory mapped from the
+     * language model file instead of being read into memory. Models loaded
+     * from other locations than files are always read into memory.
+     */
+    @S4Boolean(defaultValue = false)
+    public final static String PROP_MAP_TRIE = "mapTrie";
+
     // ------------------------------
     // Configuration data
     // ------------------------------
@@ -77,7 +87,6 @@ public class NgramTrieModel implements LanguageModel {
     protected Logger logger;
     protected LogMath logMath;
     protected int maxDepth;
-    protected int curDepth;
     protected int[] counts;
 
     protected int ngramCacheSize;
@@ -89,6 +98,7 @@ public class NgramTrieModel implements LanguageModel {
     protected float languageWeight;
     protected float unigramWeight;
     protected float logWip;
+    protected boolean mapTrie;
 
     // -------------------------------
     // Statistics
@@ -114,13 +124,23 @@ public class NgramTrieModel implements LanguageModel {
     // Working data
     //-----------------------------
     protected Map<Word, Integer> unigramIDMap;
-    private LRUCache<WordSequence, Float> ngramProbCache;
+    private NGramProbabilityCache ngramProbCache;
+    private int cacheKeyBits;
     
     public NgramTrieModel(String format, URL location, String ngramLogFile,
             int maxNGramCacheSize, boolean clearCacheAfterUtterance,
             int maxDepth, Dictionary dictionary,
             boolean applyLanguageWeightAndWip, float languageWeight,
             double wip, float unigramWeight) {
+        this(format, location, ngramLogFile, maxNGramCacheSize, clearCacheAfterUtterance, maxDepth, dictionary,
+                applyLanguageWeightAndWip, languageWeight, wip, unigramWeight, false);
+    }
+
+    public NgramTrieModel(String format, URL location, String ngramLogFile,
+            int maxNGramCacheSize, boolean clearCacheAfterUtterance,
+            int maxDepth, Dictionary dictionary,
+            boolean applyLanguageWeightAndWip, float languageWeight,
+            double wip, float unigramWeight, boolean mapTrie) {
         logger = Logger.getLogger(getClass().getName());
         this.format = format;
         this.location = location;
@@ -134,6 +154,7 @@ public class NgramTrieModel implements LanguageModel {
         this.languageWeight = languageWeight;
         this.logWip = logMath.linearToLog(wip);
         this.unigramWeight = unigramWeight;
+        this.mapTrie = mapTrie;
     }
 
     public NgramTrieModel() {
@@ -161,6 +182,7 @@ public class NgramTrieModel implements LanguageModel {
         languageWeight = ps.getFloat(PROP_LANGUAGE_WEIGHT);
         logWip = logMath.linearToLog(ps.getDouble(PROP_WORD_INSERTION_PROBABILITY));
         unigramWeight = ps.getFloat(PROP_UNIGRAM_WEIGHT);
+        mapTrie = ps.getBoolean(PROP_MAP_TRIE);
     }
 
     /**
@@ -226,13 +248,23 @@ public class NgramTrieModel implements LanguageModel {
         }
         unigrams = loader.readUnigrams(counts[0]);
         if (maxDepth > 1) {
-            trie = new NgramTrie(counts, quant.getProbBoSize(), quant.getProbSize());
-            loader.readTrieByteArr(trie.getMem());
+            if (mapTrie && loader.canMapTrie()) {
+                long memLen = NgramTrie.getMemLen(counts, quant.getProbBoSize(), quant.getProbSize());
+                trie = new NgramTrie(counts, quant.getProbBoSize(), quant.getProbSize(), loader.mapTrie(memLen));
+            } else {
+                trie = new NgramTrie(counts, quant.getProbBoSize(), quant.getProbSize());
+                loader.readTrieByteArr(trie.getMem());
+            }
         }
         //string words can be read here
         words = loader.readWords(counts[0]);
         buildUnigramIDMap();
-        ngramProbCache = new LRUCache<WordSequence, Float>(ngramCacheSize);
+        ngramProbCache = new NGramProbabilityCache(ngramCacheSize);
+        cacheKeyBits = NGramProbabilityCache.getBitsPerWord(counts[0]);
+        if (maxDepth * cacheKeyBits > NGramProbabilityCache.KEY_BITS) {
+            logger.warning("Word ids of " + maxDepth + "-grams do not fit into a cache key, disabling the cache");
+            cacheKeyBits = 0;
+        }
         loader.close();
         TimerPool.getTimer(this, "Load LM").stop();
     }
@@ -250,47 +282,21 @@ public class NgramTrieModel implements LanguageModel {
     }
 
     /**
-     * Selects ngram of highest order available for specified word sequence
-     * and extracts probability for it
-     * @param wordSequence - word sequence to score
-     * @param range - range to look bigram in
-     * @param prob - probability of unigram
-     * @return probability of of highest order ngram available
-     */
-    private float getAvailableProb(WordSequence wordSequence, TrieRange range, float prob) {
-        if (!range.isSearchable()) return prob;
-        for (int reverseOrderMinusTwo = wordSequence.size() - 2; reverseOrderMinusTwo >= 0; reverseOrderMinusTwo--) {
-            int orderMinusTwo = wordSequence.size() - 2 - reverseOrderMinusTwo;
-            if (orderMinusTwo + 1 == maxDepth) break;
-            int wordId = unigramIDMap.get(wordSequence.getWord(reverseOrderMinusTwo));
-            float updatedProb = trie.readNgramProb(wordId, orderMinusTwo, range, quant);
-            if (!range.getFound()) break;
-            prob = updatedProb;
-            curDepth++;
-            if (!range.isSearchable()) break;
-        }
-        return prob;
-    }
-
-    /**
-     * Selects backoffs for part of word sequence 
-     * unused in {@link #getAvailableProb(WordSequence, TrieRange, float) getAvailableProb}
-     * Amount of unused words is specified by local variable curDepth
-     * @param wordSequence - full word sequence that is scored
+     * Selects backoffs of the history contexts longer than one word,
+     * they are used where the ngram was not found in
+     * {@link #getProbabilityRaw(int[], int, int, TrieRange, float) getProbabilityRaw}
+     * @param history - ids of the history words, oldest first
+     * @param from - index of the oldest history word to use
+     * @param range - range to reuse for trie traversal
      * @return backoff
      */
-    private float getAvailableBackoff(WordSequence wordSequence) {
+    private float getContextBackoff(int[] history, int from, TrieRange range) {
         float backoff = 0.0f;
-        int wordsNum = wordSequence.size();
-        int wordId = unigramIDMap.get(wordSequence.getWord(wordsNum - 2));
-        TrieRange range = new TrieRange(unigrams[wordId].next, unigrams[wordId + 1].next);
-        if (curDepth == 1) {
-            backoff += unigrams[wordId].backoff;
-        }
+        int wordId = history[history.length - 1];
+        range.set(unigrams[wordId].next, unigrams[wordId + 1].next);
         int sequenceIdx, orderMinusTwo;
-        for (sequenceIdx = wordsNum - 3, orderMinusTwo = 0; sequenceIdx >= 0; sequenceIdx--, orderMinusTwo++) {
-            int tmpWordId = unigramIDMap.get(wordSequence.getWord(sequenceIdx));
-            float tmpBackoff = trie.readNgramBackoff(tmpWordId, orderMinusTwo, range, quant);
+        for (sequenceIdx = history.length - 2, orderMinusTwo = 0; sequenceIdx >= from; sequenceIdx--, orderMinusTwo++) {
+            float tmpBackoff = trie.readNgramBackoff(history[sequenceIdx], orderMinusTwo, range, quant);
             if (!range.getFound()) break;
             backoff += tmpBackoff;
             if (!range.isSearchable()) break;
@@ -299,24 +305,33 @@ public class NgramTrieModel implements LanguageModel {
     }
 
     /**
-     * extracts raw word sequence probability without using caching, 
+     * extracts raw probability of a word following a history without using caching, 
      * making fresh LM trie traversing
-     * @param wordSequence - sequence of words to get probability for
-     * @return probability of specialized sequence of words
+     * @param history - ids of the history words, oldest first
+     * @param from - index of the oldest history word to use
+     * @param wordId - id of the word to get probability for
+     * @param range - range to reuse for trie traversal
+     * @param contextBackoff - backoff of the history if already known, NaN otherwise
+     * @return probability of the word following the history
      */
-    private float getProbabilityRaw(WordSequence wordSequence) {
-        int wordsNum = wordSequence.size();
-        int wordId = unigramIDMap.get(wordSequence.getWord(wordsNum - 1));
-        TrieRange range = new TrieRange(unigrams[wordId].next, unigrams[wordId + 1].next);
+    private float getProbabilityRaw(int[] history, int from, int wordId, TrieRange range, float contextBackoff) {
+        range.set(unigrams[wordId].next, unigrams[wordId + 1].next);
         float prob = unigrams[wordId].prob;
-        curDepth = 1;
-        if (wordsNum == 1)
-            return prob;
+        int depth = 1;
         //find prob of ngrams of higher order if any
-        prob = getAvailableProb(wordSequence, range, prob);
-        if (curDepth < wordsNum) {
+        for (int i = history.length - 1; i >= from && range.isSearchable(); i--) {
+            int orderMinusTwo = history.length - 1 - i;
+            if (orderMinusTwo + 1 == maxDepth) break;
+            float updatedProb = trie.readNgramProb(history[i], orderMinusTwo, range, quant);
+            if (!range.getFound()) break;
+            prob = updatedProb;
+            depth++;
+        }
+        if (depth < history.length - from + 1) {
             //use backoff for rest of ngram
-            prob += getAvailableBackoff(wordSequence);
+            if (depth == 1)
+                prob += unigrams[history[history.length - 1]].backoff;
+            prob += Float.isNaN(contextBackoff) ? getContextBackoff(history, from, range) : contextBackoff;
         }
         return prob;
     }
@@ -347,25 +362,159 @@ public class NgramTrieModel implements LanguageModel {
         if (numberWords > maxDepth) {
             throw new Error("Unsupported NGram: " + wordSequence.size());
         }
+        Word word = wordSequence.getWord(numberWords - 1);
+        int wordId = findWordId(word);
+        if (wordId == UNKNOWN_WORD_ID)
+            throw new Error("Unigram not in LM: " + word);
+        int[] history = new int[numberWords - 1];
+        for (int i = 0; i < history.length; i++)
+            history[i] = findWordId(wordSequence.getWord(i));
+        return getProbability(history, wordId);
+    }
 
-        if (numberWords == maxDepth) {
-            Float probability = ngramProbCache.get(wordSequence);
+    /**
+     * Gets the probability of a word following a history
+     * 
+     * @param history - ids of the history words, oldest first
+     * @param wordId - id of the word
+     * @return the probability of the word following the history. 
+     *         Probability is in logMath log base
+     */
+    @Override
+    public float getProbability(int[] history, int wordId) {
+        if (history.length >= maxDepth) {
+            throw new Error("Unsupported NGram: " + (history.length + 1));
+        }
+        if (wordId < 0 || wordId >= words.length) {
+            throw new Error("Unigram not in LM: " + wordId);
+        }
 
-            if (probability != null) {
+        // full length n-grams are cached by their word ids
+        boolean cached = history.length + 1 == maxDepth && cacheKeyBits > 0;
+        long keyHigh = 0;
+        long keyLow = 0;
+        int from = 0;
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] == UNKNOWN_WORD_ID) {
+                cached = false;
+                from = i + 1;
+            } else {
+                keyHigh = (keyHigh << cacheKeyBits) | (keyLow >>> (64 - cacheKeyBits));
+                keyLow = (keyLow << cacheKeyBits) | history[i];
+            }
+        }
+        keyHigh = (keyHigh << cacheKeyBits) | (keyLow >>> (64 - cacheKeyBits));
+        keyLow = (keyLow << cacheKeyBits) | wordId;
+
+        if (cached) {
+            float probability = ngramProbCache.get(keyHigh, keyLow);
+
+            if (!Float.isNaN(probability)) {
                 ngramHits++;
                 return probability;
             }
             ngramMisses++;
         }
-        float probability = applyWeights(getProbabilityRaw(wordSequence));
-        if (numberWords == maxDepth)
-            ngramProbCache.put(wordSequence, probability);
+        float probability = applyWeights(getProbabilityRaw(history, from, wordId, new TrieRange(0, 0), Float.NaN));
+        if (cached)
+            ngramProbCache.put(keyHigh, keyLow, probability);
         if (logFile != null)
-            logFile.println(wordSequence.toString().replace("][", " ") + " : "
-                    + Float.toString(probability));
+            logProbability(history, from, wordId, probability);
         return probability;
     }
 
+    /**
+     * Gets the probabilities of several words following the same history.
+     * Unknown words and backoffs of the history are resolved once for all
+     * the words, only the descent from each word to the history is done per word.
+     * 
+     * @param history - ids of the history words, oldest first
+     * @param wordIds - ids of the words
+     * @param count - number of words
+     * @param probabilities - receives the probabilities of the words following the history,
+     *         in logMath log base
+     */
+    @Override
+    public void getProbabilities(int[] history, int[] wordIds, int count, float[] probabilities) {
+        if (history.length >= maxDepth) {
+            throw new Error("Unsupported NGram: " + (history.length + 1));
+        }
+
+        boolean cached = history.length + 1 == maxDepth && cacheKeyBits > 0;
+        long historyHigh = 0;
+        long historyLow = 0;
+        int from = 0;
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] == UNKNOWN_WORD_ID) {
+                cached = false;
+                from = i + 1;
+            } else {
+                historyHigh = (historyHigh << cacheKeyBits) | (historyLow >>> (64 - cacheKeyBits));
+                historyLow = (historyLow << cacheKeyBits) | history[i];
+            }
+        }
+
+        TrieRange range = new TrieRange(0, 0);
+        float contextBackoff = from < history.length ? getContextBackoff(history, from, range) : 0.0f;
+        for (int i = 0; i < count; i++) {
+            int wordId = wordIds[i];
+            if (wordId < 0 || wordId >= words.length) {
+                throw new Error("Unigram not in LM: " + wordId);
+            }
+            long keyHigh = (historyHigh << cacheKeyBits) | (historyLow >>> (64 - cacheKeyBits));
+            long keyLow = (historyLow << cacheKeyBits) | wordId;
+
+            if (cached) {
+                float probability = ngramProbCache.get(keyHigh, keyLow);
+
+                if (!Float.isNaN(probability)) {
+                    ngramHits++;
+                    probabilities[i] = probability;
+                    continue;
+                }
+                ngramMisses++;
+            }
+            float probability = applyWeights(getProbabilityRaw(history, from, wordId, range, contextBackoff));
+            if (cached)
+                ngramProbCache.put(keyHigh, keyLow, probability);
+            if (logFile != null)
+                logProbability(history, from, wordId, probability);
+            probabilities[i] = probability;
+        }
+    }
+
+    /**
+     * Does nothing, the trie is in memory or mapped from the file.
+     * 
+     * @param history - ids of the history words, oldest first
+     */
+    @Override
+    public void prefetch(int[] history) {
+    }
+
+    /**
+     * Writes a query to the log file
+     */
+    private void logProbability(int[] history, int from, int wordId, float probability) {
+        StringBuilder ngram = new StringBuilder();
+        for (int i = from; i < history.length; i++)
+            ngram.append(words[history[i]]).append(' ');
+        logFile.println('[' + ngram.append(words[wordId]).toString() + "] : "
+                + Float.toString(probability));
+    }
+
+    /**
+     * Finds the id of a word
+     * 
+     * @param word - the word
+     * @return the id of the word, or UNKNOWN_WORD_ID if the word is not in the model
+     */
+    @Override
+    public int findWordId(Word word) {
+        Integer wordId = unigramIDMap.get(word);
+        return wordId != null ? wordId : UNKNOWN_WORD_ID;
+    }
+
     /**
      * Gets the smear term for the given wordSequence
      * 
@@ -423,7 +572,7 @@ public class NgramTrieModel implements LanguageModel {
         logger.info("LM Cache Size: " + ngramProbCache.size() + " Hits: "
                 + ngramHits + " Misses: " + ngramMisses);
         if (clearCacheAfterUtterance) {
-            ngramProbCache = new LRUCache<WordSequence, Float>(ngramCacheSize);
+            ngramProbCache = new NGramProbabilityCache(ngramCacheSize);
         }
     }
 
@@ -459,6 +608,10 @@ public class NgramTrieModel implements LanguageModel {
         int end;
         boolean found;
         TrieRange(int begin, int end) {
+            set(begin, end);
+        }
+
+        void set(int begin, int end) {
             this.begin = begin;
             this.end = end;
             found = true;
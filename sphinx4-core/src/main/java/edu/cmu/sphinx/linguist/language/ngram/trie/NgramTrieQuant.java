@@ -1,5 +1,7 @@
 package edu.cmu.sphinx.linguist.language.ngram.trie;
 
+import java.util.Arrays;
+
 /**
  * Class for ngram weights quantation.
  * Stores quantation tables for each ngram order for probabilities and backoffs,
@@ -50,6 +52,47 @@ public class NgramTrieQuant {
         tables[index] = table;
     }
 
+    /**
+     * Getter that is used during quantation writing
+     * @param order - ngrams order which quantation table corresponds to
+     * @param isProb - specifies if table for probability is requested (backoffs otherwise)
+     * @return array of weights used as quantation table
+     */
+    public float[] getTable(int order, boolean isProb) {
+        int index = (order - 2) * 2;
+        if (!isProb) index++;
+        return tables[index];
+    }
+
+    /**
+     * Trains quantation table on sample of weights. Sorted weights are split
+     * into bins of equal size and each bin is represented by its mean, so
+     * table keeps up to its length of distinct weights exactly.
+     * @param weights - sample of weights, it is sorted in place
+     * @param count - number of weights in sample
+     * @param order - ngrams order which quantation table corresponds to
+     * @param isProb - specifies if table is trained for probability (backoffs otherwise)
+     */
+    public void train(float[] weights, int count, int order, boolean isProb) {
+        float[] table = new float[isProb ? getProbTableLen() : getBackoffTableLen()];
+        Arrays.sort(weights, 0, count);
+        int start = 0;
+        for (int i = 0; i < table.length; i++) {
+            int finish = (int) ((long) count * (i + 1) / table.length);
+            if (finish > start) {
+                double sum = 0.0;
+                for (int j = start; j < finish; j++)
+                    sum += weights[j];
+                table[i] = (float) (sum / (finish - start));
+            } else {
+                //empty bins repeat previous one, so table stays sorted
+                table[i] = i > 0 ? table[i - 1] : count > 0 ? weights[0] : 0.0f;
+            }
+            start = finish;
+        }
+        setTable(table, order, isProb);
+    }
+
     /**
      * Getter for length of probability quantation table.
      * @return length of quantation table.
@@ -108,6 +151,72 @@ public class NgramTrieQuant {
         return tables[tableIdx][encodedVal];
     }
 
+    /**
+     * Returns index of table entry that is nearest to specified weight
+     * @param tableIdx - index of table to look in
+     * @param value - weight to encode
+     * @return encoded weight
+     */
+    private int binsEncode(int tableIdx, float value) {
+        float[] table = tables[tableIdx];
+        int begin = 0;
+        int end = table.length;
+        while (begin < end) {
+            int mid = (begin + end) >>> 1;
+            if (table[mid] < value)
+                begin = mid + 1;
+            else
+                end = mid;
+        }
+        if (begin == table.length)
+            return begin - 1;
+        if (begin > 0 && value - table[begin - 1] < table[begin] - value)
+            return begin - 1;
+        return begin;
+    }
+
+    /**
+     * Encodes probability and writes it into provided trie bit array
+     * for specific ngram, see {@link #readProb(NgramTrieBitReader, long, long, int)}
+     * @param bitArr - trie bit array
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr that is calculated according to ngram index
+     * @param orderMinusTwo - order of ngram minus two
+     * @param prob - probability of ngram
+     */
+    public void writeProb(NgramTrieBitarr bitArr, long memPtr, long bitOffset, int orderMinusTwo, float prob) {
+        switch (quantType) {
+        case QUANT_16:
+            int tableIdx = orderMinusTwo * 2;
+            if (tableIdx < tables.length - 1)
+                bitOffset += backoffBits;
+            bitArr.writeInt(memPtr, bitOffset, binsEncode(tableIdx, prob));
+            break;
+        default:
+            throw new Error("Unsupported quantization type: " + quantType);
+        }
+    }
+
+    /**
+     * Encodes backoff and writes it into provided trie bit array
+     * for specific ngram, see {@link #readBackoff(NgramTrieBitReader, long, long, int)}
+     * @param bitArr - trie bit array
+     * @param memPtr - memory pointer for specific ngram order
+     * @param bitOffset - offset from memPtr that is calculated according to ngram index
+     * @param orderMinusTwo - order of ngram minus two
+     * @param backoff - backoff of ngram
+     */
+    public void writeBackoff(NgramTrieBitarr bitArr, long memPtr, long bitOffset, int orderMinusTwo, float backoff) {
+        switch (quantType) {
+        case QUANT_16:
+            int tableIdx = orderMinusTwo * 2 + 1;
+            bitArr.writeInt(memPtr, bitOffset, binsEncode(tableIdx, backoff));
+            break;
+        default:
+            throw new Error("Unsupported quantization type: " + quantType);
+        }
+    }
+
     /**
      * Reads encoded probability from provided trie bit array and decodes it into actual value
      * for specific ngram
@@ -117,7 +226,7 @@ public class NgramTrieQuant {
      * @param orderMinusTwo - order of ngram minus two
      * @return probability of ngram
      */
-    public float readProb(NgramTrieBitarr bitArr, int memPtr, int bitOffset, int orderMinusTwo) {
+    public float readProb(NgramTrieBitReader bitArr, long memPtr, long bitOffset, int orderMinusTwo) {
         switch (quantType) {
         case NO_QUANT:
             return bitArr.readNegativeFloat(memPtr, bitOffset);
@@ -141,7 +250,7 @@ public class NgramTrieQuant {
      * @param orderMinusTwo - order of ngram minus two
      * @return backoffs of ngram
      */
-    public float readBackoff(NgramTrieBitarr bitArr, int memPtr, int bitOffset, int orderMinusTwo) {
+    public float readBackoff(NgramTrieBitReader bitArr, long memPtr, long bitOffset, int orderMinusTwo) {
         switch (quantType) {
         case NO_QUANT:
             bitOffset += 31;
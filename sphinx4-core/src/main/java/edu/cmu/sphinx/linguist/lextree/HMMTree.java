@@ -24,6 +24,18 @@ import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.Utilities;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -36,20 +48,25 @@ import java.util.logging.Logger;
 // objects when building the tree of nodes are very different from once
 // we have built it. When building, we need to easily add successor
 // nodes and quickly identify duplicate children nodes. After the tree
-// is built we just need to quickly identify successors.  We want the
-// flexibility of a map to manage successors at startup, but we don't
-// want the space penalty (at least 5 32 bit fields per map), instead
-// we'd like an array.  To support this dual mode, we manage the
-// successors in an Object which can either be a Map or a List
-// depending upon whether the node has been frozen or not.
+// is built we just need to quickly identify successors.  Most nodes
+// have only a few children, so a list that is searched for duplicates
+// is enough at startup, a map costs much more space (at least 5 32 bit
+// fields per map and 8 per entry) and is only used for the nodes with
+// many children. After the tree is built we'd like an array.  To
+// support this mode, we manage the successors in an Object which can
+// either be a List, a Map or an array depending upon the number of
+// successors and whether the node has been frozen or not.
 
 class Node {
 
     private static int nodeCount;
     private static int successorCount;
+
+    // the number of successors kept in a list, more are kept in a map
+    private final static int MAX_LIST_SIZE = 8;
     
     /** 
-     * This can be either Map during tree construction or Array after
+     * This can be either List or Map during tree construction or Array after
      * tree freeze. Conversion to array helps to save memory.
      */
     private Object successors;
@@ -96,49 +113,87 @@ class Node {
      * @param key the object key
      * @return the node containing the successors
      */
+    @SuppressWarnings({"unchecked"})
     private Node getSuccessor(Object key) {
-        Map<Object, Node> successors = getSuccessorMap();
-        return successors.get(key);
+        if (successors instanceof Map<?, ?>) {
+            return ((Map<Object, Node>) successors).get(key);
+        }
+        for (Node successor : getSuccessorList()) {
+            if (successor.getKey().equals(key)) {
+                return successor;
+            }
+        }
+        return null;
     }
 
 
     /**
-     * Add the child to the set of successors
+     * Add the child to the set of successors, it replaces a child with the same key
      *
      * @param key   the object key
      * @param child the child to add
      */
+    @SuppressWarnings({"unchecked"})
     void putSuccessor(Object key, Node child) {
-        Map<Object, Node> successors = getSuccessorMap();
-        successors.put(key, child);
+        if (successors instanceof Map<?, ?>) {
+            ((Map<Object, Node>) successors).put(key, child);
+            return;
+        }
+        List<Node> list = getSuccessorList();
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getKey().equals(key)) {
+                list.set(i, child);
+                return;
+            }
+        }
+        list.add(child);
+        if (list.size() > MAX_LIST_SIZE) {
+            Map<Object, Node> map = new LinkedHashMap<Object, Node>();
+            for (Node node : list) {
+                map.put(node.getKey(), node);
+            }
+            successors = map;
+        }
     }
 
 
     /**
-     * Gets the successor map for this node
+     * Returns the key of this node among the successors of its parent
      *
-     * @return the successor map
+     * @return the key
+     */
+    Object getKey() {
+        return this;
+    }
+
+
+    /**
+     * Gets the successor list for this node
+     *
+     * @return the successor list
      */
     @SuppressWarnings({"unchecked"})
-    public Map<Object, Node> getSuccessorMap() {
+    private List<Node> getSuccessorList() {
         if (successors == null) {
-            successors = new HashMap<Object, Node>(4);
+            successors = new ArrayList<Node>(2);
         }
 
-        assert successors instanceof Map;
-        return (Map<Object, Node>) successors;
+        assert successors instanceof List;
+        return (List<Node>) successors;
     }
 
 
-    /** Freeze the node. Convert the successor map into an array list */
+    /** Freeze the node. Convert the successor list or map into an array */
+    @SuppressWarnings({"unchecked"})
     void freeze() {
-        if (successors instanceof Map<?,?>) {
-            Map<Object, Node> map = getSuccessorMap();
-            successors = map.values().toArray(new Node[map.size()]);
-            for (Node node : map.values()) {
+        if (successors instanceof List<?> || successors instanceof Map<?, ?>) {
+            Collection<Node> nodes = successors instanceof Map<?, ?> ?
+                    ((Map<Object, Node>) successors).values() : (List<Node>) successors;
+            successors = nodes.toArray(new Node[nodes.size()]);
+            for (Node node : nodes) {
                 node.freeze();
             }
-            successorCount += map.size();
+            successorCount += nodes.size();
         }
     }
 
@@ -202,11 +257,6 @@ class Node {
     }
 
 
-    void addSuccessor(WordNode wordNode) {
-        putSuccessor(wordNode, wordNode);
-    }
-
-
     /**
      * Adds an EndNode to the set of successors for this node If a node similar to the child has already been added, we
      * use the previously added node, otherwise we add this.
@@ -216,10 +266,9 @@ class Node {
      * @return the node that holds the endNode (new or old)
      */
     EndNode addSuccessor(EndNode child, float probability) {
-        Unit baseUnit = child.getBaseUnit();
-        EndNode matchingChild = (EndNode) getSuccessor(baseUnit);
+        EndNode matchingChild = (EndNode) getSuccessor(child.getKey());
         if (matchingChild == null) {
-            putSuccessor(baseUnit, child);
+            putSuccessor(child.getKey(), child);
         } else {
             if (matchingChild.getUnigramProbability() < probability) {
                 matchingChild.setUnigramProbability(probability);
@@ -256,13 +305,23 @@ class Node {
      * @return the set of successor nodes
      */
     Node[] getSuccessors() {
-        if (successors instanceof Map<?, ?>) {
+        if (successors instanceof List<?> || successors instanceof Map<?, ?>) {
             freeze();
         }
         return (Node[])successors;
     }
 
 
+    /**
+     * Sets the successors of a frozen node
+     *
+     * @param successors the successor nodes
+     */
+    void setSuccessors(Node[] successors) {
+        this.successors = successors;
+    }
+
+
     /**
      * Returns the string representation for this object
      *
@@ -325,6 +384,12 @@ class WordNode extends Node {
     }
 
 
+    @Override
+    Pronunciation getKey() {
+        return pronunciation;
+    }
+
+
     /**
      * Returns the successors for this node
      *
@@ -415,6 +480,7 @@ abstract class UnitNode extends Node {
     abstract Unit getBaseUnit();
 
 
+    @Override
     abstract Object getKey();
 
 
@@ -451,11 +517,12 @@ class HMMNode extends UnitNode {
     // There can potentially be a large number of nodes (millions),
     // therefore it is important to conserve space as much as
     // possible.  While building the HMMNodes, we keep right contexts
-    // in a set to allow easy pruning of duplicates.  Once the tree is
-    // entirely built, we no longer need to manage the right contexts
-    // as a set, a simple array will do. The freeze method converts
-    // the set to the array of units.  This rcSet object holds the set
-    // during construction and the array after the freeze.
+    // in a bit set of unit ids to allow easy pruning of duplicates.
+    // Once the tree is entirely built, we no longer need to manage the
+    // right contexts as a set, a simple array will do. The tree
+    // replaces the set by the array of units, which is shared among
+    // all nodes with the same right contexts.  This rcSet object holds
+    // the set during construction and the array after the freeze.
 
     private Object rcSet;
 
@@ -535,35 +602,22 @@ class HMMNode extends UnitNode {
      * @param rc the right context.
      */
     void addRC(Unit rc) {
-        getRCSet().add(rc);
-    }
-
-
-    /** Freeze this node. Convert the set into an array to reduce memory overhead */
-    @Override
-    @SuppressWarnings({"unchecked"})
-    void freeze() {
-        super.freeze();
-        if (rcSet instanceof Set) {
-            Set<Unit> set = (Set<Unit>) rcSet;
-            rcSet = set.toArray(new Unit[set.size()]);
-        }
+        getRCSet().set(rc.getBaseID());
     }
 
 
     /**
-     * Gets the rc as a set. If we've already been frozen it is an error
+     * Gets the rc as a set of unit ids. If we've already been frozen it is an error
      *
      * @return the set of right contexts
      */
-    @SuppressWarnings({"unchecked"})
-    private Set<Unit> getRCSet() {
+    BitSet getRCSet() {
         if (rcSet == null) {
-            rcSet = new HashSet<Unit>();
+            rcSet = new BitSet();
         }
 
-        assert rcSet instanceof HashSet;
-        return (Set<Unit>) rcSet;
+        assert rcSet instanceof BitSet;
+        return (BitSet) rcSet;
     }
 
 
@@ -573,11 +627,19 @@ class HMMNode extends UnitNode {
      * @return the set of right contexts
      */
     Unit[] getRC() {
-        if (rcSet instanceof HashSet<?>) {
-            freeze();
-        }
+        assert !(rcSet instanceof BitSet);
         return (Unit[]) rcSet;
     }
+
+
+    /**
+     * Freezes the right contexts of this node
+     *
+     * @param rc the right contexts
+     */
+    void setRC(Unit[] rc) {
+        rcSet = rc;
+    }
 }
 
 
@@ -585,7 +647,8 @@ class EndNode extends UnitNode {
 
     final Unit baseUnit;
     final Unit leftContext;
-    final Integer key;
+    final int key;
+    private HMMNode[] hmmNodes;
 
 
     /**
@@ -630,6 +693,26 @@ class EndNode extends UnitNode {
     }
 
 
+    /**
+     * Returns the hmm nodes of the last unit in all right contexts, see {@link HMMTree#getHMMNodes(EndNode)}
+     *
+     * @return the hmm nodes or null if they were not created yet
+     */
+    HMMNode[] getHMMNodes() {
+        return hmmNodes;
+    }
+
+
+    /**
+     * Sets the hmm nodes of the last unit in all right contexts
+     *
+     * @param hmmNodes the hmm nodes
+     */
+    void setHMMNodes(HMMNode[] hmmNodes) {
+        this.hmmNodes = hmmNodes;
+    }
+
+
     @Override
     HMMPosition getPosition() {
         return HMMPosition.END;
@@ -676,12 +759,29 @@ class HMMTree {
     private boolean debug;
     private final float languageWeight;
     
-    private final Map<Object, HMMNode[]> endNodeMap;
+    // the entry point units by their ids and the shared arrays of right
+    // contexts by the sets of their ids
+    private Unit[] entryPointUnits;
+    private Map<BitSet, Unit[]> rcMap = new HashMap<BitSet, Unit[]>();
+
+    // the hmms of the last units of the words in all right contexts and
+    // their right contexts, indexed by the base unit and the left context
+    private BitSet endNodeIndices = new BitSet();
+    private HMM[][] endNodeHMMs;
+    private Unit[][][] endNodeRCs;
     private final Map<Pronunciation, WordNode> wordNodeMap;
     
     private WordNode sentenceEndWordNode;
     private Logger logger;
 
+    // the version of the cache file and the types of the nodes in it
+    private final static int CACHE_VERSION = 1;
+    private final static byte NODE = 0;
+    private final static byte HMM_NODE = 1;
+    private final static byte END_NODE = 2;
+    private final static byte WORD_NODE = 3;
+    private final static byte INITIAL_WORD_NODE = 4;
+
 
     /**
      * Creates the HMMTree
@@ -694,16 +794,44 @@ class HMMTree {
      */
     HMMTree(HMMPool pool, Dictionary dictionary, LanguageModel lm,
             boolean addFillerWords, float languageWeight) {
+        this(pool, dictionary, lm, addFillerWords, languageWeight, null);
+    }
+
+
+    /**
+     * Creates the HMMTree. If a cache file is given, the tree is loaded from it when it was written for the same
+     * words, pronunciations, unigram probabilities and acoustic model. Otherwise the tree is compiled and written to
+     * the cache file.
+     *
+     * @param pool           the pool of HMMs and units
+     * @param dictionary     the dictionary containing the pronunciations
+     * @param lm             the source of the set of words to add to the lex tree
+     * @param addFillerWords if <code>false</code> add filler words
+     * @param languageWeight the languageWeight
+     * @param cacheFile      the file to cache the compiled tree in, or null
+     */
+    HMMTree(HMMPool pool, Dictionary dictionary, LanguageModel lm,
+            boolean addFillerWords, float languageWeight, File cacheFile) {
         this.hmmPool = pool;
         this.dictionary = dictionary;
         this.lm = lm;
-        this.endNodeMap = new HashMap<Object, HMMNode[]>();
         this.wordNodeMap = new HashMap<Pronunciation, WordNode>();
         this.addFillerWords = addFillerWords;
         this.languageWeight = languageWeight;
-        
+
         logger = Logger.getLogger(HMMTree.class.getSimpleName());
+        if (cacheFile == null) {
+            compile();
+            return;
+        }
+
+        byte[] key = getCacheKey();
+        if (cacheFile.exists() && load(cacheFile, key)) {
+            freeze();
+            return;
+        }
         compile();
+        save(cacheFile, key);
     }
 
 
@@ -721,40 +849,94 @@ class HMMTree {
 
 
     /**
-     * Gets the  set of hmm nodes associated with the given end node
+     * Gets the  set of hmm nodes associated with the given end node. The hmms come from the end node table, the nodes
+     * are created on the first request and kept in the end node.
      *
      * @param endNode the end node
      * @return an array of associated hmm nodes
      */
     public HMMNode[] getHMMNodes(EndNode endNode) {
-        HMMNode[] results = endNodeMap.get(endNode.getKey());
+        HMMNode[] results = endNode.getHMMNodes();
         if (results == null) {
-            // System.out.println("Filling cache for " + endNode.getKey()
-            //        + " size " + endNodeMap.size());
-            Map<HMM, HMMNode> resultMap = new HashMap<HMM, HMMNode>();
-            Unit baseUnit = endNode.getBaseUnit();
-            Unit lc = endNode.getLeftContext();
-            for (Unit rc : entryPoints) {
+            int index = getEndNodeIndex(endNode.getBaseUnit(), endNode.getLeftContext());
+            HMM[] hmms = endNodeHMMs[index];
+            Unit[][] rcs = endNodeRCs[index];
+            results = new HMMNode[hmms.length];
+            for (int i = 0; i < hmms.length; i++) {
+                results[i] = new HMMNode(hmms[i], LogMath.LOG_ONE);
+                results[i].setRC(rcs[i]);
+                results[i].setSuccessors(endNode.getSuccessors());
+            }
+            endNode.setHMMNodes(results);
+        }
+        return results;
+    }
+
+
+    private int getEndNodeIndex(Unit baseUnit, Unit lc) {
+        return baseUnit.getBaseID() * hmmPool.getNumCIUnits() + lc.getBaseID();
+    }
+
+
+    /**
+     * Creates the end node table. For the base unit and left context of every end node it holds the hmms of the unit
+     * in all right contexts that begin words, together with the right contexts each hmm is used for.
+     */
+    private void createEndNodeTable() {
+        int numCIUnits = hmmPool.getNumCIUnits();
+        endNodeHMMs = new HMM[numCIUnits * numCIUnits][];
+        endNodeRCs = new Unit[numCIUnits * numCIUnits][][];
+        for (int i = endNodeIndices.nextSetBit(0); i >= 0; i = endNodeIndices.nextSetBit(i + 1)) {
+            Unit baseUnit = hmmPool.getUnit(i / numCIUnits);
+            Unit lc = hmmPool.getUnit(i % numCIUnits);
+            Map<HMM, BitSet> rcSets = new LinkedHashMap<HMM, BitSet>();
+            for (Unit rc : entryPointUnits) {
+                if (rc == null)
+                    continue;
                 HMM hmm = hmmPool.getHMM(baseUnit, lc, rc, HMMPosition.END);
-                HMMNode hmmNode = resultMap.get(hmm);
-                if (hmmNode == null) {
-                    hmmNode = new HMMNode(hmm, LogMath.LOG_ONE);
-                    resultMap.put(hmm, hmmNode);
-                }
-                hmmNode.addRC(rc);
-                for (Node node : endNode.getSuccessors()) {
-                    WordNode wordNode = (WordNode)node;
-                    hmmNode.addSuccessor(wordNode);
+                BitSet rcSet = rcSets.get(hmm);
+                if (rcSet == null) {
+                    rcSet = new BitSet();
+                    rcSets.put(hmm, rcSet);
                 }
+                rcSet.set(rc.getBaseID());
             }
+            endNodeHMMs[i] = rcSets.keySet().toArray(new HMM[rcSets.size()]);
+            endNodeRCs[i] = new Unit[rcSets.size()][];
+            int j = 0;
+            for (BitSet rcSet : rcSets.values())
+                endNodeRCs[i][j++] = getRC(rcSet);
+        }
+    }
 
-            // cache it
-            results = resultMap.values().toArray(new HMMNode[resultMap.size()]);
-            endNodeMap.put(endNode.getKey(), results);
+
+    /**
+     * Gets the array of the right contexts with the given ids, the arrays are shared among the nodes
+     *
+     * @param rcSet the ids of the right contexts
+     * @return the right contexts ordered by their ids
+     */
+    private Unit[] getRC(BitSet rcSet) {
+        Unit[] rc = rcMap.get(rcSet);
+        if (rc == null) {
+            rc = new Unit[rcSet.cardinality()];
+            int j = 0;
+            for (int i = rcSet.nextSetBit(0); i >= 0; i = rcSet.nextSetBit(i + 1))
+                rc[j++] = entryPointUnits[i];
+            rcMap.put(rcSet, rc);
         }
+        return rc;
+    }
 
-        // System.out.println("GHN: " + endNode + " " + results.length);
-        return results;
+
+    /** Indexes the entry point units by their ids */
+    private void createEntryPointUnits() {
+        int maxID = 0;
+        for (Unit unit : entryPoints)
+            maxID = Math.max(maxID, unit.getBaseID());
+        entryPointUnits = new Unit[maxID + 1];
+        for (Unit unit : entryPoints)
+            entryPointUnits[unit.getBaseID()] = unit;
     }
 
 
@@ -779,6 +961,7 @@ class HMMTree {
     /** Compiles the vocabulary into an HMM Tree */
     private void compile() {
         collectEntryAndExitUnits();
+        createEntryPointUnits();
         entryPointTable = new EntryPointTable(entryPoints);
         addWords();
         entryPointTable.createEntryPointMaps();
@@ -841,12 +1024,14 @@ class HMMTree {
      */
     private void freeze() {
         entryPointTable.freeze();
+        createEndNodeTable();
         dictionary = null;
         lm = null;
         exitPoints = null;
         allWords = null;
         wordNodeMap.clear();
-        endNodeMap.clear();
+        rcMap = null;
+        endNodeIndices = null;
     }
 
 
@@ -911,6 +1096,7 @@ class HMMTree {
             // now add the last unit as an end unit
             baseUnit = units[units.length - 1];
             EndNode endNode = new EndNode(baseUnit, lc, probability);
+            endNodeIndices.set(getEndNodeIndex(baseUnit, lc));
             curNode = curNode.addSuccessor(endNode, probability);
             wordNode = curNode.addSuccessor(pronunciation, probability, wordNodeMap);
             if (wordNode.getWord().isSentenceEndWord()) {
@@ -976,6 +1162,328 @@ class HMMTree {
     }
 
 
+    /**
+     * Computes the key of the cache file, which is a digest of the words with their pronunciations and unigram
+     * probabilities and of the HMMs of the acoustic model.
+     *
+     * @return the key
+     */
+    private byte[] getCacheKey() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, digest));
+
+        List<Word> words = new ArrayList<Word>(getAllWords());
+        Collections.sort(words, new Comparator<Word>() {
+            public int compare(Word word1, Word word2) {
+                return word1.getSpelling().compareTo(word2.getSpelling());
+            }
+        });
+        try {
+            out.writeInt(CACHE_VERSION);
+            out.writeBoolean(addFillerWords);
+            out.writeFloat(languageWeight);
+            for (Word word : words) {
+                out.writeUTF(word.getSpelling());
+                out.writeFloat(getWordUnigramProbability(word));
+                for (Pronunciation pronunciation : word.getPronunciations()) {
+                    out.writeInt(pronunciation.getUnits().length);
+                    for (Unit unit : pronunciation.getUnits())
+                        out.writeUTF(unit.getName());
+                }
+            }
+            out.writeInt(hmmPool.getNumCIUnits());
+            for (Iterator<HMM> i = hmmPool.getModel().getHMMIterator(); i.hasNext();) {
+                HMM hmm = i.next();
+                out.writeUTF(hmm.getUnit().toString());
+                out.writeInt(hmm.getPosition().ordinal());
+                out.writeInt(hmm.getOrder());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return digest.digest();
+    }
+
+
+    /**
+     * Writes the compiled tree to the cache file. The nodes are written as a table, the successors of the nodes and
+     * the entry points as indices into it. HMMs are written as their ids in the HMM pool, units as their base ids
+     * and pronunciations as the spelling of the word and their index. Failures are only logged.
+     *
+     * @param cacheFile the cache file
+     * @param key       the key of the tree
+     */
+    private void save(File cacheFile, byte[] key) {
+        // number the nodes, the parent of the initial node comes before it
+        Map<Node, Integer> nodeIds = new IdentityHashMap<Node, Integer>();
+        List<Node> nodes = new ArrayList<Node>();
+        if (initialNode != null) {
+            addNode(initialNode.getParent(), nodeIds, nodes);
+            addNode(initialNode, nodeIds, nodes);
+        }
+        if (sentenceEndWordNode != null)
+            addNode(sentenceEndWordNode, nodeIds, nodes);
+        for (EntryPoint ep : entryPointTable.entryPoints.values())
+            for (Node node : ep.unitToEntryPointMap.values())
+                addNode(node, nodeIds, nodes);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (!(node instanceof WordNode) && node.getSuccessors() != null)
+                for (Node successor : node.getSuccessors())
+                    addNode(successor, nodeIds, nodes);
+        }
+
+        // the ids of the HMMs in the pool together with their positions
+        HMMPosition[] positions = HMMPosition.values();
+        Map<HMM, Integer> hmmIds = new IdentityHashMap<HMM, Integer>();
+        for (Node node : nodes)
+            if (node instanceof HMMNode)
+                hmmIds.put(((HMMNode) node).getHMM(), -1);
+        int numIds = hmmPool.getNumCIUnits() * hmmPool.getNumCIUnits() * hmmPool.getNumCIUnits();
+        for (int id = 0; id < numIds; id++) {
+            for (int j = 0; j < positions.length; j++) {
+                HMM hmm = hmmPool.getHMM(id, positions[j]);
+                Integer hmmId = hmm != null ? hmmIds.get(hmm) : null;
+                if (hmmId != null && hmmId < 0)
+                    hmmIds.put(hmm, id * positions.length + j);
+            }
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(CACHE_VERSION);
+                out.write(key);
+                out.writeInt(entryPoints.size());
+                for (Unit unit : entryPoints)
+                    writeUnit(out, unit);
+
+                out.writeInt(nodes.size());
+                for (Node node : nodes) {
+                    if (node instanceof InitialWordNode) {
+                        out.writeByte(INITIAL_WORD_NODE);
+                        writePronunciation(out, ((WordNode) node).getPronunciation());
+                        out.writeInt(nodeIds.get(((InitialWordNode) node).getParent()));
+                    } else if (node instanceof WordNode) {
+                        out.writeByte(WORD_NODE);
+                        writePronunciation(out, ((WordNode) node).getPronunciation());
+                    } else if (node instanceof HMMNode) {
+                        HMMNode hmmNode = (HMMNode) node;
+                        int hmmId = hmmIds.get(hmmNode.getHMM());
+                        if (hmmId < 0)
+                            throw new IOException("HMM " + hmmNode.getHMM() + " is not in the pool");
+                        out.writeByte(HMM_NODE);
+                        out.writeInt(hmmId);
+                        Unit[] rc = hmmNode.getRC();
+                        out.writeInt(rc != null ? rc.length : -1);
+                        if (rc != null)
+                            for (Unit unit : rc)
+                                writeUnit(out, unit);
+                    } else if (node instanceof EndNode) {
+                        out.writeByte(END_NODE);
+                        writeUnit(out, ((EndNode) node).getBaseUnit());
+                        writeUnit(out, ((EndNode) node).getLeftContext());
+                    } else {
+                        out.writeByte(NODE);
+                    }
+                    out.writeFloat(node.getUnigramProbability());
+                }
+                for (Node node : nodes) {
+                    Node[] successors = node instanceof WordNode ? null : node.getSuccessors();
+                    out.writeInt(successors != null ? successors.length : -1);
+                    if (successors != null)
+                        for (Node successor : successors)
+                            out.writeInt(nodeIds.get(successor));
+                }
+
+                out.writeInt(entryPointTable.entryPoints.size());
+                for (EntryPoint ep : entryPointTable.entryPoints.values()) {
+                    writeUnit(out, ep.baseUnit);
+                    out.writeInt(ep.unitToEntryPointMap.size());
+                    for (Map.Entry<Unit, Node> entry : ep.unitToEntryPointMap.entrySet()) {
+                        writeUnit(out, entry.getKey());
+                        out.writeInt(nodeIds.get(entry.getValue()));
+                    }
+                }
+                out.writeInt(initialNode != null ? nodeIds.get(initialNode) : -1);
+                out.writeInt(sentenceEndWordNode != null ? nodeIds.get(sentenceEndWordNode) : -1);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(cacheFile) && !(cacheFile.delete() && tmpFile.renameTo(cacheFile)))
+                throw new IOException("Can't rename " + tmpFile);
+            logger.info("Wrote lex tree of " + nodes.size() + " nodes to " + cacheFile);
+        } catch (IOException e) {
+            logger.warning("Failed to write lex tree to " + cacheFile + ": " + e);
+            tmpFile.delete();
+        }
+    }
+
+
+    private static void addNode(Node node, Map<Node, Integer> nodeIds, List<Node> nodes) {
+        if (!nodeIds.containsKey(node)) {
+            nodeIds.put(node, nodes.size());
+            nodes.add(node);
+        }
+    }
+
+
+    private void writeUnit(DataOutputStream out, Unit unit) throws IOException {
+        if (hmmPool.getUnit(unit.getBaseID()) == null)
+            throw new IOException("Unit " + unit + " is not in the pool");
+        out.writeInt(unit.getBaseID());
+    }
+
+
+    private void writePronunciation(DataOutputStream out, Pronunciation pronunciation) throws IOException {
+        Pronunciation[] pronunciations = pronunciation.getWord().getPronunciations();
+        int index = 0;
+        while (index < pronunciations.length && pronunciations[index] != pronunciation)
+            index++;
+        if (index == pronunciations.length)
+            throw new IOException("Pronunciation " + pronunciation + " is not in the dictionary");
+        out.writeUTF(pronunciation.getWord().getSpelling());
+        out.writeInt(index);
+    }
+
+
+    /**
+     * Loads the compiled tree from the cache file
+     *
+     * @param cacheFile the cache file
+     * @param key       the expected key of the tree
+     * @return true if the tree was loaded, false if the file was written for another tree or can't be read
+     */
+    private boolean load(File cacheFile, byte[] key) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                byte[] fileKey = new byte[key.length];
+                if (in.readInt() == CACHE_VERSION)
+                    in.readFully(fileKey);
+                if (!Arrays.equals(key, fileKey)) {
+                    logger.info("Lex tree in " + cacheFile + " is out of date, compiling it again");
+                    return false;
+                }
+
+                for (int i = in.readInt(); i > 0; i--)
+                    entryPoints.add(readUnit(in));
+                createEntryPointUnits();
+
+                HMMPosition[] positions = HMMPosition.values();
+                Node[] nodes = new Node[in.readInt()];
+                for (int i = 0; i < nodes.length; i++) {
+                    switch (in.readByte()) {
+                        case INITIAL_WORD_NODE:
+                            Pronunciation pronunciation = readPronunciation(in);
+                            nodes[i] = new InitialWordNode(pronunciation, (HMMNode) nodes[in.readInt()]);
+                            break;
+                        case WORD_NODE:
+                            nodes[i] = new WordNode(readPronunciation(in), LogMath.LOG_ONE);
+                            break;
+                        case HMM_NODE:
+                            int hmmId = in.readInt();
+                            HMM hmm = hmmPool.getHMM(hmmId / positions.length, positions[hmmId % positions.length]);
+                            if (hmm == null)
+                                throw new IOException("HMM " + hmmId + " is not in the pool");
+                            HMMNode hmmNode = new HMMNode(hmm, LogMath.LOG_ONE);
+                            int numRC = in.readInt();
+                            if (numRC >= 0) {
+                                BitSet rcSet = new BitSet();
+                                for (int j = 0; j < numRC; j++)
+                                    rcSet.set(readUnit(in).getBaseID());
+                                hmmNode.setRC(getRC(rcSet));
+                            }
+                            nodes[i] = hmmNode;
+                            break;
+                        case END_NODE:
+                            Unit baseUnit = readUnit(in);
+                            Unit lc = readUnit(in);
+                            endNodeIndices.set(getEndNodeIndex(baseUnit, lc));
+                            nodes[i] = new EndNode(baseUnit, lc, LogMath.LOG_ONE);
+                            break;
+                        case NODE:
+                            nodes[i] = new Node(LogMath.LOG_ONE);
+                            break;
+                        default:
+                            throw new IOException("Unknown node type");
+                    }
+                    nodes[i].setUnigramProbability(in.readFloat());
+                }
+                for (Node node : nodes) {
+                    int numSuccessors = in.readInt();
+                    if (numSuccessors >= 0) {
+                        Node[] successors = new Node[numSuccessors];
+                        for (int j = 0; j < numSuccessors; j++)
+                            successors[j] = nodes[in.readInt()];
+                        node.setSuccessors(successors);
+                    }
+                }
+
+                EntryPointTable table = new EntryPointTable(entryPoints);
+                for (int i = in.readInt(); i > 0; i--) {
+                    EntryPoint ep = table.getEntryPoint(readUnit(in));
+                    for (int j = in.readInt(); j > 0; j--) {
+                        Unit lc = readUnit(in);
+                        ep.unitToEntryPointMap.put(lc, nodes[in.readInt()]);
+                    }
+                }
+                int initialId = in.readInt();
+                int sentenceEndId = in.readInt();
+
+                entryPointTable = table;
+                initialNode = initialId >= 0 ? (InitialWordNode) nodes[initialId] : null;
+                sentenceEndWordNode = sentenceEndId >= 0 ? (WordNode) nodes[sentenceEndId] : null;
+                logger.info("Loaded lex tree of " + nodes.length + " nodes from " + cacheFile);
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to load lex tree from " + cacheFile + ": " + e);
+        } catch (RuntimeException e) {
+            // a corrupt file, such as with indices out of range
+            logger.warning("Failed to load lex tree from " + cacheFile + ": " + e);
+        }
+        entryPoints.clear();
+        rcMap.clear();
+        endNodeIndices.clear();
+        return false;
+    }
+
+
+    private Unit readUnit(DataInputStream in) throws IOException {
+        Unit unit = hmmPool.getUnit(in.readInt());
+        if (unit == null)
+            throw new IOException("Unit is not in the pool");
+        return unit;
+    }
+
+
+    private Pronunciation readPronunciation(DataInputStream in) throws IOException {
+        String spelling = in.readUTF();
+        int index = in.readInt();
+        Word word = dictionary.getWord(spelling);
+        if (word == null || index >= word.getPronunciations().length)
+            throw new IOException("Pronunciation of " + spelling + " is not in the dictionary");
+        return word.getPronunciations()[index];
+    }
+
+
     /** The EntryPoint table is used to manage the set of entry points into the lex tree. */
     class EntryPointTable {
 
@@ -1128,9 +1636,11 @@ class HMMTree {
         private Collection<Unit> getEntryPointRC() {
             if (rcSet == null) {
                 rcSet = new HashSet<Unit>();
-                for (Node node : baseNode.getSuccessorMap().values()) {
-                    UnitNode unitNode = (UnitNode) node;
-                    rcSet.add(unitNode.getBaseUnit());
+                if (baseNode.getSuccessors() != null) {
+                    for (Node node : baseNode.getSuccessors()) {
+                        UnitNode unitNode = (UnitNode) node;
+                        rcSet.add(unitNode.getBaseUnit());
+                    }
                 }
             }
             return rcSet;
@@ -1163,6 +1673,9 @@ class HMMTree {
                 connectSingleUnitWords(lc, epNode, singleUnitMap);
                 unitToEntryPointMap.put(lc, epNode);
             }
+            for (HMMNode tailNode : singleUnitMap.values()) {
+                tailNode.setRC(getRC(tailNode.getRCSet()));
+            }
         }
 
 
@@ -12,6 +12,7 @@
 
 package edu.cmu.sphinx.linguist.lextree;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -39,7 +40,9 @@ import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
 import edu.cmu.sphinx.linguist.dictionary.Word;
 import edu.cmu.sphinx.linguist.language.grammar.Grammar;
 import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
-import edu.cmu.sphinx.linguist.util.LRUCache;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
+import edu.cmu.sphinx.linguist.util.ConcurrentCache;
+import edu.cmu.sphinx.linguist.util.NGramProbabilityCache;
 import edu.cmu.sphinx.util.LogMath;
 import edu.cmu.sphinx.util.TimerPool;
 import edu.cmu.sphinx.util.props.PropertyException;
@@ -48,6 +51,7 @@ import edu.cmu.sphinx.util.props.S4Boolean;
 import edu.cmu.sphinx.util.props.S4Component;
 import edu.cmu.sphinx.util.props.S4Double;
 import edu.cmu.sphinx.util.props.S4Integer;
+import edu.cmu.sphinx.util.props.S4String;
 
 /**
  * A linguist that can represent large vocabularies efficiently. This class implements the Linguist interface. The main
@@ -125,9 +129,10 @@ import edu.cmu.sphinx.util.props.S4Integer;
  * Luckily the size and speed issues can be mitigated (by adding a bit more complexity of course). The bulk of the nodes
  * in the HMM tree are the word ending nodes. There is a word ending node for each possible right context. To reduce
  * space, all of the word ending nodes are replaced by a single EndNode. During the search, the actual HMM nodes for a
- * particular EndNode are generated on request. These sets of HMM nodes can be shared among different word endings, and
- * therefore are cached. The effect of using this EndNode optimization is to reduce the space required by the tree by
- * about 300mb and the time required to generate the tree from about 60 seconds to about 6 seconds.
+ * particular EndNode are generated on request. The HMMs of the last unit in all right contexts are the same for word
+ * endings with the same left context, so they are looked up once when the tree is built and kept in a table. The
+ * effect of using this EndNode optimization is to reduce the space required by the tree by about 300mb and the time
+ * required to generate the tree from about 60 seconds to about 6 seconds.
  *
  * <p>
  * <b>Word Histories </b>
@@ -170,7 +175,10 @@ public class LexTreeLinguist implements Linguist {
     @S4Component(type = Dictionary.class)
     public final static String PROP_DICTIONARY = "dictionary";
 
-    /** The property that defines the size of the arc cache (zero to disable the cache). */
+    /**
+     * The property that defines the size of the arc cache (zero to disable the cache). The cache is shared by all
+     * the threads which search with this linguist.
+     */
     @S4Integer(defaultValue = 0)
     public final static String PROP_CACHE_SIZE = "cacheSize";
 
@@ -207,6 +215,30 @@ public class LexTreeLinguist implements Linguist {
     @S4Double(defaultValue = 1.0)
     public final static String PROP_UNIGRAM_SMEAR_WEIGHT = "unigramSmearWeight";
 
+    /**
+     * The property for a larger language model that rescores the words on the fly. The search is driven by the
+     * language model, and at every word end the difference between the rescoring model and the language model is
+     * added to the word score. The word histories of the search states are as long as the rescoring model needs.
+     */
+    @S4Component(type = WordIdLanguageModel.class, mandatory = false)
+    public final static String PROP_RESCORING_LANGUAGE_MODEL = "rescoringLanguageModel";
+
+    /**
+     * The property that defines how many score differences of the rescoring language model are cached (zero to
+     * disable the cache). See {@link LexTreeLinguist#PROP_RESCORING_LANGUAGE_MODEL}
+     */
+    @S4Integer(defaultValue = 100000)
+    public final static String PROP_RESCORING_CACHE_SIZE = "rescoringCacheSize";
+
+    /**
+     * The property that defines a file to cache the compiled lex tree in. Compiling the tree for a large vocabulary
+     * takes long, so it is loaded from the file on the next start if the words, their pronunciations and unigram
+     * probabilities and the acoustic model are still the same. Otherwise the tree is compiled and the file is written
+     * again.
+     */
+    @S4String(mandatory = false)
+    public final static String PROP_TREE_CACHE_FILE = "treeCacheFile";
+
 
     // just for detailed debugging
     private final static SearchStateArc[] EMPTY_ARC = new SearchStateArc[0];
@@ -216,6 +248,8 @@ public class LexTreeLinguist implements Linguist {
     // by the property sheet
     // -----------------------------------
     private LanguageModel languageModel;
+    private WordIdLanguageModel wordIdLanguageModel;
+    private WordIdLanguageModel rescoringLanguageModel;
     private AcousticModel acousticModel;
     private LogMath logMath;
     private Dictionary dictionary;
@@ -232,6 +266,8 @@ public class LexTreeLinguist implements Linguist {
     private float unigramSmearWeight = 1.0f;
     private boolean cacheEnabled;
     private int maxArcCacheSize;
+    private int rescoringCacheSize;
+    private File treeCacheFile;
 
     protected float languageWeight;
     private float logWordInsertionProbability;
@@ -248,19 +284,43 @@ public class LexTreeLinguist implements Linguist {
     private Word[] sentenceStartWordArray;
     private SearchGraph searchGraph;
     private HMMPool hmmPool;
-    private LRUCache<LexTreeState, SearchStateArc[]> arcCache;
+    private ConcurrentCache<LexTreeState, SearchStateArc[]> arcCache;
+    private NGramProbabilityCache rescoringCache;
+    private int rescoringKeyBits;
     private int maxDepth;
+    private int languageModelDepth;
 
     protected HMMTree hmmTree;
 
-    private int cacheTrys;
-    private int cacheHits;
-
     public LexTreeLinguist(AcousticModel acousticModel, UnitManager unitManager,
             LanguageModel languageModel, Dictionary dictionary, boolean fullWordHistories, boolean wantUnigramSmear,
             double wordInsertionProbability, double silenceInsertionProbability, double fillerInsertionProbability,
             double unitInsertionProbability, float languageWeight, boolean addFillerWords, boolean generateUnitStates,
             float unigramSmearWeight, int maxArcCacheSize) {
+        this(acousticModel, unitManager, languageModel, dictionary, fullWordHistories, wantUnigramSmear,
+                wordInsertionProbability, silenceInsertionProbability, fillerInsertionProbability,
+                unitInsertionProbability, languageWeight, addFillerWords, generateUnitStates, unigramSmearWeight,
+                maxArcCacheSize, null, 0);
+    }
+
+    public LexTreeLinguist(AcousticModel acousticModel, UnitManager unitManager,
+            LanguageModel languageModel, Dictionary dictionary, boolean fullWordHistories, boolean wantUnigramSmear,
+            double wordInsertionProbability, double silenceInsertionProbability, double fillerInsertionProbability,
+            double unitInsertionProbability, float languageWeight, boolean addFillerWords, boolean generateUnitStates,
+            float unigramSmearWeight, int maxArcCacheSize, WordIdLanguageModel rescoringLanguageModel,
+            int rescoringCacheSize) {
+        this(acousticModel, unitManager, languageModel, dictionary, fullWordHistories, wantUnigramSmear,
+                wordInsertionProbability, silenceInsertionProbability, fillerInsertionProbability,
+                unitInsertionProbability, languageWeight, addFillerWords, generateUnitStates, unigramSmearWeight,
+                maxArcCacheSize, rescoringLanguageModel, rescoringCacheSize, null);
+    }
+
+    public LexTreeLinguist(AcousticModel acousticModel, UnitManager unitManager,
+            LanguageModel languageModel, Dictionary dictionary, boolean fullWordHistories, boolean wantUnigramSmear,
+            double wordInsertionProbability, double silenceInsertionProbability, double fillerInsertionProbability,
+            double unitInsertionProbability, float languageWeight, boolean addFillerWords, boolean generateUnitStates,
+            float unigramSmearWeight, int maxArcCacheSize, WordIdLanguageModel rescoringLanguageModel,
+            int rescoringCacheSize, File treeCacheFile) {
 
         logger = Logger.getLogger(getClass().getName());
 
@@ -280,10 +340,13 @@ public class LexTreeLinguist implements Linguist {
         this.generateUnitStates = generateUnitStates;
         this.unigramSmearWeight = unigramSmearWeight;
         this.maxArcCacheSize = maxArcCacheSize;
+        this.rescoringLanguageModel = rescoringLanguageModel;
+        this.rescoringCacheSize = rescoringCacheSize;
+        this.treeCacheFile = treeCacheFile;
 
         cacheEnabled = maxArcCacheSize > 0;
         if( cacheEnabled ) {
-            arcCache = new LRUCache<LexTreeState, SearchStateArc[]>(maxArcCacheSize);
+            arcCache = new ConcurrentCache<LexTreeState, SearchStateArc[]>(maxArcCacheSize);
         }
     }
 
@@ -315,10 +378,14 @@ public class LexTreeLinguist implements Linguist {
         generateUnitStates = (ps.getBoolean(PROP_GENERATE_UNIT_STATES));
         unigramSmearWeight = ps.getFloat(PROP_UNIGRAM_SMEAR_WEIGHT);
         maxArcCacheSize = ps.getInt(PROP_CACHE_SIZE);
+        rescoringLanguageModel = (WordIdLanguageModel) ps.getComponent(PROP_RESCORING_LANGUAGE_MODEL);
+        rescoringCacheSize = ps.getInt(PROP_RESCORING_CACHE_SIZE);
+        String treeCacheLocation = ps.getString(PROP_TREE_CACHE_FILE);
+        treeCacheFile = treeCacheLocation != null ? new File(treeCacheLocation) : null;
 
         cacheEnabled = maxArcCacheSize > 0;
         if(cacheEnabled) {
-            arcCache = new LRUCache<LexTreeState, SearchStateArc[]>(maxArcCacheSize);
+            arcCache = new ConcurrentCache<LexTreeState, SearchStateArc[]>(maxArcCacheSize);
         }
     }
 
@@ -332,6 +399,8 @@ public class LexTreeLinguist implements Linguist {
         dictionary.allocate();
         acousticModel.allocate();
         languageModel.allocate();
+        if (rescoringLanguageModel != null)
+            rescoringLanguageModel.allocate();
         compileGrammar();
     }
 
@@ -348,6 +417,8 @@ public class LexTreeLinguist implements Linguist {
     	    dictionary.deallocate();
     	if (languageModel != null)
     	    languageModel.deallocate();
+    	if (rescoringLanguageModel != null)
+    	    rescoringLanguageModel.deallocate();
     	hmmTree = null;
     }
 
@@ -370,6 +441,8 @@ public class LexTreeLinguist implements Linguist {
     /** Called after a recognition */
     public void stopRecognition() {
         languageModel.onUtteranceEnd();
+        if (rescoringLanguageModel != null)
+            rescoringLanguageModel.onUtteranceEnd();
     }
 
 
@@ -411,7 +484,21 @@ public class LexTreeLinguist implements Linguist {
         sentenceEndWord = dictionary.getSentenceEndWord();
         sentenceStartWordArray = new Word[1];
         sentenceStartWordArray[0] = dictionary.getSentenceStartWord();
-        maxDepth = languageModel.getMaxDepth();
+        languageModelDepth = languageModel.getMaxDepth();
+        maxDepth = languageModelDepth;
+        if (languageModel instanceof WordIdLanguageModel)
+            wordIdLanguageModel = (WordIdLanguageModel) languageModel;
+        if (rescoringLanguageModel != null) {
+            // the histories grow to what the rescoring model can use
+            maxDepth = Math.max(maxDepth, rescoringLanguageModel.getMaxDepth());
+            // ids are shifted by one so that shorter histories get other keys
+            rescoringKeyBits = NGramProbabilityCache.getBitsPerWord(
+                    rescoringLanguageModel.getVocabulary().size() + 1);
+            if (rescoringCacheSize <= 0 || maxDepth * rescoringKeyBits > NGramProbabilityCache.KEY_BITS)
+                rescoringKeyBits = 0;
+            else
+                rescoringCache = new NGramProbabilityCache(rescoringCacheSize);
+        }
 
         generateHmmTree();
 
@@ -426,7 +513,7 @@ public class LexTreeLinguist implements Linguist {
     protected void generateHmmTree() {
         hmmPool = new HMMPool(acousticModel, logger, unitManager);
         hmmTree = new HMMTree(hmmPool, dictionary, languageModel,
-                              addFillerWords, languageWeight);
+                              addFillerWords, languageWeight, treeCacheFile);
 
         hmmPool.dumpInfo();
     }
@@ -487,6 +574,9 @@ public class LexTreeLinguist implements Linguist {
         private final WordSequence wordSequence;
         final float currentSmearTerm;
         final float currentSmearProb;
+        private int[] wordIds;
+        private int[] rescoringWordIds;
+        private int[] rescoringKeyIds;
 
 
         /**
@@ -522,6 +612,101 @@ public class LexTreeLinguist implements Linguist {
         }
 
 
+        /**
+         * Gets the language model ids of the words in the history. They are looked up once and shared by all the
+         * word arcs leaving this state.
+         *
+         * @return the word ids
+         */
+        private int[] getWordIds() {
+            if (wordIds == null)
+                wordIds = findWordIds(wordIdLanguageModel, languageModelDepth);
+            return wordIds;
+        }
+
+
+        /**
+         * Gets the rescoring language model ids of the words in the history.
+         *
+         * @return the word ids
+         */
+        private int[] getRescoringWordIds() {
+            if (rescoringWordIds == null)
+                rescoringWordIds = findWordIds(rescoringLanguageModel, rescoringLanguageModel.getMaxDepth());
+            return rescoringWordIds;
+        }
+
+
+        /**
+         * Gets the rescoring language model ids of the words in the history which the cached differences depend on.
+         * The language model may use older words than the rescoring model, then the whole history is needed.
+         *
+         * @return the word ids
+         */
+        private int[] getRescoringKeyIds() {
+            if (languageModelDepth <= rescoringLanguageModel.getMaxDepth())
+                return getRescoringWordIds();
+            if (rescoringKeyIds == null)
+                rescoringKeyIds = findWordIds(rescoringLanguageModel, maxDepth);
+            return rescoringKeyIds;
+        }
+
+
+        /**
+         * Looks up the ids of the newest history words.
+         *
+         * @param model the language model
+         * @param depth the n-gram order the history is used for
+         * @return the word ids, oldest first
+         */
+        private int[] findWordIds(WordIdLanguageModel model, int depth) {
+            int from = Math.max(0, wordSequence.size() - (depth - 1));
+            int[] ids = new int[wordSequence.size() - from];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = model.findWordId(wordSequence.getWord(from + i));
+            return ids;
+        }
+
+
+        /**
+         * Gets the difference between the rescoring language model and the language model for a word following this
+         * state. The differences are cached by the history and the word, the history as long as either model uses.
+         *
+         * @param word the word
+         * @param probability the probability of the word in the language model
+         * @return the probability difference in LogMath log base
+         */
+        private float getRescoringDelta(Word word, float probability) {
+            int wordId = rescoringLanguageModel.findWordId(word);
+            if (wordId == WordIdLanguageModel.UNKNOWN_WORD_ID)
+                return 0.0f;
+
+            int[] history = getRescoringWordIds();
+            int[] keyHistory = rescoringKeyBits > 0 ? getRescoringKeyIds() : history;
+            boolean cached = rescoringKeyBits > 0;
+            long keyHigh = 0;
+            long keyLow = 0;
+            for (int i = 0; cached && i <= keyHistory.length; i++) {
+                int id = i < keyHistory.length ? keyHistory[i] : wordId;
+                if (id == WordIdLanguageModel.UNKNOWN_WORD_ID)
+                    cached = false;
+                keyHigh = (keyHigh << rescoringKeyBits) | (keyLow >>> (64 - rescoringKeyBits));
+                keyLow = (keyLow << rescoringKeyBits) | (id + 1);
+            }
+
+            if (cached) {
+                float delta = rescoringCache.get(keyHigh, keyLow);
+                if (!Float.isNaN(delta))
+                    return delta;
+            }
+
+            float delta = rescoringLanguageModel.getProbability(history, wordId) - probability;
+            if (cached)
+                rescoringCache.put(keyHigh, keyLow, delta);
+            return delta;
+        }
+
+
         public float getSmearProb() {
             return currentSmearProb;
         }
@@ -670,13 +855,15 @@ public class LexTreeLinguist implements Linguist {
         protected SearchStateArc[] getSuccessors(Node theNode) {
             Node[] nodes = theNode.getSuccessors();
             SearchStateArc[] arcs = new SearchStateArc[nodes.length];
+            float[] wordProbabilities = getWordProbabilities(nodes);
             // System.out.println("Arc: "+ this);
             int i = 0;
             for (Node nextNode : nodes) {
                 //  System.out.println(" " + nextNode);
                 if (nextNode instanceof WordNode) {
                     arcs[i] = createWordStateArc((WordNode) nextNode,
-                            (HMMNode) getNode(), this);
+                            (HMMNode) getNode(), this,
+                            wordProbabilities != null ? wordProbabilities[i] : Float.NaN);
                 } else if (nextNode instanceof EndNode) {
                     arcs[i] = createEndUnitArc((EndNode) nextNode, this);
                 } else {
@@ -688,6 +875,48 @@ public class LexTreeLinguist implements Linguist {
         }
 
 
+        /**
+         * Gets the language model probabilities of all the words among the given nodes with a single query to the
+         * language model.
+         *
+         * @param nodes the successor nodes
+         * @return the probabilities, NaN for nodes which were not scored, or null if the words can't be scored together
+         */
+        private float[] getWordProbabilities(Node[] nodes) {
+            if (wordIdLanguageModel == null || wordSequence.size() >= maxDepth)
+                return null;
+
+            int[] nodeWordIds = new int[nodes.length];
+            int count = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                nodeWordIds[i] = WordIdLanguageModel.UNKNOWN_WORD_ID;
+                if (nodes[i] instanceof WordNode) {
+                    Word word = ((WordNode) nodes[i]).getWord();
+                    if (!word.isFiller() || word == sentenceEndWord)
+                        nodeWordIds[i] = wordIdLanguageModel.findWordId(word);
+                    if (nodeWordIds[i] != WordIdLanguageModel.UNKNOWN_WORD_ID)
+                        count++;
+                }
+            }
+            if (count < 2)
+                return null;
+
+            int[] wordIds = new int[count];
+            float[] scores = new float[count];
+            count = 0;
+            for (int wordId : nodeWordIds)
+                if (wordId != WordIdLanguageModel.UNKNOWN_WORD_ID)
+                    wordIds[count++] = wordId;
+            wordIdLanguageModel.getProbabilities(getWordIds(), wordIds, count, scores);
+
+            float[] probabilities = new float[nodes.length];
+            count = 0;
+            for (int i = 0; i < nodes.length; i++)
+                probabilities[i] = nodeWordIds[i] != WordIdLanguageModel.UNKNOWN_WORD_ID ? scores[count++] : Float.NaN;
+            return probabilities;
+        }
+
+
         /**
          * Creates a word search state for the given word node
          * @param wordNode the wordNode
@@ -697,6 +926,20 @@ public class LexTreeLinguist implements Linguist {
          */
         protected SearchStateArc createWordStateArc(WordNode wordNode,
                                                     HMMNode lastUnit, LexTreeState previous) {
+            return createWordStateArc(wordNode, lastUnit, previous, Float.NaN);
+        }
+
+
+        /**
+         * Creates a word search state for the given word node
+         * @param wordNode the wordNode
+         * @param lastUnit last unit of the word
+         * @param previous previous state
+         * @param wordProbability language model probability of the word if already known, NaN otherwise
+         * @return the search state for the wordNode
+         */
+        protected SearchStateArc createWordStateArc(WordNode wordNode,
+                                                    HMMNode lastUnit, LexTreeState previous, float wordProbability) {
             // System.out.println("CWSA " + wordNode + " fup " + fixupProb);
             float languageProbability = logOne;
             Word nextWord = wordNode.getWord();
@@ -709,8 +952,20 @@ public class LexTreeLinguist implements Linguist {
             }
 
             WordSequence nextWordSequence = wordSequence.addWord(nextWord, maxDepth);
-            float probability = languageModel.getProbability(nextWordSequence) * languageWeight;
-            smearTerm = getSmearTermFromLanguageModel(nextWordSequence);
+            int nextWordId = WordIdLanguageModel.UNKNOWN_WORD_ID;
+            if (Float.isNaN(wordProbability) && wordIdLanguageModel != null && wordSequence.size() < maxDepth)
+                nextWordId = wordIdLanguageModel.findWordId(nextWord);
+            float probability;
+            if (!Float.isNaN(wordProbability))
+                probability = wordProbability;
+            else if (nextWordId != WordIdLanguageModel.UNKNOWN_WORD_ID)
+                probability = wordIdLanguageModel.getProbability(getWordIds(), nextWordId);
+            else
+                probability = languageModel.getProbability(nextWordSequence.trim(languageModelDepth));
+            if (rescoringLanguageModel != null)
+                probability += getRescoringDelta(nextWord, probability);
+            probability *= languageWeight;
+            smearTerm = getSmearTermFromLanguageModel(nextWordSequence.trim(languageModelDepth));
             // System.out.println("LP " + nextWordSequence + " " +
             // logProbability);
             // subtract off the previously applied smear probability
@@ -722,9 +977,15 @@ public class LexTreeLinguist implements Linguist {
                         smearTerm, logOne, languageProbability);
             }
 
-            return new LexTreeWordState(wordNode, lastUnit,
+            LexTreeState wordState = new LexTreeWordState(wordNode, lastUnit,
                         nextWordSequence.trim(maxDepth - 1),
                         smearTerm, logOne, languageProbability);
+            // the next word ends query the new history, let the models load it early
+            if (wordIdLanguageModel != null && languageModelDepth > 1)
+                wordIdLanguageModel.prefetch(wordState.getWordIds());
+            if (rescoringLanguageModel != null && rescoringLanguageModel.getMaxDepth() > 1)
+                rescoringLanguageModel.prefetch(wordState.getRescoringWordIds());
+            return wordState;
         }
 
 
@@ -807,16 +1068,7 @@ public class LexTreeLinguist implements Linguist {
          */
         SearchStateArc[] getCachedArcs() {
             if (cacheEnabled) {
-                SearchStateArc[] arcs = arcCache.get(this);
-                if (arcs != null) {
-                    cacheHits++;
-                }
-                if (++cacheTrys % 1000000 == 0) {
-                    System.out.println("Hits: " + cacheHits
-                            + " of " + cacheTrys + ' ' +
-                            ((float) cacheHits) / cacheTrys * 100f);
-                }
-                return arcs;
+                return arcCache.get(this);
             } else {
                 return null;
             }
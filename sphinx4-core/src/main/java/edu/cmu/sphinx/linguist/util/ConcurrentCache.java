@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size cache which can be shared by several threads, for example
+ * the arc cache of a linguist used by parallel decoders.
+ * <p>
+ * The cache is an open addressing table in which a key may be stored in a
+ * small window of slots following its hash slot. If the window is full, an
+ * insertion evicts an entry with the CLOCK algorithm restricted to the
+ * window, like the {@link NGramProbabilityCache}.
+ * <p>
+ * The cache is safe for concurrent use without locks. Entries are immutable
+ * and replaced with a single compare and set, an insertion which races with
+ * another one for the same slot is dropped. The hash of the key is kept in
+ * the entry, so most of the keys which don't match are rejected without
+ * calling {@link Object#equals(Object)}.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ConcurrentCache<K, V> {
+
+    private static final int WINDOW = 8;
+
+    private final AtomicReferenceArray<Entry<K, V>> entries;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxSize the minimum number of entries the cache can hold
+     */
+    public ConcurrentCache(int maxSize) {
+        int capacity = WINDOW;
+        while (capacity < maxSize && capacity < 1 << 30)
+            capacity <<= 1;
+        entries = new AtomicReferenceArray<Entry<K, V>>(capacity);
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * Gets the value of a key
+     *
+     * @param key the key
+     * @return the value, or null if the key is not in the cache
+     */
+    public V get(K key) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        for (int i = 0; i < WINDOW; i++, slot = (slot + 1) & mask) {
+            Entry<K, V> entry = entries.get(slot);
+            // entries are never removed, so the key can not follow an empty slot
+            if (entry == null)
+                return null;
+            if (entry.hash == hash && key.equals(entry.key)) {
+                entry.referenced = true;
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Puts the value of a key into the cache
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        int hash = hash(key);
+        int start = hash & mask;
+        int victim = -1;
+        int slot = start;
+        for (int i = 0; i < WINDOW; i++, slot = (slot + 1) & mask) {
+            Entry<K, V> entry = entries.get(slot);
+            if (entry == null || entry.hash == hash && key.equals(entry.key)) {
+                victim = slot;
+                break;
+            }
+            if (victim < 0) {
+                if (entry.referenced)
+                    entry.referenced = false;
+                else
+                    victim = slot;
+            }
+        }
+        if (victim < 0)
+            victim = start;
+
+        Entry<K, V> entry = entries.get(victim);
+        if (!entries.compareAndSet(victim, entry, new Entry<K, V>(key, value, hash)))
+            return;
+        if (entry == null)
+            size.incrementAndGet();
+    }
+
+
+    /**
+     * Returns the number of entries in the cache
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private static class Entry<K, V> {
+
+        final K key;
+        final V value;
+        final int hash;
+        boolean referenced;
+
+
+        Entry(K key, V value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size cache of n-gram probabilities keyed by the word ids of the
+ * n-gram, packed into 128 bits. Keys and probabilities are stored in
+ * primitive arrays, so neither lookups nor insertions create objects.
+ * <p>
+ * The cache is an open addressing table in which a key may be stored in a
+ * small window of slots following its hash slot. If the window is full, an
+ * insertion evicts an entry with the CLOCK algorithm restricted to the
+ * window: entries which were read since the last insertion passed them get a
+ * second chance, entries which were never read are evicted first.
+ * <p>
+ * The cache is safe for concurrent use without locks. Every slot carries a
+ * stamp which is odd while the slot is written, readers verify that the
+ * stamp did not change while they read the slot. An insertion which races
+ * with another one for the same slot is dropped.
+ */
+public class NGramProbabilityCache {
+
+    /** The number of bits available for a key */
+    public static final int KEY_BITS = 128;
+
+    private static final int WINDOW = 8;
+
+    private final AtomicIntegerArray stamps;
+    private final AtomicLongArray keys;
+    private final AtomicIntegerArray values;
+    private final byte[] referenced;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxSize the minimum number of entries the cache can hold
+     */
+    public NGramProbabilityCache(int maxSize) {
+        int capacity = WINDOW;
+        while (capacity < maxSize && capacity < 1 << 30)
+            capacity <<= 1;
+        stamps = new AtomicIntegerArray(capacity);
+        keys = new AtomicLongArray(2 * capacity);
+        values = new AtomicIntegerArray(capacity);
+        referenced = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * Returns the number of bits a word id takes in a key
+     *
+     * @param vocabularySize the number of words of the language model
+     * @return the number of bits
+     */
+    public static int getBitsPerWord(int vocabularySize) {
+        int bits = 1;
+        while (bits < 31 && (1 << bits) < vocabularySize)
+            bits++;
+        return bits;
+    }
+
+
+    /**
+     * Gets the probability of an n-gram
+     *
+     * @param high the upper 64 bits of the key
+     * @param low the lower 64 bits of the key
+     * @return the probability, or {@link Float#NaN} if the n-gram is not in
+     *         the cache
+     */
+    public float get(long high, long low) {
+        int slot = hash(high, low);
+        for (int i = 0; i < WINDOW; i++, slot = (slot + 1) & mask) {
+            int stamp = stamps.get(slot);
+            // entries are never removed, so the key can not follow an empty slot
+            if (stamp == 0)
+                return Float.NaN;
+            if ((stamp & 1) != 0)
+                continue;
+            if (keys.get(2 * slot) == high && keys.get(2 * slot + 1) == low) {
+                int value = values.get(slot);
+                if (stamps.get(slot) == stamp) {
+                    referenced[slot] = 1;
+                    return Float.intBitsToFloat(value);
+                }
+            }
+        }
+        return Float.NaN;
+    }
+
+
+    /**
+     * Puts the probability of an n-gram into the cache
+     *
+     * @param high the upper 64 bits of the key
+     * @param low the lower 64 bits of the key
+     * @param probability the probability
+     */
+    public void put(long high, long low, float probability) {
+        int start = hash(high, low);
+        int victim = -1;
+        int slot = start;
+        for (int i = 0; i < WINDOW; i++, slot = (slot + 1) & mask) {
+            int stamp = stamps.get(slot);
+            if (stamp == 0 || (stamp & 1) == 0 && keys.get(2 * slot) == high && keys.get(2 * slot + 1) == low) {
+                victim = slot;
+                break;
+            }
+            if (victim < 0) {
+                if (referenced[slot] != 0)
+                    referenced[slot] = 0;
+                else
+                    victim = slot;
+            }
+        }
+        if (victim < 0)
+            victim = start;
+
+        int stamp = stamps.get(victim);
+        if ((stamp & 1) != 0 || !stamps.compareAndSet(victim, stamp, stamp + 1))
+            return;
+        if (stamp == 0)
+            size.incrementAndGet();
+        keys.set(2 * victim, high);
+        keys.set(2 * victim + 1, low);
+        values.set(victim, Float.floatToRawIntBits(probability));
+        referenced[victim] = 0;
+        // zero marks empty slots
+        stamps.set(victim, stamp + 2 != 0 ? stamp + 2 : 2);
+    }
+
+
+    /**
+     * Returns the number of entries in the cache
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+
+    private int hash(long high, long low) {
+        long h = (high * 0x9e3779b97f4a7c15L + low) * 0xc2b2ae3d27d4eb4fL;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.wfst;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.fst.Arc;
+import edu.cmu.sphinx.fst.Convert;
+import edu.cmu.sphinx.fst.Fst;
+import edu.cmu.sphinx.fst.State;
+import edu.cmu.sphinx.fst.operations.Determinize;
+import edu.cmu.sphinx.fst.semiring.Semiring;
+import edu.cmu.sphinx.fst.semiring.TropicalSemiring;
+import edu.cmu.sphinx.linguist.acoustic.AcousticModel;
+import edu.cmu.sphinx.linguist.acoustic.Context;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMPosition;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.HMMStateArc;
+import edu.cmu.sphinx.linguist.acoustic.LeftRightContext;
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.LogMath;
+import edu.cmu.sphinx.util.props.ConfigurationManager;
+
+/**
+ * Compiles a grammar into a static {@link HCLGGraph} for the
+ * {@link WFSTLinguist}.
+ * <p>
+ * The grammar (G) is a weighted acceptor of words, for example a backoff
+ * language model converted to an FST. It is composed with the lexicon (L) of
+ * the dictionary: every word of the grammar is replaced with the HMMs of its
+ * pronunciations, and an optional silence may follow every word. The HMMs
+ * are context dependent inside words, at word boundaries the context is
+ * silence (C). The word is emitted by the last HMM of a pronunciation, so
+ * the optional determinization of the composition shares the common
+ * prefixes of pronunciations like a lex tree and moves the language model
+ * weights to the front. Finally every HMM is expanded into its states and
+ * transitions (H). HMMs which lead to the same state share their expansion.
+ * <p>
+ * The language weight and the word and silence insertion probabilities are
+ * applied here, the graph already contains the final scores.
+ */
+public class HCLGCompiler {
+
+    private final AcousticModel acousticModel;
+    private final UnitManager unitManager;
+    private final Dictionary dictionary;
+    private final float languageWeight;
+    private final float wordInsertionCost;
+    private final float silenceInsertionCost;
+    private final LogMath logMath;
+    private final Logger logger;
+
+    // the HMMs of the lexicon, their index is the input label of the composition
+    private final Map<HMM, Integer> hmmLabels = new LinkedHashMap<HMM, Integer>();
+    private final List<HMM> hmms = new ArrayList<HMM>();
+
+
+    /**
+     * Creates a compiler
+     *
+     * @param acousticModel the acoustic model which gives the HMMs
+     * @param unitManager the unit manager
+     * @param dictionary the dictionary
+     * @param languageWeight the weight of the grammar costs
+     * @param wordInsertionProbability the probability of inserting a word
+     * @param silenceInsertionProbability the probability of inserting silence
+     *            after a word
+     */
+    public HCLGCompiler(AcousticModel acousticModel, UnitManager unitManager, Dictionary dictionary,
+            float languageWeight, double wordInsertionProbability, double silenceInsertionProbability) {
+        this.acousticModel = acousticModel;
+        this.unitManager = unitManager;
+        this.dictionary = dictionary;
+        this.languageWeight = languageWeight;
+        this.wordInsertionCost = (float) -Math.log(wordInsertionProbability);
+        this.silenceInsertionCost = (float) -Math.log(silenceInsertionProbability);
+        logMath = LogMath.getLogMath();
+        logger = Logger.getLogger(getClass().getName());
+        hmms.add(null);
+    }
+
+
+    /**
+     * Compiles a grammar
+     *
+     * @param grammar the grammar in the tropical semiring
+     * @param determinize whether to determinize the composition of the
+     *            lexicon and the grammar
+     * @return the graph
+     */
+    public HCLGGraph compile(Fst grammar, boolean determinize) {
+        Fst lg = composeLexicon(grammar);
+        logger.info("Composed lexicon and grammar: " + lg.getNumStates() + " states");
+        if (determinize) {
+            lg = determinize(lg);
+            logger.info("Determinized: " + lg.getNumStates() + " states");
+        }
+        HCLGGraph graph = expand(lg);
+        logger.info("Expanded HMMs: " + graph.getNumStates() + " states, " + graph.getNumArcs() + " arcs");
+        return graph;
+    }
+
+
+    /**
+     * Composes the lexicon with a grammar. The lexicon is not built on its
+     * own, every arc of the grammar is replaced with the pronunciations of
+     * its word.
+     *
+     * @param grammar the grammar
+     * @return the composition, its input labels are the indices of the HMMs
+     */
+    Fst composeLexicon(Fst grammar) {
+        Semiring semiring = grammar.getSemiring();
+        Fst lg = new Fst(semiring);
+        lg.setOsyms(grammar.getOsyms());
+
+        // the grammar states keep their index
+        for (int i = 0; i < grammar.getNumStates(); i++) {
+            State state = grammar.getState(i);
+            float finalWeight = state.getFinalWeight();
+            lg.addState(new State(finalWeight == semiring.zero() ? finalWeight : finalWeight * languageWeight));
+        }
+        lg.setStart(lg.getState(grammar.getStart().getId()));
+
+        Word silence = dictionary.getSilenceWord();
+        int[] silenceLabels = getLabels(silence.getPronunciations()[0]);
+        Set<String> missing = new HashSet<String>();
+        for (int i = 0; i < grammar.getNumStates(); i++) {
+            State state = grammar.getState(i);
+            State from = lg.getState(i);
+            if (silenceLabels.length > 0)
+                addPath(lg, from, from, silenceLabels, 0, silenceInsertionCost);
+            for (int j = 0; j < state.getNumArcs(); j++) {
+                Arc arc = state.getArc(j);
+                State to = lg.getState(arc.getNextState().getId());
+                float cost = arc.getWeight() * languageWeight;
+                if (arc.getIlabel() == 0) {
+                    from.addArc(new Arc(0, arc.getOlabel(), cost, to));
+                    continue;
+                }
+                String spelling = grammar.getIsyms()[arc.getIlabel()];
+                Word word = dictionary.getWord(spelling);
+                if (word == null) {
+                    if (missing.add(spelling))
+                        logger.warning("Missing word in the dictionary: " + spelling);
+                    continue;
+                }
+                for (Pronunciation pronunciation : word.getPronunciations()) {
+                    int[] labels = getLabels(pronunciation);
+                    if (labels.length == 0)
+                        from.addArc(new Arc(0, arc.getOlabel(), cost + wordInsertionCost, to));
+                    else
+                        addPath(lg, from, to, labels, arc.getOlabel(), cost + wordInsertionCost);
+                }
+            }
+        }
+
+        String[] isyms = new String[hmms.size()];
+        isyms[0] = "<eps>";
+        for (int i = 1; i < isyms.length; i++)
+            isyms[i] = hmms.get(i).getUnit().toString() + ' ' + hmms.get(i).getPosition();
+        lg.setIsyms(isyms);
+        return lg;
+    }
+
+
+    /**
+     * Adds the path of a pronunciation. The cost is on the first arc, the
+     * word on the last.
+     */
+    private void addPath(Fst lg, State from, State to, int[] labels, int word, float cost) {
+        State state = from;
+        for (int i = 0; i < labels.length; i++) {
+            State next = to;
+            if (i < labels.length - 1) {
+                next = new State(lg.getSemiring().zero());
+                lg.addState(next);
+            }
+            state.addArc(new Arc(labels[i], i == labels.length - 1 ? word : 0,
+                    i == 0 ? cost : lg.getSemiring().one(), next));
+            state = next;
+        }
+    }
+
+
+    /**
+     * Looks up the HMMs of a pronunciation. The units are context dependent
+     * inside the word and in silence context at the word boundaries.
+     *
+     * @param pronunciation the pronunciation
+     * @return the input labels of the HMMs
+     */
+    private int[] getLabels(Pronunciation pronunciation) {
+        Unit[] units = pronunciation.getUnits();
+        int[] labels = new int[units.length];
+        for (int i = 0; i < units.length; i++) {
+            HMMPosition position;
+            if (units.length == 1)
+                position = HMMPosition.SINGLE;
+            else if (i == 0)
+                position = HMMPosition.BEGIN;
+            else if (i == units.length - 1)
+                position = HMMPosition.END;
+            else
+                position = HMMPosition.INTERNAL;
+
+            Unit unit = units[i];
+            if (!unit.isFiller()) {
+                Unit[] leftContext = {i > 0 ? units[i - 1] : UnitManager.SILENCE};
+                Unit[] rightContext = {i < units.length - 1 ? units[i + 1] : UnitManager.SILENCE};
+                Context context = LeftRightContext.get(leftContext, rightContext);
+                unit = unitManager.getUnit(unit.getName(), false, context);
+            }
+            HMM hmm = acousticModel.lookupNearestHMM(unit, position, false);
+            Integer label = hmmLabels.get(hmm);
+            if (label == null) {
+                label = hmms.size();
+                hmmLabels.put(hmm, label);
+                hmms.add(hmm);
+            }
+            labels[i] = label;
+        }
+        return labels;
+    }
+
+
+    /**
+     * Determinizes a transducer. The pairs of input and output labels are
+     * encoded in single labels and decoded after the determinization of the
+     * resulting acceptor.
+     *
+     * @param fst the transducer
+     * @return the determinized transducer
+     */
+    static Fst determinize(Fst fst) {
+        Map<List<Integer>, Integer> codes = new HashMap<List<Integer>, Integer>();
+        List<int[]> pairs = new ArrayList<int[]>();
+        for (int i = 0; i < fst.getNumStates(); i++) {
+            State state = fst.getState(i);
+            for (int j = 0; j < state.getNumArcs(); j++) {
+                Arc arc = state.getArc(j);
+                List<Integer> pair = Arrays.asList(arc.getIlabel(), arc.getOlabel());
+                Integer code = codes.get(pair);
+                if (code == null) {
+                    code = pairs.size();
+                    codes.put(pair, code);
+                    pairs.add(new int[] {arc.getIlabel(), arc.getOlabel()});
+                }
+                arc.setIlabel(code);
+                arc.setOlabel(code);
+            }
+        }
+
+        Fst result = Determinize.get(fst);
+        // the initial subset is the initial state alone
+        result.getStart().setFinalWeight(fst.getStart().getFinalWeight());
+        result.setIsyms(fst.getIsyms());
+        result.setOsyms(fst.getOsyms());
+        for (int i = 0; i < result.getNumStates(); i++) {
+            State state = result.getState(i);
+            for (int j = 0; j < state.getNumArcs(); j++) {
+                Arc arc = state.getArc(j);
+                int[] pair = pairs.get(arc.getIlabel());
+                arc.setIlabel(pair[0]);
+                arc.setOlabel(pair[1]);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Expands the HMMs of the composition into their states. States which
+     * are not on a path from the initial to a final state are dropped.
+     *
+     * @param lg the composition of the lexicon and the grammar
+     * @return the graph
+     */
+    HCLGGraph expand(Fst lg) {
+        lg.remapStateIds();
+        boolean[] connected = getConnectedStates(lg);
+        int[] ids = new int[lg.getNumStates()];
+        int numStates = 0;
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = connected[i] ? numStates++ : -1;
+
+        ArcList arcs = new ArcList();
+        List<Float> finalCosts = new ArrayList<Float>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] >= 0) {
+                float finalWeight = lg.getState(i).getFinalWeight();
+                finalCosts.add(finalWeight == lg.getSemiring().zero() ? Float.POSITIVE_INFINITY : finalWeight);
+            }
+        }
+
+        Map<String, Integer> inputLabels = new LinkedHashMap<String, Integer>();
+        inputLabels.put("<eps>", HCLGGraph.EPSILON);
+        Map<List<Integer>, Integer> expansions = new HashMap<List<Integer>, Integer>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0)
+                continue;
+            State state = lg.getState(i);
+            for (int j = 0; j < state.getNumArcs(); j++) {
+                Arc arc = state.getArc(j);
+                int target = ids[arc.getNextState().getId()];
+                if (target < 0)
+                    continue;
+                if (arc.getIlabel() == 0) {
+                    arcs.add(ids[i], target, HCLGGraph.EPSILON, arc.getOlabel(), arc.getWeight());
+                    continue;
+                }
+
+                HMM hmm = hmms.get(arc.getIlabel());
+                List<Integer> key = Arrays.asList(arc.getIlabel(), target);
+                Integer first = expansions.get(key);
+                if (first == null) {
+                    first = numStates;
+                    expansions.put(key, first);
+                    numStates += hmm.getOrder();
+                    for (int k = 0; k < hmm.getOrder(); k++) {
+                        finalCosts.add(Float.POSITIVE_INFINITY);
+                        for (HMMStateArc transition : hmm.getState(k).getSuccessors()) {
+                            HMMState next = transition.getHMMState();
+                            float cost = -logMath.logToLn(transition.getLogProbability());
+                            if (next.isEmitting())
+                                arcs.add(first + k, first + next.getState(),
+                                        getInputLabel(inputLabels, hmm, next.getState()), HCLGGraph.EPSILON, cost);
+                            else
+                                arcs.add(first + k, target, HCLGGraph.EPSILON, HCLGGraph.EPSILON, cost);
+                        }
+                    }
+                }
+                int initial = hmm.getInitialState().getState();
+                arcs.add(ids[i], first + initial, getInputLabel(inputLabels, hmm, initial), arc.getOlabel(),
+                        arc.getWeight());
+            }
+        }
+
+        float[] costs = new float[finalCosts.size()];
+        for (int i = 0; i < costs.length; i++)
+            costs[i] = finalCosts.get(i);
+        return arcs.toGraph(ids[lg.getStart().getId()], costs,
+                inputLabels.keySet().toArray(new String[inputLabels.size()]), lg.getOsyms());
+    }
+
+
+    private int getInputLabel(Map<String, Integer> inputLabels, HMM hmm, int state) {
+        Unit unit = hmm.getUnit();
+        String leftContext = "-";
+        String rightContext = "-";
+        if (unit.getContext() instanceof LeftRightContext) {
+            LeftRightContext context = (LeftRightContext) unit.getContext();
+            leftContext = getContextName(context.getLeftContext());
+            rightContext = getContextName(context.getRightContext());
+        }
+        String name = (unit.isFiller() ? "*" : "") + unit.getName();
+        String label = HCLGGraph.createInputLabel(name, leftContext, rightContext,
+                hmm.getPosition().toString().charAt(0), state);
+        Integer id = inputLabels.get(label);
+        if (id == null) {
+            id = inputLabels.size();
+            inputLabels.put(label, id);
+        }
+        return id;
+    }
+
+
+    private static String getContextName(Unit[] context) {
+        if (context == null || context.length == 0)
+            return "-";
+        StringBuilder sb = new StringBuilder();
+        for (Unit unit : context) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(unit.getName());
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Finds the states which can be reached from the initial state and from
+     * which a final state can be reached
+     */
+    private static boolean[] getConnectedStates(Fst fst) {
+        int numStates = fst.getNumStates();
+        boolean[] accessible = new boolean[numStates];
+        List<List<Integer>> predecessors = new ArrayList<List<Integer>>(numStates);
+        for (int i = 0; i < numStates; i++)
+            predecessors.add(new ArrayList<Integer>(1));
+
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        accessible[fst.getStart().getId()] = true;
+        queue.add(fst.getStart().getId());
+        while (!queue.isEmpty()) {
+            State state = fst.getState(queue.remove());
+            for (int j = 0; j < state.getNumArcs(); j++) {
+                int next = state.getArc(j).getNextState().getId();
+                predecessors.get(next).add(state.getId());
+                if (!accessible[next]) {
+                    accessible[next] = true;
+                    queue.add(next);
+                }
+            }
+        }
+
+        boolean[] connected = new boolean[numStates];
+        for (int i = 0; i < numStates; i++) {
+            if (accessible[i] && fst.getState(i).getFinalWeight() != fst.getSemiring().zero()) {
+                connected[i] = true;
+                queue.add(i);
+            }
+        }
+        while (!queue.isEmpty()) {
+            for (int previous : predecessors.get(queue.remove())) {
+                if (!connected[previous]) {
+                    connected[previous] = true;
+                    queue.add(previous);
+                }
+            }
+        }
+        return connected;
+    }
+
+
+    /** Collects arcs in any order and sorts them by their source state */
+    private static class ArcList {
+
+        private int size;
+        private int[] sources = new int[1024];
+        private int[] targets = new int[1024];
+        private int[] inputs = new int[1024];
+        private int[] outputs = new int[1024];
+        private float[] costs = new float[1024];
+
+
+        void add(int source, int target, int input, int output, float cost) {
+            if (size == sources.length) {
+                sources = Arrays.copyOf(sources, 2 * size);
+                targets = Arrays.copyOf(targets, 2 * size);
+                inputs = Arrays.copyOf(inputs, 2 * size);
+                outputs = Arrays.copyOf(outputs, 2 * size);
+                costs = Arrays.copyOf(costs, 2 * size);
+            }
+            sources[size] = source;
+            targets[size] = target;
+            inputs[size] = input;
+            outputs[size] = output;
+            costs[size] = cost;
+            size++;
+        }
+
+
+        HCLGGraph toGraph(int start, float[] finalCosts, String[] inputLabels, String[] words) {
+            int[] stateArcs = new int[finalCosts.length + 1];
+            for (int i = 0; i < size; i++)
+                stateArcs[sources[i] + 1]++;
+            for (int state = 0; state < finalCosts.length; state++)
+                stateArcs[state + 1] += stateArcs[state];
+
+            int[] next = Arrays.copyOf(stateArcs, finalCosts.length);
+            int[] arcTargets = new int[size];
+            int[] arcInputs = new int[size];
+            int[] arcOutputs = new int[size];
+            float[] arcCosts = new float[size];
+            for (int i = 0; i < size; i++) {
+                int arc = next[sources[i]]++;
+                arcTargets[arc] = targets[i];
+                arcInputs[arc] = inputs[i];
+                arcOutputs[arc] = outputs[i];
+                arcCosts[arc] = costs[i];
+            }
+            return new HCLGGraph(start, stateArcs, arcTargets, arcInputs, arcOutputs, arcCosts, finalCosts,
+                    inputLabels, words);
+        }
+    }
+
+
+    /**
+     * Compiles a grammar in the OpenFst text format. The arguments are the
+     * configuration file, which defines the acousticModel, unitManager and
+     * dictionary components, the base name of the grammar files, the file
+     * to write and optionally the language weight, the word insertion
+     * probability and the silence insertion probability.
+     *
+     * @param args arguments
+     * @throws IOException if the models can't be loaded or the graph not be
+     *             written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: HCLGCompiler <config file> <grammar base name> <output file> "
+                    + "[<language weight> [<word insertion probability> [<silence insertion probability>]]]");
+            System.exit(1);
+        }
+
+        ConfigurationManager cm = new ConfigurationManager(args[0]);
+        AcousticModel acousticModel = cm.lookup("acousticModel");
+        UnitManager unitManager = cm.lookup("unitManager");
+        Dictionary dictionary = cm.lookup("dictionary");
+        dictionary.allocate();
+        acousticModel.allocate();
+
+        float languageWeight = args.length > 3 ? Float.parseFloat(args[3]) : 1.0f;
+        double wordInsertionProbability = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        double silenceInsertionProbability = args.length > 5 ? Double.parseDouble(args[5]) : 1.0;
+        HCLGCompiler compiler = new HCLGCompiler(acousticModel, unitManager, dictionary, languageWeight,
+                wordInsertionProbability, silenceInsertionProbability);
+        Fst grammar = Convert.importFst(args[1], new TropicalSemiring());
+        System.out.println("Writing graph to " + args[2]);
+        compiler.compile(grammar, true).save(new File(args[2]));
+    }
+}
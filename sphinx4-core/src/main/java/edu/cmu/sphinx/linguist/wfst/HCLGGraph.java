@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.wfst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A static search graph: a weighted finite state transducer composed of the
+ * HMMs (H), the context dependency (C), the lexicon (L) and the grammar (G).
+ * The input labels of the arcs are HMM states, the output labels are words.
+ * <p>
+ * The graph is stored in parallel arrays. The arcs of a state are the range
+ * given by {@link #getArcStart(int)} and {@link #getArcEnd(int)}, the
+ * properties of an arc are looked up by its index. Weights are costs in the
+ * tropical semiring, that is negative natural logarithms of probabilities,
+ * like in the {@link edu.cmu.sphinx.fst.Fst}s.
+ * <p>
+ * Input labels are described by strings of the unit name, the left and right
+ * context, the position of the HMM and the index of the state, see
+ * {@link #createInputLabel(String, String, String, char, int)}. The label
+ * {@link #EPSILON} is the empty label on both sides.
+ */
+public class HCLGGraph {
+
+    /** The empty input or output label */
+    public static final int EPSILON = 0;
+
+    private static final int MAGIC = 0x48434c47;
+    private static final int VERSION = 1;
+
+    private final int start;
+    private final int[] stateArcs;
+    private final int[] arcTargets;
+    private final int[] arcInputs;
+    private final int[] arcOutputs;
+    private final float[] arcCosts;
+    private final float[] finalCosts;
+    private final String[] inputLabels;
+    private final String[] words;
+
+
+    /**
+     * Creates a graph from its arrays
+     *
+     * @param start the initial state
+     * @param stateArcs the index of the first arc of every state followed by
+     *            the number of arcs
+     * @param arcTargets the target state of every arc
+     * @param arcInputs the input label of every arc
+     * @param arcOutputs the output label of every arc
+     * @param arcCosts the cost of every arc
+     * @param finalCosts the final cost of every state, positive infinity for
+     *            states which are not final
+     * @param inputLabels the descriptions of the input labels
+     * @param words the spellings of the output labels
+     */
+    public HCLGGraph(int start, int[] stateArcs, int[] arcTargets, int[] arcInputs, int[] arcOutputs,
+            float[] arcCosts, float[] finalCosts, String[] inputLabels, String[] words) {
+        this.start = start;
+        this.stateArcs = stateArcs;
+        this.arcTargets = arcTargets;
+        this.arcInputs = arcInputs;
+        this.arcOutputs = arcOutputs;
+        this.arcCosts = arcCosts;
+        this.finalCosts = finalCosts;
+        this.inputLabels = inputLabels;
+        this.words = words;
+    }
+
+
+    /**
+     * Creates the description of an input label
+     *
+     * @param unit the name of the unit, starting with '*' for fillers
+     * @param leftContext the names of the left context units separated by
+     *            commas, or '-' if there is none
+     * @param rightContext the names of the right context units, or '-'
+     * @param position the character of the position of the HMM
+     * @param state the index of the HMM state
+     * @return the description
+     */
+    public static String createInputLabel(String unit, String leftContext, String rightContext, char position,
+            int state) {
+        return unit + ' ' + leftContext + ' ' + rightContext + ' ' + position + ' ' + state;
+    }
+
+
+    public int getStart() {
+        return start;
+    }
+
+
+    public int getNumStates() {
+        return finalCosts.length;
+    }
+
+
+    public int getNumArcs() {
+        return arcTargets.length;
+    }
+
+
+    /**
+     * Gets the index of the first arc of a state
+     *
+     * @param state the state
+     * @return the arc index
+     */
+    public int getArcStart(int state) {
+        return stateArcs[state];
+    }
+
+
+    /**
+     * Gets the index following the last arc of a state
+     *
+     * @param state the state
+     * @return the arc index
+     */
+    public int getArcEnd(int state) {
+        return stateArcs[state + 1];
+    }
+
+
+    public int getTarget(int arc) {
+        return arcTargets[arc];
+    }
+
+
+    public int getInput(int arc) {
+        return arcInputs[arc];
+    }
+
+
+    public int getOutput(int arc) {
+        return arcOutputs[arc];
+    }
+
+
+    public float getCost(int arc) {
+        return arcCosts[arc];
+    }
+
+
+    /**
+     * Gets the final cost of a state
+     *
+     * @param state the state
+     * @return the cost, positive infinity if the state is not final
+     */
+    public float getFinalCost(int state) {
+        return finalCosts[state];
+    }
+
+
+    public boolean isFinal(int state) {
+        return finalCosts[state] != Float.POSITIVE_INFINITY;
+    }
+
+
+    /**
+     * Gets the number of input labels including {@link #EPSILON}
+     *
+     * @return the number of labels
+     */
+    public int getNumInputLabels() {
+        return inputLabels.length;
+    }
+
+
+    public String getInputLabel(int label) {
+        return inputLabels[label];
+    }
+
+
+    /**
+     * Gets the number of output labels including {@link #EPSILON}
+     *
+     * @return the number of labels
+     */
+    public int getNumWords() {
+        return words.length;
+    }
+
+
+    public String getWord(int label) {
+        return words[label];
+    }
+
+
+    /**
+     * Writes the graph to a file
+     *
+     * @param file the file
+     * @throws IOException if the file can't be written
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputLabels.length);
+            for (String label : inputLabels)
+                out.writeUTF(label);
+            out.writeInt(words.length);
+            for (String word : words)
+                out.writeUTF(word);
+            out.writeInt(getNumStates());
+            out.writeInt(getNumArcs());
+            out.writeInt(start);
+            for (int state = 0; state < getNumStates(); state++) {
+                out.writeInt(stateArcs[state]);
+                out.writeFloat(finalCosts[state]);
+            }
+            for (int arc = 0; arc < getNumArcs(); arc++) {
+                out.writeInt(arcTargets[arc]);
+                out.writeInt(arcInputs[arc]);
+                out.writeInt(arcOutputs[arc]);
+                out.writeFloat(arcCosts[arc]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Reads a graph written by {@link #save(File)}
+     *
+     * @param location the location of the graph
+     * @return the graph
+     * @throws IOException if the graph can't be read
+     */
+    public static HCLGGraph load(URL location) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(location.openStream()));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a graph file: " + location);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported graph version " + version + ": " + location);
+
+            String[] inputLabels = new String[in.readInt()];
+            for (int i = 0; i < inputLabels.length; i++)
+                inputLabels[i] = in.readUTF();
+            String[] words = new String[in.readInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = in.readUTF();
+
+            int numStates = in.readInt();
+            int numArcs = in.readInt();
+            int start = in.readInt();
+            int[] stateArcs = new int[numStates + 1];
+            float[] finalCosts = new float[numStates];
+            for (int state = 0; state < numStates; state++) {
+                stateArcs[state] = in.readInt();
+                finalCosts[state] = in.readFloat();
+            }
+            stateArcs[numStates] = numArcs;
+
+            int[] arcTargets = new int[numArcs];
+            int[] arcInputs = new int[numArcs];
+            int[] arcOutputs = new int[numArcs];
+            float[] arcCosts = new float[numArcs];
+            for (int arc = 0; arc < numArcs; arc++) {
+                arcTargets[arc] = in.readInt();
+                arcInputs[arc] = in.readInt();
+                arcOutputs[arc] = in.readInt();
+                arcCosts[arc] = in.readFloat();
+            }
+            return new HCLGGraph(start, stateArcs, arcTargets, arcInputs, arcOutputs, arcCosts, finalCosts,
+                    inputLabels, words);
+        } finally {
+            in.close();
+        }
+    }
+}
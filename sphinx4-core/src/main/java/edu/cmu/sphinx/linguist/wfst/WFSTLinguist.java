@@ -0,0 +1,649 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.linguist.wfst;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.decoder.scorer.ScoreProvider;
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.linguist.HMMSearchState;
+import edu.cmu.sphinx.linguist.Linguist;
+import edu.cmu.sphinx.linguist.SearchGraph;
+import edu.cmu.sphinx.linguist.SearchState;
+import edu.cmu.sphinx.linguist.SearchStateArc;
+import edu.cmu.sphinx.linguist.WordSearchState;
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.acoustic.AcousticModel;
+import edu.cmu.sphinx.linguist.acoustic.Context;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMPosition;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.LeftRightContext;
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.LogMath;
+import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+import edu.cmu.sphinx.util.props.S4Component;
+import edu.cmu.sphinx.util.props.S4String;
+
+/**
+ * A linguist which searches a static graph compiled offline by the
+ * {@link HCLGCompiler}. The graph already contains the lexicon, the context
+ * dependency, the grammar and the HMM transitions, so nothing is expanded
+ * during the search and the graph can be shared by several recognizers.
+ * <p>
+ * The search states follow the arcs of the graph. An arc with an input label
+ * leads to an emitting state of its HMM state, an arc with an output label
+ * leads to a word state first. Arcs without labels are followed immediately,
+ * the successors of a graph state are all the labeled arcs and the final
+ * states reachable over them. The successors are computed once and kept.
+ * <p>
+ * The language weight and the insertion probabilities are applied when the
+ * graph is compiled, the properties of other linguists for them are not used.
+ */
+public class WFSTLinguist implements Linguist {
+
+    /** The property that defines the acoustic model to use for the HMM states */
+    @S4Component(type = AcousticModel.class)
+    public final static String PROP_ACOUSTIC_MODEL = "acousticModel";
+
+    /** The property that defines the unit manager to use */
+    @S4Component(type = UnitManager.class)
+    public final static String PROP_UNIT_MANAGER = "unitManager";
+
+    /** The property that defines the dictionary to use for the words */
+    @S4Component(type = Dictionary.class)
+    public final static String PROP_DICTIONARY = "dictionary";
+
+    /** The property that defines the location of the graph written by the {@link HCLGCompiler} */
+    @S4String
+    public final static String PROP_GRAPH_LOCATION = "graphLocation";
+
+    private Logger logger;
+    private LogMath logMath;
+    private AcousticModel acousticModel;
+    private UnitManager unitManager;
+    private Dictionary dictionary;
+    private URL graphLocation;
+
+    private HCLGGraph graph;
+    private HMMState[] hmmStates;
+    private Word[] words;
+    private SearchGraph searchGraph;
+
+    // the successors and the emitting states by the graph states
+    private SearchStateArc[][] successors;
+    private EmittingState[] emittingStates;
+
+
+    public WFSTLinguist(AcousticModel acousticModel, UnitManager unitManager, Dictionary dictionary,
+            URL graphLocation) {
+        logger = Logger.getLogger(getClass().getName());
+        logMath = LogMath.getLogMath();
+        this.acousticModel = acousticModel;
+        this.unitManager = unitManager;
+        this.dictionary = dictionary;
+        this.graphLocation = graphLocation;
+    }
+
+    public WFSTLinguist() {
+
+    }
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.util.props.Configurable#newProperties(edu.cmu.sphinx.util.props.PropertySheet)
+    */
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        logger = ps.getLogger();
+        logMath = LogMath.getLogMath();
+        acousticModel = (AcousticModel) ps.getComponent(PROP_ACOUSTIC_MODEL);
+        unitManager = (UnitManager) ps.getComponent(PROP_UNIT_MANAGER);
+        dictionary = (Dictionary) ps.getComponent(PROP_DICTIONARY);
+        graphLocation = ConfigurationManagerUtils.getResource(PROP_GRAPH_LOCATION, ps);
+    }
+
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.linguist.Linguist#allocate()
+    */
+    public void allocate() throws IOException {
+        dictionary.allocate();
+        acousticModel.allocate();
+        graph = HCLGGraph.load(graphLocation);
+        logger.info("Graph: " + graph.getNumStates() + " states, " + graph.getNumArcs() + " arcs");
+
+        Map<String, HMM> hmms = new HashMap<String, HMM>();
+        hmmStates = new HMMState[graph.getNumInputLabels()];
+        for (int label = 1; label < hmmStates.length; label++)
+            hmmStates[label] = getHMMState(graph.getInputLabel(label), hmms);
+
+        // the grammar words missing in the dictionary are not on any arc
+        words = new Word[graph.getNumWords()];
+        for (int label = 1; label < words.length; label++)
+            words[label] = dictionary.getWord(graph.getWord(label));
+
+        successors = new SearchStateArc[graph.getNumStates()][];
+        emittingStates = new EmittingState[graph.getNumStates()];
+        searchGraph = new WFSTSearchGraph(new InitialState(graph.getStart()));
+    }
+
+
+    /**
+     * Looks up the HMM state of an input label
+     *
+     * @param label the label, see {@link HCLGGraph#createInputLabel(String, String, String, char, int)}
+     * @param hmms the HMMs looked up so far by the labels without the state
+     * @return the HMM state
+     * @throws IOException if the acoustic model doesn't have the HMM
+     */
+    private HMMState getHMMState(String label, Map<String, HMM> hmms) throws IOException {
+        int split = label.lastIndexOf(' ');
+        String key = label.substring(0, split);
+        HMM hmm = hmms.get(key);
+        if (hmm == null) {
+            String[] fields = key.split(" ");
+            boolean filler = fields[0].startsWith("*");
+            String name = filler ? fields[0].substring(1) : fields[0];
+            Context context = Context.EMPTY_CONTEXT;
+            if (!fields[1].equals("-") || !fields[2].equals("-"))
+                context = LeftRightContext.get(getUnits(fields[1]), getUnits(fields[2]));
+            Unit unit = unitManager.getUnit(name, filler, context);
+            hmm = acousticModel.lookupNearestHMM(unit, HMMPosition.lookup(fields[3]), false);
+            if (hmm == null)
+                throw new IOException("Missing HMM in the acoustic model: " + key);
+            hmms.put(key, hmm);
+        }
+        return hmm.getState(Integer.parseInt(label.substring(split + 1)));
+    }
+
+
+    private Unit[] getUnits(String names) {
+        if (names.equals("-"))
+            return null;
+        String[] fields = names.split(",");
+        Unit[] units = new Unit[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            units[i] = unitManager.getUnit(fields[i]);
+        return units;
+    }
+
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.linguist.Linguist#deallocate()
+    */
+    public void deallocate() throws IOException {
+        if (acousticModel != null)
+            acousticModel.deallocate();
+        if (dictionary != null)
+            dictionary.deallocate();
+        graph = null;
+        successors = null;
+        emittingStates = null;
+        searchGraph = null;
+    }
+
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.linguist.Linguist#getSearchGraph()
+    */
+    public SearchGraph getSearchGraph() {
+        return searchGraph;
+    }
+
+
+    public void startRecognition() {
+    }
+
+
+    public void stopRecognition() {
+    }
+
+
+    /**
+     * Returns the graph searched by this linguist
+     *
+     * @return the graph
+     */
+    public HCLGGraph getGraph() {
+        return graph;
+    }
+
+
+    private float getProbability(float cost) {
+        return logMath.lnToLog(-cost);
+    }
+
+
+    /**
+     * Gets the successors of a graph state
+     *
+     * @param state the graph state
+     * @return the arcs to the emitting, word and final states
+     */
+    SearchStateArc[] getSuccessors(int state) {
+        SearchStateArc[] arcs = successors[state];
+        if (arcs == null) {
+            arcs = createSuccessors(state);
+            successors[state] = arcs;
+        }
+        return arcs;
+    }
+
+
+    private SearchStateArc[] createSuccessors(int state) {
+        Map<SearchState, SearchStateArc> arcs = new LinkedHashMap<SearchState, SearchStateArc>();
+        Map<Integer, Float> reached = new HashMap<Integer, Float>();
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        reached.put(state, LogMath.LOG_ONE);
+        queue.add(state);
+        while (!queue.isEmpty()) {
+            int current = queue.remove();
+            float probability = reached.get(current);
+            if (graph.isFinal(current))
+                addArc(arcs, new FinalState(current), probability + getProbability(graph.getFinalCost(current)),
+                        true);
+            for (int arc = graph.getArcStart(current); arc < graph.getArcEnd(current); arc++) {
+                float arcProbability = probability + getProbability(graph.getCost(arc));
+                if (graph.getOutput(arc) != HCLGGraph.EPSILON) {
+                    addArc(arcs, new WFSTWordState(arc), arcProbability, true);
+                } else if (graph.getInput(arc) != HCLGGraph.EPSILON) {
+                    addArc(arcs, getEmittingState(arc), arcProbability, false);
+                } else {
+                    int target = graph.getTarget(arc);
+                    Float best = reached.get(target);
+                    if (best == null || best < arcProbability) {
+                        reached.put(target, arcProbability);
+                        queue.add(target);
+                    }
+                }
+            }
+        }
+        return arcs.values().toArray(new SearchStateArc[arcs.size()]);
+    }
+
+
+    /** Keeps the best of the arcs to a state */
+    private static void addArc(Map<SearchState, SearchStateArc> arcs, SearchState state, float probability,
+            boolean language) {
+        SearchStateArc arc = arcs.get(state);
+        if (arc == null || arc.getProbability() < probability)
+            arcs.put(state, new WFSTArc(state, probability, language));
+    }
+
+
+    /**
+     * Gets the emitting state an arc leads to. The state is identified by
+     * its graph state and HMM state, the graphs of the {@link HCLGCompiler}
+     * have only one HMM state on the arcs to a graph state.
+     *
+     * @param arc the arc
+     * @return the emitting state
+     */
+    private EmittingState getEmittingState(int arc) {
+        int target = graph.getTarget(arc);
+        EmittingState state = emittingStates[target];
+        if (state == null) {
+            state = new EmittingState(target, graph.getInput(arc));
+            emittingStates[target] = state;
+        } else if (state.label != graph.getInput(arc)) {
+            state = new EmittingState(target, graph.getInput(arc));
+        }
+        return state;
+    }
+
+
+    class WFSTSearchGraph implements SearchGraph {
+
+        private final SearchState initialState;
+
+
+        WFSTSearchGraph(SearchState initialState) {
+            this.initialState = initialState;
+        }
+
+
+        public SearchState getInitialState() {
+            return initialState;
+        }
+
+
+        /** Word states, final states and emitting states */
+        public int getNumStateOrder() {
+            return 3;
+        }
+
+
+        public boolean getWordTokenFirst() {
+            return false;
+        }
+    }
+
+
+    /** An arc to a search state with the probability of the graph path to it */
+    static class WFSTArc implements SearchStateArc {
+
+        private final SearchState state;
+        private final float probability;
+        private final boolean language;
+
+
+        WFSTArc(SearchState state, float probability, boolean language) {
+            this.state = state;
+            this.probability = probability;
+            this.language = language;
+        }
+
+
+        public SearchState getState() {
+            return state;
+        }
+
+
+        public float getProbability() {
+            return probability;
+        }
+
+
+        public float getLanguageProbability() {
+            return language ? probability : LogMath.LOG_ONE;
+        }
+
+
+        public float getInsertionProbability() {
+            return language ? LogMath.LOG_ONE : probability;
+        }
+    }
+
+
+    /** A search state of the graph */
+    abstract class WFSTState implements SearchState, SearchStateArc {
+
+        public boolean isEmitting() {
+            return false;
+        }
+
+
+        public boolean isFinal() {
+            return false;
+        }
+
+
+        public String toPrettyString() {
+            return getSignature();
+        }
+
+
+        public WordSequence getWordHistory() {
+            return null;
+        }
+
+
+        public SearchState getState() {
+            return this;
+        }
+
+
+        public float getProbability() {
+            return LogMath.LOG_ONE;
+        }
+
+
+        public float getLanguageProbability() {
+            return LogMath.LOG_ONE;
+        }
+
+
+        public float getInsertionProbability() {
+            return LogMath.LOG_ONE;
+        }
+
+
+        @Override
+        public String toString() {
+            return getSignature();
+        }
+    }
+
+
+    /** The initial state, it leads to the successors of the initial graph state */
+    class InitialState extends WFSTState {
+
+        private final int state;
+
+
+        InitialState(int state) {
+            this.state = state;
+        }
+
+
+        public SearchStateArc[] getSuccessors() {
+            return WFSTLinguist.this.getSuccessors(state);
+        }
+
+
+        public String getSignature() {
+            return "wfst-initial-" + state;
+        }
+
+
+        public Object getLexState() {
+            return state;
+        }
+
+
+        public int getOrder() {
+            return 0;
+        }
+    }
+
+
+    /** A word on an arc of the graph */
+    class WFSTWordState extends WFSTState implements WordSearchState {
+
+        private final int arc;
+
+
+        WFSTWordState(int arc) {
+            this.arc = arc;
+        }
+
+
+        public SearchStateArc[] getSuccessors() {
+            if (graph.getInput(arc) == HCLGGraph.EPSILON)
+                return WFSTLinguist.this.getSuccessors(graph.getTarget(arc));
+            return new SearchStateArc[] {getEmittingState(arc)};
+        }
+
+
+        /**
+         * Returns the pronunciation of the word. The graph does not keep
+         * which one of the pronunciations it is, the first is returned.
+         *
+         * @return the pronunciation
+         */
+        public Pronunciation getPronunciation() {
+            return words[graph.getOutput(arc)].getPronunciations()[0];
+        }
+
+
+        public boolean isWordStart() {
+            return false;
+        }
+
+
+        public String getSignature() {
+            return "wfst-word-" + arc + '-' + graph.getWord(graph.getOutput(arc));
+        }
+
+
+        public Object getLexState() {
+            return arc;
+        }
+
+
+        public int getOrder() {
+            return 0;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return arc * 31 + 1;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WFSTWordState && ((WFSTWordState) o).arc == arc;
+        }
+    }
+
+
+    /** A final state of the graph */
+    class FinalState extends WFSTState {
+
+        private final int state;
+
+
+        FinalState(int state) {
+            this.state = state;
+        }
+
+
+        public SearchStateArc[] getSuccessors() {
+            return new SearchStateArc[0];
+        }
+
+
+        @Override
+        public boolean isFinal() {
+            return true;
+        }
+
+
+        public String getSignature() {
+            return "wfst-final-" + state;
+        }
+
+
+        public Object getLexState() {
+            return state;
+        }
+
+
+        public int getOrder() {
+            return 1;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return state * 31 + 2;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FinalState && ((FinalState) o).state == state;
+        }
+    }
+
+
+    /** An HMM state entered over the arcs to a graph state */
+    class EmittingState extends WFSTState implements HMMSearchState, ScoreProvider {
+
+        private final int state;
+        private final int label;
+
+
+        EmittingState(int state, int label) {
+            this.state = state;
+            this.label = label;
+        }
+
+
+        public SearchStateArc[] getSuccessors() {
+            return WFSTLinguist.this.getSuccessors(state);
+        }
+
+
+        public HMMState getHMMState() {
+            return hmmStates[label];
+        }
+
+
+        @Override
+        public boolean isEmitting() {
+            return true;
+        }
+
+
+        public float getScore(Data data) {
+            return hmmStates[label].getScore(data);
+        }
+
+
+        public float[] getComponentScore(Data data) {
+            return hmmStates[label].calculateComponentScore(data);
+        }
+
+
+        public String getSignature() {
+            return "wfst-hmm-" + state + '-' + graph.getInputLabel(label);
+        }
+
+
+        public Object getLexState() {
+            return state;
+        }
+
+
+        public int getOrder() {
+            return 2;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return state * 31 + label;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof EmittingState) {
+                EmittingState other = (EmittingState) o;
+                return other.state == state && other.label == label;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Carnegie Mellon University.
+ * All Rights Reserved.  Use is subject to license terms.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package edu.cmu.sphinx.result;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
+import edu.cmu.sphinx.util.CustomThreadFactory;
+import edu.cmu.sphinx.util.props.Configurable;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+import edu.cmu.sphinx.util.props.S4Component;
+import edu.cmu.sphinx.util.props.S4Double;
+import edu.cmu.sphinx.util.props.S4Integer;
+
+/**
+ * Rescores batches of lattices with its own language model, usually a larger
+ * one than the recognizer used. Every lattice is expanded by the n-gram
+ * histories of the language model, see {@link LatticeRescorer#expand()}, and
+ * the lattices are processed in parallel. The language model must allow
+ * concurrent queries, as the NgramTrieModel does.
+ */
+public class BatchLatticeRescorer implements Configurable {
+
+    /** The property for the language model used to rescore the lattices */
+    @S4Component(type = LanguageModel.class)
+    public final static String PROP_LANGUAGE_MODEL = "languageModel";
+
+    /** The property that defines the weight of the language model scores */
+    @S4Double(defaultValue = 8.0)
+    public final static String PROP_LANGUAGE_WEIGHT = "languageWeight";
+
+    /**
+     * The property that defines the number of rescoring threads. If it is 0,
+     * one thread per available processor is used.
+     */
+    @S4Integer(defaultValue = 0)
+    public final static String PROP_NUM_THREADS = "numThreads";
+
+    private final static String className = BatchLatticeRescorer.class.getSimpleName();
+
+    private Logger logger;
+    private LanguageModel languageModel;
+    private float languageWeight;
+    private int numThreads;
+    private ExecutorService executorService;
+
+    public BatchLatticeRescorer(LanguageModel languageModel, float languageWeight, int numThreads) {
+        this.logger = Logger.getLogger(getClass().getName());
+        this.languageModel = languageModel;
+        this.languageWeight = languageWeight;
+        this.numThreads = numThreads;
+    }
+
+    public BatchLatticeRescorer() {
+    }
+
+    /*
+    * (non-Javadoc)
+    *
+    * @see edu.cmu.sphinx.util.props.Configurable#newProperties(edu.cmu.sphinx.util.props.PropertySheet)
+    */
+    public void newProperties(PropertySheet ps) throws PropertyException {
+        logger = ps.getLogger();
+        languageModel = (LanguageModel) ps.getComponent(PROP_LANGUAGE_MODEL);
+        languageWeight = ps.getFloat(PROP_LANGUAGE_WEIGHT);
+        numThreads = ps.getInt(PROP_NUM_THREADS);
+    }
+
+    /**
+     * Loads the language model and starts the rescoring threads.
+     *
+     * @throws IOException if the language model can't be loaded
+     */
+    public void allocate() throws IOException {
+        languageModel.allocate();
+        int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+        logger.fine("# of rescoring threads: " + threads);
+        executorService = Executors.newFixedThreadPool(threads,
+                new CustomThreadFactory(className, true, Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Stops the rescoring threads and frees the language model.
+     *
+     * @throws IOException if the language model can't be freed
+     */
+    public void deallocate() throws IOException {
+        if (executorService != null) {
+            executorService.shutdown();
+            executorService = null;
+        }
+        languageModel.deallocate();
+    }
+
+    /**
+     * Rescores a single lattice.
+     *
+     * @param lattice the lattice
+     * @return the lattice expanded by the n-gram histories and rescored
+     */
+    public Lattice rescore(Lattice lattice) {
+        return new LatticeRescorer(lattice, languageModel, languageWeight).expand();
+    }
+
+    /**
+     * Rescores lattices in parallel. The given lattices are not changed.
+     *
+     * @param lattices the lattices
+     * @return the rescored lattices, in the order of the given ones
+     */
+    public List<Lattice> rescore(List<Lattice> lattices) {
+        List<Callable<Lattice>> tasks = new ArrayList<Callable<Lattice>>(lattices.size());
+        for (final Lattice lattice : lattices) {
+            tasks.add(new Callable<Lattice>() {
+                public Lattice call() {
+                    return rescore(lattice);
+                }
+            });
+        }
+
+        List<Lattice> rescored = new ArrayList<Lattice>(lattices.size());
+        try {
+            for (Future<Lattice> result : executorService.invokeAll(tasks))
+                rescored.add(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Lattice rescoring was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Lattice rescoring failed", e.getCause());
+        }
+        return rescored;
+    }
+}
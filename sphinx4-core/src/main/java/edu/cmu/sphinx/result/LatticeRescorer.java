@@ -11,8 +11,10 @@
  */
 package edu.cmu.sphinx.result;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import edu.cmu.sphinx.linguist.WordSequence;
 import edu.cmu.sphinx.linguist.dictionary.Word;
@@ -42,6 +44,18 @@ public class LatticeRescorer {
         depth = model.getMaxDepth();
     }
 
+    /**
+     * Create a new Lattice optimizer
+     * 
+     * @param lattice lattice to rescore
+     * @param model language model to rescore
+     * @param languageWeight weight of the language model scores
+     */
+    public LatticeRescorer(Lattice lattice, LanguageModel model, float languageWeight) {
+        this(lattice, model);
+        this.languageWeigth = languageWeight;
+    }
+
 
     private void rescoreEdges() {
         for (Edge edge : lattice.edges) {
@@ -91,4 +105,68 @@ public class LatticeRescorer {
     public void rescore() {
         rescoreEdges();
     }
+
+    /**
+     * Creates a lattice where every node has a single n-gram history, so that
+     * every edge gets the exact language model score. Nodes are copied once
+     * for each history reaching them, copies with the same history are
+     * merged. Filler nodes are not part of the histories and keep the language
+     * scores of their edges. Nodes without successors are never copied.
+     * 
+     * @return the expanded lattice
+     */
+    public Lattice expand() {
+        Lattice expanded = new Lattice();
+        Map<Node, Map<WordSequence, Node>> copies = new HashMap<Node, Map<WordSequence, Node>>();
+
+        Node initialNode = lattice.getInitialNode();
+        WordSequence initialHistory = WordSequence.EMPTY;
+        if (!lattice.isFillerNode(initialNode))
+            initialHistory = initialHistory.addWord(initialNode.getWord(), depth - 1);
+        expanded.setInitialNode(getCopy(expanded, copies, initialNode, initialHistory));
+
+        for (Node node : lattice.sortNodes()) {
+            Map<WordSequence, Node> nodeCopies = copies.get(node);
+            if (nodeCopies == null)
+                continue;
+            for (Map.Entry<WordSequence, Node> entry : nodeCopies.entrySet()) {
+                WordSequence history = entry.getKey();
+                for (Edge edge : node.getLeavingEdges()) {
+                    Node toNode = edge.getToNode();
+                    double lmScore = edge.getLMScore();
+                    WordSequence nextHistory = history;
+                    if (!lattice.isFillerNode(toNode)) {
+                        WordSequence ngram = history.addWord(toNode.getWord(), depth);
+                        lmScore = model.getProbability(ngram) * languageWeigth;
+                        nextHistory = ngram.trim(depth - 1);
+                    }
+                    Node copy = getCopy(expanded, copies, toNode, nextHistory);
+                    expanded.addEdge(entry.getValue(), copy, edge.getAcousticScore(), lmScore);
+                }
+            }
+        }
+
+        expanded.setTerminalNode(getCopy(expanded, copies, lattice.getTerminalNode(), WordSequence.EMPTY));
+        return expanded;
+    }
+
+    private Node getCopy(Lattice expanded, Map<Node, Map<WordSequence, Node>> copies, Node node,
+            WordSequence history) {
+        if (node.getLeavingEdges().isEmpty())
+            history = WordSequence.EMPTY;
+        Map<WordSequence, Node> nodeCopies = copies.get(node);
+        if (nodeCopies == null) {
+            nodeCopies = new HashMap<WordSequence, Node>();
+            copies.put(node, nodeCopies);
+        }
+        Node copy = nodeCopies.get(history);
+        if (copy == null) {
+            // the ids are counted per lattice, lattices may be expanded in parallel
+            copy = new Node(Integer.toString(expanded.getNodes().size()), node.getWord(), node.getBeginTime(),
+                    node.getEndTime());
+            expanded.addNode(copy);
+            nodeCopies.put(history, copy);
+        }
+        return copy;
+    }
 }
@@ -4,9 +4,14 @@ import static org.testng.AssertJUnit.assertEquals;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.testng.annotations.Test;
 
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SharedAcousticModel;
 import edu.cmu.sphinx.result.WordResult;
 
 public class LiveRecognizerTest {
@@ -83,5 +88,42 @@ public class LiveRecognizerTest {
         WordResult word = result.getWords().get(0);
         assertEquals("{one, 1.000, [840:1060]}", word.toString());
     }
-}
 
+    @Test
+    public void testSharedAcousticModel() throws Exception {
+        final Configuration configuration = new Configuration();
+
+        configuration.setAcousticModelPath("resource:/edu/cmu/sphinx/models/en-us/en-us");
+        configuration.setDictionaryPath("resource:/edu/cmu/sphinx/models/en-us/cmudict-en-us.dict");
+        configuration.setGrammarPath("resource:/edu/cmu/sphinx/jsgf/test/");
+        configuration.setGrammarName("digits.grxml");
+        configuration.setUseGrammar(true);
+
+        final SharedAcousticModel acousticModel =
+            new SharedAcousticModel(configuration.getAcousticModelPath());
+
+        // Recognizers sharing the model decode concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<String> task = new Callable<String>() {
+                public String call() throws Exception {
+                    StreamSpeechRecognizer recognizer =
+                        new StreamSpeechRecognizer(configuration, acousticModel);
+                    InputStream stream = LiveRecognizerTest.class
+                        .getResourceAsStream("/edu/cmu/sphinx/tools/bandwidth/10001-90210-01803.wav");
+                    stream.skip(44);
+                    recognizer.startRecognition(stream);
+                    String hypothesis = recognizer.getResult().getHypothesis();
+                    recognizer.stopRecognition();
+                    return hypothesis;
+                }
+            };
+            Future<String> first = executor.submit(task);
+            Future<String> second = executor.submit(task);
+            assertEquals("one zero zero zero one", first.get());
+            assertEquals("one zero zero zero one", second.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
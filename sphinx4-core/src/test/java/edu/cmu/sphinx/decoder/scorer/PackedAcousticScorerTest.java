@@ -0,0 +1,115 @@
+package edu.cmu.sphinx.decoder.scorer;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.logging.Logger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.decoder.adaptation.ClusteredDensityFileData;
+import edu.cmu.sphinx.decoder.adaptation.Transform;
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianMixture;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianWeights;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneScoreTable;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Sphinx3Loader;
+
+/**
+ * Checks that the packed scorer scores the adapted model.
+ */
+public class PackedAcousticScorerTest {
+
+    private static final int NUM_SENONES = 3;
+    private static final int NUM_COMPONENTS = 2;
+    private static final int DIMENSION = 3;
+
+    /** A loader holding a small continuous model built in memory */
+    private static class TestLoader extends Sphinx3Loader {
+
+        TestLoader() {
+            logger = Logger.getLogger(getClass().getName());
+            meansPool = new Pool<float[]>("means");
+            variancePool = new Pool<float[]>("variances");
+            for (int i = 0; i < NUM_SENONES * NUM_COMPONENTS; i++) {
+                meansPool.put(i, new float[] {i, -i, 0.5f * i});
+                variancePool.put(i, new float[] {1 + i, 2, 3});
+            }
+            mixtureWeights = new GaussianWeights("mixture_weights", NUM_SENONES, NUM_COMPONENTS, 1);
+            for (int i = 0; i < NUM_SENONES; i++)
+                mixtureWeights.put(i, 0, new float[] {-1, -2});
+            senonePool = createSenonePool(-Float.MAX_VALUE, 0.0001f);
+        }
+
+        @Override
+        public void load() {
+        }
+
+        @Override
+        public int getNumStreams() {
+            return 1;
+        }
+
+        @Override
+        public int[] getVectorLength() {
+            return new int[] {DIMENSION};
+        }
+    }
+
+    /** Writes a transform which doubles and shifts the means */
+    private Transform createTransform(Sphinx3Loader loader) throws Exception {
+        File file = File.createTempFile("mllr", ".matrix");
+        file.deleteOnExit();
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        writer.println(1);
+        writer.println(1);
+        writer.println(DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            for (int j = 0; j < DIMENSION; j++)
+                writer.print((i == j ? 2 : 0) + " ");
+            writer.println();
+        }
+        for (int i = 0; i < DIMENSION; i++)
+            writer.print("0.5 ");
+        writer.println();
+        for (int i = 0; i < DIMENSION; i++)
+            writer.print("1 ");
+        writer.println();
+        writer.close();
+
+        Transform transform = new Transform(loader, 1);
+        transform.load(file.getPath());
+        return transform;
+    }
+
+    private void checkScores(PackedAcousticScorer scorer, Sphinx3Loader loader) {
+        SenoneScoreTable table = scorer.getSenoneScores();
+        FloatData feature = new FloatData(new float[] {0.3f, -1.2f, 2.5f}, 16000, 0);
+        table.setFeature(feature);
+        for (int i = 0; i < NUM_SENONES; i++) {
+            GaussianMixture senone = (GaussianMixture) loader.getSenonePool().get(i);
+            Assert.assertEquals(table.getScore(senone), senone.calculateScore(feature));
+        }
+    }
+
+    @Test
+    public void testScoresAdaptedModel() throws Exception {
+        TestLoader loader = new TestLoader();
+        PackedAcousticScorer scorer = new PackedAcousticScorer(null, null, loader, 1);
+        scorer.allocate();
+        scorer.startRecognition();
+        checkScores(scorer, loader);
+        scorer.stopRecognition();
+
+        float[] mean = loader.getMeansPool().get(1).clone();
+        loader.update(createTransform(loader), new ClusteredDensityFileData(loader, 1));
+        Assert.assertEquals(loader.getMeansPool().get(1)[0], 2 * mean[0] + 0.5f);
+        Assert.assertEquals(loader.getUpdateCount(), 1);
+
+        scorer.startRecognition();
+        checkScores(scorer, loader);
+        scorer.stopRecognition();
+        scorer.deallocate();
+    }
+}
@@ -47,6 +47,7 @@ public class ScorerTests {
         List<Class<? extends SimpleAcousticScorer>> scorerClasses = new ArrayList<Class<? extends SimpleAcousticScorer>>();
         scorerClasses.add(SimpleAcousticScorer.class);
         scorerClasses.add(ThreadedAcousticScorer.class);
+        scorerClasses.add(ForkJoinAcousticScorer.class);
 
         for (Class<? extends SimpleAcousticScorer> scorerClass : scorerClasses) {
             System.err.println("testing: " + scorerClass.getSimpleName());
@@ -119,4 +120,33 @@ public class ScorerTests {
         
         // ensure that all scoring threads have died
     }
+
+
+    @Test
+    public void testForkJoinScorerFindsBest() {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(SimpleAcousticScorer.FEATURE_FRONTEND, createDummyFrontEnd());
+        props.put(ForkJoinAcousticScorer.PROP_NUM_THREADS, 4);
+        props.put(ForkJoinAcousticScorer.PROP_SHARE_POOL, false);
+        AcousticScorer scorer = ConfigurationManager.getInstance(ForkJoinAcousticScorer.class, props);
+
+        List<Scoreable> tokens = new ArrayList<Scoreable>();
+        for (int i = 0; i < 1000; i++) {
+            tokens.add(new Token(null, -Math.abs(i - 617), 0.f, 0.f, 0.f) {
+
+                @Override
+                public float calculateScore(Data feature) {
+                    return getScore();
+                }
+            });
+        }
+
+        scorer.allocate();
+        scorer.startRecognition();
+
+        Assert.assertSame(scorer.calculateScores(tokens), tokens.get(617));
+
+        scorer.stopRecognition();
+        scorer.deallocate();
+    }
 }
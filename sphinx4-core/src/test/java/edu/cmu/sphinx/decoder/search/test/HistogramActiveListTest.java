@@ -0,0 +1,64 @@
+package edu.cmu.sphinx.decoder.search.test;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.decoder.search.ActiveList;
+import edu.cmu.sphinx.decoder.search.HistogramActiveListFactory;
+import edu.cmu.sphinx.decoder.search.Token;
+
+public class HistogramActiveListTest {
+
+	private ActiveList createList(int absoluteBeamWidth, double relativeBeamWidth, float[] scores) {
+		ActiveList list = new HistogramActiveListFactory(absoluteBeamWidth, relativeBeamWidth, 256).newInstance();
+		for (float score : scores)
+			list.add(new Token(null, null, score, 0.0f, 0.0f, 0));
+		return list;
+	}
+
+	private float worstScore(ActiveList list) {
+		float worst = Float.MAX_VALUE;
+		for (Token token : list)
+			worst = Math.min(worst, token.getScore());
+		return worst;
+	}
+
+	@Test
+	public void testAbsoluteBeam() {
+		Random random = new Random(42);
+		float[] scores = new float[30000];
+		for (int i = 0; i < scores.length; i++)
+			scores[i] = -random.nextFloat() * 10000;
+
+		ActiveList list = createList(1000, 0.0, scores).purge();
+		Assert.assertTrue(list.size() <= 1000);
+		Assert.assertTrue(list.size() > 900);
+
+		// no pruned token scores better than a kept one
+		float worst = worstScore(list);
+		int better = 0;
+		for (float score : scores)
+			if (score >= worst)
+				better++;
+		Assert.assertEquals(better, list.size());
+	}
+
+	@Test
+	public void testRelativeBeam() {
+		// a relative beam of 1E-10 is about -230000 in LogMath log base
+		float[] scores = {-1.0f, -10.0f, -1000000.0f, -5.0f, -2000000.0f};
+		ActiveList list = createList(-1, 1E-10, scores).purge();
+		Assert.assertEquals(list.size(), 3);
+		Assert.assertEquals(list.getBestScore(), -1.0f);
+		Assert.assertTrue(worstScore(list) >= -10.0f);
+	}
+
+	@Test
+	public void testEqualScores() {
+		float[] scores = new float[100];
+		ActiveList list = createList(10, 0.0, scores).purge();
+		Assert.assertEquals(list.size(), 100);
+	}
+}
@@ -0,0 +1,74 @@
+package edu.cmu.sphinx.decoder.search.test;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.decoder.search.Token;
+import edu.cmu.sphinx.decoder.search.TokenPool;
+
+public class TokenPoolTest {
+
+	@Test
+	public void testReclaimUnreachable() {
+		TokenPool pool = new TokenPool();
+		Token root = pool.get(null, null, 0.0f, 0.0f, 0.0f, 0);
+		Token alive = pool.get(root, null, -1.0f, 0.0f, 0.0f, 1);
+		Token dead = pool.get(root, null, -2.0f, 0.0f, 0.0f, 1);
+		Token deadChild = pool.get(dead, null, -3.0f, 0.0f, 0.0f, 2);
+
+		pool.mark(Arrays.asList(alive));
+		pool.sweep();
+		Assert.assertEquals(pool.size(), 4);
+		Assert.assertEquals(pool.getFreeCount(), 2);
+
+		Token first = pool.get(alive, null, -4.0f, -0.5f, -0.25f, 3);
+		Token second = pool.get(alive, null, -5.0f, 0.0f, 0.0f, 3);
+		Assert.assertTrue(first == dead || first == deadChild);
+		Assert.assertTrue(second == dead || second == deadChild);
+		Assert.assertEquals(pool.size(), 4);
+
+		Assert.assertSame(first.getPredecessor(), alive);
+		Assert.assertEquals(first.getScore(), -4.0f);
+		Assert.assertEquals(first.getInsertionScore(), -0.5f);
+		Assert.assertEquals(first.getLanguageScore(), -0.25f);
+		Assert.assertEquals(first.getAcousticScore(), 0.0f);
+		Assert.assertEquals(first.getCollectTime(), 3L);
+
+		Token created = pool.get(alive, null, -6.0f, 0.0f, 0.0f, 3);
+		Assert.assertEquals(pool.size(), 5);
+		Assert.assertNotSame(created, alive);
+	}
+
+	@Test
+	public void testMarkEveryGeneration() {
+		TokenPool pool = new TokenPool();
+		Token root = pool.get(null, null, 0.0f, 0.0f, 0.0f, 0);
+		Token leaf = pool.get(root, null, 0.0f, 0.0f, 0.0f, 1);
+
+		pool.mark(leaf);
+		pool.sweep();
+		Assert.assertEquals(pool.getFreeCount(), 0);
+
+		// marks of the last generation do not keep tokens alive
+		pool.sweep();
+		Assert.assertEquals(pool.getFreeCount(), 2);
+	}
+
+	@Test
+	public void testResetKeepsFreeTokens() {
+		TokenPool pool = new TokenPool();
+		Token used = pool.get(null, null, 0.0f, 0.0f, 0.0f, 0);
+		pool.get(null, null, 0.0f, 0.0f, 0.0f, 0);
+
+		pool.mark(used);
+		pool.sweep();
+		pool.reset();
+		Assert.assertEquals(pool.size(), 1);
+
+		pool.sweep();
+		Assert.assertEquals(pool.getFreeCount(), 1);
+		Assert.assertNotSame(pool.get(null, null, 0.0f, 0.0f, 0.0f, 1), used);
+	}
+}
@@ -0,0 +1,117 @@
+package edu.cmu.sphinx.decoder.search.test;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.decoder.search.Token;
+import edu.cmu.sphinx.decoder.search.TokenTable;
+import edu.cmu.sphinx.linguist.IndexedSearchState;
+import edu.cmu.sphinx.linguist.SearchStateArc;
+import edu.cmu.sphinx.linguist.WordSequence;
+
+public class TokenTableTest {
+
+	private static class TestState implements IndexedSearchState {
+
+		private final int index;
+		private final int key;
+
+		TestState(int index, int key) {
+			this.index = index;
+			this.key = key;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public SearchStateArc[] getSuccessors() {
+			return new SearchStateArc[0];
+		}
+
+		public boolean isEmitting() {
+			return false;
+		}
+
+		public boolean isFinal() {
+			return false;
+		}
+
+		public String toPrettyString() {
+			return toString();
+		}
+
+		public String getSignature() {
+			return "test-" + key;
+		}
+
+		public WordSequence getWordHistory() {
+			return null;
+		}
+
+		public Object getLexState() {
+			return null;
+		}
+
+		public int getOrder() {
+			return 0;
+		}
+
+		@Override
+		public int hashCode() {
+			// few distinct hash codes to force collisions
+			return key % 7;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof TestState && ((TestState) o).key == key;
+		}
+	}
+
+	@Test
+	public void testHashedStates() {
+		TokenTable table = new TokenTable(1);
+		Token[] tokens = new Token[100];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = new Token(null, i);
+			table.put(new TestState(-1, i), tokens[i]);
+		}
+		Assert.assertEquals(table.size(), 100);
+		for (int i = 0; i < tokens.length; i++)
+			Assert.assertSame(table.get(new TestState(-1, i)), tokens[i]);
+		Assert.assertNull(table.get(new TestState(-1, 100)));
+
+		Token replacement = new Token(null, 0);
+		table.put(new TestState(-1, 5), replacement);
+		Assert.assertEquals(table.size(), 100);
+		Assert.assertSame(table.get(new TestState(-1, 5)), replacement);
+	}
+
+	@Test
+	public void testIndexedStates() {
+		TokenTable table = new TokenTable(1);
+		Token token = new Token(null, 0);
+		table.put(new TestState(1000, 1), token);
+		Assert.assertSame(table.get(new TestState(1000, 1)), token);
+		Assert.assertNull(table.get(new TestState(999, 1)));
+		Assert.assertEquals(table.size(), 0);
+	}
+
+	@Test
+	public void testClear() {
+		TokenTable table = new TokenTable(4);
+		Token token = new Token(null, 0);
+		table.put(new TestState(-1, 1), token);
+		table.put(new TestState(3, 2), token);
+
+		table.clear();
+		Assert.assertEquals(table.size(), 0);
+		Assert.assertNull(table.get(new TestState(-1, 1)));
+		Assert.assertNull(table.get(new TestState(3, 2)));
+
+		table.put(new TestState(-1, 8), token);
+		Assert.assertSame(table.get(new TestState(-1, 8)), token);
+		Assert.assertNull(table.get(new TestState(-1, 1)));
+	}
+}
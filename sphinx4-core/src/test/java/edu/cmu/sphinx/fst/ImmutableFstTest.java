@@ -0,0 +1,141 @@
+/**
+ * Copyright 1999-2012 Carnegie Mellon University. Portions Copyright 2002 Sun
+ * Microsystems, Inc. Portions Copyright 2002 Mitsubishi Electric Research
+ * Laboratories. All Rights Reserved. Use is subject to license terms. See the
+ * file "license.terms" for information on usage and redistribution of this
+ * file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+
+package edu.cmu.sphinx.fst;
+
+import static edu.cmu.sphinx.fst.Convert.importFst;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.fst.operations.ArcSort;
+import edu.cmu.sphinx.fst.operations.Compose;
+import edu.cmu.sphinx.fst.operations.ILabelCompare;
+import edu.cmu.sphinx.fst.operations.OLabelCompare;
+import edu.cmu.sphinx.fst.semiring.Semiring;
+import edu.cmu.sphinx.fst.semiring.TropicalSemiring;
+
+public class ImmutableFstTest {
+
+    private File getFile(String name) throws URISyntaxException {
+        URL url = getClass().getResource("openfst/basic.fst");
+        File dir = new File(url.toURI()).getParentFile();
+        return new File(dir, name);
+    }
+
+    private static void assertSameFst(Fst fst1, Fst fst2) {
+        assertThat(fst2.getNumStates(), equalTo(fst1.getNumStates()));
+        assertThat(fst2.getStart().getId(), equalTo(fst1.getStart().getId()));
+        assertThat(fst2.getIsyms(), equalTo(fst1.getIsyms()));
+        assertThat(fst2.getOsyms(), equalTo(fst1.getOsyms()));
+        for (int i = 0; i < fst1.getNumStates(); i++) {
+            State s1 = fst1.getState(i);
+            State s2 = fst2.getState(i);
+            assertThat(s2.getFinalWeight(), equalTo(s1.getFinalWeight()));
+            // immutable states hold an additional arc
+            assertThat(s2.getNumArcs(), equalTo(s1.getNumArcs() + 1));
+            assertThat(s2.getArc(s1.getNumArcs()), equalTo((Arc) null));
+            for (int j = 0; j < s1.getNumArcs(); j++) {
+                Arc a1 = s1.getArc(j);
+                Arc a2 = s2.getArc(j);
+                assertThat(a2.getIlabel(), equalTo(a1.getIlabel()));
+                assertThat(a2.getOlabel(), equalTo(a1.getOlabel()));
+                assertThat(a2.getWeight(), equalTo(a1.getWeight()));
+                assertThat(a2.getNextState().getId(),
+                        equalTo(a1.getNextState().getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadModel() throws IOException, ClassNotFoundException, URISyntaxException {
+        Fst fst = importFst(getFile("basic").getPath(), new TropicalSemiring());
+
+        // java serialized model
+        ImmutableFst serialized = ImmutableFst.loadModel(getFile("basic.fst.ser").getPath());
+        assertSameFst(fst, serialized);
+        assertThat(serialized, equalTo(ImmutableFst.copyOf(fst)));
+
+        File file = File.createTempFile("immutable", ".fst");
+        file.deleteOnExit();
+        ImmutableFst.copyOf(fst).saveMappedModel(file.getPath());
+
+        ImmutableFst mapped = ImmutableFst.loadModel(file);
+        assertSameFst(fst, mapped);
+        assertThat(mapped, equalTo(serialized));
+        ImmutableFst read = ImmutableFst.loadModel(new FileInputStream(file));
+        assertSameFst(fst, read);
+        assertThat(read, equalTo(mapped));
+    }
+
+    private static Fst compose(Fst fst1, Fst fst2) {
+        Semiring semiring = fst1.getSemiring();
+        Compose.augment(1, fst1, semiring);
+        ArcSort.apply(fst1, new OLabelCompare());
+        Compose.augment(0, fst2, semiring);
+        ArcSort.apply(fst2, new ILabelCompare());
+        Fst filter = Compose.getFilter(fst2.getIsyms(), semiring);
+        ArcSort.apply(filter, new ILabelCompare());
+
+        Fst result = Compose.compose(fst1, filter, semiring, true);
+        ArcSort.apply(result, new OLabelCompare());
+        return Compose.compose(result, fst2, semiring, true);
+    }
+
+    @Test
+    public void testCompose() throws IOException, ClassNotFoundException, URISyntaxException {
+        URL url = getClass().getResource("algorithms/compose/fstcompose.fst.ser");
+        File parent = new File(url.toURI()).getParentFile();
+        String pathA = new File(parent, "A").getPath();
+        String pathB = new File(parent, "B").getPath();
+
+        File file = File.createTempFile("immutable", ".fst");
+        file.deleteOnExit();
+        ImmutableFst.copyOf(importFst(pathB, new TropicalSemiring())).saveMappedModel(file.getPath());
+        ImmutableFst immutable = ImmutableFst.loadModel(file);
+
+        Fst expected = compose(importFst(pathA, new TropicalSemiring()),
+                               importFst(pathB, new TropicalSemiring()));
+        Fst composed = compose(importFst(pathA, new TropicalSemiring()), immutable);
+        assertThat(composed, equalTo(expected));
+
+        // the file is not changed
+        assertThat(ImmutableFst.loadModel(file),
+                   equalTo(ImmutableFst.copyOf(importFst(pathB, new TropicalSemiring()))));
+    }
+
+    @Test
+    public void testConvertedModelStaysMapped() throws IOException, ClassNotFoundException, URISyntaxException {
+        URL url = getClass().getResource("algorithms/compose/fstcompose.fst.ser");
+        File parent = new File(url.toURI()).getParentFile();
+        String pathA = new File(parent, "A").getPath();
+        String pathB = new File(parent, "B").getPath();
+
+        File serialized = File.createTempFile("serialized", ".fst");
+        serialized.deleteOnExit();
+        importFst(pathB, new TropicalSemiring()).saveModel(serialized.getPath());
+        File file = File.createTempFile("immutable", ".fst");
+        file.deleteOnExit();
+        ImmutableFst.main(new String[] {serialized.getPath(), file.getPath()});
+        ImmutableFst immutable = ImmutableFst.loadModel(file);
+        assertThat(immutable.isMapped(), equalTo(true));
+
+        Fst expected = compose(importFst(pathA, new TropicalSemiring()),
+                               importFst(pathB, new TropicalSemiring()));
+        Fst composed = compose(importFst(pathA, new TropicalSemiring()), immutable);
+        assertThat(composed, equalTo(expected));
+        assertThat(immutable.isMapped(), equalTo(true));
+    }
+}
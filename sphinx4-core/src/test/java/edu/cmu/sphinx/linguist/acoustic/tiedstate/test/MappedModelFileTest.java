@@ -0,0 +1,158 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianMixture;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianWeights;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MappedModelFile;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.PackedGaussianMixtures;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Sphinx3Loader;
+
+/**
+ * Tests writing and reading of mapped model files.
+ */
+public class MappedModelFileTest {
+
+    /** A loader holding a small model built in memory */
+    private static class TestLoader extends Sphinx3Loader {
+
+        TestLoader() {
+            varianceFloor = 0.0001f;
+            mixtureWeightFloor = 1e-7f;
+            meansPool = new Pool<float[]>("means");
+            variancePool = new Pool<float[]>("variances");
+            for (int i = 0; i < 4; i++) {
+                meansPool.put(i, new float[] {i, -i, 0.5f * i});
+                variancePool.put(i, new float[] {1 + i, 2, 3});
+            }
+            mixtureWeights = new GaussianWeights("mixture_weights", 2, 2, 1);
+            mixtureWeights.put(0, 0, new float[] {-1, -2});
+            mixtureWeights.put(1, 0, new float[] {-3, -4});
+            transitionsPool = new Pool<float[][]>("transition_matrices");
+            transitionsPool.put(0, new float[][] { {-1, -2}, {-3, -4}});
+        }
+
+        void createSenones() {
+            logger = Logger.getLogger(getClass().getName());
+            senonePool = createSenonePool(0, varianceFloor);
+        }
+
+        @Override
+        public int getNumStates() {
+            return 2;
+        }
+
+        @Override
+        public int getNumStreams() {
+            return 1;
+        }
+
+        @Override
+        public int getNumGaussiansPerState() {
+            return 2;
+        }
+
+        @Override
+        public int[] getVectorLength() {
+            return new int[] {3};
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        TestLoader loader = new TestLoader();
+        File file = File.createTempFile("model", ".mapped");
+        try {
+            MappedModelFile.write(loader, file);
+            MappedModelFile mapped = MappedModelFile.open(file.toURI().toURL());
+
+            Assert.assertEquals(mapped.getNumStates(), 2);
+            Assert.assertEquals(mapped.getNumStreams(), 1);
+            Assert.assertEquals(mapped.getNumGaussiansPerState(), 2);
+            Assert.assertEquals(mapped.getVectorLength(), new int[] {3});
+            mapped.checkCompatible(0.0001f, 1e-7f);
+
+            Pool<float[]> means = mapped.getMeans();
+            Pool<float[]> variances = mapped.getVariances();
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(means.get(i), loader.getMeansPool().get(i));
+                Assert.assertEquals(variances.get(i), loader.getVariancePool().get(i));
+            }
+            GaussianWeights weights = mapped.getMixtureWeights();
+            for (int i = 0; i < 2; i++)
+                for (int k = 0; k < 2; k++)
+                    Assert.assertEquals(weights.get(i, 0, k), loader.getMixtureWeights().get(i, 0, k));
+            float[][] tmat = mapped.getTransitionMatrices().get(0);
+            Assert.assertEquals(tmat[0], new float[] {-1, -2});
+            Assert.assertEquals(tmat[1], new float[] {-3, -4});
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPackedMixtures() throws IOException {
+        TestLoader loader = new TestLoader();
+        File file = File.createTempFile("model", ".mapped");
+        try {
+            MappedModelFile.write(loader, file);
+            Assert.assertEquals(MappedModelFile.open(file.toURI().toURL()).getNumPackedGaussians(), 0);
+
+            loader.createSenones();
+            MappedModelFile.write(loader, file);
+            MappedModelFile mapped = MappedModelFile.open(file.toURI().toURL());
+            Assert.assertEquals(mapped.getNumPackedGaussians(), 4);
+
+            PackedGaussianMixtures mixtures = new PackedGaussianMixtures(loader.getSenonePool(), mapped);
+            Assert.assertTrue(mixtures.isMapped());
+            FloatData feature = new FloatData(new float[] {0.3f, -1.2f, 2.5f}, 16000, 0);
+            for (int i = 0; i < 2; i++) {
+                GaussianMixture senone = (GaussianMixture) loader.getSenonePool().get(i);
+                Assert.assertEquals(mixtures.calculateScore(i, feature.getValues()), senone.calculateScore(feature));
+            }
+
+            mixtures.update();
+            Assert.assertFalse(mixtures.isMapped());
+            for (int i = 0; i < 2; i++) {
+                GaussianMixture senone = (GaussianMixture) loader.getSenonePool().get(i);
+                Assert.assertEquals(mixtures.calculateScore(i, feature.getValues()), senone.calculateScore(feature));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testIncompatibleFloors() throws IOException {
+        File file = File.createTempFile("model", ".mapped");
+        try {
+            MappedModelFile.write(new TestLoader(), file);
+            MappedModelFile.open(file.toURI().toURL()).checkCompatible(0.001f, 1e-7f);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "missing-" + MappedModelFile.FILE_NAME);
+        Assert.assertNull(MappedModelFile.open(file.toURI().toURL()));
+    }
+}
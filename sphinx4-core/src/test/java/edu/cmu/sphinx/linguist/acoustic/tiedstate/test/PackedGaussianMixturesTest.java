@@ -0,0 +1,99 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate.test;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianMixture;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianWeights;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MixtureComponent;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.PackedGaussianMixtures;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Senone;
+import edu.cmu.sphinx.util.LogMath;
+
+/**
+ * Checks that packed Gaussian mixtures score exactly like the mixtures they
+ * were built from.
+ */
+public class PackedGaussianMixturesTest {
+
+    private static final int NUM_SENONES = 20;
+    private static final int NUM_COMPONENTS = 4;
+    private static final int DIMENSION = 13;
+
+    private final Random random = new Random(42);
+
+    private float[] randomVector(float offset) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++)
+            vector[i] = offset + random.nextFloat();
+        return vector;
+    }
+
+    private Pool<Senone> createSenonePool() {
+        LogMath logMath = LogMath.getLogMath();
+        GaussianWeights weights = new GaussianWeights("mixture_weights", NUM_SENONES, NUM_COMPONENTS, 1);
+        Pool<Senone> pool = new Pool<Senone>("senones");
+        for (int i = 0; i < NUM_SENONES; i++) {
+            MixtureComponent[] components = new MixtureComponent[NUM_COMPONENTS];
+            float[] logWeights = new float[NUM_COMPONENTS];
+            for (int j = 0; j < NUM_COMPONENTS; j++) {
+                components[j] = new MixtureComponent(randomVector(0), randomVector(0.5f));
+                logWeights[j] = logMath.linearToLog(1.0 / NUM_COMPONENTS);
+            }
+            weights.put(i, 0, logWeights);
+            pool.put(i, new GaussianMixture(weights, components, i));
+        }
+        return pool;
+    }
+
+    @Test
+    public void testScoresMatchMixtures() {
+        Pool<Senone> pool = createSenonePool();
+        PackedGaussianMixtures packed = new PackedGaussianMixtures(pool);
+
+        Assert.assertEquals(packed.getNumSenones(), NUM_SENONES);
+        Assert.assertEquals(packed.getNumComponents(), NUM_COMPONENTS);
+        Assert.assertEquals(packed.getDimension(), DIMENSION);
+
+        float[] feature = randomVector(0);
+        int[] ids = {3, 0, 19, 7};
+        float[] scores = new float[ids.length];
+        packed.calculateScores(ids, ids.length, feature, scores);
+
+        for (int i = 0; i < ids.length; i++) {
+            GaussianMixture senone = (GaussianMixture) pool.get(ids[i]);
+            float expected = senone.calculateScore(new FloatData(feature, 16000, 0));
+            Assert.assertEquals(scores[i], expected);
+            Assert.assertTrue(packed.contains(senone));
+        }
+    }
+
+    @Test
+    public void testUpdateAfterAdaptation() {
+        Pool<Senone> pool = createSenonePool();
+        PackedGaussianMixtures packed = new PackedGaussianMixtures(pool);
+
+        // adaptation modifies the means in place
+        GaussianMixture senone = (GaussianMixture) pool.get(5);
+        senone.getMixtureComponents()[0].getMean()[0] += 1.0f;
+        packed.update();
+
+        float[] feature = randomVector(0);
+        float expected = senone.calculateScore(new FloatData(feature, 16000, 0));
+        Assert.assertEquals(packed.calculateScore(5, feature), expected);
+    }
+}
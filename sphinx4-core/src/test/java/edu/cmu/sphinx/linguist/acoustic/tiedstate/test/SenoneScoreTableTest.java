@@ -0,0 +1,107 @@
+/*
+* Copyright 2014 Carnegie Mellon University.
+* All Rights Reserved.  Use is subject to license terms.
+*
+* See the file "license.terms" for information on usage and
+* redistribution of this file, and for a DISCLAIMER OF ALL
+* WARRANTIES.
+*
+*/
+
+package edu.cmu.sphinx.linguist.acoustic.tiedstate.test;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.CompositeSenone;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianMixture;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.GaussianWeights;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MixtureComponent;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.PackedGaussianMixtures;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Pool;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.Senone;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.SenoneScoreTable;
+
+/**
+ * Tests the frame level senone score table.
+ */
+public class SenoneScoreTableTest {
+
+    private Pool<Senone> createSenonePool() {
+        GaussianWeights weights = new GaussianWeights("mixture_weights", 3, 1, 1);
+        Pool<Senone> pool = new Pool<Senone>("senones");
+        for (int i = 0; i < 3; i++) {
+            weights.put(i, 0, new float[] {0});
+            MixtureComponent[] components = {new MixtureComponent(new float[] {i}, new float[] {1})};
+            pool.put(i, new GaussianMixture(weights, components, i));
+        }
+        return pool;
+    }
+
+    private void checkTable(SenoneScoreTable table, Pool<Senone> pool) {
+        FloatData feature = new FloatData(new float[] {1.2f}, 16000, 0);
+        table.setFeature(feature);
+        Assert.assertEquals(table.getNumComputed(), 0);
+
+        table.calculateScores(new int[] {2, 0, 2}, 3);
+        Assert.assertEquals(table.getNumComputed(), 2);
+        Assert.assertEquals(table.getNumScored(), 2L);
+
+        for (int i = 0; i < 3; i++) {
+            GaussianMixture senone = (GaussianMixture) pool.get(i);
+            Assert.assertEquals(table.getScore(senone), senone.calculateScore(feature));
+        }
+        Assert.assertEquals(table.getNumComputed(), 3);
+
+        CompositeSenone composite = new CompositeSenone(new Senone[] {pool.get(0), pool.get(1)}, 0);
+        Assert.assertFalse(table.contains(composite));
+        Assert.assertEquals(table.getScore(composite), table.getScore(pool.get(1)));
+
+        table.setFeature(new FloatData(new float[] {0}, 16000, 1));
+        Assert.assertEquals(table.getNumComputed(), 0);
+        // the count of scored senones is not reset with the frame
+        Assert.assertEquals(table.getNumScored(), 3L);
+    }
+
+    @Test
+    public void testUnpackedScores() {
+        Pool<Senone> pool = createSenonePool();
+        checkTable(new SenoneScoreTable(pool, null), pool);
+    }
+
+    @Test
+    public void testPackedScores() {
+        Pool<Senone> pool = createSenonePool();
+        checkTable(new SenoneScoreTable(pool, new PackedGaussianMixtures(pool)), pool);
+    }
+
+    @Test
+    public void testWindowScores() {
+        Pool<Senone> pool = createSenonePool();
+        SenoneScoreTable table = new SenoneScoreTable(pool, new PackedGaussianMixtures(pool), 3);
+        Data[] frames = new Data[3];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new FloatData(new float[] {0.7f * i}, 16000, i);
+        table.setFeatures(frames, frames.length);
+
+        long[] scored = {1, 2, 2};
+        table.calculateScores(new int[] {0}, 1);
+        for (int i = 0; i < frames.length; i++) {
+            Assert.assertTrue(table.advanceTo(frames[i]));
+            // senone 2 becomes active partway through the window
+            if (i == 1)
+                table.calculateScores(new int[] {2}, 1);
+            // senone 0 is scored over the window once, in the first frame
+            table.calculateScores(new int[] {0}, 1);
+            Assert.assertEquals(table.getNumScored(), scored[i]);
+            for (int id = 0; id <= (i == 0 ? 0 : 2); id += 2) {
+                GaussianMixture senone = (GaussianMixture) pool.get(id);
+                Assert.assertEquals(table.getScore(senone), senone.calculateScore(frames[i]));
+            }
+        }
+        Assert.assertEquals(table.getNumComputed(), 2);
+        Assert.assertFalse(table.advanceTo(frames[0]));
+    }
+}
@@ -0,0 +1,64 @@
+package edu.cmu.sphinx.linguist.g2p;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.fst.Arc;
+import edu.cmu.sphinx.fst.Fst;
+import edu.cmu.sphinx.fst.ImmutableFst;
+import edu.cmu.sphinx.fst.State;
+import edu.cmu.sphinx.fst.semiring.TropicalSemiring;
+
+public class G2PConverterTest {
+
+    /**
+     * Creates a model spelling "a" as "A" and "b" as "B", which may insert
+     * an "X" at a cost
+     */
+    private static Fst createModel() {
+        TropicalSemiring ts = new TropicalSemiring();
+        Fst fst = new Fst(ts);
+        fst.setIsyms(new String[] {"<eps>", "<s>", "</s>", "a", "b"});
+        fst.setOsyms(new String[] {"<eps>", "<s>", "</s>", "A", "B", "X"});
+
+        State start = new State(ts.zero());
+        State word = new State(ts.zero());
+        State end = new State(0.f);
+        fst.addState(start);
+        fst.addState(word);
+        fst.addState(end);
+        fst.setStart(start);
+        start.addArc(new Arc(1, 1, 0.f, word));
+        word.addArc(new Arc(3, 3, 0.f, word));
+        word.addArc(new Arc(4, 4, 0.f, word));
+        word.addArc(new Arc(0, 5, 5.f, word));
+        word.addArc(new Arc(2, 2, 0.f, end));
+        return fst;
+    }
+
+    @Test
+    public void testMappedModelStaysMapped() throws IOException,
+            ClassNotFoundException {
+        File serialized = File.createTempFile("g2p", ".fst.ser");
+        serialized.deleteOnExit();
+        createModel().saveModel(serialized.getPath());
+        File file = File.createTempFile("g2p", ".fst");
+        file.deleteOnExit();
+        ImmutableFst.main(new String[] {serialized.getPath(), file.getPath()});
+
+        G2PConverter converter = new G2PConverter(file.toURI().toURL());
+        assertThat(converter.g2pmodel.isMapped(), equalTo(true));
+
+        ArrayList<Path> paths = converter.phoneticize("ab", 1);
+        assertThat(paths.size(), equalTo(1));
+        assertThat(paths.get(0).getPath(), contains("A", "B"));
+        assertThat(converter.g2pmodel.isMapped(), equalTo(true));
+    }
+}
@@ -0,0 +1,128 @@
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.ArpaInterpolator.ArpaModel;
+import edu.cmu.sphinx.util.LogMath;
+
+public class ArpaInterpolatorTest {
+
+    private static final String BIGRAMS =
+            "\\data\\\n" +
+            "ngram 1=3\n" +
+            "ngram 2=2\n" +
+            "\n" +
+            "\\1-grams:\n" +
+            "-0.30103\ta\t-0.2\n" +
+            "-0.60206\tb\t-0.1\n" +
+            "-0.60206\t</s>\n" +
+            "\n" +
+            "\\2-grams:\n" +
+            "-0.1\ta b\n" +
+            "-0.5\tb a\n" +
+            "\n" +
+            "\\end\\\n";
+
+    private static final String TRIGRAMS =
+            "\\data\\\n" +
+            "ngram 1=3\n" +
+            "ngram 2=2\n" +
+            "ngram 3=1\n" +
+            "\n" +
+            "\\1-grams:\n" +
+            "-0.60206\ta\t-0.3\n" +
+            "-0.60206\tb\t-0.2\n" +
+            "-0.30103\tc\n" +
+            "\n" +
+            "\\2-grams:\n" +
+            "-0.4\ta b\t-0.1\n" +
+            "-0.2\tb c\n" +
+            "\n" +
+            "\\3-grams:\n" +
+            "-0.3\ta b c\n" +
+            "\n" +
+            "\\end\\\n";
+
+    private static final String[] VOCABULARY = {"a", "b", "c", "</s>"};
+
+    private URL write(String arpa) throws IOException {
+        File file = File.createTempFile("model", ".arpa");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(arpa);
+        writer.close();
+        return file.toURI().toURL();
+    }
+
+    private double mix(double log1, double log2) {
+        return Math.log10(0.5 * Math.pow(10, log1) + 0.5 * Math.pow(10, log2));
+    }
+
+    private double getMass(ArpaModel model, String... history) {
+        double mass = 0.0;
+        String[] words = Arrays.copyOf(history, history.length + 1);
+        for (String word : VOCABULARY) {
+            words[history.length] = word;
+            mass += Math.pow(10, model.getProbability(words));
+        }
+        return mass;
+    }
+
+    @Test
+    public void testInterpolate() throws IOException {
+        List<URL> models = Arrays.asList(write(BIGRAMS), write(TRIGRAMS));
+        File output = File.createTempFile("merged", ".arpa");
+        output.deleteOnExit();
+        ArpaInterpolator.interpolate(models, new float[] {0.5f, 0.5f}, output);
+
+        ArpaModel bigrams = ArpaModel.read(models.get(0));
+        ArpaModel trigrams = ArpaModel.read(models.get(1));
+        ArpaModel merged = ArpaModel.read(output.toURI().toURL());
+        assertThat(merged.getOrder(), equalTo(3));
+
+        // ngrams of the union are interpolated exactly
+        String[][] ngrams = {{"c"}, {"</s>"}, {"a", "b"}, {"b", "a"}, {"b", "c"}, {"a", "b", "c"}};
+        for (String[] ngram : ngrams)
+            assertThat((double) merged.getProbability(ngram),
+                       closeTo(mix(bigrams.getProbability(ngram), trigrams.getProbability(ngram)), 1e-5));
+
+        // backoffs keep the distributions normalized
+        assertThat(getMass(merged), closeTo(1.0, 1e-5));
+        assertThat(getMass(merged, "a"), closeTo(1.0, 1e-5));
+        assertThat(getMass(merged, "b"), closeTo(1.0, 1e-5));
+        assertThat(getMass(merged, "a", "b"), closeTo(1.0, 1e-5));
+        assertThat(getMass(merged, "c", "b"), closeTo(1.0, 1e-5));
+    }
+
+    @Test
+    public void testMergedModel() {
+        LogMath logMath = LogMath.getLogMath();
+        LanguageModel merged = new StubLanguageModel(3, logMath.linearToLog(0.2));
+        LanguageModel dynamic = new StubLanguageModel(3, logMath.linearToLog(0.6));
+        WordSequence sequence = new WordSequence(new Word("a", null, false));
+
+        List<LanguageModel> none = Collections.emptyList();
+        LanguageModel model = new InterpolatedLanguageModel(none, new float[0], merged, 1.0f);
+        assertThat(model.getProbability(sequence), equalTo(merged.getProbability(sequence)));
+
+        model = new InterpolatedLanguageModel(Collections.singletonList(dynamic), new float[] {0.25f}, merged,
+                0.75f);
+        assertThat(logMath.logToLinear(model.getProbability(sequence)), closeTo(0.75 * 0.2 + 0.25 * 0.6, 1e-3));
+    }
+}
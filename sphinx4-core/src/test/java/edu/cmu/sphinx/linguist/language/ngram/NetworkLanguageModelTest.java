@@ -0,0 +1,90 @@
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.LogMath;
+
+public class NetworkLanguageModelTest {
+
+    private static final String[] VOCABULARY = {"<s>", "a", "b", "c", "</s>"};
+
+    private static WordSequence getSequence(String... spellings) {
+        Word[] words = new Word[spellings.length];
+        for (int i = 0; i < spellings.length; i++)
+            words[i] = new Word(spellings[i], null, false);
+        return new WordSequence(words);
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        final LanguageModel model = new StubLanguageModel(3, VOCABULARY);
+        LanguageModelServer server = new LanguageModelServer(model, 0);
+        server.start();
+        // a shallow pipeline, so that the batches are sent in parts
+        final NetworkLanguageModel client =
+                new NetworkLanguageModel("localhost", server.getPort(), null, 3, 2, 2, 100);
+        client.allocate();
+
+        assertThat((double) client.getProbability(getSequence("a", "b", "c")),
+                   closeTo(model.getProbability(getSequence("a", "b", "c")), 0.01));
+        // the history is cut to the depth of the model and at unknown words
+        assertThat((double) client.getProbability(getSequence("c", "a", "b", "c")),
+                   closeTo(model.getProbability(getSequence("a", "b", "c")), 0.01));
+        assertThat((double) client.getProbability(getSequence("a", "x", "c")),
+                   closeTo(model.getProbability(getSequence("c")), 0.01));
+        assertThat(client.getProbability(getSequence("a", "x")), equalTo(LogMath.LOG_ZERO));
+
+        int[] history = {client.findWordId(new Word("<s>", null, false)),
+                         client.findWordId(new Word("a", null, false))};
+        final int[] wordIds = new int[VOCABULARY.length];
+        for (int i = 0; i < wordIds.length; i++)
+            wordIds[i] = client.findWordId(new Word(VOCABULARY[i], null, false));
+        float[] probabilities = new float[wordIds.length];
+        client.getProbabilities(history, wordIds, wordIds.length, probabilities);
+        for (int i = 0; i < wordIds.length; i++) {
+            assertThat((double) probabilities[i],
+                       closeTo(model.getProbability(getSequence("<s>", "a", VOCABULARY[i])), 0.01));
+            assertThat(client.getProbability(history, wordIds[i]), equalTo(probabilities[i]));
+        }
+
+        // concurrent batches share the connections
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Callable<float[]>> tasks = new ArrayList<Callable<float[]>>();
+        for (int i = 0; i < 16; i++) {
+            final int[] taskHistory = {wordIds[i % wordIds.length], wordIds[(i / 4) % wordIds.length]};
+            tasks.add(new Callable<float[]>() {
+                public float[] call() {
+                    float[] result = new float[wordIds.length];
+                    client.getProbabilities(taskHistory, wordIds, wordIds.length, result);
+                    return result;
+                }
+            });
+        }
+        List<Future<float[]>> results = executor.invokeAll(tasks);
+        executor.shutdown();
+        for (int i = 0; i < results.size(); i++) {
+            float[] result = results.get(i).get();
+            String first = VOCABULARY[i % wordIds.length];
+            String second = VOCABULARY[(i / 4) % wordIds.length];
+            for (int j = 0; j < wordIds.length; j++)
+                assertThat((double) result[j],
+                           closeTo(model.getProbability(getSequence(first, second, VOCABULARY[j])), 0.01));
+        }
+
+        client.deallocate();
+        server.stop();
+    }
+}
@@ -0,0 +1,96 @@
+package edu.cmu.sphinx.linguist.language.ngram;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.props.PropertySheet;
+
+/**
+ * A language model for tests which gives every n-gram its own probability, or
+ * the same probability to all of them. The ids of the words are their indices
+ * in the vocabulary.
+ */
+public class StubLanguageModel implements WordIdLanguageModel {
+
+    private final int maxDepth;
+    private final float probability;
+    private final List<String> vocabulary;
+
+    /**
+     * Creates a model which gives every n-gram its own probability
+     *
+     * @param maxDepth the order of the model
+     * @param vocabulary the words of the model
+     */
+    public StubLanguageModel(int maxDepth, String... vocabulary) {
+        this(maxDepth, Float.NaN, vocabulary);
+    }
+
+    /**
+     * Creates a model
+     *
+     * @param maxDepth the order of the model
+     * @param probability the probability of all n-grams, NaN to give every
+     *            n-gram its own probability
+     * @param vocabulary the words of the model
+     */
+    public StubLanguageModel(int maxDepth, float probability, String... vocabulary) {
+        this.maxDepth = maxDepth;
+        this.probability = probability;
+        this.vocabulary = Arrays.asList(vocabulary);
+    }
+
+    public void newProperties(PropertySheet ps) {
+    }
+
+    public void allocate() {
+    }
+
+    public void deallocate() {
+    }
+
+    public float getProbability(WordSequence wordSequence) {
+        if (!Float.isNaN(probability))
+            return probability;
+        return -(wordSequence.trim(maxDepth).toString().hashCode() & 0xffff);
+    }
+
+    public float getSmear(WordSequence wordSequence) {
+        return 0;
+    }
+
+    public Set<String> getVocabulary() {
+        return new HashSet<String>(vocabulary);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void onUtteranceEnd() {
+    }
+
+    public int findWordId(Word word) {
+        return vocabulary.indexOf(word.getSpelling());
+    }
+
+    public float getProbability(int[] history, int wordId) {
+        Word[] words = new Word[history.length + 1];
+        for (int i = 0; i < history.length; i++)
+            words[i] = new Word(vocabulary.get(history[i]), null, false);
+        words[history.length] = new Word(vocabulary.get(wordId), null, false);
+        return getProbability(new WordSequence(words));
+    }
+
+    public void getProbabilities(int[] history, int[] wordIds, int count, float[] probabilities) {
+        for (int i = 0; i < count; i++)
+            probabilities[i] = getProbability(history, wordIds[i]);
+    }
+
+    public void prefetch(int[] history) {
+    }
+}
@@ -11,6 +11,7 @@ package edu.cmu.sphinx.linguist.language.ngram.large;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
 import java.io.IOException;
 import java.net.URL;
@@ -22,6 +23,7 @@ import edu.cmu.sphinx.linguist.acoustic.UnitManager;
 import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
 import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
 
 
 public class LargeNgramTest {
@@ -68,5 +70,43 @@ public class LargeNgramTest {
             new Word("david", null, false)};
         assertThat((double) model.getProbability(new WordSequence(words1)),
                    closeTo(-67625.77, .01));
+
+        int[] history = {model.findWordId(words1[0]), model.findWordId(words1[1])};
+        int wordId = model.findWordId(words1[2]);
+        assertThat((double) model.getProbability(history, wordId),
+                   closeTo(-67625.77, .01));
+
+        // unknown words cut the history
+        history[0] = model.findWordId(new Word("unknown", null, false));
+        assertThat(history[0], equalTo(WordIdLanguageModel.UNKNOWN_WORD_ID));
+        assertThat(model.getProbability(history, wordId),
+                   equalTo(model.getProbability(new WordSequence(words1[1], words1[2]))));
+    }
+
+    @Test
+    public void testBufferMemoryBudget() throws IOException {
+        URL lm = getClass().getResource("100.arpa.dmp");
+        LargeNGramModel unlimited = new LargeNGramModel("", lm, null, 100,
+                false, 3, null, false, 1.0f, 1.0f, 1.0f, false);
+        LargeNGramModel budget = new LargeNGramModel("", lm, null, 100,
+                false, 3, null, false, 1.0f, 1.0f, 1.0f, false, 64, true);
+        unlimited.allocate();
+        budget.allocate();
+
+        int words = unlimited.getVocabulary().size();
+        for (int i = 0; i < words; i++) {
+            for (int j = 0; j < words; j++) {
+                int[] history = {i, j};
+                budget.prefetch(history);
+                for (int k = 0; k < words; k++)
+                    assertThat(budget.getProbability(history, k),
+                               equalTo(unlimited.getProbability(history, k)));
+                assertThat(budget.getLoadedBufferBytes(),
+                           lessThanOrEqualTo(64L));
+            }
+            budget.onUtteranceEnd();
+        }
+        budget.deallocate();
+        unlimited.deallocate();
     }
 }
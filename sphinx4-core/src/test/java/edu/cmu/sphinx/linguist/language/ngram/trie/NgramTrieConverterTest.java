@@ -0,0 +1,105 @@
+package edu.cmu.sphinx.linguist.language.ngram.trie;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.LogMath;
+
+public class NgramTrieConverterTest {
+
+    // the suffix "david huggins" of the last trigram is missing
+    private static final String ARPA =
+            "\\data\\\n" +
+            "ngram 1=4\n" +
+            "ngram 2=3\n" +
+            "ngram 3=2\n" +
+            "\n" +
+            "\\1-grams:\n" +
+            "-1.0\t<s>\t-0.5\n" +
+            "-0.5\thuggins\t-0.3\n" +
+            "-0.7\tdavid\t-0.2\n" +
+            "-0.9\t</s>\n" +
+            "\n" +
+            "\\2-grams:\n" +
+            "-0.2\t<s> huggins\t-0.1\n" +
+            "-0.3\thuggins david\t-0.4\n" +
+            "-0.4\tdavid </s>\n" +
+            "\n" +
+            "\\3-grams:\n" +
+            "-0.05\t<s> huggins david\n" +
+            "-0.06\thuggins david huggins\n" +
+            "\n" +
+            "\\end\\\n";
+
+    private NgramTrieModel model;
+    private int start;
+    private int huggins;
+    private int david;
+    private int end;
+
+    @Test
+    public void testConvert() throws IOException {
+        File output = File.createTempFile("converted", ".lm.bin");
+        output.deleteOnExit();
+        // chunks of two ngrams are merged
+        NgramTrieConverter.convert(new ByteArrayInputStream(ARPA.getBytes("UTF-8")), output, 2);
+
+        URL dictUrl = getClass().getResource("100.dict");
+        URL noisedictUrl = getClass()
+                .getResource("/edu/cmu/sphinx/models/en-us/en-us/noisedict");
+        Dictionary dictionary = new TextDictionary(dictUrl,
+                                                   noisedictUrl,
+                                                   null,
+                                                   null,
+                                                   new UnitManager());
+        model = new NgramTrieModel("",
+                                   output.toURI().toURL(),
+                                   null,
+                                   100,
+                                   false,
+                                   3,
+                                   dictionary,
+                                   false,
+                                   1.0f,
+                                   1.0f,
+                                   1.0f);
+        dictionary.allocate();
+        model.allocate();
+        assertThat(model.getMaxDepth(), equalTo(3));
+
+        start = model.findWordId(new Word("<s>", null, false));
+        huggins = model.findWordId(new Word("huggins", null, false));
+        david = model.findWordId(new Word("david", null, false));
+        end = model.findWordId(new Word("</s>", null, false));
+
+        checkProbability(-0.9, end);
+        checkProbability(-0.2, huggins, start);
+        checkProbability(-0.05, david, start, huggins);
+        checkProbability(-0.06, huggins, huggins, david);
+        // backed off to the unigram
+        checkProbability(-0.3 - 0.9, end, huggins);
+        // backed off to the bigram
+        checkProbability(-0.4 - 0.4, end, huggins, david);
+        checkProbability(-0.3, david, david, huggins);
+        // the missing suffix has the backed off probability
+        checkProbability(-0.2 - 0.5, huggins, david);
+        checkProbability(-0.2 - 0.5, huggins, start, david);
+    }
+
+    private void checkProbability(double expected, int wordId, int... history) {
+        float log = LogMath.getLogMath().log10ToLog((float) expected);
+        assertThat((double) model.getProbability(history, wordId), closeTo(log, 1.0));
+    }
+}
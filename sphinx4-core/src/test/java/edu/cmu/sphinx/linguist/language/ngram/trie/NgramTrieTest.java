@@ -22,12 +22,22 @@ import edu.cmu.sphinx.linguist.acoustic.UnitManager;
 import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
 import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
 
 
 public class NgramTrieTest {
 
     @Test
     public void testNgram() throws IOException {
+        checkModel(false);
+    }
+
+    @Test
+    public void testMappedNgram() throws IOException {
+        checkModel(true);
+    }
+
+    private void checkModel(boolean mapTrie) throws IOException {
         URL dictUrl = getClass().getResource("100.dict");
         URL noisedictUrl = getClass()
                 .getResource("/edu/cmu/sphinx/models/en-us/en-us/noisedict");
@@ -49,11 +59,26 @@ public class NgramTrieTest {
                                                   false,
                                                   1.0f,
                                                   1.0f,
-                                                  1.0f);
+                                                  1.0f,
+                                                  mapTrie);
         dictionary.allocate();
         model.allocate();
         assertThat(model.getMaxDepth(), equalTo(3));
 
+        // batched scoring matches single queries, it runs first so the
+        // single queries below check the probabilities it cached
+        String[] spellings = {"huggins", "daines", "david"};
+        int[] wordIds = new int[spellings.length];
+        for (int i = 0; i < spellings.length; i++)
+            wordIds[i] = model.findWordId(new Word(spellings[i], null, false));
+        int[][] histories = {{}, {wordIds[0]}, {wordIds[0], wordIds[1]}, {wordIds[2], wordIds[0]}};
+        float[] probabilities = new float[wordIds.length];
+        for (int[] h : histories) {
+            model.getProbabilities(h, wordIds, wordIds.length, probabilities);
+            for (int i = 0; i < wordIds.length; i++)
+                assertThat(probabilities[i], equalTo(model.getProbability(h, wordIds[i])));
+        }
+
         Word[] words = {
             new Word("huggins", null, false),
             new Word("daines", null, false)};
@@ -66,5 +91,16 @@ public class NgramTrieTest {
             new Word("david", null, false)};
         assertThat((double) model.getProbability(new WordSequence(words1)),
                    closeTo(-67637, .01));
+
+        int[] history = {model.findWordId(words1[0]), model.findWordId(words1[1])};
+        int wordId = model.findWordId(words1[2]);
+        assertThat((double) model.getProbability(history, wordId),
+                   closeTo(-67637, .01));
+
+        // unknown words cut the history
+        history[0] = model.findWordId(new Word("unknown", null, false));
+        assertThat(history[0], equalTo(WordIdLanguageModel.UNKNOWN_WORD_ID));
+        assertThat(model.getProbability(history, wordId),
+                   equalTo(model.getProbability(new WordSequence(words1[1], words1[2]))));
     }
 }
@@ -0,0 +1,365 @@
+package edu.cmu.sphinx.linguist.lextree;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.linguist.acoustic.AcousticModel;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMPool;
+import edu.cmu.sphinx.linguist.acoustic.HMMPosition;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.HMMStateArc;
+import edu.cmu.sphinx.linguist.acoustic.LeftRightContext;
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MixtureComponent;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
+import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
+import edu.cmu.sphinx.linguist.language.ngram.StubLanguageModel;
+import edu.cmu.sphinx.util.LogMath;
+import edu.cmu.sphinx.util.props.PropertySheet;
+
+public class HMMTreeTest {
+
+    private static final String WORDS =
+            "a AH\n" +
+            "abbey AE B IY\n" +
+            "abbot AE B AH T\n" +
+            "about AH B AW T\n" +
+            "about(2) AH B AW\n" +
+            "bat B AE T\n" +
+            "bee B IY\n" +
+            "tab T AE B\n" +
+            "tea T IY\n";
+
+    private static final String FILLERS =
+            "<s> SIL\n" +
+            "</s> SIL\n" +
+            "<sil> SIL\n";
+
+    private static final String[] PHONES = {"AE", "AH", "AW", "B", "IY", "T"};
+
+    /** A left to right HMM with three emitting states */
+    static class StubHMM implements HMM {
+
+        private final Unit unit;
+        private final HMMPosition position;
+        private final HMMState[] states = new HMMState[4];
+
+        StubHMM(Unit unit, HMMPosition position) {
+            this.unit = unit;
+            this.position = position;
+            for (int i = states.length - 1; i >= 0; i--)
+                states[i] = new StubHMMState(this, i, i < 3 ? states[i + 1] : null);
+        }
+
+        public Unit getUnit() {
+            return unit;
+        }
+
+        public Unit getBaseUnit() {
+            return unit.getBaseUnit();
+        }
+
+        public HMMState getState(int which) {
+            return states[which];
+        }
+
+        public int getOrder() {
+            return 3;
+        }
+
+        public HMMPosition getPosition() {
+            return position;
+        }
+
+        public HMMState getInitialState() {
+            return states[0];
+        }
+
+        @Override
+        public String toString() {
+            return "HMM " + unit + ' ' + position;
+        }
+    }
+
+    static class StubHMMState implements HMMState {
+
+        private final HMM hmm;
+        private final int state;
+        private final HMMStateArc[] successors;
+
+        StubHMMState(HMM hmm, int state, HMMState next) {
+            this.hmm = hmm;
+            this.state = state;
+            LogMath logMath = LogMath.getLogMath();
+            if (next == null)
+                successors = new HMMStateArc[0];
+            else
+                successors = new HMMStateArc[] {new HMMStateArc(this, logMath.linearToLog(0.5)),
+                                                new HMMStateArc(next, logMath.linearToLog(0.5))};
+        }
+
+        public HMM getHMM() {
+            return hmm;
+        }
+
+        public MixtureComponent[] getMixtureComponents() {
+            return null;
+        }
+
+        public long getMixtureId() {
+            return 0;
+        }
+
+        public float[] getLogMixtureWeights() {
+            return null;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public float getScore(Data data) {
+            return 0;
+        }
+
+        public float[] calculateComponentScore(Data data) {
+            return null;
+        }
+
+        public boolean isEmitting() {
+            return successors.length > 0;
+        }
+
+        public HMMStateArc[] getSuccessors() {
+            return successors;
+        }
+
+        public boolean isExitState() {
+            return successors.length == 0;
+        }
+    }
+
+    /** A model with context independent HMMs and some triphones */
+    static class StubModel implements AcousticModel {
+
+        private final List<Unit> units = new ArrayList<Unit>();
+        private final Map<String, HMM> hmms = new LinkedHashMap<String, HMM>();
+
+        StubModel(UnitManager unitManager) {
+            units.add(UnitManager.SILENCE);
+            for (String phone : PHONES)
+                units.add(unitManager.getUnit(phone));
+            for (Unit unit : units)
+                for (HMMPosition position : HMMPosition.values())
+                    add(unit, position);
+            for (int i = 1; i < units.size(); i++) {
+                Unit[] lc = {units.get(i)};
+                Unit[] rc = {units.get(units.size() - i)};
+                for (Unit unit : units.subList(1, units.size())) {
+                    Unit triphone = unitManager.getUnit(unit.getName(), false, LeftRightContext.get(lc, rc));
+                    add(triphone, HMMPosition.INTERNAL);
+                    add(triphone, HMMPosition.END);
+                }
+            }
+        }
+
+        private void add(Unit unit, HMMPosition position) {
+            hmms.put(unit.toString() + position, new StubHMM(unit, position));
+        }
+
+        public void newProperties(PropertySheet ps) {
+        }
+
+        public void allocate() {
+        }
+
+        public void deallocate() {
+        }
+
+        public String getName() {
+            return "stub";
+        }
+
+        public HMM lookupNearestHMM(Unit unit, HMMPosition position, boolean exactMatch) {
+            HMM hmm = hmms.get(unit.toString() + position);
+            if (hmm == null && !exactMatch)
+                hmm = hmms.get(unit.getBaseUnit().toString() + position);
+            return hmm;
+        }
+
+        public Iterator<HMM> getHMMIterator() {
+            return hmms.values().iterator();
+        }
+
+        public Iterator<Unit> getContextIndependentUnitIterator() {
+            return units.iterator();
+        }
+
+        public int getLeftContextSize() {
+            return 1;
+        }
+
+        public int getRightContextSize() {
+            return 1;
+        }
+
+        public Properties getProperties() {
+            return new Properties();
+        }
+    }
+
+    private URL write(String text) throws IOException {
+        File file = File.createTempFile("dictionary", ".dict");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(text);
+        writer.close();
+        return file.toURI().toURL();
+    }
+
+    private static void dump(Node node, List<String> lines, Map<Node, Integer> visited) {
+        Integer id = visited.get(node);
+        if (id != null) {
+            lines.add("#" + id);
+            return;
+        }
+        visited.put(node, visited.size());
+        String line = node.toString();
+        if (node instanceof UnitNode)
+            line += " type " + ((UnitNode) node).getType();
+        if (node instanceof HMMNode && ((HMMNode) node).getRC() != null)
+            line += " rc " + Arrays.toString(((HMMNode) node).getRC());
+        lines.add(line);
+        if (!(node instanceof WordNode) && node.getSuccessors() != null) {
+            lines.add("{");
+            for (Node successor : node.getSuccessors())
+                dump(successor, lines, visited);
+            lines.add("}");
+        }
+    }
+
+    /** Lists the nodes reachable from the entry points in the order of the search */
+    private static Map<Node, Integer> dump(HMMTree tree, List<Unit> units, List<String> lines) {
+        Map<Node, Integer> visited = new LinkedHashMap<Node, Integer>();
+        dump(tree.getInitialNode().getParent(), lines, visited);
+        dump(tree.getInitialNode(), lines, visited);
+        dump(tree.getSentenceEndWordNode(), lines, visited);
+        for (Unit base : units) {
+            for (Unit lc : units) {
+                try {
+                    lines.add("entry " + base + " " + lc);
+                    for (Node node : tree.getEntryPoint(lc, base))
+                        dump(node, lines, visited);
+                } catch (NullPointerException e) {
+                    // no such entry point
+                }
+            }
+        }
+        return visited;
+    }
+
+    private List<String> dump(HMMTree tree) {
+        List<String> lines = new ArrayList<String>();
+        for (Node node : dump(tree, units, lines).keySet())
+            if (node instanceof EndNode)
+                for (HMMNode hmmNode : tree.getHMMNodes((EndNode) node))
+                    dump(hmmNode, lines, new LinkedHashMap<Node, Integer>());
+        return lines;
+    }
+
+    private HMMPool pool;
+    private Dictionary dictionary;
+    private LanguageModel lm;
+    private List<Unit> units;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        UnitManager unitManager = new UnitManager();
+        dictionary = new TextDictionary(write(WORDS), write(FILLERS), null, null, unitManager);
+        dictionary.allocate();
+        StubModel model = new StubModel(unitManager);
+        pool = new HMMPool(model, Logger.getLogger(getClass().getName()), unitManager);
+        lm = new StubLanguageModel(1, "<s>", "</s>", "a", "abbey", "abbot", "about", "bat", "bee", "tab", "tea");
+        units = model.units;
+    }
+
+    @Test
+    public void testEndNodes() {
+        HMMTree tree = new HMMTree(pool, dictionary, lm, false, 1.0f);
+        Map<Node, Integer> nodes = dump(tree, units, new ArrayList<String>());
+        Set<Unit> entryUnits = new HashSet<Unit>();
+        for (Node node : nodes.keySet())
+            if (node instanceof WordNode)
+                entryUnits.add(((WordNode) node).getPronunciation().getUnits()[0]);
+
+        int numEndNodes = 0;
+        for (Node node : nodes.keySet()) {
+            if (!(node instanceof EndNode))
+                continue;
+            numEndNodes++;
+            EndNode endNode = (EndNode) node;
+            HMMNode[] hmmNodes = tree.getHMMNodes(endNode);
+            assertThat(tree.getHMMNodes(endNode), sameInstance(hmmNodes));
+
+            // every word ending leads to its own words in all right contexts
+            List<Unit> rcs = new ArrayList<Unit>();
+            for (HMMNode hmmNode : hmmNodes) {
+                assertThat(hmmNode.getBaseUnit(), equalTo(endNode.getBaseUnit()));
+                assertThat(hmmNode.getSuccessors(), equalTo(endNode.getSuccessors()));
+                rcs.addAll(Arrays.asList(hmmNode.getRC()));
+            }
+            assertThat(new HashSet<Unit>(rcs), equalTo(entryUnits));
+            assertThat(rcs.size(), equalTo(entryUnits.size()));
+        }
+        assertThat(numEndNodes, equalTo(8));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        File cacheFile = File.createTempFile("lextree", ".bin");
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+
+        List<String> compiled = dump(new HMMTree(pool, dictionary, lm, false, 1.0f));
+        List<String> written = dump(new HMMTree(pool, dictionary, lm, false, 1.0f, cacheFile));
+        assertThat(written, equalTo(compiled));
+        assertThat(cacheFile.exists(), equalTo(true));
+
+        // the written tree has the same nodes in the same order
+        List<String> loaded = dump(new HMMTree(pool, dictionary, lm, false, 1.0f, cacheFile));
+        assertThat(loaded, equalTo(written));
+
+        // another language weight changes the unigram probabilities, the
+        // tree is compiled again
+        List<String> weighted = dump(new HMMTree(pool, dictionary, lm, false, 0.5f));
+        assertThat(weighted, not(equalTo(compiled)));
+        assertThat(dump(new HMMTree(pool, dictionary, lm, false, 0.5f, cacheFile)), equalTo(weighted));
+        assertThat(dump(new HMMTree(pool, dictionary, lm, false, 0.5f, cacheFile)), equalTo(weighted));
+    }
+}
@@ -0,0 +1,126 @@
+package edu.cmu.sphinx.linguist.lextree;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.linguist.SearchState;
+import edu.cmu.sphinx.linguist.SearchStateArc;
+import edu.cmu.sphinx.linguist.WordSearchState;
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.StubLanguageModel;
+import edu.cmu.sphinx.linguist.language.ngram.WordIdLanguageModel;
+
+public class LexTreeLinguistTest {
+
+    private static final String WORDS =
+            "a AH\n" +
+            "bat B AE T\n" +
+            "bee B IY\n" +
+            "tab T AE B\n" +
+            "tea T IY\n";
+
+    private static final String FILLERS =
+            "<s> SIL\n" +
+            "</s> SIL\n" +
+            "<sil> SIL\n";
+
+    private static final String[] VOCABULARY = {"<s>", "</s>", "a", "bat", "bee", "tab", "tea"};
+
+    private static final float LANGUAGE_WEIGHT = 2.0f;
+
+    private UnitManager unitManager;
+    private Dictionary dictionary;
+
+    private URL write(String text) throws IOException {
+        File file = File.createTempFile("dictionary", ".dict");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(text);
+        writer.close();
+        return file.toURI().toURL();
+    }
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        unitManager = new UnitManager();
+        dictionary = new TextDictionary(write(WORDS), write(FILLERS), null, null, unitManager);
+    }
+
+    /**
+     * Visits all the search states and checks that every word is scored by
+     * the rescoring model
+     *
+     * @return the length of the longest word history
+     */
+    private int checkRescoring(int order, int rescoringOrder, int rescoringCacheSize) throws IOException {
+        WordIdLanguageModel languageModel = new StubLanguageModel(order, VOCABULARY);
+        WordIdLanguageModel rescoringModel = new StubLanguageModel(rescoringOrder, VOCABULARY);
+        LexTreeLinguist linguist = new LexTreeLinguist(new HMMTreeTest.StubModel(unitManager), unitManager,
+                languageModel, dictionary, true, false, 1.0, 1.0, 1.0, 1.0, LANGUAGE_WEIGHT, false, false, 1.0f,
+                0, rescoringModel, rescoringCacheSize);
+        linguist.allocate();
+
+        int numWords = 0;
+        int maxHistory = 0;
+        Set<SearchState> visited = new HashSet<SearchState>();
+        Deque<SearchState> queue = new ArrayDeque<SearchState>();
+        queue.add(linguist.getSearchGraph().getInitialState());
+        while (!queue.isEmpty()) {
+            SearchState state = queue.remove();
+            if (!visited.add(state))
+                continue;
+            maxHistory = Math.max(maxHistory, state.getWordHistory().size());
+            for (SearchStateArc arc : state.getSuccessors()) {
+                SearchState next = arc.getState();
+                Word word = next instanceof WordSearchState
+                        ? ((WordSearchState) next).getPronunciation().getWord() : null;
+                // fillers other than the sentence end are not scored
+                if (word != null && (!word.isFiller() || word.isSentenceEndWord())) {
+                    WordSequence sequence = state.getWordHistory().addWord(word, rescoringOrder);
+                    assertThat((double) arc.getLanguageProbability(),
+                               closeTo(LANGUAGE_WEIGHT * rescoringModel.getProbability(sequence), 0.01));
+                    numWords++;
+                }
+                queue.add(next);
+            }
+        }
+        linguist.deallocate();
+        assertThat(numWords, greaterThan(0));
+        return maxHistory;
+    }
+
+    @Test
+    public void testRescoringLowerOrder() throws IOException {
+        // the language model uses words which the rescoring model doesn't
+        assertThat(checkRescoring(3, 2, 0), equalTo(2));
+        assertThat(checkRescoring(3, 2, 4096), equalTo(2));
+    }
+
+    @Test
+    public void testRescoringHigherOrder() throws IOException {
+        // the histories grow to the order of the rescoring model
+        assertThat(checkRescoring(2, 3, 0), equalTo(2));
+        assertThat(checkRescoring(2, 3, 4096), equalTo(2));
+        assertThat(checkRescoring(2, 4, 4096), equalTo(3));
+    }
+}
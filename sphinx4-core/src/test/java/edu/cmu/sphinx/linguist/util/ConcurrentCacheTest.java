@@ -0,0 +1,102 @@
+package edu.cmu.sphinx.linguist.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class ConcurrentCacheTest {
+
+    /** A key which collides with all the other keys */
+    static class CollidingKey {
+
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+    }
+
+    @Test
+    public void testGetPut() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(16);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals(cache.get("a"), "1");
+        assertEquals(cache.get(new String("b")), "2");
+        assertEquals(cache.size(), 2);
+
+        cache.put("a", "3");
+        assertEquals(cache.get("a"), "3");
+        assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void testCollisions() {
+        ConcurrentCache<CollidingKey, Integer> cache = new ConcurrentCache<CollidingKey, Integer>(64);
+        for (int i = 0; i < 4; i++)
+            cache.put(new CollidingKey(i), i);
+        for (int i = 0; i < 4; i++)
+            assertEquals(cache.get(new CollidingKey(i)), Integer.valueOf(i));
+        assertNull(cache.get(new CollidingKey(4)));
+    }
+
+    @Test
+    public void testEviction() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(64);
+        cache.put(7, 7);
+        for (int i = 10; i < 10000; i++) {
+            cache.put(i, i);
+            // recently used entries survive
+            assertEquals(cache.get(7), Integer.valueOf(7));
+        }
+        assertTrue(cache.size() <= 64);
+        assertEquals(cache.get(9999), Integer.valueOf(9999));
+        int found = 0;
+        for (int i = 10; i < 10000; i++) {
+            Integer value = cache.get(i);
+            if (value != null) {
+                assertEquals(value, Integer.valueOf(i));
+                found++;
+            }
+        }
+        assertTrue(found <= 64);
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(256);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        int key = i % 1000;
+                        Integer value = cache.get(key);
+                        if (value != null && value != -key)
+                            failed[0] = true;
+                        cache.put(key, -key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(!failed[0]);
+    }
+}
@@ -0,0 +1,71 @@
+package edu.cmu.sphinx.linguist.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class NGramProbabilityCacheTest {
+
+    @Test
+    public void testGetPut() {
+        NGramProbabilityCache cache = new NGramProbabilityCache(16);
+        assertTrue(Float.isNaN(cache.get(0, 1)));
+        cache.put(0, 1, -2.5f);
+        cache.put(1, 0, -3.5f);
+        assertEquals(cache.get(0, 1), -2.5f);
+        assertEquals(cache.get(1, 0), -3.5f);
+        assertEquals(cache.size(), 2);
+
+        cache.put(0, 1, -4.5f);
+        assertEquals(cache.get(0, 1), -4.5f);
+        assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void testEviction() {
+        NGramProbabilityCache cache = new NGramProbabilityCache(64);
+        cache.put(0, 7, 7.0f);
+        for (int i = 10; i < 10000; i++) {
+            cache.put(0, i, i);
+            // recently used entries survive
+            assertEquals(cache.get(0, 7), 7.0f);
+        }
+        assertTrue(cache.size() <= 64);
+        assertEquals(cache.get(0, 9999), 9999.0f);
+        int found = 0;
+        for (int i = 10; i < 10000; i++) {
+            float probability = cache.get(0, i);
+            if (!Float.isNaN(probability)) {
+                assertEquals(probability, (float) i);
+                found++;
+            }
+        }
+        assertTrue(found <= 64);
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final NGramProbabilityCache cache = new NGramProbabilityCache(256);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        long key = i % 1000;
+                        float probability = cache.get(key, ~key);
+                        if (!Float.isNaN(probability) && probability != -key)
+                            failed[0] = true;
+                        cache.put(key, ~key, -key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(!failed[0]);
+    }
+}
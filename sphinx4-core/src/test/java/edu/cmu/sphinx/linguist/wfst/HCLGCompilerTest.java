@@ -0,0 +1,358 @@
+package edu.cmu.sphinx.linguist.wfst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.fst.Convert;
+import edu.cmu.sphinx.fst.Fst;
+import edu.cmu.sphinx.fst.semiring.TropicalSemiring;
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.linguist.HMMSearchState;
+import edu.cmu.sphinx.linguist.SearchState;
+import edu.cmu.sphinx.linguist.SearchStateArc;
+import edu.cmu.sphinx.linguist.WordSearchState;
+import edu.cmu.sphinx.linguist.acoustic.AcousticModel;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMPosition;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.HMMStateArc;
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.acoustic.UnitManager;
+import edu.cmu.sphinx.linguist.acoustic.tiedstate.MixtureComponent;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.TextDictionary;
+import edu.cmu.sphinx.util.LogMath;
+import edu.cmu.sphinx.util.props.PropertySheet;
+
+public class HCLGCompilerTest {
+
+    private static final String WORDS =
+            "a AH\n" +
+            "bee B IY\n" +
+            "beet B IY T\n" +
+            "tea T IY\n";
+
+    private static final String FILLERS =
+            "<s> SIL\n" +
+            "</s> SIL\n" +
+            "<sil> SIL\n";
+
+    // zebra is not in the dictionary
+    private static final String GRAMMAR =
+            "0\t1\ta\ta\t0.5\n" +
+            "0\t1\tbee\tbee\t1.0\n" +
+            "0\t1\tbeet\tbeet\t1.5\n" +
+            "0\t1\tzebra\tzebra\t0.1\n" +
+            "1\t2\ttea\ttea\n" +
+            "1\t0\t<eps>\t<eps>\t2.0\n" +
+            "2\n";
+
+    /** A left to right HMM with three emitting states */
+    static class StubHMM implements HMM {
+
+        private final Unit unit;
+        private final HMMState[] states = new HMMState[4];
+
+        StubHMM(Unit unit) {
+            this.unit = unit;
+            for (int i = states.length - 1; i >= 0; i--)
+                states[i] = new StubHMMState(this, i, i < 3 ? states[i + 1] : null);
+        }
+
+        public Unit getUnit() {
+            return unit;
+        }
+
+        public Unit getBaseUnit() {
+            return unit;
+        }
+
+        public HMMState getState(int which) {
+            return states[which];
+        }
+
+        public int getOrder() {
+            return 3;
+        }
+
+        public HMMPosition getPosition() {
+            return HMMPosition.UNDEFINED;
+        }
+
+        public HMMState getInitialState() {
+            return states[0];
+        }
+    }
+
+    static class StubHMMState implements HMMState {
+
+        private final HMM hmm;
+        private final int state;
+        private final HMMStateArc[] successors;
+
+        StubHMMState(HMM hmm, int state, HMMState next) {
+            this.hmm = hmm;
+            this.state = state;
+            LogMath logMath = LogMath.getLogMath();
+            if (next == null)
+                successors = new HMMStateArc[0];
+            else
+                successors = new HMMStateArc[] {new HMMStateArc(this, logMath.linearToLog(0.5)),
+                                                new HMMStateArc(next, logMath.linearToLog(0.5))};
+        }
+
+        public HMM getHMM() {
+            return hmm;
+        }
+
+        public MixtureComponent[] getMixtureComponents() {
+            return null;
+        }
+
+        public long getMixtureId() {
+            return 0;
+        }
+
+        public float[] getLogMixtureWeights() {
+            return null;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public float getScore(Data data) {
+            return 0;
+        }
+
+        public float[] calculateComponentScore(Data data) {
+            return null;
+        }
+
+        public boolean isEmitting() {
+            return successors.length > 0;
+        }
+
+        public HMMStateArc[] getSuccessors() {
+            return successors;
+        }
+
+        public boolean isExitState() {
+            return successors.length == 0;
+        }
+    }
+
+    /** A model with a context independent HMM for every unit */
+    static class StubModel implements AcousticModel {
+
+        private final Map<String, HMM> hmms = new HashMap<String, HMM>();
+        private final UnitManager unitManager;
+
+        StubModel(UnitManager unitManager) {
+            this.unitManager = unitManager;
+        }
+
+        public void newProperties(PropertySheet ps) {
+        }
+
+        public void allocate() {
+        }
+
+        public void deallocate() {
+        }
+
+        public String getName() {
+            return "stub";
+        }
+
+        public HMM lookupNearestHMM(Unit unit, HMMPosition position, boolean exactMatch) {
+            HMM hmm = hmms.get(unit.getName());
+            if (hmm == null) {
+                hmm = new StubHMM(unitManager.getUnit(unit.getName(), unit.isFiller()));
+                hmms.put(unit.getName(), hmm);
+            }
+            return hmm;
+        }
+
+        public Iterator<HMM> getHMMIterator() {
+            return hmms.values().iterator();
+        }
+
+        public Iterator<Unit> getContextIndependentUnitIterator() {
+            return null;
+        }
+
+        public int getLeftContextSize() {
+            return 1;
+        }
+
+        public int getRightContextSize() {
+            return 1;
+        }
+
+        public Properties getProperties() {
+            return new Properties();
+        }
+    }
+
+    private File write(String text, String suffix) throws IOException {
+        File file = File.createTempFile("hclg", suffix);
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(text);
+        writer.close();
+        return file;
+    }
+
+    /**
+     * Finds the word sequences of the paths which don't visit a state twice
+     * and the lowest costs of them
+     */
+    private static void getSequences(HCLGGraph graph, int state, List<String> words, float cost,
+            Set<Integer> visited, Map<String, Float> sequences) {
+        if (graph.isFinal(state)) {
+            String sequence = words.toString();
+            Float best = sequences.get(sequence);
+            float total = cost + graph.getFinalCost(state);
+            if (best == null || total < best)
+                sequences.put(sequence, total);
+        }
+        visited.add(state);
+        for (int arc = graph.getArcStart(state); arc < graph.getArcEnd(state); arc++) {
+            if (visited.contains(graph.getTarget(arc)))
+                continue;
+            if (graph.getOutput(arc) != HCLGGraph.EPSILON)
+                words.add(graph.getWord(graph.getOutput(arc)));
+            getSequences(graph, graph.getTarget(arc), words, cost + graph.getCost(arc), visited, sequences);
+            if (graph.getOutput(arc) != HCLGGraph.EPSILON)
+                words.remove(words.size() - 1);
+        }
+        visited.remove(state);
+    }
+
+    private static Map<String, Float> getSequences(HCLGGraph graph) {
+        Map<String, Float> sequences = new TreeMap<String, Float>();
+        getSequences(graph, graph.getStart(), new ArrayList<String>(), 0, new HashSet<Integer>(), sequences);
+        return sequences;
+    }
+
+    private UnitManager unitManager;
+    private Dictionary dictionary;
+    private StubModel model;
+    private File grammar;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        unitManager = new UnitManager();
+        dictionary = new TextDictionary(write(WORDS, ".dict").toURI().toURL(),
+                                        write(FILLERS, ".dict").toURI().toURL(), null, null, unitManager);
+        dictionary.allocate();
+        model = new StubModel(unitManager);
+        grammar = write(GRAMMAR, ".fst.txt");
+    }
+
+    private HCLGGraph compile(boolean determinize) throws IOException {
+        String basename = grammar.getPath().substring(0, grammar.getPath().length() - ".fst.txt".length());
+        Fst fst = Convert.importFst(basename, new TropicalSemiring());
+        return new HCLGCompiler(model, unitManager, dictionary, 2.0f, 0.5, 0.1).compile(fst, determinize);
+    }
+
+    @Test
+    public void testCompile() throws IOException {
+        HCLGGraph graph = compile(false);
+        Map<String, Float> sequences = getSequences(graph);
+        assertThat(sequences.keySet(), equalTo((Set<String>) new HashSet<String>(
+                Arrays.asList("[a, tea]", "[bee, tea]", "[beet, tea]"))));
+
+        // the weighted grammar cost, the word insertion cost and the
+        // transitions of three HMM states per unit
+        float hmmCost = (float) (3 * Math.log(2));
+        float wordCost = (float) -Math.log(0.5);
+        assertThat((double) sequences.get("[a, tea]"),
+                   closeTo(2.0 * 0.5 + 2 * wordCost + 3 * hmmCost, 1e-4));
+        assertThat((double) sequences.get("[beet, tea]"),
+                   closeTo(2.0 * 1.5 + 2 * wordCost + 5 * hmmCost, 1e-4));
+
+        // the determinized graph has the same paths
+        HCLGGraph determinized = compile(true);
+        Map<String, Float> determinizedSequences = getSequences(determinized);
+        assertThat(determinizedSequences.keySet(), equalTo(sequences.keySet()));
+        for (String sequence : sequences.keySet())
+            assertThat((double) determinizedSequences.get(sequence), closeTo(sequences.get(sequence), 1e-4));
+        // the prefix of bee and beet is shared
+        assertThat(determinized.getNumStates(), lessThan(graph.getNumStates()));
+    }
+
+    @Test
+    public void testLinguist() throws IOException {
+        HCLGGraph graph = compile(true);
+        File file = File.createTempFile("hclg", ".bin");
+        file.deleteOnExit();
+        graph.save(file);
+
+        URL location = file.toURI().toURL();
+        WFSTLinguist linguist = new WFSTLinguist(model, unitManager, dictionary, location);
+        linguist.allocate();
+        HCLGGraph loaded = linguist.getGraph();
+        assertThat(loaded.getNumStates(), equalTo(graph.getNumStates()));
+        assertThat(getSequences(loaded), equalTo(getSequences(graph)));
+
+        Set<String> words = new HashSet<String>();
+        int numFinal = 0;
+        Set<SearchState> visited = new HashSet<SearchState>();
+        Deque<SearchState> queue = new ArrayDeque<SearchState>();
+        queue.add(linguist.getSearchGraph().getInitialState());
+        while (!queue.isEmpty()) {
+            SearchState state = queue.remove();
+            if (!visited.add(state))
+                continue;
+            if (state instanceof WordSearchState)
+                words.add(((WordSearchState) state).getPronunciation().getWord().getSpelling());
+            if (state.isFinal())
+                numFinal++;
+            boolean selfLoop = false;
+            for (SearchStateArc arc : state.getSuccessors()) {
+                SearchState next = arc.getState();
+                assertThat(arc.getProbability(), lessThan(0.0f + Float.MIN_VALUE));
+                // non-emitting states come in order
+                if (!state.isEmitting())
+                    assertThat(next.getOrder(), greaterThan(state.getOrder() - 1));
+                if (next.equals(state))
+                    selfLoop = true;
+                queue.add(next);
+            }
+            if (state instanceof HMMSearchState) {
+                assertThat(state.isEmitting(), equalTo(true));
+                assertThat(((HMMSearchState) state).getHMMState().isEmitting(), equalTo(true));
+                assertThat(selfLoop, equalTo(true));
+            }
+        }
+        assertThat(words, equalTo((Set<String>) new HashSet<String>(Arrays.asList("a", "bee", "beet", "tea"))));
+        assertThat(numFinal, greaterThan(0));
+    }
+}
@@ -0,0 +1,89 @@
+package edu.cmu.sphinx.result;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.cmu.sphinx.linguist.WordSequence;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.ngram.LanguageModel;
+import edu.cmu.sphinx.linguist.language.ngram.StubLanguageModel;
+
+public class LatticeRescorerTest {
+
+    private Lattice createLattice() {
+        Lattice lattice = new Lattice();
+        Node start = lattice.addNode("0", "<s>", 0, 0);
+        Node b = lattice.addNode("1", "b", 1, 1);
+        Node c = lattice.addNode("2", "c", 1, 1);
+        Node d = lattice.addNode("3", "d", 2, 2);
+        Node e = lattice.addNode("4", "e", 3, 3);
+        Node end = lattice.addNode("5", "</s>", 4, 4);
+        lattice.setInitialNode(start);
+        lattice.setTerminalNode(end);
+        lattice.addEdge(start, b, -1, 0);
+        lattice.addEdge(start, c, -2, 0);
+        lattice.addEdge(b, d, -3, 0);
+        lattice.addEdge(c, d, -4, 0);
+        lattice.addEdge(d, e, -5, 0);
+        lattice.addEdge(e, end, -6, 0);
+        return lattice;
+    }
+
+    private float getProbability(LanguageModel model, String... words) {
+        Word[] sequence = new Word[words.length];
+        for (int i = 0; i < words.length; i++)
+            sequence[i] = new Word(words[i], null, false);
+        return model.getProbability(new WordSequence(sequence));
+    }
+
+    @Test
+    public void testExpand() {
+        LanguageModel model = new StubLanguageModel(3);
+        Lattice expanded = new LatticeRescorer(createLattice(), model, 2.0f).expand();
+
+        // d is split by its two histories, e merges them again
+        assertEquals(expanded.getNodes().size(), 7);
+        assertEquals(expanded.getEdges().size(), 7);
+
+        int dCopies = 0;
+        for (Edge edge : expanded.getEdges()) {
+            String from = edge.getFromNode().getWord().getSpelling();
+            String to = edge.getToNode().getWord().getSpelling();
+            if (to.equals("d"))
+                dCopies++;
+            if (to.equals("e")) {
+                String first = edge.getFromNode().getEnteringEdges().iterator().next().getFromNode().getWord()
+                        .getSpelling();
+                assertEquals(edge.getLMScore(), 2.0 * getProbability(model, first, "d", "e"));
+                assertEquals(edge.getAcousticScore(), -5.0);
+            }
+            if (from.equals("e"))
+                assertEquals(edge.getLMScore(), 2.0 * getProbability(model, "d", "e", "</s>"));
+            if (from.equals("<s>"))
+                assertEquals(edge.getLMScore(), 2.0 * getProbability(model, "<s>", to));
+        }
+        assertEquals(dCopies, 2);
+        assertEquals(expanded.getTerminalNode().getWord().getSpelling(), "</s>");
+        assertEquals(expanded.getTerminalNode().getEnteringEdges().size(), 1);
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        BatchLatticeRescorer rescorer = new BatchLatticeRescorer(new StubLanguageModel(3), 2.0f, 2);
+        rescorer.allocate();
+        List<Lattice> lattices = rescorer.rescore(Arrays.asList(createLattice(), createLattice(), createLattice()));
+        rescorer.deallocate();
+
+        assertEquals(lattices.size(), 3);
+        for (Lattice lattice : lattices) {
+            assertEquals(lattice.getNodes().size(), 7);
+            lattice.computeNodePosteriors(1.0f);
+            assertEquals(lattice.getViterbiPath().size(), 5);
+        }
+    }
+}